@@ -40,4 +40,14 @@ application {
 
 tasks.named<JavaExec>("run") {
     standardInput = System.`in`
-}
\ No newline at end of file
+}
+
+tasks.named<Test>("test") {
+    // Saves write vaults and the user database under data/ in the working directory
+    val runDirectory = layout.buildDirectory.dir("test-run").get().asFile
+    workingDir = runDirectory
+    doFirst { runDirectory.mkdirs() }
+    // Derivations in tests only need to be correct, not slow
+    systemProperty("notes.kdf.minIterations", "1000")
+    systemProperty("notes.kdf.targetMillis", "5")
+}
@@ -3,16 +3,24 @@
  */
 package org.example;
 
+import java.io.IOException;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 import java.util.regex.Pattern;
 
+import org.example.persistence.DataKeyRotation;
+import org.example.persistence.KdfBusyException;
+import org.example.persistence.KdfPolicy;
 import org.example.persistence.UserSaver;
 import org.example.persistence.UserSaver.UserException;
+import org.example.persistence.VaultScrubber;
+import org.example.persistence.WriteBehindSaver;
 
 public class App {
     
@@ -31,6 +39,14 @@ public class App {
     */
     private static Scanner appScanner = null;
 
+    /* FIO14-J: The active session is tracked so its derived keys are zeroed
+    during cleanup, on normal exit as well as from the shutdown hook.
+    */
+    private static volatile UserSession activeSession = null;
+
+    /* FIO14-J: In headless mode the server's sessions are logged out during cleanup too */
+    private static volatile NoteServer server = null;
+
     /* IDS00-J: Prevent SQL injection vulnerabilities
     SQL injection patterns used to detect and reject malicious input
     before it reaches the database layer
@@ -264,7 +280,13 @@ public class App {
         Scanner scanner = new Scanner(System.in);
        
         System.out.println("Enter your username:");
-        String username = scanner.nextLine(); // Read username input
+        String username;
+        StartupProfiler.Phase typingName = StartupProfiler.input("username");
+        try {
+            username = scanner.nextLine(); // Read username input
+        } finally {
+            typingName.end();
+        }
 
         /* IDS00-J: Validate and sanitize username input to prevent SQL injection */
         username = processSqlInput(username);
@@ -274,8 +296,20 @@ public class App {
         }
 
         System.out.println("Enter your Password:");
-        String password = scanner.nextLine(); // Read password input
-        User userProfile = verifyLogon(username, password);
+        String password;
+        StartupProfiler.Phase typingPassword = StartupProfiler.input("password");
+        try {
+            password = scanner.nextLine(); // Read password input
+        } finally {
+            typingPassword.end();
+        }
+        User userProfile;
+        StartupProfiler.Phase signOn = StartupProfiler.begin("sign on");
+        try {
+            userProfile = verifyLogon(username, password);
+        } finally {
+            signOn.end();
+        }
         if(userProfile != null){ // Placeholder for actual authentication logic
             System.out.println("Sign on successful! Welcome to the Notes App!");
 
@@ -302,6 +336,9 @@ public class App {
         // Perform login attempt with valid credentials
         try {
             return UserSaver.loadUser(username, password);
+        } catch (KdfBusyException e) {
+            // Nothing was checked; the password may well be right
+            System.out.println(e.getMessage());
         } catch (UserException | SecurityException e) {
             e.printStackTrace();
         }
@@ -335,30 +372,124 @@ public class App {
         }
     }
 
+    /* Everything the session loop understands, for the prompt and 'help' */
+    private static final String COMMANDS = "'list', 'create', 'view', 'edit', 'delete', 'export', 'import', 'search',"
+            + " 'history', 'clear history', 'verify', 'rotate key', 'save', 'help' or 'logout'";
+
+    /* Time the current command spent waiting for input; only the command loop's thread touches it */
+    private static long inputNanos;
+
     static void runtime(User user){
         /* TSM01-J: Create session objects via static factory so a partially
         constructed this reference is never published. */
-        UserSession session = UserSession.newSession(user.getUsername());
+        SessionRegistry.Entry entry;
+        StartupProfiler.Phase starting = StartupProfiler.begin("session start");
+        try {
+            entry = SessionRegistry.shared().register(user);
+        } finally {
+            starting.end();
+        }
+        UserSession session = entry.getSession();
+        activeSession = session;
         System.out.println("Welcome " + user.getUsername() + "! You can now create and manage your notes.");
         System.out.println("Session started: " + session.getSessionId());
+        StartupProfiler.Phase listing = StartupProfiler.begin("note list");
+        try {
+            listNotes(user);
+        } finally {
+            listing.end();
+        }
+
+        // The user, their notes and their keys stay in memory until logout,
+        // so each command only pays for its own work. The registry's sweeper
+        // logs the session out if it idles, even while the prompt waits.
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("What would you like to do? (Type " + COMMANDS + ")");
+        StartupProfiler.finish("first prompt");
+        try {
+            while (scanner.hasNextLine()) {
+                String action = scanner.nextLine().trim();
+                if (session.isEnded()) {
+                    System.out.println("Your session was logged out. Please sign on again.");
+                    break;
+                }
+                if (action.isEmpty()) {
+                    continue;
+                }
+                if (action.equalsIgnoreCase("logout") || action.equalsIgnoreCase("quit")
+                        || action.equalsIgnoreCase("exit")) {
+                    break;
+                }
+                try {
+                    session.beginCommand();
+                } catch (IllegalStateException e) {
+                    System.out.println("Your session has expired. Please sign on again.");
+                    break;
+                }
+                long begin = System.nanoTime();
+                inputNanos = 0;
+                try {
+                    runCommand(user, action, scanner);
+                } finally {
+                    long elapsed = System.nanoTime() - begin - inputNanos;
+                    session.endCommand(elapsed);
+                    SessionRegistry.shared().touched(entry);
+                    System.out.printf("(%s: %.1f ms)%n", action, elapsed / 1e6);
+                }
+            }
+        } finally {
+            System.out.println("Session: " + session.commandSummary());
+        }
+    }
+
+    /* Reads one line of a command's input, keeping the wait out of its latency */
+    private static String readLine(Scanner scanner) {
+        long begin = System.nanoTime();
+        try {
+            return scanner.nextLine();
+        } finally {
+            inputNanos += System.nanoTime() - begin;
+        }
+    }
+
+    static void listNotes(User user) {
         List<Note> userNotes = user.getNotes();
         System.out.println("Here are your current notes:");
         if(userNotes.isEmpty()){
             System.out.println("You have no notes yet. Start by creating a new note!");
         } else {
-        for(Note note : userNotes){
-            
-            System.out.println("Note Title: " + note.getTitle());
+            for(Note note : userNotes){
+                System.out.println("Note Title: " + note.getTitle());
+            }
         }
     }
-        Scanner scanner = new Scanner(System.in);
-        System.out.println("What would you like to do? (Type 'create', 'view', 'edit', 'delete', 'export', 'import', 'search', 'history', or 'clear history')");
-        String action = scanner.nextLine();
 
-        if(action.equalsIgnoreCase("create")){
+    /**
+     * Runs one command of the session loop against the resident user.
+     */
+    static void runCommand(User user, String action, Scanner scanner){
+        List<Note> userNotes = user.getNotes();
+
+        if(action.equalsIgnoreCase("list")){
+            listNotes(user);
+
+        } else if(action.equalsIgnoreCase("help")){
+            System.out.println("Commands: " + COMMANDS);
+
+        } else if(action.equalsIgnoreCase("save")){
+            // Persist on demand instead of waiting for the background save
+            try {
+                WriteBehindSaver.shared().userChanged(user);
+                WriteBehindSaver.shared().flush(user);
+                System.out.println("All changes saved.");
+            } catch (IOException e) {
+                System.out.println("Unable to save your notes: " + e.getMessage());
+            }
+
+        } else if(action.equalsIgnoreCase("create")){
             /* IDS16-J: XML-safe sanitization before storing untrusted note fields. */
             System.out.println("Enter the title of your new note:");
-            String title = processXmlInput(scanner.nextLine());
+            String title = processXmlInput(readLine(scanner));
             if (title == null || title.isEmpty()) {
                 System.out.println("Invalid note title for XML-safe processing.");
                 return;
@@ -370,20 +501,17 @@ public class App {
                 }
             }
             System.out.println("Enter the content of your new note:");
-            String content = processXmlInput(scanner.nextLine());
+            String content = processXmlInput(readLine(scanner));
             if (content == null) {
                 System.out.println("Invalid note content for XML-safe processing.");
                 return;
             }
             Note newNote = new Note(title, content);
             user.addNote(newNote);
-            
-            try {
-                UserSaver.saveUser(user);
-                System.out.println("Note created successfully!");
-            } catch (UserException e) {
-                e.printStackTrace();
-            }
+
+            // Saved in the background; the prompt does not wait for the disk
+            WriteBehindSaver.shared().noteChanged(user, newNote.getId());
+            System.out.println("Note created successfully!");
         } else if(action.equalsIgnoreCase("view")){
 
             /* OBJ09-J we compare if the class being checked is 
@@ -394,7 +522,7 @@ public class App {
                     return;
                 }
             System.out.println("Enter the title of the note you want to view:");
-            String noteTitle = scanner.nextLine();
+            String noteTitle = readLine(scanner);
             Note noteToView = null; 
             for(Note note : userNotes){
                 if(note.getTitle().equalsIgnoreCase(noteTitle)){
@@ -412,7 +540,7 @@ public class App {
         } else if(action.equalsIgnoreCase("edit")){
             /* IDS16-J: XML-safe sanitization before updating untrusted content. */
             System.out.println("Enter the title of the note you want to edit:");
-            String noteTitle = scanner.nextLine();
+            String noteTitle = readLine(scanner);
             Note noteToEdit = null; 
             for(Note note : userNotes){
                 if(note.getTitle().equalsIgnoreCase(noteTitle)){
@@ -423,19 +551,15 @@ public class App {
             if(noteToEdit != null){
                 //does NOT append to the existing content, it replaces it entirely let me know if you want it to append instead
                 System.out.println("Enter the new content for your note:");
-                String newContent = processXmlInput(scanner.nextLine());
+                String newContent = processXmlInput(readLine(scanner));
                 if (newContent == null) {
                     System.out.println("Invalid note content for XML-safe processing.");
                     return;
                 }
                 noteToEdit.setContent(newContent);
 
-                try {
-                    UserSaver.saveUser(user);
-                    System.out.println("Note edited successfully!"); 
-                } catch (UserException e) {
-                    e.printStackTrace();
-                }
+                WriteBehindSaver.shared().noteChanged(user, noteToEdit.getId());
+                System.out.println("Note edited successfully!");
             } else {
                 System.out.println("Note not found! Please check the title and try again.");
             }
@@ -445,7 +569,7 @@ public class App {
             System.out.println("Enter the directory to export notes to (press Enter for default 'data/exports'):");
             String exportDir;
             try {
-                exportDir = sanitizeDirectoryInput(scanner.nextLine(), "data/exports");
+                exportDir = sanitizeDirectoryInput(readLine(scanner), "data/exports");
             } catch (IllegalArgumentException e) {
                 System.out.println("Invalid export directory: " + e.getMessage());
                 return;
@@ -458,24 +582,27 @@ public class App {
             System.out.println("Enter the directory to import notes from (press Enter for default 'data/exports'):");
             String importDir;
             try {
-                importDir = sanitizeDirectoryInput(scanner.nextLine(), "data/exports");
+                importDir = sanitizeDirectoryInput(readLine(scanner), "data/exports");
             } catch (IllegalArgumentException e) {
                 System.out.println("Invalid import directory: " + e.getMessage());
                 return;
             }
             System.out.println("Importing notes from " + importDir + "...");
             user.importNotesParallel(importDir);
+            // Only report the import as saved once it is on disk
+            WriteBehindSaver.shared().userChanged(user);
             try {
-                UserSaver.saveUser(user);
+                WriteBehindSaver.shared().flush(user);
                 System.out.println("Imported notes saved successfully!");
-            } catch (UserException e) {
-                e.printStackTrace();
+            } catch (IOException e) {
+                System.out.println("Imported notes could not be saved yet: " + e.getMessage()
+                        + ". They stay in memory and are saved with your next change.");
             }
 
         } else if(action.equalsIgnoreCase("search")){
             /* TPS04-J: ThreadLocal is reset per pooled search task in NoteSearcher. */
             System.out.println("Enter a keyword to search your notes:");
-            String keyword = scanner.nextLine();
+            String keyword = readLine(scanner);
             List<Note> results = NoteSearcher.search(userNotes, keyword);
             if (results.isEmpty()) {
                 System.out.println("No notes matched '" + keyword + "'.");
@@ -506,13 +633,39 @@ public class App {
                 }
             }
 
+        } else if(action.equalsIgnoreCase("verify")){
+            /* SER12-J: Authenticates every stored record of this vault with the session's keys */
+            System.out.println("Verifying your stored notes...");
+            try {
+                // Changes still queued in the background are written first so they are checked too
+                WriteBehindSaver.shared().flush();
+                VaultScrubber.Result result = VaultScrubber.verifyUserVault(user);
+                for (String problem : result.getProblems()) {
+                    System.out.println("  - " + problem);
+                }
+                System.out.println(result);
+            } catch (IOException e) {
+                System.out.println("Unable to verify notes: " + e.getMessage());
+            }
+
+        } else if(action.equalsIgnoreCase("rotate key")){
+            /* MSC59-J: Moves every note to a new data key; the old key is dropped once none use it */
+            System.out.println("Re-encrypting your notes under a new key...");
+            try {
+                DataKeyRotation rotation = DataKeyRotation.start(user);
+                rotation.await();
+                System.out.println(rotation);
+            } catch (IllegalStateException e) {
+                System.out.println("Unable to rotate the key: " + e.getMessage());
+            }
+
         } else if(action.equalsIgnoreCase("clear history")){
             NoteSearcher.clearHistory();
             System.out.println("Search history cleared.");
 
         } else if(action.toLowerCase().startsWith("delete")){
             System.out.println("Enter the title of the note you want to delete:");
-            String noteTitle = scanner.nextLine();
+            String noteTitle = readLine(scanner);
             Note noteToDelete = null; 
             for(Note note : userNotes){
                 if(note.getTitle().equalsIgnoreCase(noteTitle)){
@@ -521,29 +674,89 @@ public class App {
                 }
             }
             if(noteToDelete != null){
-                user.removeNote(noteToDelete.getTitle());
+                user.removeNote(noteToDelete.getId());
 
-                try {
-                    UserSaver.saveUser(user);
-                    System.out.println("Note deleted successfully!");
-                } catch (UserException e) {
-                    e.printStackTrace();
-                }
+                WriteBehindSaver.shared().noteChanged(user, noteToDelete.getId());
+                System.out.println("Note deleted successfully!");
             } else {
                 System.out.println("Note not found! Please check the title and try again.");
             }
 
         } else {
-            System.out.println("Invalid action! Please restart the application and choose a valid action.");
+            System.out.println("Unknown command. Type 'help' to see what you can do.");
         }
         
     }
 
+    /**
+     * Starts headless mode, serving every user over HTTP on the loopback
+     * interface until the process is stopped.
+     *
+     * @param portArgument port from the command line, or null for the default
+     */
+    static void runServer(String portArgument) {
+        int port;
+        try {
+            port = portArgument == null ? NoteServer.DEFAULT_PORT : Integer.parseInt(portArgument);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid port: " + portArgument);
+            safeExit(1);
+            return;
+        }
+        StartupProfiler.Phase starting = StartupProfiler.begin("server start");
+        try {
+            server = NoteServer.start(port);
+        } catch (IOException e) {
+            System.err.println("Unable to start the server: " + e.getMessage());
+            safeExit(1);
+            return;
+        } finally {
+            starting.end();
+        }
+        System.out.println("Serving notes on http://127.0.0.1:" + server.getPort() + "/ (Ctrl+C to stop)");
+        StartupProfiler.finish("serving");
+    }
+
+    /**
+     * FIO14-J: Writes every change still queued in the background. Must run
+     * before the session is ended, since saving needs its keys.
+     */
+    static void flushPendingSaves() {
+        // A rotation still running stops after its batch and finishes at the next login
+        DataKeyRotation.cancelAll();
+        try {
+            WriteBehindSaver.shared().flush();
+        } catch (IOException e) {
+            System.err.println("Failed to save pending changes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * FIO14-J: Logs out the active session so its key ring is zeroed.
+     * Reports how often the session's keys were derived versus reused.
+     */
+    static void endSession() {
+        UserSession session = activeSession;
+        activeSession = null;
+        if (session != null && session.getKeyRing() != null) {
+            System.out.println("Session key ring: " + session.getKeyRing().getMissCount() + " derivation(s), "
+                    + session.getKeyRing().getHitCount() + " reuse(s)");
+        }
+        if (session != null && !SessionRegistry.shared().logout(session.getSessionId())) {
+            session.logout();
+        }
+    }
+
     /**
      * FIO14-J: Manually closes all open resources before program termination.
      * This ensures resources such as the Scanner are properly released.
      */
     static void manualCleanup() {
+        flushPendingSaves();
+        endSession();
+        SessionRegistry.shared().logoutAll();
+        System.out.println(SessionRegistry.shared());
+        UserSaver.closeStores();
         if (appScanner != null) {
             System.out.println("Manual cleanup: Closing scanner");
             appScanner.close();
@@ -574,14 +787,29 @@ public class App {
     }
 
     public static void main(String[] args) {
+      // --timings may come before or after the other arguments
+      List<String> arguments = new ArrayList<>(Arrays.asList(args));
+      if (arguments.removeIf(argument -> argument.equalsIgnoreCase("--timings"))) {
+          StartupProfiler.enable();
+      }
      System.out.println("Hello Welcome to the Notes App! This sign on is a " + premissions.USER_ACCESS + " access level");
 
       /* FIO14-J: Register a shutdown hook to ensure the Scanner is closed
       even if the program is abruptly terminated (e.g. Ctrl+C or kill signal).
       Uses Runtime.exit() path so hooks are invoked; never Runtime.halt().
       */
+      // Time PBKDF2 on this machine while the user is still typing
+      KdfPolicy.calibrateAsync();
+
       appScanner = new Scanner(System.in);
       Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          flushPendingSaves();
+          if (server != null) {
+              server.stop();
+          }
+          endSession();
+          SessionRegistry.shared().logoutAll();
+          UserSaver.closeStores();
           if (appScanner != null) {
               System.out.println("Shutdown hook: Closing scanner");
               appScanner.close();
@@ -589,8 +817,20 @@ public class App {
           }
       }));
 
+      if (!arguments.isEmpty() && arguments.get(0).equalsIgnoreCase("--server")) {
+          // Headless: the server's threads keep the process alive until it is stopped
+          runServer(arguments.size() > 1 ? arguments.get(1) : null);
+          return;
+      }
+
       System.out.println("Would you like to sign on or create an account? (Type 'SignOn' or 'create')");
-        String choice = appScanner.nextLine();
+        String choice;
+        StartupProfiler.Phase choosing = StartupProfiler.input("sign on or create");
+        try {
+            choice = appScanner.nextLine();
+        } finally {
+            choosing.end();
+        }
     if(choice.equalsIgnoreCase("SignOn")){
         User signedOnUser = SignOn();
         if(signedOnUser != null){
@@ -606,6 +846,9 @@ public class App {
         System.out.println("Invalid choice! Please restart the application and choose either 'SignOn' or 'create'.");
     }
 
+    // Prints the timings if the session prompt was never reached
+    StartupProfiler.finish("exit");
+
     /* FIO14-J: Perform manual cleanup and exit safely */
     safeExit(0);
 
@@ -4,22 +4,50 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class Note implements Serializable {
 
+    /* SER00-J: Enable serialization compatibility during class evolution.
+    Pinned to the value the original class computed, so notes serialized by
+    older versions still deserialize after fields and methods are added. */
+    private static final long serialVersionUID = 8721313221676930096L;
+
     private final String id;
     private String title;
     
     private final LocalDateTime createdAt;
     private LocalDateTime updatedAt;
-    private Content theContent; //needed this for rule
+    private volatile Content theContent; //needed this for rule
+
+    /* Lazily loaded notes start with no content and fetch it from this source
+    on first use. Both are transient: a serialized note always carries its content. */
+    private transient volatile ContentSource contentSource;
+    /* LCK00-J: Private lock so two threads never load the same body twice.
+    Transient fields are not restored by deserialization, so readResolve()
+    rebuilds a deserialized note through its constructor to recreate it. */
+    private final transient Object contentLock = new Object();
+
+    /* Edit counters for incremental saves. A note is dirty while its revision
+    differs from the last revision written to the vault. They are transient, so
+    a legacy deserialized note starts clean and is marked dirty by its loader. */
+    private transient volatile int revision;
+    private transient volatile int savedRevision;
     
     /*OBJ08-J Do not expose internal state of objects 
     content is private and is mutable, so we encapsulate it properly */
     /*SER05-J: Do not serialize instances of non-static inner classes */
     static class Content implements Serializable {
+        private static final long serialVersionUID = -2390322180459291252L;
+
         private String content;
 
         public Content(String content) {
@@ -35,6 +63,33 @@ public class Note implements Serializable {
         }
     }
 
+    /**
+     * Supplies the body of a note that was restored without it.
+     */
+    public interface ContentSource {
+        /**
+         * @param noteId id of the note
+         * @return the stored note; dirty if its record is in an outdated format
+         * @throws IOException if the body cannot be read or decrypted
+         */
+        Note load(String noteId) throws IOException;
+
+        /**
+         * Loads several bodies at once. Sources should override this when a
+         * batch is cheaper than one load per note.
+         *
+         * @param noteIds ids of the notes
+         * @return stored notes by note id
+         */
+        default Map<String, Note> loadAll(Collection<String> noteIds) throws IOException {
+            Map<String, Note> contents = new LinkedHashMap<>();
+            for (String noteId : noteIds) {
+                contents.put(noteId, load(noteId));
+            }
+            return contents;
+        }
+    }
+
     public Note(String id, String title, String newContent){
         this.id = id;
         this.title = title;
@@ -42,12 +97,58 @@ public class Note implements Serializable {
         this.theContent = c;
         this.createdAt = LocalDateTime.now();
         this.updatedAt = LocalDateTime.now();
+        // A new note has never been written
+        this.revision = 1;
     }
 
     public Note(String title, String newContent) {
         this(UUID.randomUUID().toString(), title, newContent);
     }
 
+    private Note(String id, String title, String newContent, LocalDateTime createdAt, LocalDateTime updatedAt) {
+        this.id = id;
+        this.title = title;
+        this.theContent = new Content(newContent);
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+    }
+
+    private Note(String id, String title, ContentSource source, LocalDateTime createdAt, LocalDateTime updatedAt) {
+        this.id = id;
+        this.title = title;
+        this.contentSource = source;
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+    }
+
+    /**
+     * Rebuilds a stored note from its metadata alone. The content is loaded
+     * from {@code source} the first time it is needed.
+     * OBJ11-J: All fields are validated before the object is constructed.
+     *
+     * @throws IllegalArgumentException if any field is null
+     */
+    public static Note restoreLazy(String id, String title, LocalDateTime createdAt, LocalDateTime updatedAt,
+                                   ContentSource source) {
+        if (id == null || title == null || createdAt == null || updatedAt == null || source == null) {
+            throw new IllegalArgumentException("Stored note fields cannot be null");
+        }
+        return new Note(id, title, source, createdAt, updatedAt);
+    }
+
+    /**
+     * Rebuilds a stored note with its original timestamps.
+     * OBJ11-J: All fields are validated before the object is constructed.
+     *
+     * @throws IllegalArgumentException if any field is null
+     */
+    public static Note restore(String id, String title, String content, LocalDateTime createdAt, LocalDateTime updatedAt) {
+        if (id == null || title == null || content == null || createdAt == null || updatedAt == null) {
+            throw new IllegalArgumentException("Stored note fields cannot be null");
+        }
+        return new Note(id, title, content, createdAt, updatedAt);
+    }
+
     public String getId() {
         return id;
     }
@@ -61,6 +162,7 @@ public class Note implements Serializable {
     public void setTitle(String title) {
         this.title = title;
         this.updatedAt = LocalDateTime.now();
+        revision++;
     }
 
     public String getContent() {
@@ -68,13 +170,94 @@ public class Note implements Serializable {
         external modification by returning a copy of the content
         instead of the original reference
         */
-        String contentCopy = theContent.getContent(); // Create a copy of the content to avoid exposing internal state
+        Content current = theContent;
+        if (current == null) {
+            current = loadContent();
+        }
+        String contentCopy = current.getContent(); // Create a copy of the content to avoid exposing internal state
         return contentCopy;
     }
 
+    /**
+     * @return true if the content is in memory, so {@link #getContent()} will not touch the disk
+     */
+    public boolean isContentLoaded() {
+        return theContent != null;
+    }
+
+    private Content loadContent() {
+        synchronized (contentLock) {
+            if (theContent == null) {
+                try {
+                    installLoaded(contentSource.load(id));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to load note content: " + id, e);
+                }
+            }
+            return theContent;
+        }
+    }
+
+    private void installContent(String content) {
+        theContent = new Content(content);
+        contentSource = null;
+    }
+
+    /* An outdated stored record is rewritten on the next save, as it would be if loaded eagerly */
+    private void installLoaded(Note loaded) {
+        installContent(loaded.getContent());
+        if (loaded.isDirty()) {
+            markDirty();
+        }
+    }
+
+    /**
+     * Loads the bodies of every lazily restored note in one batch per source,
+     * so a caller about to read all of them avoids one load per note.
+     *
+     * @param notes notes that are about to be read
+     * @throws IOException if a batch cannot be loaded
+     */
+    public static void loadContents(Collection<Note> notes) throws IOException {
+        Map<ContentSource, List<Note>> bySource = new IdentityHashMap<>();
+        for (Note note : notes) {
+            ContentSource source = note.contentSource;
+            if (source != null && note.theContent == null) {
+                bySource.computeIfAbsent(source, s -> new ArrayList<>()).add(note);
+            }
+        }
+        for (Map.Entry<ContentSource, List<Note>> batch : bySource.entrySet()) {
+            List<String> ids = new ArrayList<>();
+            for (Note note : batch.getValue()) {
+                ids.add(note.id);
+            }
+            Map<String, Note> contents = batch.getKey().loadAll(ids);
+            for (Note note : batch.getValue()) {
+                Note loaded = contents.get(note.id);
+                if (loaded == null) {
+                    continue;
+                }
+                synchronized (note.contentLock) {
+                    if (note.theContent == null) {
+                        note.installLoaded(loaded);
+                    }
+                }
+            }
+        }
+    }
+
     public void setContent(String content) {
-        this.theContent.setContent(content);
+        Content current = theContent;
+        if (current == null) {
+            // Replacing a body that was never loaded; there is nothing to read first
+            synchronized (contentLock) {
+                installContent(content);
+            }
+        } else {
+            current.setContent(content);
+        }
         this.updatedAt = LocalDateTime.now();
+        revision++;
     }
 
     public LocalDateTime getCreatedAt() {
@@ -87,6 +270,38 @@ public class Note implements Serializable {
         return updatedAtCopy;
     }
 
+    /**
+     * @return true if the note has changes that have not been saved
+     */
+    public boolean isDirty() {
+        return revision != savedRevision;
+    }
+
+    /**
+     * Forces the note to be rewritten on the next save, for example after a
+     * password change or when it was loaded from an outdated vault format.
+     */
+    public void markDirty() {
+        revision++;
+    }
+
+    /**
+     * @return counter that changes on every edit; pass it to {@link #markSaved(int)}
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    /**
+     * Records that the given revision has been written. An edit made while the
+     * save was running has a newer revision, so the note stays dirty.
+     *
+     * @param savedRevision value of {@link #getRevision()} taken before sealing
+     */
+    public void markSaved(int savedRevision) {
+        this.savedRevision = savedRevision;
+    }
+
     /**
      * SER01-J: Do not deviate from the proper signatures of serialization methods 
      * The methods must match the correct signature
@@ -94,6 +309,8 @@ public class Note implements Serializable {
      * @throws IOException
      */
     private void writeObject(ObjectOutputStream stream) throws IOException {
+        // A lazily restored note must carry its content into the stream
+        getContent();
         stream.defaultWriteObject();
     }
 
@@ -122,6 +339,16 @@ public class Note implements Serializable {
         theContent = new Content(deserializedContent);
     }
 
+    /**
+     * SER01-J: Do not deviate from the proper signatures of serialization methods.
+     * Deserialization leaves the transient content lock null, so the note is
+     * rebuilt through its constructor, which creates one.
+     * @return a copy of the deserialized note with every transient field initialized
+     */
+    private Object readResolve() {
+        return new Note(id, title, theContent.getContent(), createdAt, updatedAt);
+    }
+
     @Override
     public String toString() {
         return "Note{id='" + id + "', title='" + title + "', createdAt=" + createdAt + ", updatedAt=" + updatedAt + "}";
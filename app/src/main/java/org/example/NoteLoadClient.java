@@ -0,0 +1,220 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.example.persistence.UserSaver;
+
+/**
+ * Load generator for {@link NoteServer}: signs on, fills the vault with notes
+ * of realistic size, then runs a read-heavy mix of requests from many
+ * concurrent clients for a fixed time and reports requests per second with a
+ * latency histogram per operation, next to the server's own figures.
+ *
+ * <pre>
+ *   java -cp &lt;app classpath&gt; org.example.NoteLoadClient [url] [notes] [clients] [seconds]
+ * </pre>
+ *
+ * Without a URL a server is started in this JVM on a free port and the load
+ * account is created if it does not exist yet.
+ */
+public final class NoteLoadClient {
+
+    static final String USERNAME = System.getProperty("notes.load.username", "loadtest");
+    static final String PASSWORD = System.getProperty("notes.load.password", "loadtest-password");
+
+    /* Words the generated note bodies are made of */
+    private static final String[] WORDS = {"meeting", "budget", "design", "review", "release", "deadline",
+        "customer", "roadmap", "backlog", "incident", "metrics", "hiring", "planning", "retro", "offsite"};
+
+    /* Typical body size of a note, in bytes */
+    private static final int NOTE_BYTES = 2048;
+
+    private final HttpClient http;
+    private final String baseUrl;
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final AtomicLong errors = new AtomicLong();
+    private String token;
+
+    private NoteLoadClient(String baseUrl) {
+        this.baseUrl = baseUrl;
+        this.http = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int argument = 0;
+        String url = null;
+        if (args.length > 0 && args[0].startsWith("http")) {
+            url = args[argument++];
+        }
+        int notes = args.length > argument ? Integer.parseInt(args[argument++]) : 500;
+        int clients = args.length > argument ? Integer.parseInt(args[argument++]) : 16;
+        int seconds = args.length > argument ? Integer.parseInt(args[argument]) : 30;
+
+        NoteServer embedded = null;
+        if (url == null) {
+            embedded = NoteServer.start(0);
+            url = "http://127.0.0.1:" + embedded.getPort();
+        }
+        try {
+            NoteLoadClient client = new NoteLoadClient(url);
+            client.signOn(embedded != null);
+            List<String> noteIds = client.seed(notes);
+            client.run(noteIds, clients, seconds);
+            System.out.println(client.get("/stats").body());
+        } finally {
+            if (embedded != null) {
+                App.flushPendingSaves();
+                embedded.stop();
+                UserSaver.closeStores();
+            }
+        }
+    }
+
+    private void signOn(boolean createAccount) throws IOException, InterruptedException {
+        HttpResponse<String> response = post("/login", "username=" + encode(USERNAME) + "&password=" + encode(PASSWORD));
+        if (response.statusCode() == 401 && createAccount) {
+            UserSaver.saveUser(new User(USERNAME, PASSWORD));
+            response = post("/login", "username=" + encode(USERNAME) + "&password=" + encode(PASSWORD));
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("Sign on failed with " + response.statusCode() + ": " + response.body().trim());
+        }
+        token = response.body().trim();
+    }
+
+    /* Tops the vault up to the wanted number of notes */
+    private List<String> seed(int wanted) throws IOException, InterruptedException {
+        List<String> noteIds = new ArrayList<>();
+        for (String line : get("/notes").body().split("\n")) {
+            if (!line.isEmpty()) {
+                noteIds.add(line.substring(0, line.indexOf('\t')));
+            }
+        }
+        long begin = System.nanoTime();
+        int created = 0;
+        while (noteIds.size() < wanted) {
+            String title = "load-" + System.nanoTime();
+            HttpResponse<String> response = post("/notes", "title=" + encode(title) + "&content=" + encode(body()));
+            if (response.statusCode() != 201) {
+                throw new IOException("Seeding failed with " + response.statusCode() + ": " + response.body().trim());
+            }
+            noteIds.add(response.body().trim());
+            created++;
+        }
+        post("/save", "");
+        System.out.printf("Vault has %d note(s); created %d in %.1f s%n", noteIds.size(), created,
+                (System.nanoTime() - begin) / 1e9);
+        return noteIds;
+    }
+
+    private void run(List<String> noteIds, int clients, int seconds) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long begin = System.nanoTime();
+        try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                workers.execute(() -> {
+                    while (System.nanoTime() < end) {
+                        request(noteIds);
+                    }
+                });
+            }
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        long total = 0;
+        System.out.printf("Client latency, %d client(s) for %.1f s:%n", clients, elapsed);
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            total += entry.getValue().getCount();
+            System.out.printf("  %-8s %s%n", entry.getKey(), entry.getValue());
+        }
+        System.out.printf("%.0f requests/s, %d error(s)%n", total / elapsed, errors.get());
+    }
+
+    /* One request of the mix: mostly reads, some searches and edits */
+    private void request(List<String> noteIds) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String noteId = noteIds.get(random.nextInt(noteIds.size()));
+        int pick = random.nextInt(100);
+        String operation;
+        long begin = System.nanoTime();
+        try {
+            HttpResponse<String> response;
+            if (pick < 50) {
+                operation = "view";
+                response = get("/notes/" + noteId);
+            } else if (pick < 70) {
+                operation = "list";
+                response = get("/notes");
+            } else if (pick < 85) {
+                operation = "search";
+                response = get("/search?q=" + encode(WORDS[random.nextInt(WORDS.length)]));
+            } else {
+                operation = "edit";
+                response = send(HttpRequest.newBuilder(URI.create(baseUrl + "/notes/" + noteId))
+                        .PUT(form("content=" + encode(body()))));
+            }
+            if (response.statusCode() >= 400) {
+                errors.incrementAndGet();
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        latencies.computeIfAbsent(operation, key -> new LatencyHistogram()).record(System.nanoTime() - begin);
+    }
+
+    private static String body() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder text = new StringBuilder(NOTE_BYTES + 16);
+        while (text.length() < NOTE_BYTES) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return text.toString();
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        return send(HttpRequest.newBuilder(URI.create(baseUrl + path)).GET());
+    }
+
+    private HttpResponse<String> post(String path, String body) throws IOException, InterruptedException {
+        return send(HttpRequest.newBuilder(URI.create(baseUrl + path)).POST(form(body)));
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return http.send(request.timeout(Duration.ofSeconds(30)).build(),
+                HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    }
+
+    private static HttpRequest.BodyPublisher form(String body) {
+        return HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
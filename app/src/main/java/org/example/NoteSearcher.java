@@ -40,9 +40,21 @@ public class NoteSearcher {
      private static final Map<String, Integer> searchCountMap = Collections.synchronizedMap(new HashMap<>());
      private static final Set<String> searchCountKeyView = searchCountMap.keySet();
 
-    // Load persisted history from disk when the class is first used
-    static {
+    /* Guarded by historyLock. The file is read the first time the history is
+       shown, not when the class loads: searching only appends to it. */
+    private static boolean historyLoaded;
+
+    /**
+     * Loads the persisted history from disk on first use.
+     * LCK06-J: Uses the static historyLock to protect the static searchHistory list.
+     */
+    private static void ensureHistoryLoaded() {
         synchronized (historyLock) {
+            if (historyLoaded) {
+                return;
+            }
+            historyLoaded = true;
+            StartupProfiler.Phase loading = StartupProfiler.begin("search history load");
             try {
                 if (Files.exists(HISTORY_FILE)) {
                     List<String> lines = Files.readAllLines(HISTORY_FILE);
@@ -53,6 +65,8 @@ public class NoteSearcher {
                 }
             } catch (IOException e) {
                 System.err.println("Warning: Could not load search history: " + e.getMessage());
+            } finally {
+                loading.end();
             }
         }
     }
@@ -85,6 +99,23 @@ public class NoteSearcher {
             return results;
         }
 
+        // Bodies are only needed for notes whose title does not already match.
+        // Load any that are still on disk in one batch instead of one per search task.
+        List<Note> needContent = new ArrayList<>();
+        for (Note note : notes) {
+            if (!note.isContentLoaded() && !note.getTitle().toLowerCase().contains(lowerKeyword)) {
+                needContent.add(note);
+            }
+        }
+        if (!needContent.isEmpty()) {
+            try {
+                Note.loadContents(needContent);
+            } catch (IOException e) {
+                // Each task falls back to loading its own note
+                System.err.println("Failed to preload note contents: " + e.getMessage());
+            }
+        }
+
         int poolSize = Math.min(notes.size(), Runtime.getRuntime().availableProcessors());
         ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, poolSize));
         List<Future<?>> tasks = new ArrayList<>();
@@ -97,10 +128,11 @@ public class NoteSearcher {
                     searchKeywordLocal.set(lowerKeyword);
                     String localKeyword = searchKeywordLocal.get();
 
+                    // The content is only read when the title does not match
                     boolean titleMatch = note.getTitle().toLowerCase().contains(localKeyword);
-                    boolean contentMatch = note.getContent().toLowerCase().contains(localKeyword);
+                    boolean match = titleMatch || note.getContent().toLowerCase().contains(localKeyword);
 
-                    if (titleMatch || contentMatch) {
+                    if (match) {
                         /* LCK02-J: Synchronize on the class literal NoteSearcher.class
                            to safely collect results from all search threads.
                            Using getClass() here would be wrong because a subclass
@@ -146,8 +178,11 @@ public class NoteSearcher {
      */
     public static void recordSearch(String keyword) {
         synchronized (historyLock) {
-            searchHistory.add(keyword);
-            searchCountMap.merge(keyword, 1, Integer::sum);
+            // Until the history is loaded the file alone holds it
+            if (historyLoaded) {
+                searchHistory.add(keyword);
+                searchCountMap.merge(keyword, 1, Integer::sum);
+            }
             try {
                 Files.createDirectories(HISTORY_FILE.getParent());
                 Files.writeString(HISTORY_FILE, keyword + System.lineSeparator(),
@@ -163,6 +198,7 @@ public class NoteSearcher {
      * LCK06-J: Uses the static historyLock to protect the static searchHistory list.
      */
     public static List<String> getSearchHistory() {
+        ensureHistoryLoaded();
         synchronized (historyLock) {
             return new ArrayList<>(searchHistory);
         }
@@ -174,6 +210,7 @@ public class NoteSearcher {
      * key-set collection view (searchCountKeyView), when iterating keys.
      */
     public static List<String> getSearchKeywordFrequencies() {
+        ensureHistoryLoaded();
         synchronized (searchCountMap) {
             List<String> frequencies = new ArrayList<>();
             for (String keyword : searchCountKeyView) {
@@ -190,6 +227,8 @@ public class NoteSearcher {
      */
     public static void clearHistory() {
         synchronized (historyLock) {
+            // Nothing is left to load once the file is gone
+            historyLoaded = true;
             searchHistory.clear();
             synchronized (searchCountMap) {
                 searchCountMap.clear();
@@ -0,0 +1,454 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.example.persistence.KdfBusyException;
+import org.example.persistence.UserSaver;
+import org.example.persistence.UserSaver.UserException;
+import org.example.persistence.WriteBehindSaver;
+
+/**
+ * Headless mode: serves many users' notes from one JVM over a small HTTP API
+ * on the loopback interface, instead of one process per user at a terminal.
+ *
+ * Every request runs on its own virtual thread, so a request blocked on the
+ * disk or the database costs no platform thread. Signing on returns the
+ * {@link UserSession} id, which later requests send as
+ * {@code Authorization: Bearer <id>}; the user and their decrypted notes stay
+ * in the {@link SessionRegistry} until logout, or until the registry evicts the
+ * session for idling or to stay within its memory budget. A user who signs on
+ * again while signed on only has their password checked, and the new session
+ * shares the notes already in memory. Changes are saved through the
+ * {@link WriteBehindSaver}, as in the interactive loop.
+ *
+ * Request bodies are form encoded; responses are plain text, one note per
+ * line as {@code id<TAB>title} where a list is returned.
+ *
+ * <pre>
+ *   POST   /login           username, password  -> session id
+ *   POST   /logout
+ *   GET    /notes                               -> notes
+ *   POST   /notes           title, content      -> note id
+ *   GET    /notes/{id}                          -> content
+ *   PUT    /notes/{id}      content[, title]
+ *   DELETE /notes/{id}
+ *   GET    /search?q=word                       -> matching notes
+ *   POST   /export          [dir]               -> under data/exports/<user id>
+ *   POST   /save                                -> waits for queued saves
+ *   GET    /stats                               -> latency per endpoint, sessions
+ * </pre>
+ */
+public final class NoteServer {
+
+    /** Port the server listens on (-Dnotes.server.port). */
+    public static final int DEFAULT_PORT = Integer.getInteger("notes.server.port", 8080);
+
+    /** Largest request body accepted (-Dnotes.server.maxBodyBytes). */
+    static final int MAX_BODY_BYTES = Integer.getInteger("notes.server.maxBodyBytes", 1 << 20);
+
+    /* Root of the per-user export directories */
+    private static final Path EXPORT_ROOT = Paths.get("data", "exports");
+
+    private static final Set<String> KNOWN_METHODS = Set.of("GET", "POST", "PUT", "DELETE");
+    private static final Set<String> KNOWN_PATHS = Set.of("/login", "/logout", "/notes", "/search", "/export",
+            "/save", "/stats");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final SessionRegistry sessions = SessionRegistry.shared();
+    /* Keyed by route, e.g. "GET /notes/{id}"; sorted for /stats */
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    /* The result of one request */
+    private static final class Response {
+        final int status;
+        final String body;
+        final long retryAfter;
+
+        Response(int status, String body) {
+            this(status, body, 0);
+        }
+
+        Response(int status, String body, long retryAfter) {
+            this.status = status;
+            this.body = body;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    /* Thrown by handlers to end a request with an error status */
+    private static final class HttpError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+        /* Seconds for a Retry-After header, 0 for none */
+        final long retryAfter;
+
+        HttpError(int status, String message) {
+            this(status, message, 0);
+        }
+
+        HttpError(int status, String message, long retryAfter) {
+            super(message);
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    private NoteServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts serving on the loopback interface.
+     *
+     * @param port port to listen on, 0 for any free port
+     * @return the running server
+     */
+    public static NoteServer start(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        NoteServer noteServer = new NoteServer(http, executor);
+        http.createContext("/", noteServer::handle);
+        http.setExecutor(executor);
+        http.start(); // TSM01-J: The handler is only published once the server is fully constructed
+        return noteServer;
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * FIO14-J: Stops accepting requests and logs out every session, zeroing
+     * their keys. Queued saves must be flushed first, since they need the keys.
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        sessions.logoutAll();
+        System.out.println(statsReport());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long begin = System.nanoTime();
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        String route = routeOf(method, path);
+        Response response;
+        try {
+            response = route(exchange, method, path);
+        } catch (HttpError e) {
+            response = new Response(e.status, e.getMessage() + "\n", e.retryAfter);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Request failed: " + route + " - " + e);
+            response = new Response(500, "Internal error\n");
+        }
+        try {
+            send(exchange, response);
+        } finally {
+            exchange.close();
+            latencies.computeIfAbsent(route, key -> new LatencyHistogram()).record(System.nanoTime() - begin);
+        }
+    }
+
+    /* Unknown methods and paths share one entry, so probing cannot grow the stats */
+    private static String routeOf(String method, String path) {
+        if (!KNOWN_METHODS.contains(method)) {
+            return "other";
+        }
+        if (path.startsWith("/notes/")) {
+            return method + " /notes/{id}";
+        }
+        return KNOWN_PATHS.contains(path) ? method + " " + path : "other";
+    }
+
+    private Response route(HttpExchange exchange, String method, String path) throws HttpError, IOException {
+        if (path.equals("/login") && method.equals("POST")) {
+            return login(form(exchange));
+        }
+        if (path.equals("/stats") && method.equals("GET")) {
+            return new Response(200, statsReport());
+        }
+
+        SessionRegistry.Entry signedOn = authenticate(exchange);
+        UserSession session = signedOn.getSession();
+        try {
+            session.beginCommand();
+        } catch (IllegalStateException e) {
+            // Logged out meanwhile, or the keys expired
+            sessions.logout(session.getSessionId());
+            throw new HttpError(401, "Unknown or expired session");
+        }
+        long begin = System.nanoTime();
+        try {
+            if (path.equals("/logout") && method.equals("POST")) {
+                return logout(signedOn);
+            }
+            if (path.equals("/notes")) {
+                if (method.equals("GET")) {
+                    return new Response(200, listing(signedOn.getUser().getNotes()));
+                }
+                if (method.equals("POST")) {
+                    return create(signedOn.getUser(), form(exchange));
+                }
+                throw new HttpError(405, "Method not allowed");
+            }
+            if (path.startsWith("/notes/")) {
+                Note note = findNote(signedOn.getUser(), path.substring("/notes/".length()));
+                switch (method) {
+                    case "GET":
+                        return new Response(200, note.getContent());
+                    case "PUT":
+                        return edit(signedOn.getUser(), note, form(exchange));
+                    case "DELETE":
+                        signedOn.getUser().removeNote(note.getId());
+                        WriteBehindSaver.shared().noteChanged(signedOn.getUser(), note.getId());
+                        return new Response(200, "Deleted\n");
+                    default:
+                        throw new HttpError(405, "Method not allowed");
+                }
+            }
+            if (path.equals("/search") && method.equals("GET")) {
+                String keyword = query(exchange).get("q");
+                if (keyword == null || keyword.isBlank()) {
+                    throw new HttpError(400, "Missing search keyword q");
+                }
+                return new Response(200, listing(NoteSearcher.search(signedOn.getUser().getNotes(), keyword)));
+            }
+            if (path.equals("/export") && method.equals("POST")) {
+                return export(signedOn.getUser(), form(exchange));
+            }
+            if (path.equals("/save") && method.equals("POST")) {
+                // Only answer "Saved" once this user's changes are on disk
+                WriteBehindSaver.shared().userChanged(signedOn.getUser());
+                try {
+                    WriteBehindSaver.shared().flush(signedOn.getUser());
+                } catch (IOException e) {
+                    return new Response(500, "Save failed: " + e.getMessage() + "\n");
+                }
+                return new Response(200, "Saved\n");
+            }
+            throw new HttpError(404, "Not found");
+        } finally {
+            session.endCommand(System.nanoTime() - begin);
+            sessions.touched(signedOn);
+        }
+    }
+
+    private Response login(Map<String, String> form) throws HttpError {
+        String username = form.get("username");
+        String password = form.get("password");
+        if (username == null || password == null || username.isEmpty() || password.isEmpty()) {
+            throw new HttpError(400, "username and password are required");
+        }
+        /* IDS00-J: Reject SQL injection patterns before the username reaches the database layer */
+        if (!App.isSqlSafe(username)) {
+            throw new HttpError(400, "Invalid username");
+        }
+        // A user who is already signed on keeps one copy of their notes and keys
+        User user = sessions.resident(username);
+        try {
+            if (user != null) {
+                UserSaver.verifyPassword(user, password);
+            } else {
+                user = UserSaver.loadUser(username, password);
+            }
+        } catch (KdfBusyException e) {
+            // Retry-After is whole seconds; round the hint up
+            throw new HttpError(503, e.getMessage(), Math.max(1, (e.getRetryAfter().toMillis() + 999) / 1000));
+        } catch (UserException | SecurityException e) {
+            throw new HttpError(401, "Sign on failed");
+        }
+        return new Response(200, sessions.register(user).getSession().getSessionId() + "\n");
+    }
+
+    private Response logout(SessionRegistry.Entry signedOn) {
+        // Saving needs the keys, so pending changes go to disk first
+        String outcome = "Logged out\n";
+        try {
+            WriteBehindSaver.shared().flush(signedOn.getUser());
+        } catch (IOException e) {
+            System.err.println("Failed to save pending changes: " + e.getMessage());
+            outcome = "Logged out; some changes could not be saved\n";
+        }
+        sessions.logout(signedOn.getSession().getSessionId());
+        return new Response(200, outcome);
+    }
+
+    private SessionRegistry.Entry authenticate(HttpExchange exchange) throws HttpError {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Bearer ")) {
+            throw new HttpError(401, "Missing bearer session id");
+        }
+        // Sessions logged out for idling or for the memory budget are gone from the registry
+        SessionRegistry.Entry signedOn = sessions.get(header.substring("Bearer ".length()).trim());
+        if (signedOn == null) {
+            throw new HttpError(401, "Unknown or expired session");
+        }
+        return signedOn;
+    }
+
+    private static Response create(User user, Map<String, String> form) throws HttpError {
+        /* IDS16-J: XML-safe sanitization before storing untrusted note fields */
+        String title = App.processXmlInput(form.get("title"));
+        String content = App.processXmlInput(form.getOrDefault("content", ""));
+        if (title == null || title.isEmpty() || content == null) {
+            throw new HttpError(400, "Invalid note title or content");
+        }
+        Note note = new Note(title, content);
+        if (!user.addNoteIfTitleFree(note)) {
+            throw new HttpError(409, "A note with this title already exists");
+        }
+        WriteBehindSaver.shared().noteChanged(user, note.getId());
+        return new Response(201, note.getId() + "\n");
+    }
+
+    private static Response edit(User user, Note note, Map<String, String> form) throws HttpError {
+        /* IDS16-J: XML-safe sanitization before updating untrusted content */
+        String content = App.processXmlInput(form.get("content"));
+        if (content == null) {
+            throw new HttpError(400, "Invalid note content");
+        }
+        if (form.containsKey("title")) {
+            String title = App.processXmlInput(form.get("title"));
+            if (title == null || title.isEmpty()) {
+                throw new HttpError(400, "Invalid note title");
+            }
+            if (!user.renameNoteIfTitleFree(note, title)) {
+                throw new HttpError(409, "A note with this title already exists");
+            }
+        }
+        note.setContent(content);
+        WriteBehindSaver.shared().noteChanged(user, note.getId());
+        return new Response(200, "Updated\n");
+    }
+
+    /*
+     * Exports are plaintext, so each user's go under their own owner-only
+     * directory, data/exports/<user id>; dir may only name a subdirectory of it.
+     */
+    private static Response export(User user, Map<String, String> form) throws HttpError, IOException {
+        Path userRoot = EXPORT_ROOT.resolve(user.getId());
+        Path exportDir;
+        try {
+            /* IDS07-J: Sanitize untrusted path input before filesystem operations */
+            Path relative = Paths.get(App.sanitizeDirectoryInput(form.get("dir"), ""));
+            if (relative.isAbsolute()) {
+                throw new IllegalArgumentException("Export directory must be relative");
+            }
+            exportDir = userRoot.resolve(relative).normalize();
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, "Invalid export directory: " + e.getMessage());
+        }
+        Files.createDirectories(userRoot);
+        /* FIO01-J: Exported plaintext is readable by the owner only */
+        if (Files.getFileStore(userRoot).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.setPosixFilePermissions(userRoot, PosixFilePermissions.fromString("rwx------"));
+        }
+        user.exportAllNotesParallel(exportDir.toString());
+        return new Response(200, "Exported to " + exportDir + "\n");
+    }
+
+    private static Note findNote(User user, String noteId) throws HttpError {
+        for (Note note : user.getNotes()) {
+            if (note.getId().equals(noteId)) {
+                return note;
+            }
+        }
+        throw new HttpError(404, "Note not found");
+    }
+
+    private static String listing(List<Note> notes) {
+        StringBuilder out = new StringBuilder();
+        for (Note note : notes) {
+            out.append(note.getId()).append('\t').append(note.getTitle()).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return one line per endpoint with its latency distribution
+     */
+    String statsReport() {
+        StringBuilder out = new StringBuilder("Server latency by endpoint:\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            out.append(String.format("  %-22s %s%n", entry.getKey(), entry.getValue()));
+        }
+        return out.append(sessions).append('\n').toString();
+    }
+
+    private static Map<String, String> form(HttpExchange exchange) throws IOException, HttpError {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if (body.length > MAX_BODY_BYTES) {
+            throw new HttpError(413, "Request body too large");
+        }
+        return decode(new String(body, StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) throws HttpError {
+        return decode(exchange.getRequestURI().getRawQuery());
+    }
+
+    private static Map<String, String> decode(String encoded) throws HttpError {
+        Map<String, String> values = new HashMap<>();
+        if (encoded == null || encoded.isEmpty()) {
+            return values;
+        }
+        try {
+            for (String pair : encoded.split("&")) {
+                int equals = pair.indexOf('=');
+                String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+                String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+                values.put(key, value);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, "Malformed form encoding");
+        }
+        return values;
+    }
+
+    private static void send(HttpExchange exchange, Response response) throws IOException {
+        byte[] bytes = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        if (response.retryAfter > 0) {
+            exchange.getResponseHeaders().set("Retry-After", Long.toString(response.retryAfter));
+        }
+        exchange.sendResponseHeaders(response.status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.example.persistence.SafeLogger;
+import org.example.persistence.UserSaver;
+import org.example.persistence.WriteBehindSaver;
+
+/**
+ * Every live session in the process, with the user and the plaintext notes it
+ * keeps in memory.
+ *
+ * A background sweeper logs out sessions that have been idle for
+ * {@link UserSession#IDLE_TIMEOUT}. The notes sessions pin are estimated after
+ * each command; when the total exceeds {@link #HEAP_BUDGET_BYTES} the sweeper
+ * logs out the least recently used other sessions until it fits again, so the
+ * command that crossed the budget does not wait for their saves.
+ *
+ * FIO14-J: Saving needs a session's keys, so each evicted session is ended
+ * first, refusing new commands, then its own queued saves are flushed, and
+ * only then are its keys zeroed. A session whose flush fails stays ended but
+ * registered, and the next sweep tries again.
+ *
+ * A user signed on more than once is resident only once: every session of the
+ * user shares the same {@link User}, notes and keys, which are counted
+ * against the budget once and zeroed when the last of those sessions ends.
+ */
+final class SessionRegistry {
+
+    /** Plaintext all sessions together may keep in memory (-Dnotes.session.heapBudgetMB). */
+    static final long HEAP_BUDGET_BYTES = Long.getLong("notes.session.heapBudgetMB", 256) << 20;
+
+    /** How often idle sessions are looked for (-Dnotes.session.sweepSeconds). */
+    static final long SWEEP_SECONDS = Long.getLong("notes.session.sweepSeconds",
+            Math.max(1, UserSession.IDLE_TIMEOUT.toSeconds() / 4));
+
+    /* Rough per-note cost beyond its text: the Note, its Content and two timestamps */
+    private static final long NOTE_OVERHEAD_BYTES = 160;
+
+    /* How long an evicted session's running command may take to finish before its keys are zeroed */
+    private static final long COMMAND_GRACE_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final SessionRegistry SHARED = new SessionRegistry(HEAP_BUDGET_BYTES);
+
+    /**
+     * A signed-on user and the session that holds their keys.
+     */
+    static final class Entry {
+        private final UserSession session;
+        private final User user;
+        private final Resident resident;
+
+        private Entry(UserSession session, Resident resident) {
+            this.session = session;
+            this.user = resident.user;
+            this.resident = resident;
+        }
+
+        UserSession getSession() {
+            return session;
+        }
+
+        User getUser() {
+            return user;
+        }
+
+        long getPinnedBytes() {
+            return resident.pinnedBytes;
+        }
+    }
+
+    /**
+     * A user with at least one live session.
+     */
+    private static final class Resident {
+        final User user;
+        /* Guarded by residentLock */
+        int sessions;
+        volatile long pinnedBytes;
+
+        Resident(User user) {
+            this.user = user;
+        }
+    }
+
+    private final long budgetBytes;
+    private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+
+    /* LCK00-J: Private lock guarding the residents and their session counts */
+    private final Object residentLock = new Object();
+    private final Map<String, Resident> residents = new HashMap<>();
+
+    /* LCK00-J: Private lock guarding the sweeper, which does all eviction */
+    private final Object evictionLock = new Object();
+    private ScheduledExecutorService sweeper;
+    private final AtomicBoolean budgetEvictionQueued = new AtomicBoolean();
+
+    private final AtomicLong pinnedBytes = new AtomicLong();
+    private final AtomicLong registered = new AtomicLong();
+    private final AtomicLong idleEvictions = new AtomicLong();
+    private final AtomicLong budgetEvictions = new AtomicLong();
+
+    SessionRegistry(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * @return the registry shared by the terminal loop and the server
+     */
+    static SessionRegistry shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param username name the user signs on with
+     * @return the user as loaded by a session that is still live, or null
+     */
+    User resident(String username) {
+        synchronized (residentLock) {
+            for (Resident resident : residents.values()) {
+                if (resident.user.getUsername().equals(username) && !resident.user.getKeyRing().isDestroyed()) {
+                    return resident.user;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens a session for a signed-on user. If the user is already resident
+     * the session joins the resident user, and a copy loaded meanwhile by a
+     * concurrent sign on is discarded with its keys.
+     *
+     * @param user the user, with their notes loaded
+     * @return the new session's entry, whose user may be the resident one
+     */
+    Entry register(User user) {
+        Resident resident;
+        synchronized (residentLock) {
+            resident = residents.computeIfAbsent(user.getId(), id -> new Resident(user));
+            resident.sessions++;
+        }
+        if (resident.user != user) {
+            user.getKeyRing().destroy();
+        }
+        /* TSM01-J: Sessions are only created through the static factory */
+        Entry entry = new Entry(UserSession.newSession(resident.user), resident);
+        sessions.put(entry.session.getSessionId(), entry);
+        registered.incrementAndGet();
+        startSweeper();
+        touched(entry);
+        return entry;
+    }
+
+    /**
+     * @param sessionId id handed out at sign on
+     * @return the live session, or null if it is unknown or has ended
+     */
+    Entry get(String sessionId) {
+        Entry entry = sessions.get(sessionId);
+        // An ended session may still be saving; the sweeper logs it out
+        if (entry != null && entry.session.isEnded()) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Re-estimates the memory a session pins after one of its commands, and
+     * has the sweeper evict other sessions if the budget is exceeded.
+     */
+    void touched(Entry entry) {
+        long bytes = estimateBytes(entry.user);
+        synchronized (residentLock) {
+            // Once the user's last session has gone, their notes are no longer counted
+            if (residents.get(entry.user.getId()) == entry.resident) {
+                pinnedBytes.addAndGet(bytes - entry.resident.pinnedBytes);
+                entry.resident.pinnedBytes = bytes;
+            }
+        }
+        if (pinnedBytes.get() > budgetBytes && budgetEvictionQueued.compareAndSet(false, true)) {
+            synchronized (evictionLock) {
+                if (sweeper == null) {
+                    budgetEvictionQueued.set(false);
+                    return;
+                }
+                sweeper.execute(() -> {
+                    budgetEvictionQueued.set(false);
+                    evictForBudget(entry);
+                });
+            }
+        }
+    }
+
+    /**
+     * MSC59-J: Ends a session and zeroes its keys. Queued saves must already
+     * have been flushed.
+     *
+     * @return true if the session was registered
+     */
+    boolean logout(String sessionId) {
+        Entry entry = sessions.get(sessionId);
+        if (entry == null) {
+            return false;
+        }
+        release(entry);
+        return true;
+    }
+
+    /**
+     * FIO14-J: Ends every session, as at shutdown. Queued saves must already
+     * have been flushed.
+     */
+    void logoutAll() {
+        for (Entry entry : new ArrayList<>(sessions.values())) {
+            release(entry);
+        }
+        synchronized (evictionLock) {
+            if (sweeper != null) {
+                sweeper.shutdownNow();
+                sweeper = null;
+            }
+        }
+    }
+
+    /* MSC59-J: Unregisters and ends the session, and zeroes the user's keys
+    if it was the user's last session. Only the first call for an entry does anything. */
+    private void release(Entry entry) {
+        if (!sessions.remove(entry.session.getSessionId(), entry)) {
+            return;
+        }
+        boolean last;
+        synchronized (residentLock) {
+            last = --entry.resident.sessions == 0;
+            if (last) {
+                residents.remove(entry.user.getId());
+                pinnedBytes.addAndGet(-entry.resident.pinnedBytes);
+            }
+        }
+        if (last) {
+            // Needs the keys, so before they are zeroed
+            UserSaver.closeVault(entry.user);
+            entry.session.logout();
+        } else {
+            entry.session.end();
+        }
+    }
+
+    private void startSweeper() {
+        synchronized (evictionLock) {
+            if (sweeper != null) {
+                return;
+            }
+            sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "session-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /* Logs out every session idle past the timeout */
+    void sweep() {
+        List<Entry> idle = new ArrayList<>();
+        for (Entry entry : sessions.values()) {
+            if (entry.session.isEnded() || entry.session.isIdle()) {
+                idle.add(entry);
+            }
+        }
+        if (!idle.isEmpty()) {
+            evict(idle, idleEvictions, "idle for " + UserSession.IDLE_TIMEOUT.toMinutes() + " minute(s)");
+        }
+    }
+
+    /* Runs on the sweeper: logs out the least recently used sessions other
+    than the one just used until the rest fit. Sessions in the middle of a
+    command are passed over. */
+    private void evictForBudget(Entry current) {
+        List<Entry> candidates = new ArrayList<>(sessions.values());
+        candidates.remove(current);
+        // Another session of the same user frees nothing while this one holds the notes
+        candidates.removeIf(entry -> entry.session.isBusy() || entry.user == current.user);
+        candidates.sort(Comparator.comparingLong(entry -> entry.session.getLastCommandNanos()));
+        List<Entry> victims = new ArrayList<>();
+        long excess = pinnedBytes.get() - budgetBytes;
+        for (Entry entry : candidates) {
+            if (excess <= 0) {
+                break;
+            }
+            victims.add(entry);
+            excess -= entry.getPinnedBytes();
+        }
+        if (!victims.isEmpty()) {
+            evict(victims, budgetEvictions, "over the " + (budgetBytes >> 20) + " MB session budget");
+        }
+    }
+
+    private void evict(List<Entry> victims, AtomicLong counter, String reason) {
+        for (Entry entry : victims) {
+            // Another thread may have logged it out meanwhile
+            if (!sessions.containsKey(entry.session.getSessionId())) {
+                continue;
+            }
+            // Ended before the flush, so no change can be queued between the flush and the logout
+            entry.session.end();
+            awaitCommand(entry.session);
+            try {
+                WriteBehindSaver.shared().flush(entry.user);
+            } catch (IOException e) {
+                // Keys are kept so the next sweep can retry the save
+                System.err.println("Failed to save pending changes of " + entry.user.getUsername()
+                        + " before logout: " + e.getMessage());
+                continue;
+            }
+            release(entry);
+            counter.incrementAndGet();
+            SafeLogger.safeLogInfo("Logged out session of " + entry.user.getUsername() + ": " + reason);
+        }
+    }
+
+    /* Gives a command that began before the session ended a moment to finish and queue its changes */
+    private static void awaitCommand(UserSession session) {
+        long deadline = System.nanoTime() + COMMAND_GRACE_NANOS;
+        while (session.isBusy() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    /**
+     * Estimates the heap a user's notes occupy. Bodies not read yet are not
+     * counted, and are not read to find out.
+     */
+    static long estimateBytes(User user) {
+        long bytes = 0;
+        for (Note note : user.getNotes()) {
+            // Two bytes per char covers strings that are not Latin-1
+            bytes += NOTE_OVERHEAD_BYTES + 2L * note.getTitle().length();
+            if (note.isContentLoaded()) {
+                bytes += 2L * note.getContent().length();
+            }
+        }
+        return bytes;
+    }
+
+    int getLiveCount() {
+        return sessions.size();
+    }
+
+    long getPinnedBytes() {
+        return pinnedBytes.get();
+    }
+
+    long getEvictionCount() {
+        return idleEvictions.get() + budgetEvictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Sessions: %d live of %d opened, %.1f of %d MB pinned, %d evicted idle, %d over budget",
+                sessions.size(), registered.get(), pinnedBytes.get() / (double) (1 << 20), budgetBytes >> 20,
+                idleEvictions.get(), budgetEvictions.get());
+    }
+}
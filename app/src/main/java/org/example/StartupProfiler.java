@@ -0,0 +1,171 @@
+package org.example;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records how long each named phase of startup takes, from {@code App.main}
+ * to the first prompt, and prints them as a timeline when the application is
+ * started with {@code --timings}.
+ *
+ * Phases may run on any thread and may nest; the report indents a phase under
+ * the one it started in on the same thread. Phases spent waiting for the user
+ * to type are marked as input, so time-to-prompt can be read with and without
+ * them. When timings are off, {@link #begin(String)} returns a shared no-op
+ * phase, so instrumented code costs one volatile read.
+ *
+ * <pre>
+ *   StartupProfiler.Phase loading = StartupProfiler.begin("vault load");
+ *   try {
+ *       ...
+ *   } finally {
+ *       loading.end();
+ *   }
+ * </pre>
+ */
+public final class StartupProfiler {
+
+    /**
+     * One timed phase; ending it records its duration.
+     */
+    public static final class Phase {
+        private final String name;
+        private final boolean input;
+        private final String thread;
+        private final int depth;
+        private final long start;
+
+        private Phase(String name, boolean input, int depth) {
+            this.name = name;
+            this.input = input;
+            this.thread = Thread.currentThread().getName();
+            this.depth = depth;
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Records the phase; call once, in a finally block.
+         */
+        public void end() {
+            if (this == NONE) {
+                return; // Timings are off
+            }
+            long end = System.nanoTime();
+            DEPTH.set(depth);
+            if (recording) {
+                PHASES.add(new Recorded(this, end - start));
+            }
+        }
+    }
+
+    /* A closed phase */
+    private static final class Recorded {
+        final Phase phase;
+        final long nanos;
+
+        Recorded(Phase phase, long nanos) {
+            this.phase = phase;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final Phase NONE = new Phase("", false, 0);
+
+    private static final ConcurrentLinkedQueue<Recorded> PHASES = new ConcurrentLinkedQueue<>();
+
+    /* Nesting depth of the phases open on each thread */
+    private static final ThreadLocal<Integer> DEPTH = ThreadLocal.withInitial(() -> 0);
+
+    private static volatile boolean recording;
+    private static volatile long origin;
+
+    private StartupProfiler() {
+    }
+
+    /**
+     * Starts recording; called first thing in {@code App.main} when
+     * {@code --timings} is given.
+     */
+    public static void enable() {
+        origin = System.nanoTime();
+        recording = true;
+    }
+
+    /**
+     * @return true until the first prompt when {@code --timings} was given
+     */
+    public static boolean isEnabled() {
+        return recording;
+    }
+
+    /**
+     * @param name what the phase does, e.g. "vault load"
+     * @return the running phase, to be ended when it is done
+     */
+    public static Phase begin(String name) {
+        return recording ? open(name, false) : NONE;
+    }
+
+    /**
+     * Like {@link #begin(String)}, for a phase spent waiting for the user.
+     */
+    public static Phase input(String name) {
+        return recording ? open(name, true) : NONE;
+    }
+
+    private static Phase open(String name, boolean input) {
+        int depth = DEPTH.get();
+        DEPTH.set(depth + 1);
+        return new Phase(name, input, depth);
+    }
+
+    /**
+     * Stops recording and prints the timeline. Only the first call prints;
+     * phases still open on other threads are left out.
+     *
+     * @param milestone what startup reached, e.g. "first prompt"
+     */
+    public static void finish(String milestone) {
+        if (!recording) {
+            return;
+        }
+        recording = false;
+        System.out.println(report(milestone, System.nanoTime()));
+        PHASES.clear();
+    }
+
+    private static String report(String milestone, long end) {
+        List<Recorded> phases = new ArrayList<>(PHASES);
+        phases.sort(Comparator.comparingLong((Recorded recorded) -> recorded.phase.start)
+                .thenComparingInt(recorded -> recorded.phase.depth));
+
+        StringBuilder out = new StringBuilder("Startup timings (ms since main):\n");
+        // The JVM's own startup and class loading up to main
+        Optional<Instant> started = ProcessHandle.current().info().startInstant();
+        long bootNanos = 0;
+        if (started.isPresent()) {
+            bootNanos = Math.max(0, Duration.between(started.get(), Instant.now()).toNanos()
+                    - (System.nanoTime() - origin));
+            out.append(String.format("  %9s %9.1f  JVM start to main%n", "", bootNanos / 1e6));
+        }
+        long inputNanos = 0;
+        for (Recorded recorded : phases) {
+            Phase phase = recorded.phase;
+            out.append(String.format("  %9.1f %9.1f  %s%s%s%s%n", (phase.start - origin) / 1e6, recorded.nanos / 1e6,
+                    "  ".repeat(phase.depth), phase.name, phase.input ? " (input)" : "",
+                    phase.thread.equals("main") ? "" : " [" + phase.thread + "]"));
+            if (phase.input) {
+                inputNanos += recorded.nanos;
+            }
+        }
+        long total = end - origin + bootNanos;
+        out.append(String.format("Time to %s: %.1f ms, %.1f ms without waiting for input", milestone,
+                total / 1e6, (total - inputNanos) / 1e6));
+        return out.toString();
+    }
+}
@@ -6,11 +6,20 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import org.example.persistence.KdfParams;
+import org.example.persistence.KeyRing;
 
 public class User {
 
@@ -19,6 +28,17 @@ public class User {
     private String username;
     private String password;
     private final List<Note> notes;
+    private KeyRing keyRing;
+
+    /* Change tracking for incremental saves: notes removed since the last save,
+    and a counter bumped whenever the stored credentials change. A new user
+    starts with unsaved credentials so its first save creates the user row. */
+    private final Set<String> removedNoteIds = new HashSet<>();
+    private volatile int credentialsRevision = 1;
+    private volatile int savedCredentialsRevision;
+
+    /* LCK00-J: Private lock guarding the lazily created key ring. */
+    private final Object keyRingLock = new Object();
 
     /* LCK01-J: Do not synchronize on objects that may be reused.
        This is a private final lock object that is never exposed or reused,
@@ -31,6 +51,14 @@ public class User {
     private final Lock noteOpLock = new ReentrantLock();
 
     public User(String id, String username, String password){
+        this(id, username, password, null);
+    }
+
+    /**
+     * @param keyRing keys opened from the stored user row, or null to give a
+     *        new account a new data key on first use
+     */
+    public User(String id, String username, String password, KeyRing keyRing){
         /* OBJ11-J constructors must be fully constructed before returning 
         to the caller. In this code we check if the username or password is valid
         before constructing as to ensure that a incomplete object is NOT returned
@@ -42,6 +70,7 @@ public class User {
         this.id = id;
         this.username = username;
         this.password = password;
+        this.keyRing = keyRing;
         this.notes = new ArrayList<>();
     }
 
@@ -59,22 +88,139 @@ public class User {
 
     public void setUsername(String username) {
         this.username = username;
+        credentialsRevision++;
     }
 
     public String getPassword() {
         return password; 
     }
 
+    /**
+     * Changes the password. Notes are sealed under the account's data key,
+     * which is only rewrapped under the new password, so no note has to be
+     * written again; the next save updates the user row.
+     */
     public void setPassword(String password) {
-        this.password = password;
+        synchronized (keyRingLock) {
+            // A new password also gets a new salt and the current iteration count
+            if (keyRing != null) {
+                rewrap(password, KdfParams.fresh());
+            }
+            this.password = password;
+            credentialsRevision++;
+        }
+    }
+
+    /**
+     * @return the parameters this user's keys are derived with
+     */
+    public KdfParams getKdfParams() {
+        return getKeyRing().getKdfParams();
+    }
+
+    /**
+     * Switches to new key derivation parameters for the same password, as
+     * when an account is rehashed. Only the wrapping of the data key changes;
+     * the next save updates the user row.
+     *
+     * @param kdfParams the parameters to derive the keys with from now on
+     */
+    public void setKdfParams(KdfParams kdfParams) {
+        if (kdfParams == null) {
+            throw new IllegalArgumentException("KDF parameters cannot be null");
+        }
+        synchronized (keyRingLock) {
+            rewrap(password, kdfParams);
+            credentialsRevision++;
+        }
+    }
+
+    /* Callers must hold keyRingLock */
+    private void rewrap(String newPassword, KdfParams kdfParams) {
+        try {
+            getKeyRing().rewrap(newPassword, kdfParams);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to rewrap the data key", e);
+        }
+    }
+
+    /**
+     * @return counter that changes whenever the username or password changes
+     */
+    public int getCredentialsRevision() {
+        return credentialsRevision;
+    }
+
+    /**
+     * @return true if the user row no longer matches the stored one
+     */
+    public boolean hasUnsavedCredentials() {
+        return credentialsRevision != savedCredentialsRevision;
+    }
+
+    /**
+     * Records that the user row was written for the given revision.
+     *
+     * @param revision value of {@link #getCredentialsRevision()} taken before the write
+     */
+    public void markCredentialsSaved(int revision) {
+        savedCredentialsRevision = revision;
+    }
+
+    /**
+     * @return ids of notes removed since the last save
+     */
+    public Set<String> getRemovedNoteIds() {
+        noteOpLock.lock();
+        try {
+            return new HashSet<>(removedNoteIds);
+        } finally {
+            noteOpLock.unlock();
+        }
+    }
+
+    /**
+     * Forgets removals whose records have been deleted from the vault.
+     *
+     * @param noteIds ids returned by {@link #getRemovedNoteIds()} that were handled
+     */
+    public void markRemovalsSaved(Collection<String> noteIds) {
+        noteOpLock.lock();
+        try {
+            removedNoteIds.removeAll(noteIds);
+        } finally {
+            noteOpLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the key ring for this user's current password, creating it on
+     * first use. Keys are derived once and reused until the ring is destroyed
+     * by logout or idle timeout; a destroyed ring is not silently replaced, so
+     * the user has to sign on again.
+     */
+    public KeyRing getKeyRing() {
+        synchronized (keyRingLock) {
+            if (keyRing == null) {
+                keyRing = KeyRing.create(password, KdfParams.fresh());
+            }
+            return keyRing;
+        }
     }
 /*  OBJ05-J instead of returning the reference to
     the arraylist we return a copy of the list to prevent 
     external modification of the internal state of the User class
 */
     public List<Note> getNotes() {
-        List<Note> notesCopy = new ArrayList<>(notes);
-        return notesCopy;
+        /* LCK03-J: Copied under the same lock as add/remove, since a
+           background save may read the list while the user edits it */
+        noteOpLock.lock();
+        try {
+            List<Note> notesCopy = new ArrayList<>(notes);
+            return notesCopy;
+        } finally {
+            noteOpLock.unlock();
+        }
     }
 
     /* LCK03-J: Use the ReentrantLock API (lock/unlock) to add a note safely.
@@ -83,19 +229,62 @@ public class User {
     public void addNote(Note note) {
         noteOpLock.lock();
         try {
+            // A note removed and added back must be written again, since a save
+            // in between may already have deleted its record
+            if (removedNoteIds.remove(note.getId())) {
+                note.markDirty();
+            }
             notes.add(note);
         } finally {
             noteOpLock.unlock();
         }
     }
 
+    /* Adds the note unless another note already has its title (ignoring case);
+       the check and the add happen under one lock, so two concurrent creates
+       with the same title cannot both succeed.
+       LCK08-J: The lock is always released in the finally block. */
+    public boolean addNoteIfTitleFree(Note note) {
+        noteOpLock.lock();
+        try {
+            for (Note existing : notes) {
+                if (existing.getTitle().equalsIgnoreCase(note.getTitle())) {
+                    return false;
+                }
+            }
+            addNote(note);
+            return true;
+        } finally {
+            noteOpLock.unlock();
+        }
+    }
+
+    /* Renames the note unless another note already has the new title
+       (ignoring case). Checked under the same lock as addNoteIfTitleFree, so
+       a rename and a create cannot take one title between them.
+       LCK08-J: The lock is always released in the finally block. */
+    public boolean renameNoteIfTitleFree(Note note, String title) {
+        noteOpLock.lock();
+        try {
+            for (Note existing : notes) {
+                if (existing != note && existing.getTitle().equalsIgnoreCase(title)) {
+                    return false;
+                }
+            }
+            note.setTitle(title);
+            return true;
+        } finally {
+            noteOpLock.unlock();
+        }
+    }
+
     /* LCK03-J: Use the ReentrantLock API (lock/unlock) to remove notes safely.
        LCK08-J: Ensure actively held locks are released on exceptional conditions
        by always unlocking in a finally block. */
     public boolean removeNote(String noteId) {
         noteOpLock.lock();
         try {
-            return notes.removeIf(n -> n.getId().equals(noteId));
+            return removeTracked(n -> n.getId().equals(noteId));
         } finally {
             noteOpLock.unlock();
         }
@@ -119,12 +308,27 @@ public class User {
     public void safeRemoveNotes(List<String> noteIds) {
         noteOpLock.lock();
         try {
-            notes.removeIf(n -> noteIds.contains(n.getId()));
+            removeTracked(n -> noteIds.contains(n.getId()));
         } finally {
             noteOpLock.unlock();
         }
     }
 
+    /* Removes matching notes and remembers their ids for the next save.
+       Callers must hold noteOpLock. */
+    private boolean removeTracked(Predicate<Note> filter) {
+        boolean removed = false;
+        for (Iterator<Note> it = notes.iterator(); it.hasNext();) {
+            Note note = it.next();
+            if (filter.test(note)) {
+                it.remove();
+                removedNoteIds.add(note.getId());
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
     /* THI00-J: Do not invoke Thread.run().
        Exports each note as a separate file in the given directory.
        Each thread writes one file named <title>.txt with the content.
@@ -153,6 +357,13 @@ public class User {
             return;
         }
 
+        // Every body is about to be read, so decrypt the ones still on disk in one batch
+        try {
+            Note.loadContents(getNotes());
+        } catch (IOException e) {
+            System.err.println("Failed to preload note contents: " + e.getMessage());
+        }
+
         List<Thread> threads = new ArrayList<>();
         for (Note note : notes) {
             Thread t = new Thread(() -> {
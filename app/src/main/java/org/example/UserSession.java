@@ -1,27 +1,68 @@
 package org.example;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.example.persistence.KeyRing;
 
 /**
  * TSM01-J: Do not let the this reference escape during object construction.
  * This class uses a private constructor and static factory to publish only
  * fully constructed instances.
+ *
+ * A session owns the user's {@link KeyRing} for its whole lifetime, so the
+ * password-derived keys are computed once at sign on and zeroed on logout.
+ * The user and their notes stay in memory between commands. A session with no
+ * command for {@link #IDLE_TIMEOUT} is logged out, and its key ring is given
+ * the same timeout so the keys do not expire before the session does.
  */
 public final class UserSession {
 
+    /** Time without a command before the session is logged out (-Dnotes.session.idleMinutes). */
+    public static final Duration IDLE_TIMEOUT = Duration.ofMinutes(Long.getLong("notes.session.idleMinutes",
+            KeyRing.DEFAULT_IDLE_TIMEOUT.toMinutes()));
+
     private final String sessionId;
     private final String username;
     private final LocalDateTime startedAt;
+    private final KeyRing keyRing;
+    private final Duration idleTimeout;
+
+    private volatile long lastCommand = System.nanoTime();
+    private volatile boolean ended;
+
+    /* Commands in progress; a server session may run several at once */
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong commandNanos = new AtomicLong();
+    private final AtomicLong maxCommandNanos = new AtomicLong();
 
-    private UserSession(String username) {
+    private UserSession(String username, KeyRing keyRing, Duration idleTimeout) {
         this.sessionId = UUID.randomUUID().toString();
         this.username = username;
         this.startedAt = LocalDateTime.now();
+        this.keyRing = keyRing;
+        this.idleTimeout = idleTimeout;
     }
 
     public static UserSession newSession(String username) {
-        return new UserSession(username);
+        return new UserSession(username, null, IDLE_TIMEOUT);
+    }
+
+    public static UserSession newSession(User user) {
+        return newSession(user, IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param idleTimeout time without a command before the session and its keys expire
+     */
+    static UserSession newSession(User user, Duration idleTimeout) {
+        KeyRing keyRing = user.getKeyRing();
+        keyRing.setIdleTimeout(idleTimeout);
+        return new UserSession(user.getUsername(), keyRing, idleTimeout);
     }
 
     public String getSessionId() {
@@ -35,4 +76,113 @@ public final class UserSession {
     public LocalDateTime getStartedAt() {
         return LocalDateTime.of(startedAt.toLocalDate(), startedAt.toLocalTime());
     }
+
+    /**
+     * @return the session's key ring, or null for sessions created without a user
+     */
+    public KeyRing getKeyRing() {
+        return keyRing;
+    }
+
+    /**
+     * Records that a command started, which also keeps the session's keys
+     * alive. The session is not idle while the command runs.
+     *
+     * @throws IllegalStateException if the session has ended or its keys expired
+     */
+    public void beginCommand() {
+        // Counted before ended is read, so an eviction that ends the session
+        // either sees this command running or this command sees it ended
+        running.incrementAndGet();
+        boolean started = false;
+        try {
+            if (ended) {
+                throw new IllegalStateException("Session has ended");
+            }
+            if (keyRing != null) {
+                keyRing.keepAlive();
+            }
+            lastCommand = System.nanoTime();
+            started = true;
+        } finally {
+            if (!started) {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param nanos how long the command took, not counting time spent waiting for input
+     */
+    public void endCommand(long nanos) {
+        lastCommand = System.nanoTime();
+        running.decrementAndGet();
+        commands.incrementAndGet();
+        commandNanos.addAndGet(nanos);
+        maxCommandNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return true if no command ran within the session's idle timeout
+     */
+    public boolean isIdle() {
+        return running.get() == 0 && System.nanoTime() - lastCommand > idleTimeout.toNanos();
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the last command started or ended
+     */
+    long getLastCommandNanos() {
+        return lastCommand;
+    }
+
+    /**
+     * @return true once the session was ended or logged out
+     */
+    public boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Refuses new commands without zeroing the keys yet, so changes already
+     * made can still be saved before {@link #logout()}.
+     */
+    public void end() {
+        ended = true;
+    }
+
+    /**
+     * @return true while a command is running
+     */
+    public boolean isBusy() {
+        return running.get() > 0;
+    }
+
+    /**
+     * @return command count and latency of the session so far
+     */
+    public String commandSummary() {
+        long count = commands.get();
+        return String.format("%d command(s), avg %.1f ms, max %.1f ms", count,
+                count == 0 ? 0.0 : commandNanos.get() / 1e6 / count, maxCommandNanos.get() / 1e6);
+    }
+
+    /**
+     * Zeroes the session keys if the session has been idle past the ring's timeout.
+     *
+     * @return true if the session is no longer usable
+     */
+    public boolean expireIfIdle() {
+        return keyRing != null && keyRing.destroyIfIdle();
+    }
+
+    /**
+     * MSC59-J: Ends the session and zeroes the derived keys it holds.
+     */
+    public void logout() {
+        ended = true;
+        if (keyRing != null) {
+            keyRing.destroy();
+        }
+    }
 }
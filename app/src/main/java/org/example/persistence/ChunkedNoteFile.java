@@ -0,0 +1,397 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import org.example.Note;
+
+/**
+ * Version 3 note files: the encoded note is split into fixed-size chunks and
+ * each chunk is sealed with AES/GCM on its own (layout in {@link VaultFormat}).
+ *
+ * A v2 record is sealed and opened in one piece, so a note costs several
+ * full-size copies on the heap. Here the note is encoded straight into a
+ * {@link ChunkedCipherOutputStream} and decoded from a
+ * {@link ChunkedCipherInputStream}, so sealing and opening add one chunk of
+ * plaintext and one of ciphertext instead of full-size copies, and any single
+ * chunk can be decrypted without the rest.
+ *
+ * This saves copies; it does not bound memory. The decoded {@link Note} still
+ * holds its whole body as one String, and reading a record still needs its
+ * whole ciphertext. {@link FileNoteStore} streams into a note file and
+ * {@link SegmentNoteStore} into a segment frame; the SQLite store cannot
+ * stream into a row and refuses notes this large.
+ */
+final class ChunkedNoteFile {
+
+    /** Plaintext bytes per chunk (-Dnotes.vault.chunkBytes). */
+    static final int CHUNK_SIZE = Integer.getInteger("notes.vault.chunkBytes", 64 << 10);
+
+    /** Notes whose encoding is at least this many bytes are written as v3 (-Dnotes.vault.chunkThreshold). */
+    static final long THRESHOLD = Long.getLong("notes.vault.chunkThreshold", 4L << 20);
+
+    /** Largest chunk size accepted when reading, so a forged header cannot force a huge buffer. */
+    static final int MAX_CHUNK_SIZE = 16 << 20;
+
+    private static final byte[] LAST_CHUNK = {1};
+    private static final byte[] MORE_CHUNKS = {0};
+
+    private ChunkedNoteFile() {
+    }
+
+    /**
+     * Chunk geometry read from a v3 header.
+     */
+    static final class Layout {
+        final int chunkSize;
+        final long plainLength;
+        final int chunkCount;
+
+        Layout(int chunkSize, long plainLength) {
+            this.chunkSize = chunkSize;
+            this.plainLength = plainLength;
+            this.chunkCount = chunkCount(plainLength, chunkSize);
+        }
+
+        /**
+         * @return total bytes of every sealed chunk including its tag
+         */
+        long cipherLength() {
+            return plainLength + (long) chunkCount * VaultFormat.GCM_TAG_LENGTH;
+        }
+
+        int plainLength(int index) {
+            return (int) Math.min(chunkSize, plainLength - (long) index * chunkSize);
+        }
+    }
+
+    /* An empty payload still gets one (empty) chunk, so the last-chunk tag is always present */
+    private static int chunkCount(long plainLength, int chunkSize) {
+        return (int) Math.max(1, (plainLength + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @param record a parsed v3 record
+     * @return its chunk geometry
+     * @throws IOException if the header is inconsistent with the record
+     */
+    static Layout layout(NoteFileReader.NoteFile record) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(record.header).order(ByteOrder.LITTLE_ENDIAN);
+        header.position(VaultFormat.PREFIX_LENGTH + VaultFormat.V3_NONCE_PREFIX_LENGTH);
+        int chunkSize = header.getInt();
+        long plainLength = header.getLong();
+        if (record.flags != 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || plainLength < 0) {
+            throw new IOException("Invalid chunked note header");
+        }
+        Layout layout = new Layout(chunkSize, plainLength);
+        if (layout.cipherLength() != record.cipherText.remaining()) {
+            throw new IOException("Invalid chunked note: chunk data does not match header");
+        }
+        return layout;
+    }
+
+    /**
+     * A note about to be streamed as a v3 record. Its header, and so the
+     * record's exact length, is fixed before any chunk is sealed, so a store
+     * can place the record before writing it.
+     */
+    static final class Sealing {
+        final Note snapshot;
+        final byte[] header;
+        final long plainLength;
+        final int recordLength;
+
+        private Sealing(Note snapshot, byte[] header, long plainLength, int recordLength) {
+            this.snapshot = snapshot;
+            this.header = header;
+            this.plainLength = plainLength;
+            this.recordLength = recordLength;
+        }
+    }
+
+    /**
+     * @param note note to store
+     * @return the note's snapshot and v3 header
+     * @throws IOException if the note is too large for any record
+     */
+    static Sealing prepare(Note note) throws IOException {
+        // The header's length and the encoded bytes must come from the same
+        // edit, so both are taken from one snapshot of the note
+        Note snapshot = Note.restore(note.getId(), note.getTitle(), note.getContent(), note.getCreatedAt(),
+                note.getUpdatedAt());
+        long plainLength = NoteCodec.encodedLength(snapshot);
+        long cipherLength = new Layout(CHUNK_SIZE, plainLength).cipherLength();
+        // FIO12-J: The header keeps the 4-byte cipher length every format ends with
+        if (VaultFormat.V3_HEADER_LENGTH + cipherLength > Integer.MAX_VALUE) {
+            throw new IOException("Note is too large to store: " + plainLength + " bytes");
+        }
+        byte[] header = VaultFormat.v3Header(IvGenerator.nextIv(VaultFormat.V3_NONCE_PREFIX_LENGTH),
+                CHUNK_SIZE, plainLength, (int) cipherLength);
+        return new Sealing(snapshot, header, plainLength, (int) (header.length + cipherLength));
+    }
+
+    /**
+     * Writes the header and every sealed chunk of a prepared note, exactly
+     * {@link Sealing#recordLength} bytes, one chunk at a time.
+     *
+     * @param keyRing the session's key ring
+     * @param sealing the prepared note
+     * @param out destination; flushed, not closed
+     */
+    static void seal(KeyRing keyRing, Sealing sealing, OutputStream out) throws IOException {
+        SecretKey key;
+        try {
+            key = keyRing.encryptionKey();
+        } catch (GeneralSecurityException | IllegalStateException e) {
+            throw new IOException("Unable to encrypt note", e);
+        }
+        out.write(sealing.header);
+        try (ChunkedCipherOutputStream chunks = new ChunkedCipherOutputStream(out, key, sealing.header, CHUNK_SIZE,
+                sealing.plainLength)) {
+            NoteCodec.encode(sealing.snapshot, chunks);
+        }
+    }
+
+    /**
+     * Encodes and seals a note into {@code file} as a v3 record, streaming it
+     * one chunk at a time, and forces the file to disk.
+     *
+     * @param keyRing the session's key ring
+     * @param note note to store
+     * @param file destination, normally a temp file that is renamed afterwards
+     * @return bytes written
+     */
+    static long write(KeyRing keyRing, Note note, Path file) throws IOException {
+        Sealing sealing = prepare(note);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            /* FIO01-J: Restrict the file to owner-only read/write before it holds any data */
+            NoteSaver.makeFileSecure(file.toString());
+            seal(keyRing, sealing, Channels.newOutputStream(channel));
+            channel.force(false);
+            return sealing.recordLength;
+        }
+    }
+
+    /**
+     * Authenticates, decrypts and decodes a v3 record chunk by chunk.
+     *
+     * @param keyRing the session's key ring
+     * @param record parsed v3 record
+     * @return the note
+     * @throws SecurityException if any chunk fails authentication
+     */
+    static Note open(KeyRing keyRing, NoteFileReader.NoteFile record) throws IOException, GeneralSecurityException {
+        try (InputStream in = openStream(keyRing, record)) {
+            Note note = NoteCodec.decode(in);
+            if (in.read() != -1) {
+                throw new IOException("Invalid chunked note: data after the record");
+            }
+            return note;
+        }
+    }
+
+    /**
+     * @param keyRing the session's key ring
+     * @param record parsed v3 record
+     * @return a stream of the authenticated plaintext
+     */
+    static InputStream openStream(KeyRing keyRing, NoteFileReader.NoteFile record)
+            throws IOException, GeneralSecurityException {
+        return new ChunkedCipherInputStream(keyRing.encryptionKey(), record, layout(record));
+    }
+
+    /**
+     * Decrypts one chunk without touching the others.
+     *
+     * @param keyRing the session's key ring
+     * @param record parsed v3 record
+     * @param index chunk number, from 0
+     * @return the chunk's plaintext
+     * @throws SecurityException if the chunk fails authentication
+     */
+    static byte[] readChunk(KeyRing keyRing, NoteFileReader.NoteFile record, int index)
+            throws IOException, GeneralSecurityException {
+        Layout layout = layout(record);
+        if (index < 0 || index >= layout.chunkCount) {
+            throw new IndexOutOfBoundsException("Chunk " + index + " of " + layout.chunkCount);
+        }
+        byte[] plain = new byte[layout.plainLength(index)];
+        openChunk(keyRing.encryptionKey(), record, layout, index, plain);
+        return plain;
+    }
+
+    private static CryptoContext.Lease<Cipher> chunkCipher(int mode, SecretKey key, byte[] header,
+                                                           byte[] noncePrefix, int index, boolean last)
+            throws GeneralSecurityException {
+        byte[] iv = new byte[VaultFormat.GCM_IV_LENGTH];
+        System.arraycopy(noncePrefix, 0, iv, 0, noncePrefix.length);
+        ByteBuffer.wrap(iv, noncePrefix.length, 4).putInt(index);
+        CryptoContext.Lease<Cipher> lease = CryptoContext.gcm(mode, key, iv);
+        lease.get().updateAAD(header);
+        lease.get().updateAAD(last ? LAST_CHUNK : MORE_CHUNKS);
+        return lease;
+    }
+
+    private static void openChunk(SecretKey key, NoteFileReader.NoteFile record, Layout layout, int index,
+                                  byte[] plain) throws IOException {
+        int plainLength = layout.plainLength(index);
+        long offset = (long) index * (layout.chunkSize + VaultFormat.GCM_TAG_LENGTH);
+        ByteBuffer sealed = record.cipherText.duplicate();
+        sealed.position(sealed.position() + (int) offset);
+        sealed.limit(sealed.position() + plainLength + VaultFormat.GCM_TAG_LENGTH);
+        try (CryptoContext.Lease<Cipher> cipher = chunkCipher(Cipher.DECRYPT_MODE, key, record.header, record.iv,
+                index, index == layout.chunkCount - 1)) {
+            cipher.get().doFinal(sealed, ByteBuffer.wrap(plain, 0, plainLength));
+        } catch (AEADBadTagException e) {
+            // SER12-J: every chunk is authenticated before any of it is decoded
+            throw new SecurityException("Tampered file");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt note chunk " + index, e);
+        }
+    }
+
+    /**
+     * Seals everything written to it into chunks. Exactly the plaintext length
+     * announced in the header must be written before it is closed.
+     */
+    static final class ChunkedCipherOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final SecretKey key;
+        private final byte[] header;
+        private final byte[] noncePrefix = new byte[VaultFormat.V3_NONCE_PREFIX_LENGTH];
+        private final Layout layout;
+        private final byte[] chunk;
+        private final byte[] sealed;
+        private int filled;
+        private int index;
+        private long written;
+        private boolean closed;
+
+        ChunkedCipherOutputStream(OutputStream out, SecretKey key, byte[] header, int chunkSize, long plainLength) {
+            this.out = out;
+            this.key = key;
+            this.header = header;
+            System.arraycopy(header, VaultFormat.PREFIX_LENGTH, noncePrefix, 0, noncePrefix.length);
+            this.layout = new Layout(chunkSize, plainLength);
+            this.chunk = new byte[chunkSize];
+            this.sealed = new byte[chunkSize + VaultFormat.GCM_TAG_LENGTH];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (written + len > layout.plainLength) {
+                throw new IOException("More data written than the chunked header announced");
+            }
+            while (len > 0) {
+                int n = Math.min(len, chunk.length - filled);
+                System.arraycopy(b, off, chunk, filled, n);
+                filled += n;
+                written += n;
+                off += n;
+                len -= n;
+                if (filled == chunk.length && written < layout.plainLength) {
+                    sealChunk();
+                }
+            }
+        }
+
+        private void sealChunk() throws IOException {
+            try (CryptoContext.Lease<Cipher> cipher = chunkCipher(Cipher.ENCRYPT_MODE, key, header, noncePrefix,
+                    index, index == layout.chunkCount - 1)) {
+                int length = cipher.get().doFinal(chunk, 0, filled, sealed, 0);
+                out.write(sealed, 0, length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to encrypt note chunk " + index, e);
+            }
+            index++;
+            filled = 0;
+        }
+
+        /**
+         * Seals the final chunk. Does not close the underlying stream.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (written != layout.plainLength) {
+                throw new IOException("Chunked note ended after " + written + " of " + layout.plainLength + " bytes");
+            }
+            sealChunk();
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads the plaintext of a v3 record, authenticating each chunk before
+     * any of its bytes are returned.
+     */
+    static final class ChunkedCipherInputStream extends InputStream {
+        private final SecretKey key;
+        private final NoteFileReader.NoteFile record;
+        private final Layout layout;
+        private final byte[] chunk;
+        private int next;
+        private int position;
+        private int limit;
+
+        ChunkedCipherInputStream(SecretKey key, NoteFileReader.NoteFile record, Layout layout) {
+            this.key = key;
+            this.record = record;
+            this.layout = layout;
+            this.chunk = new byte[(int) Math.min(layout.chunkSize, Math.max(layout.plainLength, 1))];
+        }
+
+        private boolean fill() throws IOException {
+            while (position == limit) {
+                if (next == layout.chunkCount) {
+                    return false;
+                }
+                openChunk(key, record, layout, next, chunk);
+                limit = layout.plainLength(next);
+                position = 0;
+                next++;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? chunk[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.example.StartupProfiler;
+
+/**
+ * A small pool of long-lived connections to the SQLite user database.
+ *
+ * Opening a SQLite connection reads the schema and sets up a page cache, and
+ * before this pool every query paid for that twice: once for
+ * {@code CREATE TABLE IF NOT EXISTS} and once for the statement itself. Here
+ * connections are opened on demand up to {@link #SIZE} and handed out one
+ * caller at a time. Each connection keeps the statements it has prepared.
+ * The schema is created when the first connection of the process opens.
+ *
+ * Every connection runs in WAL mode with {@code synchronous=NORMAL}, so
+ * readers do not block the writer and a commit does not fsync the database
+ * file. A committed transaction survives a crash of the process; after a
+ * power loss the last few may roll back, but the database stays consistent.
+ * {@code busy_timeout} makes concurrent writers wait for the lock instead of
+ * failing with SQLITE_BUSY.
+ */
+final class ConnectionPool {
+
+    /** Connections kept open at most (-Dnotes.db.poolSize). */
+    static final int SIZE = Integer.getInteger("notes.db.poolSize", 4);
+
+    /** How long a writer waits for the database lock (-Dnotes.db.busyTimeoutMillis). */
+    static final int BUSY_TIMEOUT_MILLIS = Integer.getInteger("notes.db.busyTimeoutMillis", 5000);
+
+    /** How long a caller waits for a free connection (-Dnotes.db.acquireTimeoutMillis). */
+    static final long ACQUIRE_TIMEOUT_MILLIS = Long.getLong("notes.db.acquireTimeoutMillis", 10_000);
+
+    /**
+     * Creates or migrates the schema on a freshly opened connection.
+     */
+    interface Schema {
+        void create(Connection connection) throws SQLException;
+    }
+
+    private final String url;
+    private final Path directory;
+    private final int size;
+    private final Schema schema;
+
+    private final LinkedBlockingQueue<Lease> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger open = new AtomicInteger();
+
+    /* LCK00-J: Private lock so the schema is created exactly once */
+    private final Object schemaLock = new Object();
+    private volatile boolean schemaReady;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong prepared = new AtomicLong();
+    private final AtomicLong reusedStatements = new AtomicLong();
+
+    /**
+     * @param url JDBC URL of the database
+     * @param directory directory the database file lives in, created on first use
+     * @param size connections kept open at most
+     * @param schema run once, on the first connection opened
+     */
+    ConnectionPool(String url, Path directory, int size, Schema schema) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Connection pool needs at least one connection");
+        }
+        this.url = url;
+        this.directory = directory;
+        this.size = size;
+        this.schema = schema;
+    }
+
+    /**
+     * One connection, lent to one caller until {@link #close()}.
+     */
+    final class Lease implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private Lease(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Returns this connection's statement for the SQL, preparing it on
+         * first use. Callers must not close it; parameters are cleared.
+         * Only pass fixed SQL text: every distinct string stays cached.
+         *
+         * @param sql a constant statement with ? placeholders
+         * @return the cached statement
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement != null && !statement.isClosed()) {
+                statement.clearParameters();
+                reusedStatements.incrementAndGet();
+                return statement;
+            }
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+            prepared.incrementAndGet();
+            return statement;
+        }
+
+        /**
+         * @return the connection, for transaction control
+         */
+        Connection connection() {
+            return connection;
+        }
+
+        /**
+         * Hands the connection back. A transaction left open is rolled back.
+         */
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        private void discard() {
+            for (PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // Closing the connection below releases it anyway
+                }
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                System.err.println("Failed to close database connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Borrows a connection, opening one if fewer than the pool size are open
+     * and otherwise waiting for one to be returned.
+     *
+     * @return a connection lent to the caller; close it to return it
+     * @throws SQLException if no connection could be opened or none was freed in time
+     */
+    Lease acquire() throws SQLException {
+        leases.incrementAndGet();
+        Lease lease = idle.poll();
+        if (lease != null) {
+            return lease;
+        }
+        if (open.incrementAndGet() <= size) {
+            try {
+                return openLease();
+            } catch (SQLException | RuntimeException e) {
+                open.decrementAndGet();
+                throw e;
+            }
+        }
+        open.decrementAndGet();
+
+        waits.incrementAndGet();
+        long begin = System.nanoTime();
+        try {
+            lease = idle.poll(ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - begin);
+        }
+        if (lease == null) {
+            throw new SQLException("Timed out waiting for a database connection");
+        }
+        return lease;
+    }
+
+    private Lease openLease() throws SQLException {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new SQLException("Unable to create the database directory", e);
+        }
+        Connection connection;
+        // The driver, and for SQLite its native library, loads with the first connection
+        StartupProfiler.Phase connect = StartupProfiler.begin("database connect");
+        try {
+            connection = DriverManager.getConnection(url);
+        } finally {
+            connect.end();
+        }
+        StartupProfiler.Phase setup = StartupProfiler.begin("database setup");
+        try {
+            try (Statement statement = connection.createStatement()) {
+                // Fixed numeric setting, not input; PRAGMA cannot take parameters
+                statement.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MILLIS);
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+            }
+            ensureSchema(connection);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        } finally {
+            setup.end();
+        }
+        opened.incrementAndGet();
+        return new Lease(connection);
+    }
+
+    private void ensureSchema(Connection connection) throws SQLException {
+        if (schemaReady) {
+            return;
+        }
+        synchronized (schemaLock) {
+            if (!schemaReady) {
+                schema.create(connection);
+                schemaReady = true;
+            }
+        }
+    }
+
+    private void release(Lease lease) {
+        try {
+            if (lease.connection.isClosed()) {
+                open.decrementAndGet();
+                return;
+            }
+            if (!lease.connection.getAutoCommit()) {
+                lease.connection.rollback();
+                lease.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            // A connection that cannot be reset is not lent out again
+            lease.discard();
+            open.decrementAndGet();
+            return;
+        }
+        idle.offer(lease);
+    }
+
+    /**
+     * FIO14-J: Closes every idle connection, which also checkpoints the WAL
+     * into the database file when the last one closes. Connections still lent
+     * out are returned as usual; the pool opens new ones on its next use.
+     */
+    void close() {
+        List<Lease> drained = new ArrayList<>();
+        idle.drainTo(drained);
+        for (Lease lease : drained) {
+            lease.discard();
+            open.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return connections opened since the pool was created
+     */
+    long getOpenedCount() {
+        return opened.get();
+    }
+
+    /**
+     * @return connections handed out so far
+     */
+    long getLeaseCount() {
+        return leases.get();
+    }
+
+    @Override
+    public String toString() {
+        long statements = prepared.get() + reusedStatements.get();
+        return String.format("Database pool: %d lease(s) over %d connection(s), %d waited (%.1f ms total),"
+                + " %d of %d statement(s) reused", leases.get(), opened.get(), waits.get(),
+                waitNanos.get() / 1e6, reusedStatements.get(), statements);
+    }
+}
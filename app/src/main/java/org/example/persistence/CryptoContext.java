@@ -0,0 +1,207 @@
+package org.example.persistence;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Pooled {@link Cipher} and {@link Mac} instances for the vault I/O path.
+ *
+ * {@code Cipher.getInstance} and {@code Mac.getInstance} look up a provider and
+ * build a fresh object graph on every call, which shows up in allocation
+ * profiles when a whole vault is loaded or saved. Callers instead borrow an
+ * instance from a small bounded pool per transformation, re-initialized with
+ * the next key and IV, and give it back by closing the {@link Lease}. The HMAC
+ * is only re-keyed when the key changes; otherwise it is reset. The pools do
+ * not depend on thread identity, so virtual threads share them as well as
+ * platform threads do.
+ *
+ * TPS04-J: Every borrowed instance is fully re-initialized or reset first, so
+ * nothing from a previous task carries over.
+ * LCK08-J: Each pool is guarded by a ReentrantLock, held only to take or put
+ * back an instance, so a virtual thread never pins its carrier on it.
+ * MSC59-J: {@link #forgetKeys()} empties every pool when a key ring is
+ * destroyed, and instances on loan at that moment are dropped when they come
+ * back, so no cipher keeps a logged-out user's key schedule reachable.
+ */
+final class CryptoContext {
+
+    static final String GCM = "AES/GCM/NoPadding";
+    static final String CBC = "AES/CBC/PKCS5Padding";
+    static final String HMAC = "HmacSHA256";
+
+    /** Idle instances kept per transformation (-Dnotes.crypto.poolSize). */
+    static final int POOL_SIZE = Integer.getInteger("notes.crypto.poolSize",
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+
+    private static final Pool<Cipher> GCM_POOL = new Pool<>();
+    private static final Pool<Cipher> CBC_POOL = new Pool<>();
+    private static final Pool<Mac> HMAC_POOL = new Pool<>();
+
+    /* Bumped by forgetKeys(); leases from an older epoch are not pooled again */
+    private static final AtomicLong epoch = new AtomicLong();
+
+    private static final AtomicLong created = new AtomicLong();
+    private static final AtomicLong reused = new AtomicLong();
+
+    private CryptoContext() {
+    }
+
+    /**
+     * A borrowed instance; closing it returns the instance to its pool.
+     * The instance must not be used after the lease is closed.
+     */
+    static final class Lease<T> implements AutoCloseable {
+        private final Pool<T> pool;
+        private final T instance;
+        private final SecretKey key;
+        private final long borrowedIn;
+        private boolean closed;
+
+        private Lease(Pool<T> pool, T instance, SecretKey key, long borrowedIn) {
+            this.pool = pool;
+            this.instance = instance;
+            this.key = key;
+            this.borrowedIn = borrowedIn;
+        }
+
+        T get() {
+            return instance;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                pool.giveBack(this);
+            }
+        }
+    }
+
+    private static final class Pool<T> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<Lease<T>> idle = new ArrayDeque<>();
+
+        Lease<T> take() {
+            lock.lock();
+            try {
+                return idle.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void giveBack(Lease<T> lease) {
+            lock.lock();
+            try {
+                if (lease.borrowedIn == epoch.get() && idle.size() < POOL_SIZE) {
+                    idle.addFirst(lease);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                idle.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param key AES key
+     * @param iv 12-byte nonce, never repeated under the same key when encrypting
+     * @return a lease on an AES/GCM cipher, initialized and ready for AAD
+     */
+    static Lease<Cipher> gcm(int mode, SecretKey key, byte[] iv) throws GeneralSecurityException {
+        long current = epoch.get();
+        Cipher cipher = cipher(GCM_POOL, GCM);
+        cipher.init(mode, key, new GCMParameterSpec(VaultFormat.GCM_TAG_BITS, iv));
+        return new Lease<>(GCM_POOL, cipher, key, current);
+    }
+
+    /**
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param key AES key
+     * @param iv 16-byte IV
+     * @return a lease on an AES/CBC cipher, initialized
+     */
+    static Lease<Cipher> cbc(int mode, SecretKey key, byte[] iv) throws GeneralSecurityException {
+        long current = epoch.get();
+        Cipher cipher = cipher(CBC_POOL, CBC);
+        cipher.init(mode, key, new IvParameterSpec(iv));
+        return new Lease<>(CBC_POOL, cipher, key, current);
+    }
+
+    private static Cipher cipher(Pool<Cipher> pool, String transformation) throws GeneralSecurityException {
+        Lease<Cipher> idle = pool.take();
+        if (idle != null) {
+            reused.incrementAndGet();
+            return idle.instance;
+        }
+        created.incrementAndGet();
+        return Cipher.getInstance(transformation);
+    }
+
+    /**
+     * @param key HMAC key
+     * @return a lease on an HMAC-SHA256, keyed with {@code key} and reset
+     */
+    static Lease<Mac> hmac(SecretKey key) throws GeneralSecurityException {
+        long current = epoch.get();
+        Lease<Mac> idle = HMAC_POOL.take();
+        Mac mac;
+        if (idle != null) {
+            reused.incrementAndGet();
+            mac = idle.instance;
+        } else {
+            created.incrementAndGet();
+            mac = Mac.getInstance(HMAC);
+        }
+        // Re-keying recomputes the inner and outer pads; the same key only needs a reset
+        if (idle == null || idle.key != key) {
+            mac.init(key);
+        } else {
+            mac.reset();
+        }
+        return new Lease<>(HMAC_POOL, mac, key, current);
+    }
+
+    /**
+     * MSC59-J: Empties every pool. Called when a key ring is destroyed; new
+     * instances are built on the next borrow.
+     */
+    static void forgetKeys() {
+        // Bump first, so a lease returned while the pools are being emptied is dropped
+        epoch.incrementAndGet();
+        GCM_POOL.clear();
+        CBC_POOL.clear();
+        HMAC_POOL.clear();
+    }
+
+    /**
+     * @return instances built by {@code getInstance} so far
+     */
+    static long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * @return borrows served by re-initializing a pooled instance
+     */
+    static long getReusedCount() {
+        return reused.get();
+    }
+}
@@ -0,0 +1,279 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.example.Note;
+import org.example.User;
+
+/**
+ * Moves one user's notes to a new random data key in the background.
+ *
+ * The new key is stored (wrapped) in the user row next to the old one before
+ * any note is sealed under it. Notes are then loaded, marked dirty and saved
+ * through the {@link WriteBehindSaver} one batch at a time, paced to
+ * {@link #NOTES_PER_SECOND}, so the rotation never races an interactive save
+ * of the same note, never holds every body in memory at once and never
+ * monopolizes the disk. Bodies still sealed under the old key open with it
+ * until the rotation ends. Once every note is sealed under the new key the
+ * old key is dropped from the row.
+ *
+ * Notes are recorded as rotated only once their batch is durably saved, and
+ * each batch is picked from the user's current notes, so notes added or
+ * deleted meanwhile are handled. A failed save is retried; if it keeps
+ * failing, or the rotation is cancelled, {@link #start(User)} in the same
+ * session resumes with the notes not yet recorded. A rotation interrupted by
+ * a crash leaves both keys in the row; {@link UserSaver#loadUser} seals the
+ * remaining notes at the next login.
+ */
+public final class DataKeyRotation {
+
+    /** Notes sealed again per second (-Dnotes.keys.rotateNotesPerSecond). */
+    static final int NOTES_PER_SECOND = Integer.getInteger("notes.keys.rotateNotesPerSecond", 50);
+
+    /** Consecutive failed saves of one batch before the rotation stops. */
+    static final int MAX_SAVE_ATTEMPTS = 3;
+
+    /* One rotation per user at a time; the row only holds one previous key */
+    private static final Map<String, DataKeyRotation> running = new ConcurrentHashMap<>();
+
+    /* Ids of notes durably sealed under the new key, per user with an unfinished rotation */
+    private static final Map<String, Set<String>> progress = new ConcurrentHashMap<>();
+
+    private final User user;
+    private final WriteBehindSaver saver;
+    private final int notesPerSecond;
+    private final int batchSize;
+    private final Set<String> resealed;
+
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger rotated = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean cancelled;
+    private volatile boolean finished;
+    private volatile boolean completed;
+    private volatile Exception failure;
+    private volatile long elapsedNanos;
+
+    private DataKeyRotation(User user, WriteBehindSaver saver, int notesPerSecond, Set<String> resealed) {
+        this.user = user;
+        this.saver = saver;
+        this.notesPerSecond = notesPerSecond;
+        this.resealed = resealed;
+        // Four saves a second keeps the pacing smooth without one save per note
+        this.batchSize = Math.max(1, notesPerSecond / 4);
+    }
+
+    /**
+     * Starts rotating the user's data key at the configured rate, or resumes
+     * a rotation of this session that was cancelled or stopped by errors.
+     *
+     * @param user a signed-on user with an envelope key ring
+     * @return the running rotation
+     * @throws IllegalStateException if a rotation is already running for this user
+     */
+    public static DataKeyRotation start(User user) {
+        return start(user, WriteBehindSaver.shared(), NOTES_PER_SECOND);
+    }
+
+    static DataKeyRotation start(User user, WriteBehindSaver saver, int notesPerSecond) {
+        /* ERR08-J: Fail fast with a clear message instead of a later NullPointerException on the rotation thread */
+        Objects.requireNonNull(user, "User cannot be null");
+        if (notesPerSecond < 1) {
+            throw new IllegalArgumentException("Rotation rate must be positive");
+        }
+        // Only a rotation still holding the previous key can resume
+        Set<String> resealed = user.getKeyRing().hasPreviousDataKey()
+                ? progress.computeIfAbsent(user.getId(), id -> ConcurrentHashMap.newKeySet())
+                : ConcurrentHashMap.newKeySet();
+        DataKeyRotation rotation = new DataKeyRotation(user, saver, notesPerSecond, resealed);
+        if (running.putIfAbsent(user.getId(), rotation) != null) {
+            throw new IllegalStateException("A data key rotation is already running for this user");
+        }
+        Thread thread = new Thread(rotation::run, "data-key-rotation");
+        thread.setDaemon(true);
+        thread.start(); // THI00-J: Always use start(), never run()
+        return rotation;
+    }
+
+    /**
+     * FIO14-J: Stops every running rotation after its current batch and waits
+     * for it. Must run before sessions end; the rest of each rotation is
+     * finished at the user's next login.
+     */
+    public static void cancelAll() {
+        for (DataKeyRotation rotation : running.values()) {
+            rotation.cancel();
+            rotation.await();
+        }
+    }
+
+    private void run() {
+        long begin = System.nanoTime();
+        KeyRing keyRing = user.getKeyRing();
+        try {
+            if (!keyRing.hasPreviousDataKey()) {
+                // The row holds both keys before any note is sealed under the new one
+                keyRing.stageDataKey();
+                try {
+                    UserSaver.storeKeys(user);
+                } catch (SQLException e) {
+                    keyRing.discardStagedDataKey();
+                    throw e;
+                }
+                keyRing.commitDataKey();
+                progress.put(user.getId(), resealed);
+            }
+
+            int failures = 0;
+            int sealed = 0;
+            while (!cancelled) {
+                List<Note> batch = nextBatch();
+                if (batch.isEmpty()) {
+                    break;
+                }
+                // Only this batch's bodies are read; those still under the
+                // old key open with the previous key
+                Note.loadContents(batch);
+                for (Note note : batch) {
+                    note.markDirty();
+                }
+                saver.userChanged(user);
+                try {
+                    saver.flush(user);
+                } catch (IOException e) {
+                    // The batch is not recorded, so the next pass picks it again
+                    if (++failures >= MAX_SAVE_ATTEMPTS) {
+                        throw e;
+                    }
+                    SafeLogger.safeLogWarning("Data key rotation save failed, retrying: " + e.getMessage());
+                    pause(TimeUnit.SECONDS.toNanos(failures));
+                    continue;
+                }
+                failures = 0;
+                for (Note note : batch) {
+                    resealed.add(note.getId());
+                }
+                sealed += batch.size();
+                rotated.set(sealed);
+                pace(begin, sealed);
+            }
+
+            if (!cancelled) {
+                keyRing.forgetPreviousDataKey();
+                UserSaver.storeKeys(user);
+                progress.remove(user.getId(), resealed);
+                completed = true;
+            }
+        } catch (IOException | SQLException | InvalidKeySpecException | NoSuchAlgorithmException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            // A session that ended under the rotation destroys its key ring
+            failure = e;
+        } finally {
+            elapsedNanos = System.nanoTime() - begin;
+            finished = true;
+            running.remove(user.getId(), this);
+            SafeLogger.safeLogInfo(toString());
+            if (failure != null) {
+                SafeLogger.safeLogError("Data key rotation stopped", failure);
+            }
+            done.countDown();
+        }
+    }
+
+    /* The next notes not yet recorded as sealed under the new key, taken from the user's current notes */
+    private List<Note> nextBatch() {
+        List<Note> notes = user.getNotes();
+        List<Note> batch = new ArrayList<>(batchSize);
+        int remaining = 0;
+        for (Note note : notes) {
+            if (!resealed.contains(note.getId())) {
+                remaining++;
+                if (batch.size() < batchSize) {
+                    batch.add(note);
+                }
+            }
+        }
+        total.set(rotated.get() + remaining);
+        return batch;
+    }
+
+    /* Sleeps until the notes rotated so far are within the rate */
+    private void pace(long begin, int sealed) {
+        pause(begin + TimeUnit.SECONDS.toNanos(sealed) / notesPerSecond - System.nanoTime());
+    }
+
+    private void pause(long nanos) {
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Asks the rotation to stop after its current batch.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Waits for the rotation to finish, complete or not.
+     *
+     * @return true if every note is now sealed under the new key
+     */
+    public boolean await() {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return completed;
+    }
+
+    public boolean isDone() {
+        return finished;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return the error that stopped the rotation, or null
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    public int getTotalNotes() {
+        return total.get();
+    }
+
+    public int getRotatedNotes() {
+        return rotated.get();
+    }
+
+    @Override
+    public String toString() {
+        String state = completed ? "complete" : isDone() ? "stopped" : "running";
+        return String.format("Data key rotation %s: %d of %d note(s) re-sealed in %.1f s (limit %d/s)",
+                state, rotated.get(), total.get(), elapsedNanos / 1e9, notesPerSecond);
+    }
+}
@@ -0,0 +1,100 @@
+package org.example.persistence;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Wraps a user's data key under the key derived from their password, in the
+ * form stored in the {@code users} table:
+ *
+ * <pre>
+ *   Base64( version(1) || iv(12) || AES/GCM(data key) || tag(16) )
+ * </pre>
+ *
+ * The version byte and a fixed label are the AAD, so a wrapped key cannot be
+ * mistaken for any other GCM output made with the same key.
+ */
+final class DataKeyWrap {
+
+    static final byte VERSION = 1;
+
+    /** 32 bytes of AES key followed by 32 bytes of HMAC key, as sliced by {@link KeyRing}. */
+    static final int DATA_KEY_LENGTH = 64;
+
+    private static final byte[] LABEL = "notes-data-key".getBytes(StandardCharsets.US_ASCII);
+
+    private DataKeyWrap() {
+    }
+
+    /**
+     * @return a new random data key
+     */
+    static byte[] newDataKey() {
+        // MSC02-J: Keys come from the same DRBG as every IV in the vault
+        return IvGenerator.nextIv(DATA_KEY_LENGTH);
+    }
+
+    /**
+     * @param kek key derived from the password
+     * @param dataKey the data key to protect
+     * @return the wrapped key as stored in the user row
+     */
+    static String wrap(SecretKey kek, byte[] dataKey) throws GeneralSecurityException {
+        byte[] iv = IvGenerator.nextIv(VaultFormat.GCM_IV_LENGTH);
+        byte[] sealed;
+        try (CryptoContext.Lease<Cipher> lease = CryptoContext.gcm(Cipher.ENCRYPT_MODE, kek, iv)) {
+            Cipher cipher = lease.get();
+            cipher.updateAAD(aad(VERSION));
+            sealed = cipher.doFinal(dataKey);
+        }
+        ByteBuffer out = ByteBuffer.allocate(1 + iv.length + sealed.length);
+        out.put(VERSION).put(iv).put(sealed);
+        return Base64.getEncoder().encodeToString(out.array());
+    }
+
+    /**
+     * @param kek key derived from the password
+     * @param wrapped value from the user row
+     * @return the data key
+     * @throws SecurityException if the wrapped key was altered or the password is wrong
+     */
+    static byte[] unwrap(SecretKey kek, String wrapped) throws GeneralSecurityException {
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(wrapped);
+        } catch (IllegalArgumentException e) {
+            throw new SecurityException("Malformed data key");
+        }
+        int minimum = 1 + VaultFormat.GCM_IV_LENGTH + VaultFormat.GCM_TAG_LENGTH;
+        if (bytes.length < minimum || bytes[0] != VERSION) {
+            throw new SecurityException("Unsupported data key format");
+        }
+        byte[] iv = Arrays.copyOfRange(bytes, 1, 1 + VaultFormat.GCM_IV_LENGTH);
+        byte[] dataKey;
+        try (CryptoContext.Lease<Cipher> lease = CryptoContext.gcm(Cipher.DECRYPT_MODE, kek, iv)) {
+            Cipher cipher = lease.get();
+            cipher.updateAAD(aad(bytes[0]));
+            dataKey = cipher.doFinal(bytes, 1 + iv.length, bytes.length - 1 - iv.length);
+        } catch (AEADBadTagException e) {
+            throw new SecurityException("Data key failed to authenticate");
+        }
+        if (dataKey.length != DATA_KEY_LENGTH) {
+            Arrays.fill(dataKey, (byte) 0);
+            throw new SecurityException("Unsupported data key length");
+        }
+        return dataKey;
+    }
+
+    private static byte[] aad(byte version) {
+        byte[] aad = Arrays.copyOf(LABEL, LABEL.length + 1);
+        aad[LABEL.length] = version;
+        return aad;
+    }
+}
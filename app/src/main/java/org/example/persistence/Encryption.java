@@ -7,16 +7,33 @@ import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 
 public class Encryption {
-    private static final byte[] SALT = {0x21, 0x24, 0x2F};
 
     /**
-     * Generates a secure key from a password
+     * Generates a secure key from a password with the parameters every
+     * account used before they were stored per user
      * @param password
      * @return
      */
     public static byte[] generateKeyBytes(String password) throws InvalidKeySpecException, NoSuchAlgorithmException {
-        SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), SALT, 100000, 512);
-        return f.generateSecret(spec).getEncoded();
+        return generateKeyBytes(password, KdfParams.legacy());
+    }
+
+    /**
+     * Generates a secure key from a password with an account's own parameters
+     * @param password
+     * @param params iteration count and salt stored with the account
+     * @return
+     */
+    public static byte[] generateKeyBytes(String password, KdfParams params)
+            throws InvalidKeySpecException, NoSuchAlgorithmException {
+        SecretKeyFactory f = SecretKeyFactory.getInstance(KdfParams.ALGORITHM);
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), params.getSalt(), params.getIterations(),
+                KdfParams.KEY_BITS);
+        try {
+            return f.generateSecret(spec).getEncoded();
+        } finally {
+            // MSC59-J: Do not keep a copy of the password in the spec
+            spec.clearPassword();
+        }
     }
 }
@@ -0,0 +1,155 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.example.Note;
+
+/**
+ * The original vault layout: one {@code data/<userId>/<noteId>.ser} file per note.
+ * Writes go through the {@link GroupCommitWriter}, so the notes of one save
+ * share a commit; {@link #sync()} waits for them.
+ */
+final class FileNoteStore implements NoteStore {
+
+    static final String EXTENSION = ".ser";
+
+    private final Path vault;
+
+    /* Writes submitted but not yet known to be committed, by note id */
+    private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    FileNoteStore(Path vault) {
+        this.vault = vault;
+    }
+
+    private Path pathFor(String noteId) {
+        return vault.resolve(noteId + EXTENSION);
+    }
+
+    @Override
+    public void write(String noteId, byte[] record) throws IOException {
+        String file = pathFor(noteId).toString();
+        /* FIO00-J: Validate that the file path is safe before writing */
+        if (!NoteSaver.isFileSafe(file)) {
+            throw new IOException("FIO00-J: Refusing to save note to unsafe file path: " + file);
+        }
+        pending.put(noteId, GroupCommitWriter.shared().submit(Paths.get(file), record));
+    }
+
+    @Override
+    public boolean streamsLargeNotes() {
+        return true;
+    }
+
+    /**
+     * Streams the note into {@code <file>.tmp} as a v3 record, one chunk at a
+     * time, then renames it into place like a group commit would.
+     */
+    @Override
+    public long writeStreaming(String noteId, Note note, KeyRing keyRing) throws IOException {
+        Path file = pathFor(noteId);
+        /* FIO00-J: Validate that the file path is safe before writing */
+        if (!NoteSaver.isFileSafe(file.toString())) {
+            throw new IOException("FIO00-J: Refusing to save note to unsafe file path: " + file);
+        }
+        // A queued write of the same note must not land on top of this one
+        awaitPending(noteId);
+        Path temp = GroupCommitWriter.tempPath(file);
+        long written;
+        try {
+            written = ChunkedNoteFile.write(keyRing, note, temp);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        GroupCommitWriter.moveIntoPlace(temp, file);
+        GroupCommitWriter.syncDirectory(vault);
+        return written;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (String noteId : new ArrayList<>(pending.keySet())) {
+            awaitPending(noteId);
+        }
+    }
+
+    /* Waits for an outstanding write of one note, so a read or delete
+    never races the rename that publishes it */
+    private void awaitPending(String noteId) throws IOException {
+        CompletableFuture<Void> done = pending.get(noteId);
+        if (done != null) {
+            try {
+                GroupCommitWriter.await(done);
+            } finally {
+                pending.remove(noteId, done);
+            }
+        }
+    }
+
+    @Override
+    public NoteFileReader.NoteFile read(String noteId) throws IOException {
+        awaitPending(noteId);
+        Path file = pathFor(noteId);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        /* FIO00-J: Validate that the file path is safe before reading */
+        if (!NoteSaver.isFileSafe(file.toString())) {
+            throw new IOException("FIO00-J: Refusing to load note from unsafe file path: " + file);
+        }
+        return NoteFileReader.read(file);
+    }
+
+    @Override
+    public boolean delete(String noteId) throws IOException {
+        /* FIO02-J & EXP00-J: Detect and handle file-related errors,
+        and do not ignore the boolean return value from delete operations */
+        awaitPending(noteId);
+        return Files.deleteIfExists(pathFor(noteId));
+    }
+
+    @Override
+    public List<String> noteIds() throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (var files = Files.list(vault)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(EXTENSION)) {
+                    ids.add(name.substring(0, name.length() - EXTENSION.length()));
+                }
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public void forEach(RecordVisitor visitor) throws IOException {
+        for (String noteId : noteIds()) {
+            NoteFileReader.NoteFile record;
+            try {
+                record = read(noteId);
+            } catch (IOException e) {
+                System.err.println("Failed to load note: " + pathFor(noteId));
+                continue;
+            }
+            if (record != null) {
+                visitor.visit(noteId, record);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Nothing is held open between calls; just finish queued writes
+        sync();
+    }
+}
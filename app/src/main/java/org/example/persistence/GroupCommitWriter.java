@@ -0,0 +1,376 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes note files atomically and durably, grouping concurrent and
+ * back-to-back writes into one commit.
+ *
+ * Each commit writes every record in the batch to {@code <file>.tmp}, forces
+ * the temp files, renames them over their targets and then forces each parent
+ * directory once. A crash therefore leaves either the old or the new version
+ * of a note, never a partial file. Waiting up to {@link #COMMIT_WINDOW_MICROS}
+ * for more writes lets a whole save share one barrier: after the first force
+ * flushes the journal, the rest are mostly already clean, and the directory is
+ * synced once per batch instead of once per note.
+ */
+final class GroupCommitWriter {
+
+    /** How long a commit waits for more writes to join it (-Dnotes.vault.commitWindowMicros). */
+    static final long COMMIT_WINDOW_MICROS = Long.getLong("notes.vault.commitWindowMicros", 2000);
+
+    /** Largest number of records in one commit (-Dnotes.vault.commitBatch). */
+    static final int MAX_BATCH = Integer.getInteger("notes.vault.commitBatch", 256);
+
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private static final GroupCommitWriter SHARED = new GroupCommitWriter(COMMIT_WINDOW_MICROS, MAX_BATCH);
+
+    private final long windowNanos;
+    private final int maxBatch;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Object startLock = new Object();
+    private Thread committer;
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+    private final AtomicLong slowestSyncNanos = new AtomicLong();
+
+    private static final class Pending {
+        final Path target;
+        final byte[] record;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(Path target, byte[] record) {
+            this.target = target;
+            this.record = record;
+        }
+    }
+
+    GroupCommitWriter(long windowMicros, int maxBatch) {
+        if (windowMicros < 0 || maxBatch < 1) {
+            throw new IllegalArgumentException("Invalid commit window or batch size");
+        }
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * @return the writer shared by every vault in the process
+     */
+    static GroupCommitWriter shared() {
+        return SHARED;
+    }
+
+    /**
+     * Queues a record for the next commit.
+     *
+     * @param target final location of the note file
+     * @param record bytes to store
+     * @return completes once the record is durable under {@code target}
+     */
+    CompletableFuture<Void> submit(Path target, byte[] record) {
+        ensureStarted();
+        Pending pending = new Pending(target, record);
+        queue.add(pending);
+        return pending.done;
+    }
+
+    /**
+     * Writes a record and waits for its commit.
+     *
+     * @throws IOException if the commit failed
+     */
+    void write(Path target, byte[] record) throws IOException {
+        await(submit(target, record));
+    }
+
+    /**
+     * Waits for a submitted write, unwrapping its failure.
+     *
+     * @throws IOException if the commit failed or the wait was interrupted
+     */
+    static void await(CompletableFuture<Void> done) throws IOException {
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for note commit", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Note commit failed", e.getCause());
+        }
+    }
+
+    /**
+     * FIO14-J: Blocks until every write queued so far has been committed, so
+     * no accepted note is lost when the process exits.
+     */
+    void flush() throws IOException {
+        await(submit(null, null));
+    }
+
+    private void ensureStarted() {
+        synchronized (startLock) {
+            if (committer == null) {
+                committer = new Thread(this::commitLoop, "note-group-commit");
+                committer.setDaemon(true);
+                committer.start(); // THI00-J: Always use start(), never run()
+            }
+        }
+    }
+
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatch) {
+                    long left = deadline - System.nanoTime();
+                    Pending next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Daemon thread; keep serving the queue
+                Thread.interrupted();
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    commit(batch);
+                } catch (RuntimeException e) {
+                    // Never strand a waiting caller, and keep the committer alive
+                    for (Pending pending : batch) {
+                        pending.done.completeExceptionally(new IOException("Note commit failed", e));
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        // Only the last write to a file in a batch needs to reach the disk
+        Map<Path, Pending> latest = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            if (pending.target != null) {
+                latest.put(pending.target, pending);
+            }
+        }
+
+        IOException failure = null;
+        Set<Path> failed = new LinkedHashSet<>();
+        if (!latest.isEmpty()) {
+            long syncTime = 0;
+            List<FileChannel> open = new ArrayList<>();
+            try {
+                // 1. Write every temp file
+                for (Pending pending : latest.values()) {
+                    Path temp = tempPath(pending.target);
+                    try {
+                        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                        open.add(channel);
+                        /* FIO01-J: Restrict the file to owner-only read/write before it holds any data */
+                        NoteSaver.makeFileSecure(temp.toString());
+                        ByteBuffer src = ByteBuffer.wrap(pending.record);
+                        while (src.hasRemaining()) {
+                            channel.write(src);
+                        }
+                    } catch (IOException e) {
+                        failed.add(pending.target);
+                        pending.done.completeExceptionally(e);
+                    }
+                }
+
+                // 2. Barrier: the data must be on disk before any rename is
+                long begin = System.nanoTime();
+                for (FileChannel channel : open) {
+                    channel.force(false);
+                }
+                syncTime += System.nanoTime() - begin;
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                for (FileChannel channel : open) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        failure = failure == null ? e : failure;
+                    }
+                }
+            }
+
+            // 3. Publish each file with an atomic rename
+            Set<Path> directories = new LinkedHashSet<>();
+            if (failure == null) {
+                for (Pending pending : latest.values()) {
+                    if (failed.contains(pending.target)) {
+                        continue;
+                    }
+                    try {
+                        moveIntoPlace(tempPath(pending.target), pending.target);
+                        directories.add(pending.target.toAbsolutePath().getParent());
+                    } catch (IOException e) {
+                        failed.add(pending.target);
+                        pending.done.completeExceptionally(e);
+                    }
+                }
+
+                // 4. Make the renames themselves durable, once per directory
+                long begin = System.nanoTime();
+                try {
+                    for (Path directory : directories) {
+                        syncDirectory(directory);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+                syncTime += System.nanoTime() - begin;
+            }
+
+            // A temp file that was never renamed into place would only be
+            // left behind; renamed ones no longer exist
+            if (failure != null || !failed.isEmpty()) {
+                for (Pending pending : latest.values()) {
+                    if (failure != null || failed.contains(pending.target)) {
+                        deleteTemp(tempPath(pending.target));
+                    }
+                }
+            }
+
+            long committed = latest.size() - failed.size();
+            commits.incrementAndGet();
+            records.addAndGet(committed);
+            largestBatch.accumulateAndGet(latest.size(), Math::max);
+            syncNanos.addAndGet(syncTime);
+            slowestSyncNanos.accumulateAndGet(syncTime, Math::max);
+            for (Pending pending : latest.values()) {
+                if (!failed.contains(pending.target)) {
+                    bytes.addAndGet(pending.record.length);
+                }
+            }
+        }
+
+        // Superseded writes and flush markers finish with the commit that covered them
+        for (Pending pending : batch) {
+            Pending winner = pending.target == null ? null : latest.get(pending.target);
+            if (failure != null) {
+                pending.done.completeExceptionally(failure);
+            } else if (winner != null && winner.done.isCompletedExceptionally()) {
+                winner.done.whenComplete((ignored, e) -> pending.done.completeExceptionally(e));
+            } else {
+                pending.done.complete(null);
+            }
+        }
+    }
+
+    static Path tempPath(Path target) {
+        return target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+    }
+
+    private static void deleteTemp(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            SafeLogger.safeLogWarning("Unable to remove temp file " + temp + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes temp files a crash or failed commit left in a vault. Call only
+     * when the vault is opened, before anything writes to it.
+     *
+     * @param directory the vault directory
+     * @return number of files removed
+     */
+    static int deleteStaleTemps(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        int removed = 0;
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(directory, "*" + TEMP_SUFFIX)) {
+            for (Path temp : temps) {
+                if (Files.deleteIfExists(temp)) {
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            SafeLogger.safeLogWarning("Removed " + removed + " stale temp file(s) from " + directory);
+        }
+        return removed;
+    }
+
+    static void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Forces a directory's entries to disk so a rename or newly created file
+     * survives a crash. Platforms that cannot open a directory for reading
+     * (Windows) do not need this and are skipped.
+     *
+     * @param directory directory to sync
+     */
+    static void syncDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    long getCommitCount() {
+        return commits.get();
+    }
+
+    long getRecordCount() {
+        return records.get();
+    }
+
+    @Override
+    public String toString() {
+        long n = commits.get();
+        return String.format("Note writer: %d commit(s), %d record(s), %d bytes, batch avg %.1f max %d,"
+                + " fsync avg %.2f ms max %.2f ms",
+                n, records.get(), bytes.get(), n == 0 ? 0.0 : (double) records.get() / n, largestBatch.get(),
+                n == 0 ? 0.0 : syncNanos.get() / 1e6 / n, slowestSyncNanos.get() / 1e6);
+    }
+}
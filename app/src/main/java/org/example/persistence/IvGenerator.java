@@ -0,0 +1,181 @@
+package org.example.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking source of IVs and nonces for every cipher path in the vault.
+ *
+ * MSC02-J: Generate strong random numbers. IVs come from a small striped pool
+ * of NIST SP 800-90A DRBGs (Hash_DRBG, 256-bit strength), one stripe per
+ * processor, so the pool stays the same size however many platform or
+ * virtual threads ask. Each stripe is seeded from the default
+ * {@link SecureRandom}, which reads the non-blocking platform source, when it
+ * is first used. Reseeding never runs on the calling thread: a stripe that
+ * has emitted {@link #RESEED_INTERVAL_BYTES} bytes asks a background thread
+ * to reseed it, and the same thread reseeds every stripe each
+ * {@link #RESEED_INTERVAL_NANOS}.
+ *
+ * LCK08-J: Stripes are guarded by a ReentrantLock rather than synchronized,
+ * so a virtual thread waiting for one does not pin its carrier.
+ */
+public final class IvGenerator {
+
+    static final long RESEED_INTERVAL_BYTES = 1L << 26;
+    static final long RESEED_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    /* A power of two at least as large as the processor count */
+    static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private static final AtomicLong instantiations = new AtomicLong();
+    private static final AtomicLong reseeds = new AtomicLong();
+
+    private static final Stripe[] POOL = new Stripe[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            POOL[i] = new Stripe(i);
+        }
+    }
+
+    private IvGenerator() {
+    }
+
+    /**
+     * Lazy holder so the seed source and reseeder thread are only created on first use.
+     */
+    private static final class Reseeder {
+        /* The default SecureRandom reads the non-blocking platform source */
+        private static final SecureRandom SEED = new SecureRandom();
+
+        private static final ScheduledExecutorService EXECUTOR = createExecutor();
+
+        private static ScheduledExecutorService createExecutor() {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "iv-reseeder");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(() -> {
+                for (Stripe stripe : POOL) {
+                    stripe.reseed();
+                }
+            }, RESEED_INTERVAL_NANOS, RESEED_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+            return executor;
+        }
+
+        static byte[] seed(int length) {
+            byte[] seed = new byte[length];
+            SEED.nextBytes(seed);
+            return seed;
+        }
+
+        static void request(Stripe stripe) {
+            EXECUTOR.execute(stripe::reseed);
+        }
+    }
+
+    /**
+     * Returns a fresh random IV of the requested length.
+     *
+     * @param length IV length in bytes (16 for CBC, 12 for GCM)
+     * @return newly generated IV
+     */
+    public static byte[] nextIv(int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("IV length must be positive");
+        }
+        byte[] iv = new byte[length];
+        nextBytes(iv);
+        return iv;
+    }
+
+    /**
+     * Fills the buffer from one of the pooled DRBGs.
+     *
+     * @param bytes buffer to fill
+     */
+    public static void nextBytes(byte[] bytes) {
+        POOL[ThreadLocalRandom.current().nextInt(STRIPES)].nextBytes(bytes);
+    }
+
+    /**
+     * @return number of pooled DRBGs seeded so far
+     */
+    public static long getInstantiationCount() {
+        return instantiations.get();
+    }
+
+    /**
+     * @return number of background reseeds performed so far
+     */
+    public static long getReseedCount() {
+        return reseeds.get();
+    }
+
+    private static final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final SecureRandom drbg;
+        private final AtomicBoolean reseedRequested = new AtomicBoolean();
+        private boolean seeded;
+        private long bytesSinceReseed;
+
+        Stripe(int index) {
+            // The personalization string keeps stripe streams distinct even
+            // if two stripes were to receive identical seed material
+            byte[] personalization = ("notes-iv-" + index + "-" + System.nanoTime())
+                    .getBytes(StandardCharsets.UTF_8);
+            try {
+                drbg = SecureRandom.getInstance("DRBG", DrbgParameters.instantiation(
+                        256, DrbgParameters.Capability.RESEED_ONLY, personalization));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("DRBG is not available", e);
+            }
+        }
+
+        void nextBytes(byte[] bytes) {
+            lock.lock();
+            try {
+                if (!seeded) {
+                    // A seed given before first use becomes the DRBG's entropy
+                    // input, so it never reads the blocking source itself
+                    drbg.setSeed(Reseeder.seed(32));
+                    seeded = true;
+                    instantiations.incrementAndGet();
+                }
+                drbg.nextBytes(bytes);
+                bytesSinceReseed += bytes.length;
+                if (bytesSinceReseed >= RESEED_INTERVAL_BYTES && reseedRequested.compareAndSet(false, true)) {
+                    Reseeder.request(this);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* Runs on the reseeder thread */
+        void reseed() {
+            byte[] seed = Reseeder.seed(32);
+            lock.lock();
+            try {
+                if (seeded) {
+                    drbg.setSeed(seed);
+                    bytesSinceReseed = 0;
+                    reseeds.incrementAndGet();
+                }
+            } finally {
+                reseedRequested.set(false);
+                lock.unlock();
+            }
+        }
+    }
+}
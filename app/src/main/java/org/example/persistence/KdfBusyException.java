@@ -0,0 +1,28 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Thrown when a sign-on is refused because too many key derivations are
+ * already running or queued. Nothing was checked; the caller may simply try
+ * again after {@link #getRetryAfter()}.
+ */
+public final class KdfBusyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Duration retryAfter;
+
+    KdfBusyException(Duration retryAfter) {
+        super("Too many sign-ons in progress, retry in " + retryAfter.toMillis() + " ms");
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return roughly how long until the queued derivations have drained
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,169 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the key derivations of sign-ons on a few dedicated threads.
+ *
+ * PBKDF2 is expensive on purpose. When every session signs on again at once,
+ * as after a restart, running each derivation on its caller's thread used every
+ * core for derivation and nothing else made progress. Here at most
+ * {@link #THREADS} derivations run at a time and at most
+ * {@link #QUEUE_CAPACITY} wait for a thread. A sign-on that finds the queue
+ * full is refused at once with a {@link KdfBusyException} telling the caller
+ * when to retry, so a storm is turned away at the door instead of piling up.
+ */
+final class KdfExecutor {
+
+    /** Derivations run at once (-Dnotes.kdf.threads). */
+    static final int THREADS = Integer.getInteger("notes.kdf.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /** Derivations allowed to wait for a thread (-Dnotes.kdf.queue). */
+    static final int QUEUE_CAPACITY = Integer.getInteger("notes.kdf.queue", 32);
+
+    /* Never tell a caller to retry sooner than this */
+    private static final long MIN_RETRY_MILLIS = 100;
+
+    private static final KdfExecutor SHARED = new KdfExecutor(THREADS, QUEUE_CAPACITY);
+
+    /**
+     * Work whose cost is one or more key derivations.
+     */
+    @FunctionalInterface
+    interface Derivation<T> {
+        T derive() throws InvalidKeySpecException, NoSuchAlgorithmException;
+    }
+
+    private final int threads;
+    private final int queueCapacity;
+    private final ThreadPoolExecutor pool;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+    private final AtomicLong deriveNanos = new AtomicLong();
+    private final AtomicLong maxDeriveNanos = new AtomicLong();
+    private final AtomicInteger peakQueued = new AtomicInteger();
+
+    KdfExecutor(int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("KDF executor sizes must be positive");
+        }
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        AtomicInteger created = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "kdf-" + created.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        // Threads exist only while there are sign-ons to serve
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the executor shared by every sign-on in the process
+     */
+    static KdfExecutor shared() {
+        return SHARED;
+    }
+
+    /**
+     * Runs a derivation on the executor and waits for its result.
+     *
+     * @param derivation the work to run
+     * @return its result
+     * @throws KdfBusyException if the queue is full; nothing was run
+     * @throws InterruptedIOException if the caller is interrupted while waiting
+     */
+    <T> T run(Derivation<T> derivation) throws IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+        long queued = System.nanoTime();
+        Future<T> future;
+        try {
+            future = pool.submit(() -> {
+                long start = System.nanoTime();
+                record(queueWaitNanos, maxQueueWaitNanos, start - queued);
+                try {
+                    return derivation.derive();
+                } finally {
+                    record(deriveNanos, maxDeriveNanos, System.nanoTime() - start);
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new KdfBusyException(retryAfter());
+        }
+        peakQueued.accumulateAndGet(pool.getQueue().size(), Math::max);
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for key derivation");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvalidKeySpecException invalid) {
+                throw invalid;
+            }
+            if (cause instanceof NoSuchAlgorithmException missing) {
+                throw missing;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException("Key derivation failed", cause);
+        }
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long nanos) {
+        total.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /* Time for everything queued and running now to finish, at the average derivation time */
+    private Duration retryAfter() {
+        long done = completed.get();
+        long average = done > 0 ? deriveNanos.get() / done : TimeUnit.MILLISECONDS.toNanos(KdfPolicy.TARGET_MILLIS);
+        long backlog = pool.getQueue().size() + pool.getActiveCount();
+        long millis = TimeUnit.NANOSECONDS.toMillis(average * backlog / threads);
+        return Duration.ofMillis(Math.max(MIN_RETRY_MILLIS, millis));
+    }
+
+    long getCompletedCount() {
+        return completed.get();
+    }
+
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        long done = Math.max(1, completed.get());
+        return String.format("KDF executor: %d derivation(s) on %d thread(s), %d rejected,"
+                + " queue wait avg %.1f ms max %.1f ms, derive avg %.1f ms max %.1f ms, peak queue %d of %d",
+                completed.get(), threads, rejected.get(), queueWaitNanos.get() / 1e6 / done,
+                maxQueueWaitNanos.get() / 1e6, deriveNanos.get() / 1e6 / done, maxDeriveNanos.get() / 1e6,
+                peakQueued.get(), queueCapacity);
+    }
+}
@@ -0,0 +1,101 @@
+package org.example.persistence;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * The PBKDF2 parameters one account's keys are derived with. They are stored
+ * with the account in the {@code users} table, so each account keeps working
+ * with the parameters it was created or last rehashed with.
+ */
+public final class KdfParams {
+
+    static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    static final int KEY_BITS = 512;
+    static final int SALT_LENGTH = 16;
+
+    /* The parameters every account used before they were stored per user */
+    static final int LEGACY_ITERATIONS = 100_000;
+    private static final byte[] LEGACY_SALT = {0x21, 0x24, 0x2F};
+
+    private final int iterations;
+    private final byte[] salt;
+
+    public KdfParams(int iterations, byte[] salt) {
+        if (iterations < 1 || salt == null || salt.length == 0) {
+            throw new IllegalArgumentException("KDF parameters need a positive iteration count and a salt");
+        }
+        this.iterations = iterations;
+        // OBJ06-J: Keep a private copy of the mutable salt
+        this.salt = salt.clone();
+    }
+
+    /**
+     * @return the fixed parameters of accounts created before per-user parameters
+     */
+    public static KdfParams legacy() {
+        return new KdfParams(LEGACY_ITERATIONS, LEGACY_SALT);
+    }
+
+    /**
+     * MSC02-J: A random salt and the iteration count calibrated for this machine.
+     *
+     * @return parameters for a new or rehashed account
+     */
+    public static KdfParams fresh() {
+        return new KdfParams(KdfPolicy.targetIterations(), IvGenerator.nextIv(SALT_LENGTH));
+    }
+
+    /**
+     * Reads the parameters stored in a user row. Rows written before the
+     * columns existed have nulls and get the legacy parameters.
+     *
+     * @param iterations the stored iteration count, or null
+     * @param salt the stored Base64 salt, or null
+     * @return the account's parameters
+     */
+    static KdfParams fromColumns(Integer iterations, String salt) {
+        if (iterations == null || salt == null) {
+            return legacy();
+        }
+        return new KdfParams(iterations, Base64.getDecoder().decode(salt));
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public byte[] getSalt() {
+        return salt.clone();
+    }
+
+    /**
+     * @return the salt as stored in the {@code users} table
+     */
+    String encodedSalt() {
+        return Base64.getEncoder().encodeToString(salt);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof KdfParams)) {
+            return false;
+        }
+        KdfParams other = (KdfParams) o;
+        return iterations == other.iterations && Arrays.equals(salt, other.salt);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * iterations + Arrays.hashCode(salt);
+    }
+
+    @Override
+    public String toString() {
+        // The salt is not secret, but there is no reason to print it
+        return "KdfParams{iterations=" + iterations + ", saltBytes=" + salt.length + "}";
+    }
+}
@@ -0,0 +1,106 @@
+package org.example.persistence;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.example.StartupProfiler;
+
+/**
+ * Chooses how many PBKDF2 iterations a derivation should take on this machine.
+ *
+ * A fixed count is too slow on small VMs and too cheap on large servers, so at
+ * startup {@link #calibrateAsync()} times a short probe derivation and scales
+ * the count to {@link #TARGET_MILLIS}. New and rehashed accounts use the
+ * calibrated count. An account whose stored parameters fall outside
+ * {@link #withinPolicy(KdfParams)} is rehashed on its next successful login.
+ */
+public final class KdfPolicy {
+
+    /** Time one derivation should take (-Dnotes.kdf.targetMillis). */
+    static final long TARGET_MILLIS = Long.getLong("notes.kdf.targetMillis", 150);
+
+    /** Iteration count never chosen or accepted below this, however slow the machine (-Dnotes.kdf.minIterations). */
+    static final int MIN_ITERATIONS = Integer.getInteger("notes.kdf.minIterations", 50_000);
+
+    /** Iteration count never chosen above this (-Dnotes.kdf.maxIterations). */
+    static final int MAX_ITERATIONS = Integer.getInteger("notes.kdf.maxIterations", 5_000_000);
+
+    /** Stored counts within this factor of the calibrated one are left alone. */
+    static final int TOLERANCE = 2;
+
+    /* Long enough to time reliably, short enough not to delay startup */
+    private static final int PROBE_ITERATIONS = 20_000;
+    private static final int PROBE_RUNS = 3;
+
+    private static final Object lock = new Object();
+    private static CompletableFuture<Integer> calibration;
+
+    private KdfPolicy() {
+    }
+
+    /**
+     * Starts calibrating on a background thread, so the measurement overlaps
+     * with the rest of startup. Later calls have no effect.
+     */
+    public static void calibrateAsync() {
+        synchronized (lock) {
+            if (calibration == null) {
+                calibration = CompletableFuture.supplyAsync(KdfPolicy::calibrate, runnable -> {
+                    Thread thread = new Thread(runnable, "kdf-calibration");
+                    thread.setDaemon(true);
+                    thread.start(); // THI00-J: Always use start(), never run()
+                });
+            }
+        }
+    }
+
+    /**
+     * @return the calibrated iteration count, calibrating now if startup did not
+     */
+    public static int targetIterations() {
+        calibrateAsync();
+        return calibration.join();
+    }
+
+    /**
+     * @param params an account's stored parameters
+     * @return true if they need no rehash: a full-length salt and an
+     *         iteration count within {@link #TOLERANCE} of the calibrated one
+     */
+    public static boolean withinPolicy(KdfParams params) {
+        int target = targetIterations();
+        int low = Math.max(MIN_ITERATIONS, target / TOLERANCE);
+        long high = Math.min((long) MAX_ITERATIONS, (long) target * TOLERANCE);
+        return params.getSalt().length >= KdfParams.SALT_LENGTH
+                && params.getIterations() >= low && params.getIterations() <= high;
+    }
+
+    private static int calibrate() {
+        StartupProfiler.Phase calibration = StartupProfiler.begin("kdf calibration");
+        try {
+            byte[] salt = new byte[KdfParams.SALT_LENGTH];
+            KdfParams probe = new KdfParams(PROBE_ITERATIONS, salt);
+            // The first run also loads the provider, so it is not timed
+            Encryption.generateKeyBytes("calibration", probe);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < PROBE_RUNS; i++) {
+                long begin = System.nanoTime();
+                Encryption.generateKeyBytes("calibration", probe);
+                best = Math.min(best, System.nanoTime() - begin);
+            }
+            double perIteration = (double) Math.max(best, 1) / PROBE_ITERATIONS;
+            long wanted = Math.round(TimeUnit.MILLISECONDS.toNanos(TARGET_MILLIS) / perIteration / 1000) * 1000;
+            int iterations = (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, wanted));
+            SafeLogger.safeLogInfo(String.format("KDF calibration: %d iterations, about %.0f ms per derivation"
+                    + " (target %d ms)", iterations, iterations * perIteration / 1e6, TARGET_MILLIS));
+            return iterations;
+        } catch (GeneralSecurityException e) {
+            // Without a working PBKDF2 nothing can be derived anyway; fall back to the old count
+            SafeLogger.safeLogError("KDF calibration failed", e);
+            return KdfParams.LEGACY_ITERATIONS;
+        } finally {
+            calibration.end();
+        }
+    }
+}
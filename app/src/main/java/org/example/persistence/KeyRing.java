@@ -0,0 +1,610 @@
+package org.example.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Caches a user's keys so that PBKDF2 runs once per login instead of once per
+ * note.
+ *
+ * Accounts use envelope encryption. Notes are sealed under a random 64-byte
+ * data key (AES key, then HMAC key), which is stored in the {@code users} table
+ * wrapped under a key derived from the password. The first half of the 512-bit
+ * derivation wraps the data key. A hash of the second half is the stored
+ * password verifier, so the row never holds anything that unwraps its own key.
+ * Changing the password or the KDF parameters only rewraps the data key
+ * ({@link #rewrap}); the notes are left alone.
+ *
+ * Rings built with the public constructors are legacy rings for accounts
+ * created before data keys. Their notes are sealed directly under the
+ * derivation, which is also their stored hash. {@link #rewrap} turns such a
+ * ring into an envelope ring whose data key is that derivation, so those
+ * notes stay readable without being rewritten; {@link UserSaver} then rotates
+ * the account to a random data key.
+ *
+ * MSC59-J: Limit the lifetime of sensitive data. The derived key material is
+ * zeroed when the owning session logs out or sits idle past its timeout, and
+ * the ring refuses to hand out keys afterwards.
+ */
+public final class KeyRing {
+
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(15);
+
+    /* LCK00-J: Use a private final lock object so untrusted code cannot
+    interfere with key derivation by locking on the ring itself. */
+    private final Object lock = new Object();
+
+    /* Guarded by lock */
+    private long idleTimeoutNanos;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private KdfParams kdfParams;
+    private String password;
+    private boolean enveloped;
+    /* PBKDF2 output for the current password and parameters */
+    private byte[] derived;
+    /* Data key; the derivation itself for a legacy ring */
+    private byte[] keyBytes;
+    private RingKey encKey;
+    private RingKey macKey;
+    /* Data key being rotated away from, until every note is sealed again */
+    private byte[] previousKeyBytes;
+    /* Next data key of a rotation, stored before any note is sealed under it */
+    private byte[] stagedKeyBytes;
+    /* Wrapped forms; null when they must be rewrapped */
+    private String wrappedDataKey;
+    private String wrappedPreviousDataKey;
+    private String wrappedStagedDataKey;
+    private long lastAccess;
+    private boolean destroyed;
+
+    /**
+     * A legacy ring for the parameters every account used before they were
+     * stored per user.
+     */
+    public KeyRing(String password) {
+        this(password, KdfParams.legacy(), DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public KeyRing(String password, Duration idleTimeout) {
+        this(password, KdfParams.legacy(), idleTimeout);
+    }
+
+    /**
+     * A legacy ring: notes are sealed directly under the derivation.
+     */
+    public KeyRing(String password, KdfParams kdfParams) {
+        this(password, kdfParams, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public KeyRing(String password, KdfParams kdfParams, Duration idleTimeout) {
+        if (password == null || kdfParams == null || idleTimeout == null || idleTimeout.isNegative()
+                || idleTimeout.isZero()) {
+            throw new IllegalArgumentException("Password, KDF parameters and a positive idle timeout are required");
+        }
+        this.password = password;
+        this.kdfParams = kdfParams;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.lastAccess = System.nanoTime();
+    }
+
+    /**
+     * Sets how long the ring may go unused before its keys are zeroed. The
+     * session that owns the ring sets its own idle timeout here, so the keys
+     * last exactly as long as the session does.
+     *
+     * @param idleTimeout positive time without access
+     */
+    public void setIdleTimeout(Duration idleTimeout) {
+        if (idleTimeout == null || idleTimeout.isNegative() || idleTimeout.isZero()) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+        synchronized (lock) {
+            idleTimeoutNanos = idleTimeout.toNanos();
+        }
+    }
+
+    /**
+     * @return time without access after which the keys are zeroed
+     */
+    public Duration getIdleTimeout() {
+        synchronized (lock) {
+            return Duration.ofNanos(idleTimeoutNanos);
+        }
+    }
+
+    /**
+     * @return a ring for a new account, with a new random data key
+     */
+    public static KeyRing create(String password, KdfParams kdfParams) {
+        KeyRing ring = new KeyRing(password, kdfParams);
+        ring.enveloped = true;
+        ring.setDataKey(DataKeyWrap.newDataKey());
+        return ring;
+    }
+
+    /**
+     * @param wrappedDataKey the data key stored in the user row
+     * @param wrappedPreviousDataKey the key of an unfinished rotation, or null
+     * @return a ring that unwraps the stored data key on first use
+     */
+    static KeyRing open(String password, KdfParams kdfParams, String wrappedDataKey, String wrappedPreviousDataKey) {
+        KeyRing ring = new KeyRing(password, kdfParams);
+        ring.enveloped = true;
+        ring.wrappedDataKey = wrappedDataKey;
+        ring.wrappedPreviousDataKey = wrappedPreviousDataKey;
+        return ring;
+    }
+
+    /**
+     * @return the AES key used to encrypt note payloads
+     */
+    public SecretKey encryptionKey() throws InvalidKeySpecException, NoSuchAlgorithmException {
+        synchronized (lock) {
+            ensureKeys();
+            return encKey;
+        }
+    }
+
+    /**
+     * @return the HMAC key used to authenticate note files
+     */
+    public SecretKey macKey() throws InvalidKeySpecException, NoSuchAlgorithmException {
+        synchronized (lock) {
+            ensureKeys();
+            return macKey;
+        }
+    }
+
+    /**
+     * @return the parameters the keys are derived with
+     */
+    public KdfParams getKdfParams() {
+        synchronized (lock) {
+            return kdfParams;
+        }
+    }
+
+    /**
+     * @return true if notes are sealed under a wrapped data key
+     */
+    public boolean isEnveloped() {
+        synchronized (lock) {
+            return enveloped;
+        }
+    }
+
+    /**
+     * Returns the password hash stored in the {@code users} table. A legacy
+     * ring returns the representation {@link UserSaver} has always written.
+     * Checking it only needs the derivation, not the data key.
+     */
+    public String passwordHash() throws InvalidKeySpecException, NoSuchAlgorithmException {
+        synchronized (lock) {
+            checkUsable();
+            ensureDerived();
+            if (!enveloped) {
+                return new String(derived);
+            }
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update("notes-verifier".getBytes(StandardCharsets.US_ASCII));
+            digest.update(derived, 32, 32);
+            return Base64.getEncoder().encodeToString(digest.digest());
+        }
+    }
+
+    /**
+     * Checks a password against the one this ring was opened with, as when a
+     * user who is already signed on signs on again. The candidate goes through
+     * the same derivation as at sign on, so guessing costs as much as against
+     * the stored hash; the derivation runs outside the ring's lock.
+     *
+     * @param candidate password to check
+     * @return true if it derives the same key material
+     */
+    public boolean matchesPassword(String candidate) throws InvalidKeySpecException, NoSuchAlgorithmException {
+        byte[] expected;
+        KdfParams params;
+        synchronized (lock) {
+            checkUsable();
+            ensureDerived();
+            expected = derived.clone();
+            params = kdfParams;
+        }
+        byte[] actual = Encryption.generateKeyBytes(candidate, params);
+        try {
+            // Constant time, so the comparison leaks nothing about where they differ
+            return MessageDigest.isEqual(expected, actual);
+        } finally {
+            Arrays.fill(expected, (byte) 0);
+            Arrays.fill(actual, (byte) 0);
+        }
+    }
+
+    /**
+     * @return the data key wrapped for the user row; while a rotation is
+     *         staged, the staged key
+     * @throws IllegalStateException for a legacy ring, which has none
+     */
+    public String wrappedDataKey() throws InvalidKeySpecException, NoSuchAlgorithmException {
+        synchronized (lock) {
+            ensureKeys();
+            if (!enveloped) {
+                throw new IllegalStateException("Legacy key ring has no data key");
+            }
+            if (stagedKeyBytes != null) {
+                if (wrappedStagedDataKey == null) {
+                    wrappedStagedDataKey = wrap(stagedKeyBytes);
+                }
+                return wrappedStagedDataKey;
+            }
+            if (wrappedDataKey == null) {
+                wrappedDataKey = wrap(keyBytes);
+            }
+            return wrappedDataKey;
+        }
+    }
+
+    /**
+     * @return the wrapped key of an unfinished rotation for the user row (the
+     *         current key while a rotation is staged), or null
+     */
+    public String wrappedPreviousDataKey() throws InvalidKeySpecException, NoSuchAlgorithmException {
+        synchronized (lock) {
+            ensureKeys();
+            if (stagedKeyBytes != null) {
+                if (wrappedDataKey == null) {
+                    wrappedDataKey = wrap(keyBytes);
+                }
+                return wrappedDataKey;
+            }
+            if (previousKeyBytes == null) {
+                return null;
+            }
+            if (wrappedPreviousDataKey == null) {
+                wrappedPreviousDataKey = wrap(previousKeyBytes);
+            }
+            return wrappedPreviousDataKey;
+        }
+    }
+
+    /**
+     * Re-derives the wrapping key from a new password and/or new parameters.
+     * The data key does not change, so every note stays readable and nothing
+     * but the user row needs writing. A legacy ring becomes an envelope ring
+     * whose data key is its old derivation.
+     *
+     * @param newPassword the password to derive the wrapping key from
+     * @param newParams the parameters to derive with from now on
+     */
+    public void rewrap(String newPassword, KdfParams newParams) throws InvalidKeySpecException, NoSuchAlgorithmException {
+        if (newPassword == null || newParams == null) {
+            throw new IllegalArgumentException("Password and KDF parameters are required");
+        }
+        synchronized (lock) {
+            ensureKeys();
+            byte[] next = Encryption.generateKeyBytes(newPassword, newParams);
+            misses.incrementAndGet();
+            if (derived != null) {
+                Arrays.fill(derived, (byte) 0);
+            }
+            derived = next;
+            password = newPassword;
+            kdfParams = newParams;
+            enveloped = true;
+            wrappedDataKey = null;
+            wrappedPreviousDataKey = null;
+            wrappedStagedDataKey = null;
+        }
+    }
+
+    /**
+     * First step of a data key rotation: picks a new random data key without
+     * using it yet. The wrapped values for the user row already name it as
+     * the data key and the current one as the previous key, so the row can
+     * be written before any note is sealed under the new key. Then call
+     * {@link #commitDataKey()}, or {@link #discardStagedDataKey()} if the row
+     * could not be written.
+     *
+     * @throws IllegalStateException for a legacy ring or while a rotation is unfinished
+     */
+    public void stageDataKey() throws InvalidKeySpecException, NoSuchAlgorithmException {
+        synchronized (lock) {
+            ensureKeys();
+            if (!enveloped || previousKeyBytes != null || stagedKeyBytes != null) {
+                throw new IllegalStateException("Key ring cannot start a data key rotation");
+            }
+            stagedKeyBytes = DataKeyWrap.newDataKey();
+        }
+    }
+
+    /**
+     * Seals notes under the staged data key from now on. The old key is kept
+     * until {@link #forgetPreviousDataKey()}, so notes not yet sealed again
+     * stay readable through {@link #previousKeys()}.
+     */
+    public void commitDataKey() {
+        synchronized (lock) {
+            if (stagedKeyBytes == null) {
+                throw new IllegalStateException("No data key is staged");
+            }
+            previousKeyBytes = keyBytes.clone();
+            wrappedPreviousDataKey = wrappedDataKey;
+            destroyDataKey();
+            setDataKey(stagedKeyBytes);
+            wrappedDataKey = wrappedStagedDataKey;
+            stagedKeyBytes = null;
+            wrappedStagedDataKey = null;
+        }
+    }
+
+    /**
+     * Drops a staged data key that never reached the user row.
+     */
+    public void discardStagedDataKey() {
+        synchronized (lock) {
+            if (stagedKeyBytes != null) {
+                Arrays.fill(stagedKeyBytes, (byte) 0);
+                stagedKeyBytes = null;
+            }
+            wrappedStagedDataKey = null;
+        }
+    }
+
+    /**
+     * Ends a rotation once no note is sealed under the previous data key.
+     */
+    public void forgetPreviousDataKey() {
+        synchronized (lock) {
+            if (previousKeyBytes != null) {
+                Arrays.fill(previousKeyBytes, (byte) 0);
+                previousKeyBytes = null;
+            }
+            wrappedPreviousDataKey = null;
+        }
+    }
+
+    /**
+     * @return true while a data key rotation is unfinished, so some notes may
+     *         still be sealed under the previous key
+     */
+    public boolean hasPreviousDataKey() {
+        synchronized (lock) {
+            return previousKeyBytes != null;
+        }
+    }
+
+    /**
+     * @return a ring over the previous data key of an unfinished rotation, or
+     *         null; the caller destroys it when done
+     */
+    public KeyRing previousKeys() throws InvalidKeySpecException, NoSuchAlgorithmException {
+        synchronized (lock) {
+            ensureKeys();
+            if (previousKeyBytes == null) {
+                return null;
+            }
+            KeyRing previous = new KeyRing(password, kdfParams, Duration.ofNanos(idleTimeoutNanos));
+            previous.enveloped = true;
+            previous.derived = derived.clone();
+            previous.setDataKey(previousKeyBytes.clone());
+            return previous;
+        }
+    }
+
+    /* Checks that the ring is still live and records the access. Must be
+    called while holding lock. */
+    private void checkUsable() {
+        if (destroyed) {
+            throw new IllegalStateException("Key ring has been destroyed");
+        }
+        long now = System.nanoTime();
+        if (now - lastAccess > idleTimeoutNanos) {
+            destroyLocked();
+            throw new IllegalStateException("Key ring expired after idle timeout");
+        }
+        lastAccess = now;
+    }
+
+    /* Runs PBKDF2 on first use. Must be called while holding lock. */
+    private void ensureDerived() throws InvalidKeySpecException, NoSuchAlgorithmException {
+        if (derived == null) {
+            misses.incrementAndGet();
+            derived = Encryption.generateKeyBytes(password, kdfParams);
+        }
+    }
+
+    /**
+     * Derives or unwraps the keys on first use and counts every later use as
+     * a cache hit. Must be called while holding {@code lock}.
+     */
+    private void ensureKeys() throws InvalidKeySpecException, NoSuchAlgorithmException {
+        checkUsable();
+        if (keyBytes != null) {
+            hits.incrementAndGet();
+            return;
+        }
+        ensureDerived();
+        if (!enveloped) {
+            setDataKey(derived.clone());
+            return;
+        }
+        RingKey kek = new RingKey(Arrays.copyOfRange(derived, 0, 32), "AES");
+        try {
+            setDataKey(DataKeyWrap.unwrap(kek, wrappedDataKey));
+            if (wrappedPreviousDataKey != null) {
+                previousKeyBytes = DataKeyWrap.unwrap(kek, wrappedPreviousDataKey);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to unwrap the data key", e);
+        } finally {
+            kek.destroy();
+        }
+    }
+
+    /* Must be called while holding lock */
+    private String wrap(byte[] dataKey) throws InvalidKeySpecException, NoSuchAlgorithmException {
+        ensureDerived();
+        RingKey kek = new RingKey(Arrays.copyOfRange(derived, 0, 32), "AES");
+        try {
+            return DataKeyWrap.wrap(kek, dataKey);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to wrap the data key", e);
+        } finally {
+            kek.destroy();
+        }
+    }
+
+    private void setDataKey(byte[] dataKey) {
+        keyBytes = dataKey;
+        encKey = new RingKey(Arrays.copyOfRange(keyBytes, 0, 32), "AES");
+        macKey = new RingKey(Arrays.copyOfRange(keyBytes, 32, 64), "HmacSHA256");
+    }
+
+    /**
+     * Counts as a use of the ring without handing out a key, so a session
+     * that is active but only reading notes already in memory keeps its keys.
+     *
+     * @throws IllegalStateException if the ring was destroyed or has expired
+     */
+    public void keepAlive() {
+        synchronized (lock) {
+            checkUsable();
+        }
+    }
+
+    /**
+     * Zeroes the keys if the ring has not been used within its idle timeout.
+     *
+     * @return true if the ring is destroyed after this call
+     */
+    public boolean destroyIfIdle() {
+        synchronized (lock) {
+            if (!destroyed && System.nanoTime() - lastAccess > idleTimeoutNanos) {
+                destroyLocked();
+            }
+            return destroyed;
+        }
+    }
+
+    /**
+     * MSC59-J: Zeroes all derived key material and drops the password reference.
+     * Safe to call more than once.
+     */
+    public void destroy() {
+        synchronized (lock) {
+            destroyLocked();
+        }
+    }
+
+    private void destroyLocked() {
+        destroyDataKey();
+        if (derived != null) {
+            Arrays.fill(derived, (byte) 0);
+            derived = null;
+        }
+        forgetPreviousDataKey();
+        discardStagedDataKey();
+        wrappedDataKey = null;
+        password = null;
+        destroyed = true;
+        // Cached ciphers hold the key schedule; drop them along with the keys
+        CryptoContext.forgetKeys();
+    }
+
+    private void destroyDataKey() {
+        if (keyBytes != null) {
+            Arrays.fill(keyBytes, (byte) 0);
+            keyBytes = null;
+        }
+        if (encKey != null) {
+            encKey.destroy();
+            encKey = null;
+        }
+        if (macKey != null) {
+            macKey.destroy();
+            macKey = null;
+        }
+    }
+
+    public boolean isDestroyed() {
+        synchronized (lock) {
+            return destroyed;
+        }
+    }
+
+    /**
+     * @return number of key requests served from the already derived keys
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of PBKDF2 derivations this ring has performed
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "KeyRing{derivations=" + misses.get() + ", hits=" + hits.get() + ", destroyed=" + isDestroyed() + "}";
+    }
+
+    /**
+     * A raw secret key whose backing array can actually be zeroed.
+     * SecretKeySpec keeps a private copy and does not support destroy().
+     */
+    private static final class RingKey implements SecretKey {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] material;
+        private final String algorithm;
+        private volatile boolean keyDestroyed;
+
+        RingKey(byte[] material, String algorithm) {
+            this.material = material;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            if (keyDestroyed) {
+                throw new IllegalStateException("Key has been destroyed");
+            }
+            return material.clone();
+        }
+
+        @Override
+        public void destroy() {
+            Arrays.fill(material, (byte) 0);
+            keyDestroyed = true;
+        }
+
+        @Override
+        public boolean isDestroyed() {
+            return keyDestroyed;
+        }
+    }
+}
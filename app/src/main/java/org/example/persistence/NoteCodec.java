@@ -0,0 +1,487 @@
+package org.example.persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.example.Note;
+
+/**
+ * Compact binary encoding of a {@link Note}, used in place of Java object
+ * serialization for the plaintext that gets encrypted into a note file.
+ *
+ * Layout:
+ *   Marker 0xB7 (1) | Schema version (1)
+ *   | id | title | content        each a varint byte length followed by UTF-8
+ *   | createdAt | updatedAt       each a zigzag varint epoch second (UTC) and a varint nano
+ *
+ * A Java serialization stream always starts with 0xACED, so the first byte is
+ * enough to tell legacy payloads apart.
+ *
+ * The vault's title index uses the same field encodings:
+ *   Marker 0xB8 (1) | Schema version (1) | varint entry count
+ *   then per entry: id | title | Flags (1) | createdAt | updatedAt
+ */
+final class NoteCodec {
+
+    static final byte MARKER = (byte) 0xB7;
+    static final byte SCHEMA_VERSION = 1;
+    static final byte INDEX_MARKER = (byte) 0xB8;
+
+    /** Index entry flag: the stored record is outdated and must be rewritten on the next save. */
+    static final byte FLAG_REWRITE = 0x01;
+
+    /** Piece size used when streaming text in or out. */
+    private static final int STREAM_BUFFER = 8192;
+
+    private static final byte SERIALIZATION_MAGIC_0 = (byte) 0xAC;
+    private static final byte SERIALIZATION_MAGIC_1 = (byte) 0xED;
+
+    private NoteCodec() {
+    }
+
+    /**
+     * @param payload decrypted note payload, positioned at its first byte
+     * @return true if the payload is a Java serialization stream
+     */
+    static boolean isLegacySerialization(ByteBuffer payload) {
+        int p = payload.position();
+        return payload.remaining() >= 2
+                && payload.get(p) == SERIALIZATION_MAGIC_0
+                && payload.get(p + 1) == SERIALIZATION_MAGIC_1;
+    }
+
+    /**
+     * Encodes a note into an exactly sized array.
+     *
+     * @param note note to encode
+     * @return encoded bytes
+     */
+    static byte[] encode(Note note) {
+        byte[] id = note.getId().getBytes(StandardCharsets.UTF_8);
+        byte[] title = note.getTitle().getBytes(StandardCharsets.UTF_8);
+        byte[] content = note.getContent().getBytes(StandardCharsets.UTF_8);
+        LocalDateTime createdAt = note.getCreatedAt();
+        LocalDateTime updatedAt = note.getUpdatedAt();
+        long createdSec = zigZag(createdAt.toEpochSecond(ZoneOffset.UTC));
+        long updatedSec = zigZag(updatedAt.toEpochSecond(ZoneOffset.UTC));
+
+        int size = 2
+                + varLongSize(id.length) + id.length
+                + varLongSize(title.length) + title.length
+                + varLongSize(content.length) + content.length
+                + varLongSize(createdSec) + varLongSize(createdAt.getNano())
+                + varLongSize(updatedSec) + varLongSize(updatedAt.getNano());
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(MARKER);
+        out.put(SCHEMA_VERSION);
+        putBytes(out, id);
+        putBytes(out, title);
+        putBytes(out, content);
+        putVarLong(out, createdSec);
+        putVarLong(out, createdAt.getNano());
+        putVarLong(out, updatedSec);
+        putVarLong(out, updatedAt.getNano());
+        return out.array();
+    }
+
+    /**
+     * Decodes a note, rejecting anything that is not a well-formed record.
+     *
+     * @param in encoded note, positioned at the marker byte
+     * @return the decoded note
+     * @throws IOException if the record is malformed or uses an unknown schema
+     */
+    static Note decode(ByteBuffer in) throws IOException {
+        try {
+            if (in.get() != MARKER) {
+                throw new IOException("Invalid note record: bad marker");
+            }
+            byte schema = in.get();
+            if (schema != SCHEMA_VERSION) {
+                throw new IOException("Unsupported note schema version: " + schema);
+            }
+            String id = getString(in);
+            String title = getString(in);
+            String content = getString(in);
+            LocalDateTime createdAt = getTimestamp(in);
+            LocalDateTime updatedAt = getTimestamp(in);
+            return Note.restore(id, title, content, createdAt, updatedAt);
+        } catch (BufferUnderflowException | IllegalArgumentException | DateTimeException e) {
+            throw new IOException("Invalid note record", e);
+        }
+    }
+
+    /**
+     * @param note note to measure
+     * @return the number of bytes {@link #encode(Note)} produces, computed
+     *         without encoding the content
+     */
+    static long encodedLength(Note note) {
+        long content = utf8Length(note.getContent());
+        byte[] id = note.getId().getBytes(StandardCharsets.UTF_8);
+        byte[] title = note.getTitle().getBytes(StandardCharsets.UTF_8);
+        return 2 + varLongSize(id.length) + id.length + varLongSize(title.length) + title.length
+                + varLongSize(content) + content
+                + timestampSize(note.getCreatedAt()) + timestampSize(note.getUpdatedAt());
+    }
+
+    /**
+     * Writes the same bytes as {@link #encode(Note)} to a stream, encoding the
+     * content a piece at a time so no full-size copy of it is made.
+     *
+     * @param note note to encode
+     * @param out destination
+     */
+    static void encode(Note note, OutputStream out) throws IOException {
+        String content = note.getContent();
+        out.write(MARKER);
+        out.write(SCHEMA_VERSION);
+        writeBytes(out, note.getId().getBytes(StandardCharsets.UTF_8));
+        writeBytes(out, note.getTitle().getBytes(StandardCharsets.UTF_8));
+
+        long length = utf8Length(content);
+        writeVarLong(out, length);
+        // Lone surrogates become '?', exactly as String.getBytes does
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.wrap(content);
+        ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER);
+        long written = 0;
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, buffer, true);
+            written += drain(buffer, out);
+        } while (result.isOverflow());
+        do {
+            result = encoder.flush(buffer);
+            written += drain(buffer, out);
+        } while (result.isOverflow());
+        if (written != length) {
+            throw new IOException("Note content changed length while it was being encoded");
+        }
+
+        ByteBuffer times = ByteBuffer.allocate(timestampSize(note.getCreatedAt()) + timestampSize(note.getUpdatedAt()));
+        putTimestamp(times, note.getCreatedAt());
+        putTimestamp(times, note.getUpdatedAt());
+        out.write(times.array());
+    }
+
+    /**
+     * Streaming counterpart of {@link #decode(ByteBuffer)}: reads one record
+     * from the stream, decoding text a piece at a time.
+     *
+     * @param in stream positioned at the marker byte
+     * @return the decoded note
+     * @throws IOException if the record is malformed, truncated or uses an unknown schema
+     */
+    static Note decode(InputStream in) throws IOException {
+        try {
+            if ((byte) readByte(in) != MARKER) {
+                throw new IOException("Invalid note record: bad marker");
+            }
+            byte schema = (byte) readByte(in);
+            if (schema != SCHEMA_VERSION) {
+                throw new IOException("Unsupported note schema version: " + schema);
+            }
+            String id = readString(in);
+            String title = readString(in);
+            String content = readString(in);
+            LocalDateTime createdAt = readTimestamp(in);
+            LocalDateTime updatedAt = readTimestamp(in);
+            return Note.restore(id, title, content, createdAt, updatedAt);
+        } catch (IllegalArgumentException | DateTimeException e) {
+            throw new IOException("Invalid note record", e);
+        }
+    }
+
+    /**
+     * Counts the UTF-8 bytes of a string without encoding it. An unpaired
+     * surrogate counts as the single '?' byte it is replaced with.
+     */
+    static long utf8Length(CharSequence text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int drain(ByteBuffer buffer, OutputStream out) throws IOException {
+        buffer.flip();
+        int count = buffer.remaining();
+        out.write(buffer.array(), 0, count);
+        buffer.clear();
+        return count;
+    }
+
+    private static void writeBytes(OutputStream out, byte[] bytes) throws IOException {
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /* FIO08-J: read() returns -1 at end of stream, which is never mistaken for a data byte */
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("FIO08-J: Note record is truncated");
+        }
+        return b;
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Invalid note record: varint is too long");
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        long length = readVarLong(in);
+        // UTF-8 never takes fewer bytes than UTF-16 code units, so the builder never grows
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Invalid note record: field length " + length + " out of range");
+        }
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        StringBuilder text = new StringBuilder((int) length);
+        ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(length, STREAM_BUFFER));
+        CharBuffer chars = CharBuffer.allocate(Math.max(bytes.capacity(), 2));
+        long left = length;
+        while (true) {
+            int want = (int) Math.min(left, bytes.remaining());
+            int read = in.readNBytes(bytes.array(), bytes.position(), want);
+            if (read < want) {
+                throw new EOFException("FIO08-J: Note record is truncated");
+            }
+            bytes.position(bytes.position() + read);
+            left -= read;
+            bytes.flip();
+            CoderResult result = decoder.decode(bytes, chars, left == 0);
+            if (left == 0 && result.isUnderflow()) {
+                result = decoder.flush(chars);
+            }
+            if (result.isError()) {
+                throw new IOException("Invalid note record: malformed UTF-8");
+            }
+            chars.flip();
+            text.append(chars);
+            chars.clear();
+            bytes.compact();
+            if (left == 0 && result.isUnderflow() && bytes.position() == 0) {
+                return text.toString();
+            }
+        }
+    }
+
+    private static LocalDateTime readTimestamp(InputStream in) throws IOException {
+        long seconds = unZigZag(readVarLong(in));
+        long nanos = readVarLong(in);
+        if (nanos < 0 || nanos > 999_999_999) {
+            throw new IOException("Invalid note record: nanosecond field out of range");
+        }
+        return LocalDateTime.ofEpochSecond(seconds, (int) nanos, ZoneOffset.UTC);
+    }
+
+    /**
+     * Encodes the metadata of every note, without content, into an exactly
+     * sized array.
+     *
+     * @param notes notes to index
+     * @return encoded index
+     */
+    static byte[] encodeIndex(List<Note> notes) {
+        List<byte[]> ids = new ArrayList<>(notes.size());
+        List<byte[]> titles = new ArrayList<>(notes.size());
+        int size = 2 + varLongSize(notes.size());
+        for (Note note : notes) {
+            byte[] id = note.getId().getBytes(StandardCharsets.UTF_8);
+            byte[] title = note.getTitle().getBytes(StandardCharsets.UTF_8);
+            ids.add(id);
+            titles.add(title);
+            size += varLongSize(id.length) + id.length + varLongSize(title.length) + title.length + 1
+                    + timestampSize(note.getCreatedAt()) + timestampSize(note.getUpdatedAt());
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(INDEX_MARKER);
+        out.put(SCHEMA_VERSION);
+        putVarLong(out, notes.size());
+        for (int i = 0; i < notes.size(); i++) {
+            Note note = notes.get(i);
+            putBytes(out, ids.get(i));
+            putBytes(out, titles.get(i));
+            out.put(note.isDirty() ? FLAG_REWRITE : 0);
+            putTimestamp(out, note.getCreatedAt());
+            putTimestamp(out, note.getUpdatedAt());
+        }
+        return out.array();
+    }
+
+    /**
+     * Decodes an index into notes whose content is loaded from {@code source}
+     * on first use.
+     *
+     * @param in encoded index, positioned at the marker byte
+     * @param source where the note bodies are loaded from
+     * @return the indexed notes, in index order
+     * @throws IOException if the index is malformed or uses an unknown schema
+     */
+    static List<Note> decodeIndex(ByteBuffer in, Note.ContentSource source) throws IOException {
+        try {
+            if (in.get() != INDEX_MARKER) {
+                throw new IOException("Invalid note index: bad marker");
+            }
+            byte schema = in.get();
+            if (schema != SCHEMA_VERSION) {
+                throw new IOException("Unsupported note index schema version: " + schema);
+            }
+            long count = getVarLong(in);
+            // Every entry takes at least 7 bytes, which bounds the list before allocating it
+            if (count < 0 || count > in.remaining() / 7) {
+                throw new IOException("Invalid note index: entry count " + count + " exceeds index");
+            }
+            List<Note> notes = new ArrayList<>((int) count);
+            for (long i = 0; i < count; i++) {
+                String id = getString(in);
+                String title = getString(in);
+                byte flags = in.get();
+                LocalDateTime createdAt = getTimestamp(in);
+                LocalDateTime updatedAt = getTimestamp(in);
+                Note note = Note.restoreLazy(id, title, createdAt, updatedAt, source);
+                if ((flags & FLAG_REWRITE) != 0) {
+                    note.markDirty();
+                }
+                notes.add(note);
+            }
+            return notes;
+        } catch (BufferUnderflowException | IllegalArgumentException | DateTimeException e) {
+            throw new IOException("Invalid note index", e);
+        }
+    }
+
+    private static int timestampSize(LocalDateTime time) {
+        return varLongSize(zigZag(time.toEpochSecond(ZoneOffset.UTC))) + varLongSize(time.getNano());
+    }
+
+    private static void putTimestamp(ByteBuffer out, LocalDateTime time) {
+        putVarLong(out, zigZag(time.toEpochSecond(ZoneOffset.UTC)));
+        putVarLong(out, time.getNano());
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] bytes) {
+        putVarLong(out, bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) throws IOException {
+        long length = getVarLong(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid note record: field length " + length + " exceeds record");
+        }
+        ByteBuffer slice = in.slice(in.position(), (int) length);
+        in.position(in.position() + (int) length);
+
+        // Malformed UTF-8 is rejected rather than replaced, so a corrupt record
+        // cannot decode into a silently altered note
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        try {
+            CharBuffer chars = decoder.decode(slice);
+            return chars.toString();
+        } catch (CharacterCodingException e) {
+            throw new IOException("Invalid note record: malformed UTF-8", e);
+        }
+    }
+
+    private static LocalDateTime getTimestamp(ByteBuffer in) throws IOException {
+        long seconds = unZigZag(getVarLong(in));
+        long nanos = getVarLong(in);
+        if (nanos < 0 || nanos > 999_999_999) {
+            throw new IOException("Invalid note record: nanosecond field out of range");
+        }
+        return LocalDateTime.ofEpochSecond(seconds, (int) nanos, ZoneOffset.UTC);
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Invalid note record: varint is too long");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,208 @@
+package org.example.persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads note files through a {@link FileChannel} instead of one read() call
+ * per byte. The header is read into a reusable per-thread buffer and the
+ * ciphertext goes straight into an exactly sized array. Nothing is
+ * memory-mapped: a mapping stays open until the garbage collector frees it,
+ * and on Windows that keeps the file locked against the rename of the next
+ * save. The array is not pooled, since the record outlives the call and may
+ * be decrypted on another thread.
+ *
+ * Every layout described in {@link VaultFormat} is understood, whether the
+ * record lives in its own file or inside a larger buffer such as a vault segment.
+ */
+final class NoteFileReader {
+
+    /* TPS04-J: The buffer is fully cleared before every read, so no header
+    bytes from a previous file survive into the next task on a pooled thread. */
+    private static final ThreadLocal<ByteBuffer> HEADER_BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(VaultFormat.LONGEST_HEADER).order(ByteOrder.LITTLE_ENDIAN));
+
+    private NoteFileReader() {
+    }
+
+    /**
+     * The parts of a note file, ready for authentication and decryption.
+     * The ciphertext buffer is positioned at its first byte.
+     */
+    static final class NoteFile {
+        final byte version;
+        final byte flags;
+        /** Raw header bytes; authenticated as AAD in versions 2 and 3. */
+        final byte[] header;
+        /** Stored HMAC for version 1, null otherwise. */
+        final byte[] mac;
+        final byte[] iv;
+        final ByteBuffer cipherText;
+
+        NoteFile(byte version, byte flags, byte[] header, byte[] mac, byte[] iv, ByteBuffer cipherText) {
+            this.version = version;
+            this.flags = flags;
+            this.header = header;
+            this.mac = mac;
+            this.iv = iv;
+            this.cipherText = cipherText;
+        }
+
+        /**
+         * @return number of bytes the record occupies on disk
+         */
+        int length() {
+            return header.length + cipherText.remaining();
+        }
+
+        /**
+         * @return the record exactly as it is stored, header included
+         */
+        byte[] toBytes() {
+            byte[] bytes = new byte[length()];
+            System.arraycopy(header, 0, bytes, 0, header.length);
+            cipherText.duplicate().get(bytes, header.length, cipherText.remaining());
+            return bytes;
+        }
+    }
+
+    /**
+     * Reads and validates the header, then loads the ciphertext.
+     *
+     * @param path note file to read
+     * @return the parsed note file
+     * @throws EOFException if the file is shorter than its header claims
+     * @throws IOException if the file cannot be read
+     */
+    static NoteFile read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            ByteBuffer header = HEADER_BUFFER.get();
+            header.clear();
+            header.limit(VaultFormat.PREFIX_LENGTH);
+            readFully(channel, header);
+            header.flip();
+
+            int headerLength = headerLength(header);
+            header.position(VaultFormat.PREFIX_LENGTH);
+            header.limit(headerLength);
+            readFully(channel, header);
+            header.flip();
+
+            byte[] rawHeader = new byte[headerLength];
+            header.get(rawHeader);
+
+            int cipherLen = cipherLength(rawHeader);
+            if (cipherLen < 0 || cipherLen > size - headerLength) {
+                throw new EOFException("FIO08-J: Note file is truncated: " + path);
+            }
+
+            byte[] cipherText = new byte[cipherLen];
+            readFully(channel, ByteBuffer.wrap(cipherText));
+            return fromHeader(rawHeader, ByteBuffer.wrap(cipherText));
+        }
+    }
+
+    /**
+     * Parses a note file image held in memory. The returned ciphertext is a
+     * view of {@code image}, so no bytes are copied.
+     *
+     * @param image buffer positioned at the first header byte
+     * @return the parsed note file
+     * @throws EOFException if the image is shorter than its header claims
+     */
+    static NoteFile parse(ByteBuffer image) throws IOException {
+        ByteBuffer in = image.duplicate();
+        if (in.remaining() < VaultFormat.PREFIX_LENGTH) {
+            throw new EOFException("FIO08-J: Note record is truncated");
+        }
+        int headerLength = headerLength(in);
+        if (in.remaining() < headerLength) {
+            throw new EOFException("FIO08-J: Note record is truncated");
+        }
+        byte[] rawHeader = new byte[headerLength];
+        in.get(rawHeader);
+
+        int cipherLen = cipherLength(rawHeader);
+        if (cipherLen < 0 || cipherLen > in.remaining()) {
+            throw new EOFException("FIO08-J: Note record is truncated");
+        }
+        return fromHeader(rawHeader, in.slice(in.position(), cipherLen));
+    }
+
+    private static int headerLength(ByteBuffer prefix) {
+        return VaultFormat.headerLength(prefix);
+    }
+
+    /* FIO12-J: The length is the last four header bytes, stored little-endian
+    to match writeLittleEndianInt() */
+    private static int cipherLength(byte[] rawHeader) {
+        return ByteBuffer.wrap(rawHeader, rawHeader.length - 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private static NoteFile fromHeader(byte[] rawHeader, ByteBuffer cipherText) {
+        ByteBuffer header = ByteBuffer.wrap(rawHeader);
+        if (rawHeader.length == VaultFormat.V3_HEADER_LENGTH && VaultFormat.versionOf(header) == VaultFormat.VERSION_3) {
+            // The nonce prefix stands in for the IV; ChunkedNoteFile reads the rest of the header
+            header.position(VaultFormat.MAGIC.length);
+            byte version = header.get();
+            byte flags = header.get();
+            byte[] noncePrefix = new byte[VaultFormat.V3_NONCE_PREFIX_LENGTH];
+            header.get(noncePrefix);
+            return new NoteFile(version, flags, rawHeader, null, noncePrefix, cipherText);
+        }
+        if (rawHeader.length == VaultFormat.V2_HEADER_LENGTH && VaultFormat.isVersion2(header)) {
+            header.position(VaultFormat.MAGIC.length);
+            byte version = header.get();
+            byte flags = header.get();
+            byte[] iv = new byte[VaultFormat.GCM_IV_LENGTH];
+            header.get(iv);
+            return new NoteFile(version, flags, rawHeader, null, iv, cipherText);
+        }
+        byte[] mac = new byte[VaultFormat.V1_MAC_LENGTH];
+        byte[] iv = new byte[VaultFormat.V1_IV_LENGTH];
+        header.get(mac);
+        header.get(iv);
+        return new NoteFile(VaultFormat.VERSION_1, (byte) 0, rawHeader, mac, iv, cipherText);
+    }
+
+    /**
+     * FIO08-J: Fills the buffer completely. FileChannel.read() reports end of
+     * stream as a -1 count, which is checked on every call, so a truncated file
+     * is detected instead of being padded or silently accepted.
+     *
+     * @param channel channel to read from
+     * @param dst buffer to fill
+     * @throws EOFException if the channel ends before the buffer is full
+     */
+    static void readFully(FileChannel channel, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst);
+            if (read == -1) {
+                throw new EOFException("FIO08-J: Unexpected end of stream, " + dst.remaining() + " byte(s) missing");
+            }
+        }
+    }
+
+    /**
+     * FIO08-J: Positional variant of {@link #readFully(FileChannel, ByteBuffer)}
+     * that leaves the channel position untouched, so several threads can read
+     * the same channel at once.
+     */
+    static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        long offset = position;
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, offset);
+            if (read == -1) {
+                throw new EOFException("FIO08-J: Unexpected end of stream, " + dst.remaining() + " byte(s) missing");
+            }
+            offset += read;
+        }
+    }
+}
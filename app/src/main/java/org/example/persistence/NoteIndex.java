@@ -0,0 +1,199 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.example.Note;
+
+/**
+ * Encrypted title index kept next to the note records in each vault. It holds
+ * the id, title and timestamps of every note, sealed as a single v2 record, so
+ * logging in decrypts one small file instead of every note body. Bodies are
+ * loaded by {@link StoreContentSource} when a note's content is first read.
+ *
+ * The index is deleted before any note record changes and rewritten after the
+ * changes are durable. Rewriting seals every title again, so {@link UserSaver}
+ * defers it while a vault keeps changing and writes it when the session ends.
+ * A crash in between leaves no index, and the next login falls back to
+ * loading every note and rebuilds it.
+ */
+final class NoteIndex {
+
+    static final String FILE_NAME = "notes.idx";
+
+    private NoteIndex() {
+    }
+
+    static Path pathFor(Path vault) {
+        return vault.resolve(FILE_NAME);
+    }
+
+    /**
+     * Reads the index and returns its notes with content loaded on demand.
+     *
+     * @param vault the user's vault directory
+     * @param store the vault's note records
+     * @param keyRing keys of the vault's owner
+     * @return the indexed notes, or null if there is no usable index
+     */
+    static List<Note> read(Path vault, NoteStore store, KeyRing keyRing) {
+        Path file = pathFor(vault);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            /* FIO00-J: Validate that the file path is safe before reading */
+            if (!NoteSaver.isFileSafe(file.toString())) {
+                throw new IOException("FIO00-J: Refusing to load index from unsafe file path: " + file);
+            }
+            ByteBuffer payload = NoteSaver.openNote(keyRing, NoteFileReader.read(file));
+            List<Note> notes = NoteCodec.decodeIndex(payload, new StoreContentSource(store, keyRing));
+
+            // Trust the index only if it names exactly the records in the store
+            Collection<String> stored = new HashSet<>(store.noteIds());
+            if (stored.size() != notes.size()) {
+                return null;
+            }
+            for (Note note : notes) {
+                if (!stored.contains(note.getId())) {
+                    return null;
+                }
+            }
+            return notes;
+        } catch (IOException | GeneralSecurityException | SecurityException e) {
+            System.err.println("Ignoring unreadable note index: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Seals and atomically replaces the index.
+     *
+     * @param vault the user's vault directory
+     * @param keyRing keys of the vault's owner
+     * @param notes every note in the vault
+     * @return size of the sealed index in bytes
+     */
+    static int write(Path vault, KeyRing keyRing, List<Note> notes) throws IOException {
+        byte[] record;
+        try {
+            record = NoteSaver.sealPayload(keyRing, NoteCodec.encodeIndex(notes));
+        } catch (GeneralSecurityException | IllegalStateException e) {
+            throw new IOException("Unable to encrypt note index", e);
+        }
+        GroupCommitWriter.shared().write(pathFor(vault), record);
+        return record.length;
+    }
+
+    /**
+     * Durably removes the index before note records change, so a stale index
+     * can never outlive a crash.
+     *
+     * @param vault the user's vault directory
+     * @return true if there was an index to remove
+     */
+    static boolean invalidate(Path vault) throws IOException {
+        /* FIO02-J & EXP00-J: The boolean return tells whether a directory sync is needed */
+        if (Files.deleteIfExists(pathFor(vault))) {
+            GroupCommitWriter.syncDirectory(vault);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Loads note bodies from a vault's record store. Each body is
+     * authenticated, and its id is checked against the one requested, so a
+     * record swapped under another id is rejected. While a data key rotation
+     * is unfinished, a record that does not open under the current key is
+     * tried with the previous one and comes back dirty, so it is sealed again.
+     */
+    static final class StoreContentSource implements Note.ContentSource {
+        private final NoteStore store;
+        private final KeyRing keyRing;
+
+        StoreContentSource(NoteStore store, KeyRing keyRing) {
+            this.store = store;
+            this.keyRing = keyRing;
+        }
+
+        @Override
+        public Note load(String noteId) throws IOException {
+            NoteFileReader.NoteFile record = store.read(noteId);
+            if (record == null) {
+                throw new IOException("Note record is missing: " + noteId);
+            }
+            Note note;
+            try {
+                note = NoteSaver.openRecord(keyRing, record);
+            } catch (SecurityException e) {
+                if (!keyRing.hasPreviousDataKey()) {
+                    throw e;
+                }
+                KeyRing previous = previousKeys();
+                try {
+                    note = NoteSaver.openRecord(previous, record);
+                } finally {
+                    previous.destroy();
+                }
+                note.markDirty();
+            }
+            if (!note.getId().equals(noteId)) {
+                throw new SecurityException("Note record does not match its id: " + noteId);
+            }
+            return note;
+        }
+
+        /**
+         * Loads the bodies through the parallel {@link VaultLoader} pipeline.
+         */
+        @Override
+        public Map<String, Note> loadAll(Collection<String> noteIds) throws IOException {
+            VaultLoader.LoadStats stats = new VaultLoader.LoadStats();
+            Collection<String> wanted = new HashSet<>(noteIds);
+            Map<String, Note> contents = new LinkedHashMap<>();
+            for (Note note : new VaultLoader().load(store, noteIds, keyRing, stats)) {
+                if (wanted.contains(note.getId())) {
+                    contents.put(note.getId(), note);
+                }
+            }
+            SafeLogger.safeLogInfo(stats.toString());
+
+            wanted.removeAll(contents.keySet());
+            if (!wanted.isEmpty() && keyRing.hasPreviousDataKey()) {
+                KeyRing previous = previousKeys();
+                try {
+                    for (Note note : new VaultLoader().load(store, wanted, previous, new VaultLoader.LoadStats())) {
+                        note.markDirty();
+                        contents.put(note.getId(), note);
+                    }
+                } finally {
+                    previous.destroy();
+                }
+            }
+            return contents;
+        }
+
+        private KeyRing previousKeys() throws IOException {
+            try {
+                KeyRing previous = keyRing.previousKeys();
+                if (previous == null) {
+                    throw new IOException("The previous data key is no longer available");
+                }
+                return previous;
+            } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
+                throw new IOException("Unable to open the previous data key", e);
+            }
+        }
+    }
+}
@@ -4,12 +4,10 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -20,23 +18,13 @@ import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
-import java.util.Arrays;
 import java.util.Set;
 
-import javax.crypto.BadPaddingException;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.example.Note;
 import org.example.User;
@@ -342,69 +330,237 @@ public class NoteSaver {
     }
 
     /**
-     * Saves the note to a file
-     * @param note
-     * @param file
-     * @throws IOException
+     * Encrypts serialized note bytes into a complete version 2 note file image.
+     * AES-GCM encrypts and authenticates in a single pass, so no separate HMAC is needed.
+     *
+     * @param keyRing the session's key ring
+     * @param plain serialized note bytes
+     * @return header followed by ciphertext and tag, ready to be written to disk
+     * @throws GeneralSecurityException if the cipher cannot be initialized
      */
-    static void saveNote(User user, Note note, String file) throws IOException {
-        /* FIO00-J: Validate that the file path is safe before writing */
-        if (!isFileSafe(file)) {
-            throw new IOException("FIO00-J: Refusing to save note to unsafe file path: " + file);
+    static byte[] sealNote(KeyRing keyRing, byte[] plain) throws GeneralSecurityException {
+        return sealNote(keyRing, plain, VaultFormat.COMPRESSION_NONE);
+    }
+
+    /**
+     * Compresses the payload when that pays off, then seals it, recording the
+     * compression in the authenticated header flags.
+     *
+     * @param keyRing the session's key ring
+     * @param plain the encoded payload
+     * @return the complete note file image
+     */
+    static byte[] sealPayload(KeyRing keyRing, byte[] plain) throws GeneralSecurityException {
+        PayloadCompressor.Packed packed = PayloadCompressor.pack(plain);
+        return sealNote(keyRing, packed.bytes, packed.flags);
+    }
+
+    private static byte[] sealNote(KeyRing keyRing, byte[] plain, byte flags) throws GeneralSecurityException {
+        byte[] iv = IvGenerator.nextIv(VaultFormat.GCM_IV_LENGTH);
+        try (CryptoContext.Lease<Cipher> lease = CryptoContext.gcm(Cipher.ENCRYPT_MODE, keyRing.encryptionKey(), iv)) {
+            Cipher cipher = lease.get();
+            int cipherLen = cipher.getOutputSize(plain.length);
+            byte[] out = new byte[VaultFormat.V2_HEADER_LENGTH + cipherLen];
+            VaultFormat.writeV2Header(out, flags, iv, cipherLen);
+
+            // The header is authenticated along with the ciphertext
+            cipher.updateAAD(out, 0, VaultFormat.V2_HEADER_LENGTH);
+            cipher.doFinal(plain, 0, plain.length, out, VaultFormat.V2_HEADER_LENGTH);
+            return out;
+        }
+    }
+
+    /**
+     * Authenticates and decrypts a note file of any format version. Version 3
+     * records are collected into one buffer here; callers that only need the
+     * note should use {@link #openRecord}, which decodes them chunk by chunk.
+     *
+     * @param keyRing the session's key ring
+     * @param noteFile the parsed note file
+     * @return the serialized note bytes, positioned at 0, decompressed if the header says so
+     * @throws SecurityException if the file fails authentication
+     * @throws GeneralSecurityException if the cipher cannot be initialized
+     * @throws IOException if an authenticated payload cannot be decompressed
+     */
+    static ByteBuffer openNote(KeyRing keyRing, NoteFileReader.NoteFile noteFile)
+            throws GeneralSecurityException, IOException {
+        ByteBuffer notesCipher = noteFile.cipherText.duplicate();
+
+        if (noteFile.version == VaultFormat.VERSION_3) {
+            try (InputStream plain = ChunkedNoteFile.openStream(keyRing, noteFile)) {
+                return ByteBuffer.wrap(plain.readAllBytes());
+            }
         }
 
-        // This whole function satisfies SER03-J: Do not serialize unencrypted sensitive data 
-        // because the note being saved is considered sensitive, so it is being encrypted
-        // Convert note to a byte array
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream out = new ObjectOutputStream(bos);
-        out.writeObject(note);
-        out.close();
+        if (noteFile.version == VaultFormat.VERSION_2) {
+            ByteBuffer notesPlainData;
+            try (CryptoContext.Lease<Cipher> lease = CryptoContext.gcm(Cipher.DECRYPT_MODE, keyRing.encryptionKey(),
+                    noteFile.iv)) {
+                Cipher cipher = lease.get();
+                cipher.updateAAD(noteFile.header);
+                notesPlainData = ByteBuffer.allocate(cipher.getOutputSize(notesCipher.remaining()));
+                cipher.doFinal(notesCipher, notesPlainData);
+            } catch (AEADBadTagException e) {
+                // SER12-J: the GCM tag plays the role the HMAC plays in version 1
+                throw new SecurityException("Tampered file");
+            }
+            notesPlainData.flip();
+            // The flags were authenticated with the header, so they can be trusted here
+            return PayloadCompressor.unpack(notesPlainData, noteFile.flags);
+        }
+
+        // Compare HMAC to read HMAC for integrity.
+        // This satisfies SER12-J: Prevent deserialization of untrusted data 
+        // because the data MUST be trustworthy
+        byte[] expectedMacBytes;
+        try (CryptoContext.Lease<Mac> lease = CryptoContext.hmac(keyRing.macKey())) {
+            Mac mac = lease.get();
+            mac.update(notesCipher.duplicate());
+            expectedMacBytes = mac.doFinal();
+        }
+
+        if(!MessageDigest.isEqual(noteFile.mac, expectedMacBytes)) {
+            throw new SecurityException("Tampered file");
+        }
 
-        byte[] noteData = bos.toByteArray();
+        // Convert cipher note to real note byte data
+        try (CryptoContext.Lease<Cipher> lease = CryptoContext.cbc(Cipher.DECRYPT_MODE, keyRing.encryptionKey(),
+                noteFile.iv)) {
+            Cipher cipher = lease.get();
+            ByteBuffer notesPlainData = ByteBuffer.allocate(cipher.getOutputSize(notesCipher.remaining()));
+            cipher.doFinal(notesCipher, notesPlainData);
+            notesPlainData.flip();
+            return notesPlainData;
+        }
+    }
 
+    /**
+     * Encodes and encrypts a note into a complete note record, independent of
+     * where the record will be stored.
+     *
+     * This whole function satisfies SER03-J: Do not serialize unencrypted sensitive data
+     * because the note being saved is considered sensitive, so it is being encrypted
+     *
+     * @param keyRing the session's key ring
+     * @param note note to seal
+     * @return the sealed record
+     * @throws IOException if the keys are unavailable or the cipher cannot be set up
+     */
+    static byte[] sealRecord(KeyRing keyRing, Note note) throws IOException {
+        // Convert note to a byte array with the compact binary codec
+        byte[] noteData = NoteCodec.encode(note);
         try {
-            // Generate keys to use
-            byte[] keyBytes = Encryption.generateKeyBytes(user.getPassword());
-            SecretKey encKey = new SecretKeySpec(Arrays.copyOfRange(keyBytes, 0, 32), "AES");
-            SecretKey macKey = new SecretKeySpec(Arrays.copyOfRange(keyBytes, 32, 64), "HmacSHA256");
-
-            // Encrypt the data from the note
-            byte[] iv = SecureRandom.getInstanceStrong().generateSeed(16);
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, encKey, new IvParameterSpec(iv));
-            byte[] notesCipher = cipher.doFinal(noteData);
-
-            // Generate MAC for integrity
-            Mac mac = Mac.getInstance("HmacSHA256");
-            mac.init(macKey);
-            byte[] macBytes = mac.doFinal(notesCipher);
-
-            // Save to file as HMAC | IV | CipherLength (little-endian int) | Cipher
-            /* FIO12-J: Provide methods to read and write little-endian data
-            Write the ciphertext length as a little-endian integer so the file format
-            is portable across systems with different native byte orders
-            */
-            FileOutputStream fileOut = new FileOutputStream(file);
-            fileOut.write(macBytes);
-            fileOut.write(iv);
-            writeLittleEndianInt(notesCipher.length, fileOut);
-            fileOut.write(notesCipher);
-            fileOut.close();
-
-            /* FIO01-J: Create files with appropriate access permissions
-            Restrict the note file to owner-only read/write immediately after creation
-            */
-            makeFileSecure(file);
-        } catch (Exception e) {
+            return sealPayload(keyRing, noteData);
+        } catch (GeneralSecurityException | IllegalStateException e) {
             // Nothing to do because these exceptions relate to a misconfigured environment
+            // or a session whose keys have already been destroyed
+            throw new IOException("Unable to encrypt note", e);
+        }
+    }
+
+    /**
+     * Authenticates, decrypts and decodes a note record from any store.
+     *
+     * This function involves SER04-J: Do not allow serialization and deserialization to bypass the security manager
+     * The note class has no field to actually validate, so the content is validated by confirming it was not tampered with
+     * and this being the only function which can actually deserialize, thus making it unable to be bypassed;
+     *
+     * @param keyRing the session's key ring
+     * @param noteFile parsed note record
+     * @return the note
+     * @throws IOException if the decrypted payload is not a valid note
+     * @throws SecurityException if the record fails authentication or cannot be decrypted
+     */
+    static Note openRecord(KeyRing keyRing, NoteFileReader.NoteFile noteFile) throws IOException, SecurityException {
+        try {
+            // Large notes are decrypted and decoded one chunk at a time
+            if (noteFile.version == VaultFormat.VERSION_3) {
+                return ChunkedNoteFile.open(keyRing, noteFile);
+            }
+
+            // Reuse the keys derived once for this user's session
+            ByteBuffer notesPlainData = openNote(keyRing, noteFile);
+
+            // Create the actual object now that we've confirmed its safe
+            return decodePayload(notesPlainData, noteFile.version);
+        } catch(IllegalStateException e){
+            // The key ring was destroyed by logout or idle timeout
+            System.err.println(e.getMessage());
+        } catch(GeneralSecurityException e){
             e.printStackTrace();
-            throw new IOException();
         }
+
+        throw new SecurityException("Unable to decrypt");
+    }
+
+    /**
+     * Turns an authenticated, decrypted payload back into a note, accepting both
+     * the binary codec and legacy Java serialization. Notes stored in an outdated
+     * format are marked dirty, so the next save rewrites them as codec records.
+     *
+     * @param notesPlainData payload returned by {@link #openNote}
+     * @param formatVersion vault format version of the record
+     * @return the note
+     * @throws IOException if the payload is not a valid note
+     */
+    static Note decodePayload(ByteBuffer notesPlainData, byte formatVersion) throws IOException {
+        Note note;
+        if (NoteCodec.isLegacySerialization(notesPlainData)) {
+            try {
+                note = readLegacyNote(notesPlainData);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Legacy note payload references an unknown class", e);
+            }
+            note.markDirty();
+        } else {
+            note = NoteCodec.decode(notesPlainData);
+        }
+        if (formatVersion == VaultFormat.VERSION_1) {
+            note.markDirty();
+        }
+        return note;
+    }
+
+    /**
+     * Writes a sealed record to its own note file.
+     *
+     * @param file destination path
+     * @param record sealed note record
+     * @throws IOException if the path is unsafe or the write fails
+     */
+    static void writeNoteFile(String file, byte[] record) throws IOException {
+        /* FIO00-J: Validate that the file path is safe before writing */
+        if (!isFileSafe(file)) {
+            throw new IOException("FIO00-J: Refusing to save note to unsafe file path: " + file);
+        }
+
+        // Save to file as Magic | Version | Flags | IV | CipherLength (little-endian int) | Cipher
+        /* FIO12-J: Provide methods to read and write little-endian data
+        The ciphertext length is written as a little-endian integer so the file format
+        is portable across systems with different native byte orders
+        */
+        /* FIO01-J: Create files with appropriate access permissions
+        The writer restricts the temp file to owner-only read/write before filling it,
+        and the rename carries those permissions over to the note file
+        */
+        GroupCommitWriter.shared().write(Paths.get(file), record);
     }
 
     /**
-     * Loads the file to a Note object if the user ID matches
+     * Saves the note to a file.
+     * Notes are always written in the version 2 (AES-GCM) format, so a note
+     * loaded from a version 1 file is upgraded the next time it is saved.
+     * @param note
+     * @param file
+     * @throws IOException
+     */
+    static void saveNote(User user, Note note, String file) throws IOException {
+        writeNoteFile(file, sealRecord(user.getKeyRing(), note));
+    }
+
+    /**
+     * Loads the file to a Note object if the user ID matches.
+     * Both the version 1 (CBC + HMAC) and version 2 (GCM) formats are accepted.
      * @param file
      * @param userID
      * @return
@@ -418,69 +574,35 @@ public class NoteSaver {
             throw new IOException("FIO00-J: Refusing to load note from unsafe file path: " + file);
         }
 
-        // This function involves SER04-J: Do not allow serialization and deserialization to bypass the security manager 
-        // The note class has no field to actually validate, so the content is validated by confirming it was not tampered with
-        // and this being the only function which can actually deserialize, thus making it unable to be bypassed;
-        try {
-            // Generate keys from the user
-            byte[] keyBytes = Encryption.generateKeyBytes(user.getPassword());
-            SecretKey encKey = new SecretKeySpec(Arrays.copyOfRange(keyBytes, 0, 32), "AES");
-            SecretKey macKey = new SecretKeySpec(Arrays.copyOfRange(keyBytes, 32, 64), "HmacSHA256");
-
-            // Reading file from disk
-            /* FIO08-J: Distinguish between characters or bytes read from a stream and -1
-            Use readStreamSafely() which checks for end-of-stream (-1) as an int
-            BEFORE narrowing to byte, preventing 0xFF from being misinterpreted
-            */
-            FileInputStream fileIn = new FileInputStream(file);
-            byte[] data = readStreamSafely(fileIn);
-            fileIn.close();
-
-            // Extract byte ranges
-            // File format: HMAC (32 bytes) | IV (16 bytes) | CipherLength (4 bytes, little-endian) | Cipher
-            byte[] macBytes = Arrays.copyOfRange(data, 0, 32);
-            byte[] iv = Arrays.copyOfRange(data, 32, 48);
-
-            /* FIO12-J: Read the ciphertext length as a little-endian integer
-            so the file format is interpreted correctly regardless of native byte order
-            */
-            int cipherLen = ByteBuffer.wrap(data, 48, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
-            byte[] notesCipher = Arrays.copyOfRange(data, 52, 52 + cipherLen);
-
-            // Compare HMAC to read HMAC for integrity.
-            // This satisfies SER12-J: Prevent deserialization of untrusted data 
-            // because the data MUST be trustworthy
-            Mac mac = Mac.getInstance("HmacSHA256");
-            mac.init(macKey);
-            byte[] expectedMacBytes = mac.doFinal(notesCipher);
-
-            if(!MessageDigest.isEqual(macBytes, expectedMacBytes)) {
-                throw new SecurityException("Tampered file");
-            }
-
-            // Convert cipher note to real note byte data
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(iv));
-            byte[] notesPlainData = cipher.doFinal(notesCipher);
+        // Reading file from disk
+        /* FIO08-J: Distinguish between characters or bytes read from a stream and -1
+        NoteFileReader reads through a FileChannel and checks every read count
+        for -1 (end of stream), rejecting files shorter than their header claims
+        */
+        /* FIO12-J: The ciphertext length in the header is decoded as a little-endian
+        integer so the file format is interpreted correctly regardless of native byte order
+        */
+        NoteFileReader.NoteFile noteFile = NoteFileReader.read(Paths.get(file));
+        return openRecord(user.getKeyRing(), noteFile);
+    }
 
-            // Create the actual object now that we've confirmed its safe
-            ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(notesPlainData));
-            Note note = (Note)objectIn.readObject();
+    /**
+     * Rebuilds a note written with Java object serialization by older versions.
+     * Only reached after the payload has been authenticated.
+     *
+     * @param notesPlainData decrypted payload starting with the serialization magic
+     * @return the deserialized note
+     */
+    static Note readLegacyNote(ByteBuffer notesPlainData) throws IOException, ClassNotFoundException {
+        ObjectInputStream objectIn = new ObjectInputStream(
+                new ByteArrayInputStream(notesPlainData.array(), notesPlainData.position(), notesPlainData.remaining()));
+        Note note = (Note)objectIn.readObject();
 
-            // OBJ14-J: Do not use an object that has been freed
-            // This one here is avoids this, as in is no longer used once its been freed
-            objectIn.close();
+        // OBJ14-J: Do not use an object that has been freed
+        // This one here is avoids this, as in is no longer used once its been freed
+        objectIn.close();
 
-            return note;
-        } catch(InvalidKeySpecException | NoSuchAlgorithmException e){
-            e.printStackTrace();
-        } catch(InvalidKeyException | ClassNotFoundException e){
-            e.printStackTrace();
-        } catch(NoSuchPaddingException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e){
-            e.printStackTrace();
-        }
-
-        throw new SecurityException("Unable to decrypt");
+        return note;
     }
 
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,91 @@
+package org.example.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import org.example.Note;
+
+/**
+ * Storage backend for one user's sealed note records. Records are opaque,
+ * already encrypted byte images (see {@link VaultFormat}); a store only
+ * decides where they live on disk.
+ */
+interface NoteStore extends Closeable {
+
+    /**
+     * Receives each record while a store is scanned.
+     */
+    @FunctionalInterface
+    interface RecordVisitor {
+        void visit(String noteId, NoteFileReader.NoteFile record) throws IOException;
+    }
+
+    /**
+     * Writes or replaces the record for a note.
+     *
+     * @param noteId id of the note
+     * @param record sealed note record
+     */
+    void write(String noteId, byte[] record) throws IOException;
+
+    /**
+     * @return true if {@link #writeStreaming} can store a very large note
+     */
+    default boolean streamsLargeNotes() {
+        return false;
+    }
+
+    /**
+     * Seals and writes a very large note as a chunked v3 record, streaming it
+     * so that no full-size copy of the sealed record is made. The note's body
+     * is already on the heap. The record is durable when this returns.
+     * Stores that cannot stream refuse, rather than sealing the note in memory.
+     *
+     * @param noteId id of the note
+     * @param note note to store
+     * @param keyRing keys of the vault's owner
+     * @return bytes written
+     */
+    default long writeStreaming(String noteId, Note note, KeyRing keyRing) throws IOException {
+        throw new IOException("This vault layout cannot store notes of " + ChunkedNoteFile.THRESHOLD
+                + " bytes or more");
+    }
+
+    /**
+     * Blocks until every write and delete made so far is durable on disk.
+     * Writes may be buffered or grouped until this is called.
+     */
+    void sync() throws IOException;
+
+    /**
+     * @param noteId id of the note
+     * @return the parsed record, or null if the store has none for this id
+     */
+    NoteFileReader.NoteFile read(String noteId) throws IOException;
+
+    /**
+     * @param noteId id of the note
+     * @return true if a record was removed
+     */
+    boolean delete(String noteId) throws IOException;
+
+    /**
+     * @return ids of every note with a live record
+     */
+    List<String> noteIds() throws IOException;
+
+    /**
+     * Visits every live record. Records that cannot be read are reported and
+     * skipped so one damaged note does not hide the rest of the vault.
+     */
+    void forEach(RecordVisitor visitor) throws IOException;
+
+    /**
+     * @return true if one {@link #forEach} pass is cheaper than a
+     *         {@link #read} per note, so whole-vault loads should scan
+     */
+    default boolean prefersScan() {
+        return false;
+    }
+}
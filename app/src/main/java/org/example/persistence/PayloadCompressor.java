@@ -0,0 +1,178 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression stage between encoding and encryption. Ciphertext
+ * does not compress, so text-heavy notes are deflated before they are sealed.
+ *
+ * The algorithm is recorded in the v2 header flags (see {@link VaultFormat}),
+ * which are authenticated, so files written without compression, including
+ * every older file, still load. A compressed payload is
+ *   Original length (4, little-endian) | DEFLATE stream
+ * and is only used when it is actually smaller than the input.
+ */
+final class PayloadCompressor {
+
+    /** Set to false to store every payload uncompressed (-Dnotes.vault.compress). */
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("notes.vault.compress", "true"));
+
+    /** Payloads shorter than this are never compressed (-Dnotes.vault.compressThreshold). */
+    static final int THRESHOLD = Integer.getInteger("notes.vault.compressThreshold", 512);
+
+    /** DEFLATE level from 1 (fastest) to 9 (smallest) (-Dnotes.vault.compressLevel). */
+    static final int LEVEL = Integer.getInteger("notes.vault.compressLevel", Deflater.DEFAULT_COMPRESSION);
+
+    /** Largest payload a compressed record may expand to, guarding against decompression bombs. */
+    static final int MAX_PAYLOAD = 256 << 20;
+
+    private static final int LENGTH_PREFIX = 4;
+
+    /* TPS04-J: Each pooled thread reuses one Deflater/Inflater, which is reset
+    before every use so no state from a previous payload leaks into the next. */
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private static final AtomicLong payloads = new AtomicLong();
+    private static final AtomicLong compressed = new AtomicLong();
+    private static final AtomicLong bytesIn = new AtomicLong();
+    private static final AtomicLong bytesOut = new AtomicLong();
+    private static final AtomicLong compressNanos = new AtomicLong();
+    private static final AtomicLong decompressNanos = new AtomicLong();
+
+    private PayloadCompressor() {
+    }
+
+    /**
+     * A payload ready to be sealed and the flags that describe it.
+     */
+    static final class Packed {
+        final byte[] bytes;
+        final byte flags;
+
+        Packed(byte[] bytes, byte flags) {
+            this.bytes = bytes;
+            this.flags = flags;
+        }
+    }
+
+    /**
+     * Compresses a payload if that is enabled and worthwhile.
+     *
+     * @param plain encoded payload
+     * @return the payload to seal, compressed or not, with matching header flags
+     */
+    static Packed pack(byte[] plain) {
+        payloads.incrementAndGet();
+        bytesIn.addAndGet(plain.length);
+        if (!ENABLED || plain.length < THRESHOLD) {
+            bytesOut.addAndGet(plain.length);
+            return new Packed(plain, VaultFormat.COMPRESSION_NONE);
+        }
+
+        long begin = System.nanoTime();
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(plain);
+        deflater.finish();
+
+        // Only worth keeping if it saves space, so the output never grows past the input
+        byte[] out = new byte[plain.length];
+        ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN).putInt(plain.length);
+        int length = LENGTH_PREFIX;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        compressNanos.addAndGet(System.nanoTime() - begin);
+
+        if (!deflater.finished()) {
+            bytesOut.addAndGet(plain.length);
+            return new Packed(plain, VaultFormat.COMPRESSION_NONE);
+        }
+        compressed.incrementAndGet();
+        bytesOut.addAndGet(length);
+        byte[] packed = new byte[length];
+        System.arraycopy(out, 0, packed, 0, length);
+        return new Packed(packed, VaultFormat.COMPRESSION_DEFLATE);
+    }
+
+    /**
+     * Reverses {@link #pack(byte[])} for an authenticated, decrypted payload.
+     *
+     * @param payload decrypted payload, positioned at its first byte
+     * @param flags v2 header flags of the record
+     * @return the original payload
+     * @throws IOException if the algorithm is unknown or the stream is malformed
+     */
+    static ByteBuffer unpack(ByteBuffer payload, byte flags) throws IOException {
+        int algorithm = flags & VaultFormat.COMPRESSION_MASK;
+        if (algorithm == VaultFormat.COMPRESSION_NONE) {
+            return payload;
+        }
+        if (algorithm != VaultFormat.COMPRESSION_DEFLATE) {
+            throw new IOException("Unsupported note compression: " + algorithm);
+        }
+        if (payload.remaining() < LENGTH_PREFIX) {
+            throw new IOException("Invalid compressed note: missing length");
+        }
+
+        long begin = System.nanoTime();
+        int length = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid compressed note: length " + length + " out of range");
+        }
+        ByteBuffer input = payload.duplicate();
+        input.position(input.position() + LENGTH_PREFIX);
+
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(input);
+        byte[] out = new byte[length];
+        int filled = 0;
+        try {
+            while (filled < length && !inflater.finished()) {
+                int n = inflater.inflate(out, filled, length - filled);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                filled += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed note", e);
+        }
+        // The stream must end exactly at the recorded length
+        if (filled != length || !inflater.finished()) {
+            throw new IOException("Invalid compressed note: length does not match");
+        }
+        decompressNanos.addAndGet(System.nanoTime() - begin);
+        return ByteBuffer.wrap(out);
+    }
+
+    /**
+     * @return input bytes divided by stored bytes over every payload packed so far
+     */
+    static double ratio() {
+        long out = bytesOut.get();
+        return out == 0 ? 1.0 : (double) bytesIn.get() / out;
+    }
+
+    static long getPayloadCount() {
+        return payloads.get();
+    }
+
+    /**
+     * @return one-line summary of the bytes saved and the CPU time spent saving them
+     */
+    static String report() {
+        return String.format("Compression: %d of %d payload(s) compressed, %d -> %d bytes (%.2fx),"
+                + " compress %.1f ms, decompress %.1f ms",
+                compressed.get(), payloads.get(), bytesIn.get(), bytesOut.get(), ratio(),
+                compressNanos.get() / 1e6, decompressNanos.get() / 1e6);
+    }
+}
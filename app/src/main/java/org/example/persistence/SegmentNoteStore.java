@@ -0,0 +1,955 @@
+package org.example.persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+import org.example.Note;
+
+/**
+ * Packed vault layout: sealed note records are appended to a small number of
+ * segment files instead of living in one file each. An in-memory offset index
+ * maps every note id to its latest record, so lookups are O(1), and opening
+ * the store costs one sequential pass per segment.
+ *
+ * Segment file {@code segment-<generation>.seg}:
+ *   Magic "NSEG" (4) | Version (1) | Reserved (3) | Covers-from generation (8, little-endian)
+ *   followed by frames:
+ *   Type (1) | Id length (2) | Record length (4) | Id (UTF-8) | Record | CRC32C of everything before (4)
+ *
+ * Updating a note appends a new frame, deleting one appends a tombstone, and
+ * the frames they replace become garbage. {@link #compact(boolean)} rewrites
+ * the live records of all sealed segments into one segment and removes the
+ * old files. A compacted segment records the oldest generation it replaces,
+ * so if a crash leaves those files behind they are deleted on the next open
+ * instead of resurrecting deleted notes.
+ */
+final class SegmentNoteStore implements NoteStore {
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String COMPACT_SUFFIX = ".compact";
+
+    private static final byte[] SEGMENT_MAGIC = "NSEG".getBytes(StandardCharsets.US_ASCII);
+    private static final byte SEGMENT_VERSION = 1;
+    static final int SEGMENT_HEADER_LENGTH = 16;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final int FRAME_HEADER_LENGTH = 7;
+    private static final int FRAME_TRAILER_LENGTH = 4;
+
+    /** The active segment is rolled over once it reaches this size (-Dnotes.vault.segmentBytes). */
+    static final long MAX_SEGMENT_BYTES = Long.getLong("notes.vault.segmentBytes", 8L << 20);
+
+    /** Sealed segments are compacted once this fraction of their bytes is garbage. */
+    static final double COMPACT_GARBAGE_RATIO = 0.5;
+
+    private final Path vault;
+
+    /* LCK03-J + LCK08-J: Lookups share the read lock so they can run in
+    parallel; appends and the compaction swap take the write lock. Every lock is
+    released in a finally block. */
+    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+
+    /* One compaction at a time; held while copying without rwLock */
+    private final ReentrantLock compactionLock = new ReentrantLock();
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, Location> index = new HashMap<>();
+
+    /* Segments appended to since the last sync(), and whether a new segment
+    file has been created whose directory entry is not yet durable */
+    private final Set<Segment> unsynced = new HashSet<>();
+    private boolean directoryUnsynced;
+    private ScheduledExecutorService compactor;
+
+    private static final class Segment {
+        final long generation;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        long liveBytes;
+
+        Segment(long generation, Path path, FileChannel channel, long size) {
+            this.generation = generation;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    /** Where the latest record for a note id lives. */
+    private static final class Location {
+        final long generation;
+        final long frameOffset;
+        final int frameLength;
+        final long recordOffset;
+        final int recordLength;
+
+        Location(long generation, long frameOffset, int frameLength, long recordOffset, int recordLength) {
+            this.generation = generation;
+            this.frameOffset = frameOffset;
+            this.frameLength = frameLength;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+        }
+    }
+
+    private SegmentNoteStore(Path vault) {
+        this.vault = vault;
+    }
+
+    /**
+     * Opens the segments in {@code vault}, rebuilding the index with one
+     * sequential pass over each segment. A torn frame at the end of the newest
+     * segment (a crash during append) is truncated away.
+     *
+     * @param vault the user's vault directory
+     * @return the opened store
+     */
+    static SegmentNoteStore open(Path vault) throws IOException {
+        SegmentNoteStore store = new SegmentNoteStore(vault);
+        try {
+            store.load();
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * @param vault a vault directory
+     * @return true if the vault holds any segment file
+     */
+    static boolean hasSegments(Path vault) throws IOException {
+        if (!Files.isDirectory(vault)) {
+            return false;
+        }
+        try (var files = Files.list(vault)) {
+            return files.anyMatch(SegmentNoteStore::isSegmentFile);
+        }
+    }
+
+    /**
+     * Removes every segment file from a vault whose records now live
+     * elsewhere. The store must be closed.
+     *
+     * @param vault a vault directory
+     */
+    static void deleteSegments(Path vault) throws IOException {
+        try (var files = Files.list(vault)) {
+            for (Path file : files.filter(SegmentNoteStore::isSegmentFile).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static boolean isSegmentFile(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX)
+                && (name.endsWith(SEGMENT_SUFFIX) || name.endsWith(SEGMENT_SUFFIX + COMPACT_SUFFIX));
+    }
+
+    private void load() throws IOException {
+        TreeMap<Long, Path> found = new TreeMap<>();
+        try (var files = Files.list(vault)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX + COMPACT_SUFFIX)) {
+                    // An interrupted compaction; the segments it was replacing are intact
+                    Files.deleteIfExists(file);
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    found.put(parseGeneration(name), file);
+                }
+            }
+        }
+
+        // A crash while creating the newest segment can leave it shorter than
+        // its header; nothing was ever appended to it, so it is dropped
+        if (!found.isEmpty() && Files.size(found.lastEntry().getValue()) < SEGMENT_HEADER_LENGTH) {
+            Path torn = found.pollLastEntry().getValue();
+            SafeLogger.safeLogWarning("Removing segment with a torn header: " + torn);
+            Files.delete(torn);
+        }
+
+        // Drop segments that a completed compaction already replaced
+        for (Long generation : new ArrayList<>(found.descendingKeySet())) {
+            Path file = found.get(generation);
+            if (file == null) {
+                continue;
+            }
+            long coversFrom = readCoversFrom(file);
+            for (Long replaced : new ArrayList<>(found.subMap(coversFrom, true, generation, false).keySet())) {
+                Files.deleteIfExists(found.remove(replaced));
+            }
+        }
+
+        for (Map.Entry<Long, Path> entry : found.entrySet()) {
+            FileChannel channel = FileChannel.open(entry.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(entry.getKey(), entry.getValue(), channel, channel.size());
+            segments.put(segment.generation, segment);
+            scan(segment, segment.generation == found.lastKey(), null);
+        }
+    }
+
+    private static long parseGeneration(String name) throws IOException {
+        String digits = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unrecognized segment file: " + name, e);
+        }
+    }
+
+    private static long readCoversFrom(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            NoteFileReader.readFully(channel, header, 0);
+            header.flip();
+            checkHeader(header, file);
+            return header.getLong(8);
+        }
+    }
+
+    private static void checkHeader(ByteBuffer header, Path file) throws IOException {
+        for (int i = 0; i < SEGMENT_MAGIC.length; i++) {
+            if (header.get(i) != SEGMENT_MAGIC[i]) {
+                throw new IOException("Not a vault segment: " + file);
+            }
+        }
+        if (header.get(SEGMENT_MAGIC.length) != SEGMENT_VERSION) {
+            throw new IOException("Unsupported segment version in " + file);
+        }
+    }
+
+    /**
+     * Walks every frame of a segment in file order. When {@code visitor} is
+     * null the index is rebuilt; otherwise every live record is visited.
+     */
+    private void scan(Segment segment, boolean newest, RecordVisitor visitor) throws IOException {
+        FrameReader frames = new FrameReader(segment.channel, segment.size, segment.path);
+        while (!frames.atEnd()) {
+            if (!frames.next()) {
+                if (visitor == null) {
+                    if (newest) {
+                        // Torn append from a crash: cut the segment back to the last good frame
+                        SafeLogger.safeLogWarning("Truncating torn frame at " + frames.offset + " in " + segment.path);
+                        segment.channel.truncate(frames.offset);
+                        segment.size = frames.offset;
+                    } else {
+                        SafeLogger.safeLogWarning("Skipping corrupt frame at " + frames.offset + " in " + segment.path);
+                    }
+                }
+                return;
+            }
+
+            long offset = frames.offset;
+            if (visitor == null) {
+                if (frames.type == TYPE_PUT) {
+                    replace(frames.noteId, new Location(segment.generation, offset, frames.frameLength,
+                            frames.recordOffset(), frames.recordLength));
+                } else {
+                    replace(frames.noteId, null);
+                }
+            } else if (frames.type == TYPE_PUT) {
+                Location live = index.get(frames.noteId);
+                if (live != null && live.generation == segment.generation && live.frameOffset == offset) {
+                    // The window is reused for the next frame, and visitors may keep the record
+                    ByteBuffer record = frames.record();
+                    byte[] copy = new byte[record.remaining()];
+                    record.get(copy);
+                    try {
+                        visitor.visit(frames.noteId, NoteFileReader.parse(ByteBuffer.wrap(copy)));
+                    } catch (EOFException e) {
+                        System.err.println("Failed to load note: " + frames.noteId);
+                    }
+                }
+            }
+            frames.advance();
+        }
+    }
+
+    /**
+     * Reads the frames of a segment in order through a reusable heap window.
+     * Offsets are longs, so segments of any size can be read, and nothing is
+     * left memory-mapped to keep the file locked.
+     */
+    private static final class FrameReader {
+        private static final int WINDOW_BYTES = 1 << 20;
+
+        private final FileChannel channel;
+        private final long size;
+        private final CRC32C crc = new CRC32C();
+        private ByteBuffer window = ByteBuffer.allocate(0);
+        private long windowStart;
+
+        /* The current frame, valid after next() returns true */
+        long offset = SEGMENT_HEADER_LENGTH;
+        byte type;
+        String noteId;
+        int frameLength;
+        int recordLength;
+        private int idLength;
+
+        FrameReader(FileChannel channel, long size, Path file) throws IOException {
+            if (size < SEGMENT_HEADER_LENGTH) {
+                throw new EOFException("FIO08-J: Segment header is truncated: " + file);
+            }
+            this.channel = channel;
+            this.size = size;
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            NoteFileReader.readFully(channel, header, 0);
+            checkHeader(header, file);
+        }
+
+        boolean atEnd() {
+            return offset >= size;
+        }
+
+        /**
+         * @return true if an intact frame starts at {@link #offset}; false if it is truncated or fails its checksum
+         */
+        boolean next() throws IOException {
+            load(offset, (int) Math.min(FRAME_HEADER_LENGTH, size - offset));
+            int pos = (int) (offset - windowStart);
+            if (window.limit() - pos >= FRAME_HEADER_LENGTH) {
+                long length = (long) FRAME_HEADER_LENGTH + Short.toUnsignedInt(window.getShort(pos + 1))
+                        + window.getInt(pos + 3) + FRAME_TRAILER_LENGTH;
+                // A frame running past the end of the file is left for validFrameLength to reject
+                if (length > 0 && length <= size - offset && length <= Integer.MAX_VALUE - 8) {
+                    load(offset, (int) length);
+                    pos = (int) (offset - windowStart);
+                }
+            }
+            int length = validFrameLength(window, pos, crc);
+            if (length < 0) {
+                return false;
+            }
+            type = window.get(pos);
+            idLength = Short.toUnsignedInt(window.getShort(pos + 1));
+            recordLength = window.getInt(pos + 3);
+            byte[] idBytes = new byte[idLength];
+            window.get(pos + FRAME_HEADER_LENGTH, idBytes);
+            noteId = new String(idBytes, StandardCharsets.UTF_8);
+            frameLength = length;
+            return true;
+        }
+
+        long recordOffset() {
+            return offset + FRAME_HEADER_LENGTH + idLength;
+        }
+
+        /**
+         * @return the current frame's record; a view of the window, valid until the next call to {@link #next()}
+         */
+        ByteBuffer record() {
+            return window.slice((int) (recordOffset() - windowStart), recordLength);
+        }
+
+        void advance() {
+            offset += frameLength;
+        }
+
+        /* Makes the window hold [at, at + length), reading ahead up to a full window */
+        private void load(long at, int length) throws IOException {
+            if (at >= windowStart && at + length <= windowStart + window.limit()) {
+                return;
+            }
+            int capacity = Math.max(WINDOW_BYTES, length);
+            if (window.capacity() < capacity) {
+                window = ByteBuffer.allocate(capacity);
+            }
+            window.clear().order(ByteOrder.LITTLE_ENDIAN);
+            window.limit((int) Math.min(capacity, size - at));
+            NoteFileReader.readFully(channel, window, at);
+            window.flip();
+            windowStart = at;
+        }
+    }
+
+    /**
+     * Receives the raw record of each intact put frame during {@link #verify}.
+     */
+    @FunctionalInterface
+    interface FrameVisitor {
+        /**
+         * @param record view of the record, valid only during the call
+         */
+        void visit(String noteId, ByteBuffer record) throws IOException;
+    }
+
+    /**
+     * Checks every frame of a segment file without opening it as a store.
+     * Superseded records are checked as well as live ones.
+     *
+     * @param file segment to check
+     * @param visitor receives the record of every intact put frame
+     * @return offset of the first frame that is truncated or fails its checksum, or -1 if every frame is intact
+     * @throws IOException if the segment header is missing or invalid
+     */
+    static long verify(Path file, FrameVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            FrameReader frames = new FrameReader(channel, channel.size(), file);
+            while (!frames.atEnd()) {
+                if (!frames.next()) {
+                    return frames.offset;
+                }
+                if (frames.type == TYPE_PUT) {
+                    visitor.visit(frames.noteId, frames.record());
+                }
+                frames.advance();
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * @return the length of the frame at {@code offset}, or -1 if it is truncated or fails its checksum
+     */
+    private static int validFrameLength(ByteBuffer data, int offset, CRC32C crc) {
+        int available = data.limit() - offset;
+        if (available < FRAME_HEADER_LENGTH + FRAME_TRAILER_LENGTH) {
+            return -1;
+        }
+        byte type = data.get(offset);
+        int idLength = Short.toUnsignedInt(data.getShort(offset + 1));
+        int recordLength = data.getInt(offset + 3);
+        if ((type != TYPE_PUT && type != TYPE_DELETE) || recordLength < 0) {
+            return -1;
+        }
+        long frameLength = (long) FRAME_HEADER_LENGTH + idLength + recordLength + FRAME_TRAILER_LENGTH;
+        if (frameLength > available) {
+            return -1;
+        }
+        int bodyLength = (int) frameLength - FRAME_TRAILER_LENGTH;
+        crc.reset();
+        crc.update(data.slice(offset, bodyLength));
+        if ((int) crc.getValue() != data.getInt(offset + bodyLength)) {
+            return -1;
+        }
+        return (int) frameLength;
+    }
+
+    /**
+     * Points {@code noteId} at a new location (or removes it) and keeps the
+     * per-segment live byte counts in step. Caller holds the write lock or is
+     * still loading.
+     */
+    private void replace(String noteId, Location next) {
+        Location previous = next == null ? index.remove(noteId) : index.put(noteId, next);
+        if (previous != null) {
+            Segment old = segments.get(previous.generation);
+            if (old != null) {
+                old.liveBytes -= previous.frameLength;
+            }
+        }
+        if (next != null) {
+            segments.get(next.generation).liveBytes += next.frameLength;
+        }
+    }
+
+    private static byte[] idBytes(String noteId) throws IOException {
+        byte[] idBytes = noteId.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > 0xFFFF) {
+            throw new IOException("Note id is too long for a segment frame");
+        }
+        return idBytes;
+    }
+
+    /**
+     * @return the frame's type, lengths and id, with room for {@code extra} more bytes
+     */
+    private static ByteBuffer frameHeader(byte type, byte[] idBytes, int recordLength, int extra) {
+        return ByteBuffer.allocate(FRAME_HEADER_LENGTH + idBytes.length + extra).order(ByteOrder.LITTLE_ENDIAN)
+                .put(type).putShort((short) idBytes.length).putInt(recordLength).put(idBytes);
+    }
+
+    private static ByteBuffer frame(byte type, String noteId, byte[] record) throws IOException {
+        byte[] idBytes = idBytes(noteId);
+        int recordLength = record == null ? 0 : record.length;
+        ByteBuffer frame = frameHeader(type, idBytes, recordLength, recordLength + FRAME_TRAILER_LENGTH);
+        if (record != null) {
+            frame.put(record);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(frame.array(), 0, frame.position());
+        frame.putInt((int) crc.getValue());
+        frame.flip();
+        return frame;
+    }
+
+    private Segment createSegment(long generation, long coversFrom, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(SEGMENT_MAGIC).put(SEGMENT_VERSION).put(new byte[3]).putLong(coversFrom).flip();
+        writeFully(channel, header, 0);
+
+        /* FIO01-J: Restrict the segment to owner-only read/write immediately after creation */
+        NoteSaver.makeFileSecure(path.toString());
+        return new Segment(generation, path, channel, SEGMENT_HEADER_LENGTH);
+    }
+
+    private Path segmentPath(long generation) {
+        return vault.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, generation, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Returns the segment to append a frame of {@code frameLength} bytes to,
+     * rolling over to a new segment when the active one is full. Caller holds the write lock.
+     */
+    private Segment activeSegment(int frameLength) throws IOException {
+        Segment active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (active == null || (active.size > SEGMENT_HEADER_LENGTH && active.size + frameLength > MAX_SEGMENT_BYTES)) {
+            long generation = active == null ? 1 : active.generation + 1;
+            active = createSegment(generation, generation, segmentPath(generation));
+            segments.put(generation, active);
+            directoryUnsynced = true;
+        }
+        return active;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        long offset = position;
+        while (src.hasRemaining()) {
+            offset += channel.write(src, offset);
+        }
+    }
+
+    private Location append(byte type, String noteId, byte[] record) throws IOException {
+        ByteBuffer frame = frame(type, noteId, record);
+        int frameLength = frame.remaining();
+        Segment active = activeSegment(frameLength);
+        long offset = active.size;
+        writeFully(active.channel, frame, offset);
+        active.size += frameLength;
+        unsynced.add(active);
+        int idLength = frameLength - FRAME_HEADER_LENGTH - FRAME_TRAILER_LENGTH - (record == null ? 0 : record.length);
+        return new Location(active.generation, offset, frameLength,
+                offset + FRAME_HEADER_LENGTH + idLength, record == null ? 0 : record.length);
+    }
+
+    @Override
+    public void write(String noteId, byte[] record) throws IOException {
+        rwLock.writeLock().lock();
+        try {
+            replace(noteId, append(TYPE_PUT, noteId, record));
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean streamsLargeNotes() {
+        return true;
+    }
+
+    /**
+     * Streams a very large note into a new frame as a chunked v3 record, so
+     * the sealed record is never built on the heap. The v3 header fixes the
+     * frame's length up front, so its place in the active segment is known
+     * before any chunk is sealed, and the checksum is taken as the chunks go
+     * by. A failure truncates the partial frame away; otherwise the segment is
+     * forced before the index points at the frame.
+     */
+    @Override
+    public long writeStreaming(String noteId, Note note, KeyRing keyRing) throws IOException {
+        ChunkedNoteFile.Sealing sealing = ChunkedNoteFile.prepare(note);
+        byte[] idBytes = idBytes(noteId);
+        long frameLength = (long) FRAME_HEADER_LENGTH + idBytes.length + sealing.recordLength + FRAME_TRAILER_LENGTH;
+        if (frameLength > Integer.MAX_VALUE) {
+            throw new IOException("Note is too large for a segment frame");
+        }
+
+        rwLock.writeLock().lock();
+        try {
+            Segment active = activeSegment((int) frameLength);
+            long offset = active.size;
+            try {
+                FrameOutputStream out = new FrameOutputStream(active.channel, offset);
+                out.write(frameHeader(TYPE_PUT, idBytes, sealing.recordLength, 0).array());
+                ChunkedNoteFile.seal(keyRing, sealing, out);
+                out.writeChecksum();
+                if (out.position != offset + frameLength) {
+                    throw new IOException("Streamed frame does not match its header");
+                }
+                active.channel.force(false);
+            } catch (IOException | RuntimeException e) {
+                active.channel.truncate(offset);
+                throw e;
+            }
+            active.size += frameLength;
+            if (directoryUnsynced) {
+                GroupCommitWriter.syncDirectory(vault);
+                directoryUnsynced = false;
+            }
+            replace(noteId, new Location(active.generation, offset, (int) frameLength,
+                    offset + FRAME_HEADER_LENGTH + idBytes.length, sealing.recordLength));
+            return frameLength;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a frame at a fixed position in a segment and keeps its CRC32C
+     * running, so a streamed frame ends with the same checksum as a buffered one.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final CRC32C crc = new CRC32C();
+        private long position;
+
+        FrameOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            writeFully(channel, ByteBuffer.wrap(b, off, len), position);
+            position += len;
+        }
+
+        void writeChecksum() throws IOException {
+            ByteBuffer trailer = ByteBuffer.allocate(FRAME_TRAILER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            trailer.putInt((int) crc.getValue()).flip();
+            writeFully(channel, trailer, position);
+            position += FRAME_TRAILER_LENGTH;
+        }
+    }
+
+    /**
+     * Forces every segment appended to since the last call, so all the frames
+     * of one save share a single barrier instead of one fsync per note.
+     */
+    @Override
+    public void sync() throws IOException {
+        rwLock.writeLock().lock();
+        try {
+            for (Segment segment : unsynced) {
+                segment.channel.force(false);
+            }
+            unsynced.clear();
+            if (directoryUnsynced) {
+                GroupCommitWriter.syncDirectory(vault);
+                directoryUnsynced = false;
+            }
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public NoteFileReader.NoteFile read(String noteId) throws IOException {
+        rwLock.readLock().lock();
+        try {
+            Location location = index.get(noteId);
+            if (location == null) {
+                return null;
+            }
+            byte[] record = new byte[location.recordLength];
+            NoteFileReader.readFully(segments.get(location.generation).channel, ByteBuffer.wrap(record),
+                    location.recordOffset);
+            return NoteFileReader.parse(ByteBuffer.wrap(record));
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String noteId) throws IOException {
+        rwLock.writeLock().lock();
+        try {
+            if (!index.containsKey(noteId)) {
+                return false;
+            }
+            append(TYPE_DELETE, noteId, null);
+            replace(noteId, null);
+            return true;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> noteIds() {
+        rwLock.readLock().lock();
+        try {
+            return new ArrayList<>(index.keySet());
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits live records segment by segment in file order, so each segment
+     * is read sequentially exactly once.
+     */
+    @Override
+    public void forEach(RecordVisitor visitor) throws IOException {
+        rwLock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment.liveBytes > 0) {
+                    scan(segment, false, visitor);
+                }
+            }
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes held by superseded records and tombstones across all segments
+     */
+    long garbageBytes() {
+        rwLock.readLock().lock();
+        try {
+            long garbage = 0;
+            for (Segment segment : segments.values()) {
+                garbage += segment.size - SEGMENT_HEADER_LENGTH - segment.liveBytes;
+            }
+            return garbage;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of segment files currently in use
+     */
+    int segmentCount() {
+        rwLock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the live records of every sealed segment (all but the active
+     * one) into a single new segment and deletes the old files.
+     *
+     * The copy runs without the store lock, since sealed segments are never
+     * appended to; writers and readers only wait for the final swap. Notes
+     * rewritten or deleted during the copy keep their newer location, and
+     * their stale copy is garbage in the new segment.
+     *
+     * @param force compact even if the garbage ratio is below {@link #COMPACT_GARBAGE_RATIO}
+     * @return number of bytes reclaimed
+     */
+    long compact(boolean force) throws IOException {
+        compactionLock.lock();
+        try {
+            List<Segment> sealed;
+            Map<String, Location> live = new HashMap<>();
+            long sealedBytes = 0;
+            rwLock.readLock().lock();
+            try {
+                if (segments.size() < 2) {
+                    return 0;
+                }
+                sealed = new ArrayList<>(segments.headMap(segments.lastKey(), false).values());
+                long liveBytes = 0;
+                for (Segment segment : sealed) {
+                    sealedBytes += segment.size;
+                    liveBytes += segment.liveBytes;
+                }
+                long garbage = sealedBytes - liveBytes - (long) sealed.size() * SEGMENT_HEADER_LENGTH;
+                if (garbage <= 0 || (!force && garbage < sealedBytes * COMPACT_GARBAGE_RATIO)) {
+                    return 0;
+                }
+                long lastGeneration = sealed.get(sealed.size() - 1).generation;
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    if (entry.getValue().generation <= lastGeneration) {
+                        live.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            } finally {
+                rwLock.readLock().unlock();
+            }
+
+            long firstGeneration = sealed.get(0).generation;
+            long lastGeneration = sealed.get(sealed.size() - 1).generation;
+            Path target = segmentPath(lastGeneration);
+            Path temp = target.resolveSibling(target.getFileName() + COMPACT_SUFFIX);
+            Files.deleteIfExists(temp);
+
+            // Copy every live frame of the sealed segments
+            Segment output = createSegment(lastGeneration, firstGeneration, temp);
+            Map<String, Location> moved = new HashMap<>();
+            try {
+                for (Map.Entry<String, Location> entry : live.entrySet()) {
+                    Location location = entry.getValue();
+                    ByteBuffer frame = ByteBuffer.allocate(location.frameLength);
+                    NoteFileReader.readFully(segmentFor(sealed, location.generation).channel, frame,
+                            location.frameOffset);
+                    frame.flip();
+                    long offset = output.size;
+                    writeFully(output.channel, frame, offset);
+                    output.size += location.frameLength;
+                    moved.put(entry.getKey(), new Location(lastGeneration, offset, location.frameLength,
+                            offset + (location.recordOffset - location.frameOffset), location.recordLength));
+                }
+                output.channel.force(true);
+            } catch (IOException e) {
+                output.channel.close();
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            output.channel.close();
+
+            rwLock.writeLock().lock();
+            try {
+                for (Segment segment : sealed) {
+                    if (segments.get(segment.generation) != segment) {
+                        // The store was closed during the copy
+                        Files.deleteIfExists(temp);
+                        return 0;
+                    }
+                }
+                for (Segment segment : sealed) {
+                    segment.channel.close();
+                    segments.remove(segment.generation);
+                }
+                // The rename is the commit point; leftovers are cleaned up on the next open
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                GroupCommitWriter.syncDirectory(vault);
+                unsynced.removeAll(sealed);
+                for (Segment segment : sealed) {
+                    if (segment.generation != lastGeneration) {
+                        Files.deleteIfExists(segment.path);
+                    }
+                }
+
+                FileChannel channel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                Segment compacted = new Segment(lastGeneration, target, channel, output.size);
+                segments.put(lastGeneration, compacted);
+                for (Map.Entry<String, Location> entry : moved.entrySet()) {
+                    // Only notes untouched since the snapshot move to the new segment
+                    if (index.get(entry.getKey()) == live.get(entry.getKey())) {
+                        index.put(entry.getKey(), entry.getValue());
+                        compacted.liveBytes += entry.getValue().frameLength;
+                    }
+                }
+                return sealedBytes - compacted.size;
+            } finally {
+                rwLock.writeLock().unlock();
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    private static Segment segmentFor(List<Segment> sealed, long generation) throws IOException {
+        for (Segment segment : sealed) {
+            if (segment.generation == generation) {
+                return segment;
+            }
+        }
+        throw new IOException("No sealed segment for generation " + generation);
+    }
+
+    /**
+     * Starts a daemon thread that compacts the store whenever enough garbage accumulates.
+     *
+     * @param period delay between compaction checks
+     */
+    void startCompactor(Duration period) {
+        rwLock.writeLock().lock();
+        try {
+            if (compactor != null) {
+                return;
+            }
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "vault-compactor-" + vault.getFileName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    long reclaimed = compact(false);
+                    if (reclaimed > 0) {
+                        SafeLogger.safeLogInfo("Compacted " + vault + ", reclaimed " + reclaimed + " bytes");
+                    }
+                } catch (IOException e) {
+                    SafeLogger.safeLogError("Vault compaction failed for " + vault, e);
+                }
+            }, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService running;
+        rwLock.writeLock().lock();
+        try {
+            running = compactor;
+            compactor = null;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        rwLock.writeLock().lock();
+        try {
+            IOException failure = null;
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            segments.clear();
+            index.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+}
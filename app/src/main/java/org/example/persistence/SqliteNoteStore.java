@@ -0,0 +1,276 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps one user's sealed note records in the {@code notes} table of the user
+ * database instead of as files in the vault directory.
+ *
+ * Writes and deletes are buffered until {@link #sync()}, which applies all of
+ * them in one transaction: a save lands completely or not at all, and costs
+ * one commit instead of a write, fsync and rename per note. Reads see the
+ * buffered changes. Records are stored sealed exactly as in the file layout;
+ * the version column only records their format for maintenance queries.
+ */
+final class SqliteNoteStore implements NoteStore {
+
+    /* The primary key's index leads with user_id, so it is also the index
+    every per-user query below runs on */
+    static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS notes (user_id STRING NOT NULL, note_id STRING NOT NULL,"
+            + " version INTEGER NOT NULL, record BLOB NOT NULL, PRIMARY KEY (user_id, note_id))";
+
+    private static final String UPSERT = "INSERT INTO notes(user_id, note_id, version, record) VALUES(?, ?, ?, ?)"
+            + " ON CONFLICT(user_id, note_id) DO UPDATE SET version=excluded.version, record=excluded.record";
+    private static final String DELETE = "DELETE FROM notes WHERE user_id=? AND note_id=?";
+    private static final String SELECT_RECORD = "SELECT record FROM notes WHERE user_id=? AND note_id=?";
+    private static final String SELECT_IDS = "SELECT note_id FROM notes WHERE user_id=?";
+    private static final String SELECT_ALL = "SELECT note_id, record FROM notes WHERE user_id=?";
+
+    private final ConnectionPool database;
+    private final String userId;
+
+    /* LCK00-J: Private lock guarding the changes not yet committed */
+    private final Object lock = new Object();
+    private final Map<String, byte[]> pendingWrites = new LinkedHashMap<>();
+    private final Set<String> pendingDeletes = new LinkedHashSet<>();
+
+    /**
+     * @param database pool of the user database
+     * @param userId owner of the records
+     */
+    SqliteNoteStore(ConnectionPool database, String userId) {
+        this.database = database;
+        this.userId = userId;
+    }
+
+    @Override
+    public void write(String noteId, byte[] record) {
+        synchronized (lock) {
+            pendingDeletes.remove(noteId);
+            pendingWrites.put(noteId, record);
+        }
+    }
+
+    /**
+     * Commits every buffered write and delete in one transaction. The commit
+     * runs with {@code synchronous=FULL}, so unlike the pool's other
+     * statements it is on disk when this returns. If it fails nothing is
+     * applied and the changes stay buffered for the next call.
+     */
+    @Override
+    public void sync() throws IOException {
+        Map<String, byte[]> writes;
+        Set<String> deletes;
+        synchronized (lock) {
+            if (pendingWrites.isEmpty() && pendingDeletes.isEmpty()) {
+                return;
+            }
+            writes = new LinkedHashMap<>(pendingWrites);
+            deletes = new LinkedHashSet<>(pendingDeletes);
+            pendingWrites.clear();
+            pendingDeletes.clear();
+        }
+        try {
+            commit(writes, deletes);
+        } catch (SQLException e) {
+            // Put back whatever was not superseded meanwhile
+            synchronized (lock) {
+                for (Map.Entry<String, byte[]> entry : writes.entrySet()) {
+                    if (!pendingDeletes.contains(entry.getKey())) {
+                        pendingWrites.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                }
+                for (String noteId : deletes) {
+                    if (!pendingWrites.containsKey(noteId)) {
+                        pendingDeletes.add(noteId);
+                    }
+                }
+            }
+            throw new IOException("Failed to commit notes: " + e.getMessage(), e);
+        }
+    }
+
+    private void commit(Map<String, byte[]> writes, Set<String> deletes) throws SQLException {
+        try (ConnectionPool.Lease db = database.acquire()) {
+            Connection connection = db.connection();
+            try (Statement statement = connection.createStatement()) {
+                // PRAGMA synchronous cannot change inside a transaction
+                statement.execute("PRAGMA synchronous=FULL");
+                try {
+                    connection.setAutoCommit(false);
+                    if (!writes.isEmpty()) {
+                        PreparedStatement upsert = db.prepare(UPSERT);
+                        for (Map.Entry<String, byte[]> entry : writes.entrySet()) {
+                            byte[] record = entry.getValue();
+                            upsert.setString(1, userId);
+                            upsert.setString(2, entry.getKey());
+                            upsert.setInt(3, VaultFormat.versionOf(ByteBuffer.wrap(record)));
+                            upsert.setBytes(4, record);
+                            upsert.addBatch();
+                        }
+                        upsert.executeBatch();
+                    }
+                    if (!deletes.isEmpty()) {
+                        PreparedStatement delete = db.prepare(DELETE);
+                        for (String noteId : deletes) {
+                            delete.setString(1, userId);
+                            delete.setString(2, noteId);
+                            delete.addBatch();
+                        }
+                        delete.executeBatch();
+                    }
+                    connection.commit();
+                } finally {
+                    if (!connection.getAutoCommit()) {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                    statement.execute("PRAGMA synchronous=NORMAL");
+                }
+            }
+        }
+    }
+
+    @Override
+    public NoteFileReader.NoteFile read(String noteId) throws IOException {
+        byte[] record;
+        synchronized (lock) {
+            if (pendingDeletes.contains(noteId)) {
+                return null;
+            }
+            record = pendingWrites.get(noteId);
+        }
+        if (record == null) {
+            try (ConnectionPool.Lease db = database.acquire()) {
+                PreparedStatement select = db.prepare(SELECT_RECORD);
+                select.setString(1, userId);
+                select.setString(2, noteId);
+                try (ResultSet rs = select.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    record = rs.getBytes("record");
+                }
+            } catch (SQLException e) {
+                throw new IOException("Failed to read note " + noteId + ": " + e.getMessage(), e);
+            }
+        }
+        return NoteFileReader.parse(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * The removal only reaches the table at the next {@link #sync()}.
+     */
+    @Override
+    public boolean delete(String noteId) throws IOException {
+        boolean existed;
+        synchronized (lock) {
+            existed = pendingWrites.remove(noteId) != null;
+        }
+        if (!existed) {
+            existed = storedIds().contains(noteId);
+        }
+        if (existed) {
+            synchronized (lock) {
+                pendingDeletes.add(noteId);
+            }
+        }
+        return existed;
+    }
+
+    @Override
+    public List<String> noteIds() throws IOException {
+        Set<String> ids = new TreeSet<>(storedIds());
+        synchronized (lock) {
+            ids.removeAll(pendingDeletes);
+            ids.addAll(pendingWrites.keySet());
+        }
+        return new ArrayList<>(ids);
+    }
+
+    private Set<String> storedIds() throws IOException {
+        Set<String> ids = new TreeSet<>();
+        try (ConnectionPool.Lease db = database.acquire()) {
+            PreparedStatement select = db.prepare(SELECT_IDS);
+            select.setString(1, userId);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getString("note_id"));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to list notes: " + e.getMessage(), e);
+        }
+        return ids;
+    }
+
+    /**
+     * Streams every committed record with a single query, then visits the
+     * buffered ones. The visitor runs while a pooled connection is held.
+     */
+    @Override
+    public void forEach(RecordVisitor visitor) throws IOException {
+        Map<String, byte[]> writes;
+        Set<String> deletes;
+        synchronized (lock) {
+            writes = new LinkedHashMap<>(pendingWrites);
+            deletes = new LinkedHashSet<>(pendingDeletes);
+        }
+        try (ConnectionPool.Lease db = database.acquire()) {
+            PreparedStatement select = db.prepare(SELECT_ALL);
+            select.setString(1, userId);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    String noteId = rs.getString("note_id");
+                    if (writes.containsKey(noteId) || deletes.contains(noteId)) {
+                        continue;
+                    }
+                    visit(visitor, noteId, rs.getBytes("record"));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to scan notes: " + e.getMessage(), e);
+        }
+        for (Map.Entry<String, byte[]> entry : writes.entrySet()) {
+            visit(visitor, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void visit(RecordVisitor visitor, String noteId, byte[] bytes) throws IOException {
+        NoteFileReader.NoteFile record;
+        try {
+            record = NoteFileReader.parse(ByteBuffer.wrap(bytes));
+        } catch (IOException e) {
+            System.err.println("Failed to load note: " + noteId);
+            return;
+        }
+        visitor.visit(noteId, record);
+    }
+
+    /**
+     * One query returns the whole vault, which beats a lookup per note.
+     */
+    @Override
+    public boolean prefersScan() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Connections belong to the pool; just commit what is buffered
+        sync();
+    }
+}
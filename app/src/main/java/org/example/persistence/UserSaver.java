@@ -9,20 +9,40 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
 import org.example.Note;
+import org.example.StartupProfiler;
 import org.example.User;
 
 public class UserSaver {
-    private static final String DB_ADAPTER = "jdbc:sqlite:data/sample.db";
+    static final String DB_ADAPTER = "jdbc:sqlite:data/sample.db";
+
+    /* Long-lived connections shared by every query; the schema is created
+    once, when the first of them opens */
+    private static final ConnectionPool database = new ConnectionPool(DB_ADAPTER, Paths.get("data"),
+            ConnectionPool.SIZE, UserSaver::initTables);
 
     /* IDS00-J: Prevent SQL injection vulnerabilities
     SQL injection patterns used to validate input at the database layer
@@ -53,6 +73,222 @@ public class UserSaver {
         return true;
     }
 
+    /** Vault layout for note records: "files" (one file per note), "segments" or "sqlite" (-Dnotes.vault.layout). */
+    static final String VAULT_LAYOUT = System.getProperty("notes.vault.layout", "files");
+
+    /** How often each open segment store checks whether it needs compacting. */
+    private static final Duration COMPACT_INTERVAL = Duration.ofMinutes(1);
+
+    /* One store per vault for the life of the process, closed by
+    closeStores(): segment stores rebuild their index on open, and every store
+    buffers writes that all savers of the vault must see */
+    private static final Map<Path, NoteStore> openStores = new ConcurrentHashMap<>();
+
+    /** Longest a vault that keeps changing goes without a title index (-Dnotes.vault.indexWriteSeconds). */
+    static final long INDEX_WRITE_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("notes.vault.indexWriteSeconds", 30));
+
+    /* Vaults whose title index a save removed and has not rewritten yet, with
+    System.nanoTime() when it was removed. Guarded by the owner's save lock. */
+    private static final Map<Path, Long> staleIndexes = new ConcurrentHashMap<>();
+
+    /* LCK00-J: One lock per user id, so two saves of the same user never
+    overlap whichever thread they come from */
+    private static final Map<String, ReentrantLock> saveLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the note store for a vault directory in the configured layout.
+     * When the segment or sqlite layout is selected, records left by the
+     * other layouts are moved into it the first time the vault is opened.
+     *
+     * @param vault the user's vault directory
+     * @return the vault's only store, which stays open until {@link #closeVault(User)}
+     *         or {@link #closeStores()}
+     */
+    static NoteStore openStore(Path vault) throws IOException {
+        NoteStore store = openStores.get(vault);
+        if (store != null) {
+            return store;
+        }
+        synchronized (openStores) {
+            store = openStores.get(vault);
+            if (store == null) {
+                store = createStore(vault);
+                openStores.put(vault, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * FIO14-J: Closes a vault's store and forgets it, so a user who has
+     * signed off holds no open segments or compactor thread.
+     *
+     * @return true if the vault had an open store
+     */
+    static boolean closeStore(Path vault) throws IOException {
+        NoteStore store;
+        synchronized (openStores) {
+            store = openStores.remove(vault);
+        }
+        if (store == null) {
+            return false;
+        }
+        store.close();
+        return true;
+    }
+
+    /* Callers must hold the openStores lock */
+    private static NoteStore createStore(Path vault) throws IOException {
+        // Nothing writes to the vault before its store is opened, so any temp file is left over
+        GroupCommitWriter.deleteStaleTemps(vault);
+        if ("sqlite".equalsIgnoreCase(VAULT_LAYOUT)) {
+            SqliteNoteStore store = new SqliteNoteStore(database, vault.getFileName().toString());
+            migrateToDatabase(vault, store);
+            return store;
+        }
+        if (!"segments".equalsIgnoreCase(VAULT_LAYOUT)) {
+            return new FileNoteStore(vault);
+        }
+        SegmentNoteStore segments = SegmentNoteStore.open(vault);
+        migrate(new FileNoteStore(vault), segments);
+        segments.startCompactor(COMPACT_INTERVAL);
+        return segments;
+    }
+
+    /**
+     * Copies every record from one store to another without decrypting it.
+     * Source records are only deleted once every copy is durable.
+     *
+     * @return number of records moved
+     */
+    static int migrate(NoteStore from, NoteStore to) throws IOException {
+        List<String> moved = new ArrayList<>();
+        from.forEach((noteId, record) -> {
+            to.write(noteId, record.toBytes());
+            moved.add(noteId);
+        });
+        to.sync();
+        for (String noteId : moved) {
+            from.delete(noteId);
+        }
+        return moved.size();
+    }
+
+    /**
+     * Moves a vault's note files and segments into the notes table. Each
+     * source is only removed once its records are committed there, so an
+     * interrupted migration just runs again on the next open. The title
+     * index stays in the vault directory.
+     *
+     * @param vault the user's vault directory
+     * @param store the user's table-backed store
+     * @return number of records moved
+     */
+    static int migrateToDatabase(Path vault, SqliteNoteStore store) throws IOException {
+        int moved = migrate(new FileNoteStore(vault), store);
+        if (SegmentNoteStore.hasSegments(vault)) {
+            NoteStore segments;
+            synchronized (openStores) {
+                segments = openStores.remove(vault);
+            }
+            if (segments == null) {
+                segments = SegmentNoteStore.open(vault);
+            }
+            try {
+                moved += migrate(segments, store);
+            } finally {
+                segments.close();
+            }
+            SegmentNoteStore.deleteSegments(vault);
+        }
+        return moved;
+    }
+
+    /**
+     * FIO14-J: Closes every store kept open by {@link #openStore(Path)} and
+     * waits for queued note writes to be committed. Background saves must
+     * already have been flushed with {@link WriteBehindSaver#flush()}.
+     */
+    public static void closeStores() {
+        if (WriteBehindSaver.shared().getEventCount() > 0) {
+            SafeLogger.safeLogInfo(WriteBehindSaver.shared().toString());
+        }
+        try {
+            GroupCommitWriter.shared().flush();
+        } catch (IOException e) {
+            System.err.println("Failed to commit queued notes: " + e.getMessage());
+        }
+        if (GroupCommitWriter.shared().getCommitCount() > 0) {
+            SafeLogger.safeLogInfo(GroupCommitWriter.shared().toString());
+        }
+        if (PayloadCompressor.getPayloadCount() > 0) {
+            SafeLogger.safeLogInfo(PayloadCompressor.report());
+        }
+        if (KdfExecutor.shared().getCompletedCount() + KdfExecutor.shared().getRejectedCount() > 0) {
+            SafeLogger.safeLogInfo(KdfExecutor.shared().toString());
+        }
+        synchronized (openStores) {
+            for (NoteStore store : openStores.values()) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to close note store: " + e.getMessage());
+                }
+            }
+            openStores.clear();
+        }
+        // Last, since closing a sqlite store commits its buffered writes
+        if (database.getLeaseCount() > 0) {
+            SafeLogger.safeLogInfo(database.toString());
+        }
+        database.close();
+    }
+
+    /**
+     * What one call to {@link #saveUser(User)} actually wrote.
+     */
+    public static final class SaveReport {
+        private int notesWritten;
+        private int notesDeleted;
+        private long bytesWritten;
+        private boolean userRowWritten;
+        private boolean indexWritten;
+
+        public int getNotesWritten() {
+            return notesWritten;
+        }
+
+        public int getNotesDeleted() {
+            return notesDeleted;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public boolean isUserRowWritten() {
+            return userRowWritten;
+        }
+
+        public boolean isIndexWritten() {
+            return indexWritten;
+        }
+
+        /**
+         * @return number of note records and index files written or deleted
+         */
+        public int getFilesTouched() {
+            return notesWritten + notesDeleted + (indexWritten ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return "Saved " + notesWritten + " note(s), deleted " + notesDeleted
+                    + (indexWritten ? ", rewrote index" : "") + " (" + bytesWritten + " bytes)"
+                    + ", user row " + (userRowWritten ? "updated" : "unchanged");
+        }
+    }
+
     /**
      * This class is the exception if a user cant be saved
      */
@@ -60,104 +296,657 @@ public class UserSaver {
     }
 
     /**
-     * This will create the initial table to hold users
-     * @return
+     * This will create the initial tables to hold users and, for the sqlite
+     * vault layout, their notes. Run by the
+     * connection pool once per process, on the first connection it opens.
+     * @param conn
      * @throws SQLException
      */
-    private static void initTables() throws SQLException {
-        // Prep the note vault
+    private static void initTables(Connection conn) throws SQLException {
+        try (Statement stat = conn.createStatement()){
+            stat.executeUpdate("CREATE TABLE IF NOT EXISTS users (id STRING PRIMARY KEY, username STRING NOT NULL UNIQUE, passwordHash STRING NOT NULL,"
+                    + " kdfIterations INTEGER, kdfSalt STRING, prevKdfIterations INTEGER, prevKdfSalt STRING,"
+                    + " wrappedKey STRING, prevWrappedKey STRING)");
+            stat.executeUpdate(SqliteNoteStore.CREATE_TABLE);
+
+            // Tables created before per-user KDF parameters and data keys lack
+            // their columns; rows left with nulls keep using the legacy keys
+            Set<String> columns = new HashSet<>();
+            try (ResultSet rs = stat.executeQuery("PRAGMA table_info(users)")) {
+                while (rs.next()) {
+                    columns.add(rs.getString("name"));
+                }
+            }
+            for (String[] column : KEY_COLUMNS) {
+                if (!columns.contains(column[0])) {
+                    stat.executeUpdate("ALTER TABLE users ADD COLUMN " + column[0] + " " + column[1]);
+                }
+            }
+        }
+    }
+
+    /* Fixed names and types only; nothing here comes from input */
+    private static final String[][] KEY_COLUMNS = {
+        {"kdfIterations", "INTEGER"}, {"kdfSalt", "STRING"},
+        {"prevKdfIterations", "INTEGER"}, {"prevKdfSalt", "STRING"},
+        {"wrappedKey", "STRING"}, {"prevWrappedKey", "STRING"}
+    };
+
+    /**
+     * @return the pool of the user database, which also holds the notes
+     *         table of the sqlite vault layout
+     */
+    static ConnectionPool database() {
+        return database;
+    }
+
+    /* Reads an INTEGER column that may be null */
+    private static Integer getInteger(ResultSet rs, String column) throws SQLException {
+        int value = rs.getInt(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    /**
+     * Writes the key columns of a user row from the user's key ring: the
+     * password hash, the KDF parameters and the wrapped data keys, all in
+     * one statement so the row never pairs a hash with the wrong wrapping.
+     */
+    static void storeKeys(User user) throws SQLException, InvalidKeySpecException, NoSuchAlgorithmException {
+        KeyRing keyRing = user.getKeyRing();
+        KdfParams kdfParams = keyRing.getKdfParams();
+        String sql = "UPDATE users SET passwordHash=?, kdfIterations=?, kdfSalt=?, wrappedKey=?, prevWrappedKey=?,"
+                + " prevKdfIterations=NULL, prevKdfSalt=NULL WHERE id=?;";
+        try (ConnectionPool.Lease db = database.acquire()) {
+            PreparedStatement pstmt = db.prepare(sql);
+            pstmt.setString(1, keyRing.passwordHash());
+            pstmt.setInt(2, kdfParams.getIterations());
+            pstmt.setString(3, kdfParams.encodedSalt());
+            pstmt.setString(4, keyRing.isEnveloped() ? keyRing.wrappedDataKey() : null);
+            pstmt.setString(5, keyRing.wrappedPreviousDataKey());
+            pstmt.setString(6, user.getId());
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Moves an account to a wrapped data key and to KDF parameters within
+     * {@link KdfPolicy}. A legacy account's data key first becomes the
+     * derivation its notes are already sealed under, and out-of-policy
+     * parameters only change how the data key is wrapped, so the login itself
+     * writes no note; the upgrade is one row update. If that update fails the
+     * credentials stay unsaved and the next save writes the row.
+     *
+     * MSC59-J: A derivation of the old password must not stay the data key,
+     * since anyone who learns that password could recompute it. Once a legacy
+     * account's row is stored, a {@link DataKeyRotation} moves its notes to a
+     * random data key in the background; if it is cut short, the next login
+     * finishes it.
+     */
+    private static void upgradeKeys(User user) {
+        KeyRing keyRing = user.getKeyRing();
+        KdfParams old = keyRing.getKdfParams();
+        boolean legacy = !keyRing.isEnveloped();
+        boolean outsidePolicy = !KdfPolicy.withinPolicy(old);
+        if (!legacy && !outsidePolicy) {
+            return;
+        }
+        long begin = System.nanoTime();
         try {
-            Path vault = Paths.get("data");
-            Files.createDirectories(vault);
-        } catch (IOException e) {
-            e.printStackTrace();
+            // Rewrapping under new parameters is another derivation; when the
+            // executor is busy the upgrade simply waits for a later login
+            KdfParams target = outsidePolicy ? KdfParams.fresh() : old;
+            KdfExecutor.shared().run(() -> {
+                user.setKdfParams(target);
+                return null;
+            });
+            int credentialsRevision = user.getCredentialsRevision();
+            storeKeys(user);
+            user.markCredentialsSaved(credentialsRevision);
+            SafeLogger.safeLogInfo(String.format("Upgraded account keys%s from %d to %d KDF iterations in %.0f ms",
+                    legacy ? " to a wrapped data key," : "", old.getIterations(),
+                    user.getKdfParams().getIterations(), (System.nanoTime() - begin) / 1e6));
+            if (legacy) {
+                try {
+                    DataKeyRotation.start(user);
+                } catch (IllegalStateException e) {
+                    // A concurrent sign on of the same account started it
+                    SafeLogger.safeLogInfo("Data key rotation not started: " + e.getMessage());
+                }
+            }
+        } catch (KdfBusyException e) {
+            SafeLogger.safeLogInfo("Account key upgrade deferred: " + e.getMessage());
+        } catch (SQLException | IOException | InvalidKeySpecException | NoSuchAlgorithmException e) {
+            System.err.println("Account key upgrade not stored: " + e.getMessage());
         }
-        
-        try (Connection conn = DriverManager.getConnection(DB_ADAPTER); Statement stat = conn.createStatement()){
-            stat.executeUpdate("CREATE TABLE IF NOT EXISTS users (id STRING PRIMARY KEY, username STRING NOT NULL UNIQUE, passwordHash STRING NOT NULL)");
+    }
+
+    /**
+     * Completes a rehash or data key rotation that stopped part way. Notes
+     * already moved were loaded with the current keys; the rest only open
+     * with the previous ones and are sealed again under the current keys.
+     *
+     * @param previousKeys keys of the notes not yet moved; destroyed here
+     */
+    private static void finishInterrupted(User user, KeyRing previousKeys, NoteStore store)
+            throws SQLException, IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+        Set<String> current = new HashSet<>();
+        for (Note note : user.getNotes()) {
+            current.add(note.getId());
+        }
+        List<String> remaining = new ArrayList<>();
+        for (String noteId : store.noteIds()) {
+            if (!current.contains(noteId)) {
+                remaining.add(noteId);
+            }
         }
+
+        try {
+            for (Note note : new VaultLoader().load(store, remaining, previousKeys, new VaultLoader.LoadStats())) {
+                note.markDirty();
+                user.addNote(note);
+            }
+        } finally {
+            previousKeys.destroy();
+        }
+        saveUser(user);
+        user.getKeyRing().forgetPreviousDataKey();
+        storeKeys(user);
+        SafeLogger.safeLogInfo("Finished interrupted key change, " + remaining.size() + " note(s) re-sealed");
     }
 
     /**
-     * This will have a single user's data to the table and all their notes to files
+     * This will save a single user's changes to the table and their notes to files.
+     * Only notes edited since the last save are sealed and written, only removed
+     * notes are deleted, and the user row is left alone unless the username or
+     * password changed.
      * @param user
+     * @return what was written
+     * Saves of the same user are serialized: the write-behind thread, bulk
+     * provisioning, key rotation and login may all save one user at once.
      * @throws UserException if user is null (ERR08-J) or if save operation fails
      */
-    public static void saveUser(User user) throws UserException {
+    public static SaveReport saveUser(User user) throws UserException {
         /* ERR08-J: Do not catch NullPointerExceptions - instead, use Objects.requireNonNull
         to fail-fast with a clear error message if user is null */
         Objects.requireNonNull(user, "User cannot be null");
-        
+
+        /* LCK08-J: Release the lock in a finally block */
+        ReentrantLock saveLock = saveLocks.computeIfAbsent(user.getId(), id -> new ReentrantLock());
+        saveLock.lock();
+        try {
+            return save(user);
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    /* Callers must hold the user's save lock */
+    private static SaveReport save(User user) throws UserException {
         /* IDS00-J: Validate username before it reaches any SQL operation */
         if (!isSqlSafe(user.getUsername())) {
             System.err.println("IDS00-J: SQL injection attempt detected in username during save");
             throw new UserException();
         }
 
+        SaveReport report = new SaveReport();
+
         // Tries to save user to the disk
         try {
-            // Make sure the tables actually exist
-            initTables();
-
-            // Convert user password to hash
-            String passwordHash = new String(Encryption.generateKeyBytes(user.getPassword()));
-
-            // Insert the user into the table if they arent already inserted
-            String sql = """
-                INSERT INTO users(id, username, passwordHash)
-                VALUES(?, ?, ?)
-                ON CONFLICT(id)
-                DO UPDATE SET username=excluded.username, passwordHash=excluded.passwordHash;
-            """;
-            try (Connection conn = DriverManager.getConnection(DB_ADAPTER); PreparedStatement pstmt = conn.prepareStatement(sql)){
-                pstmt.setString(1, user.getId());
-                pstmt.setString(2, user.getUsername());
-                pstmt.setString(3, passwordHash);
-                pstmt.executeUpdate();
+            // The row and the password hash only change with the credentials
+            int credentialsRevision = user.getCredentialsRevision();
+            if (user.hasUnsavedCredentials()) {
+                // Convert user password to hash, reusing the session's derived keys
+                KeyRing keyRing = user.getKeyRing();
+                String passwordHash = keyRing.passwordHash();
+                KdfParams kdfParams = keyRing.getKdfParams();
+
+                // Insert the user into the table if they arent already inserted
+                String sql = """
+                    INSERT INTO users(id, username, passwordHash, kdfIterations, kdfSalt, wrappedKey, prevWrappedKey)
+                    VALUES(?, ?, ?, ?, ?, ?, ?)
+                    ON CONFLICT(id)
+                    DO UPDATE SET username=excluded.username, passwordHash=excluded.passwordHash,
+                        kdfIterations=excluded.kdfIterations, kdfSalt=excluded.kdfSalt,
+                        wrappedKey=excluded.wrappedKey, prevWrappedKey=excluded.prevWrappedKey;
+                """;
+                try (ConnectionPool.Lease db = database.acquire()){
+                    PreparedStatement pstmt = db.prepare(sql);
+                    pstmt.setString(1, user.getId());
+                    pstmt.setString(2, user.getUsername());
+                    pstmt.setString(3, passwordHash);
+                    pstmt.setInt(4, kdfParams.getIterations());
+                    pstmt.setString(5, kdfParams.encodedSalt());
+                    pstmt.setString(6, keyRing.isEnveloped() ? keyRing.wrappedDataKey() : null);
+                    pstmt.setString(7, keyRing.wrappedPreviousDataKey());
+                    pstmt.executeUpdate();
+                }
+                user.markCredentialsSaved(credentialsRevision);
+                report.userRowWritten = true;
             }
 
             // Prep the note vault
-            Path vault = Paths.get("data", user.getId());
-            Files.createDirectories(vault);
+            Path vault = prepareVault(user.getId());
 
-            /* FIO00-J: Do not operate on files in shared directories
-            Verify the vault directory is a real directory and not a symbolic link
-            before writing any note files into it
-            */
-            BasicFileAttributes vaultAttrs = Files.readAttributes(vault, BasicFileAttributes.class,
-                                                                   LinkOption.NOFOLLOW_LINKS);
-            if (!vaultAttrs.isDirectory() || vaultAttrs.isSymbolicLink()) {
-                throw new IOException("FIO00-J: Note vault is not a secure directory: " + vault);
+            NoteStore store = openStore(vault);
+
+            // Snapshot what changed; anything edited after this stays dirty for the next save
+            Set<String> removed = user.getRemovedNoteIds();
+            List<Note> written = new ArrayList<>();
+            List<Integer> revisions = new ArrayList<>();
+            for (Note note : user.getNotes()) {
+                if (note.isDirty()) {
+                    // Taken before sealing, so an edit made meanwhile keeps the note dirty
+                    revisions.add(note.getRevision());
+                    written.add(note);
+                }
             }
+            boolean changing = !removed.isEmpty() || !written.isEmpty();
 
-            /* FIO01-J: Create files with appropriate access permissions
-            Restrict the vault directory to owner-only access after creation
-            */
-            NoteSaver.makeDirectorySecure(vault.toString());
+            // The title index must not outlive a crash between the record
+            // writes below and its rewrite, so it goes first
+            if (changing && !staleIndexes.containsKey(vault) && NoteIndex.invalidate(vault)) {
+                staleIndexes.put(vault, System.nanoTime());
+            }
+
+            // Save only the notes that changed since they were last written.
+            // Very large notes are streamed to disk in chunks; a layout that
+            // cannot stream leaves them dirty, and the save fails once the
+            // rest are durable.
+            Set<String> refused = new HashSet<>();
+            for(Note note : written){
+                if (NoteCodec.encodedLength(note) >= ChunkedNoteFile.THRESHOLD) {
+                    if (!store.streamsLargeNotes()) {
+                        refused.add(note.getId());
+                        continue;
+                    }
+                    report.bytesWritten += store.writeStreaming(note.getId(), note, user.getKeyRing());
+                } else {
+                    byte[] record = NoteSaver.sealRecord(user.getKeyRing(), note);
+                    store.write(note.getId(), record);
+                    report.bytesWritten += record.length;
+                }
+                report.notesWritten++;
+            }
+
+            // One durability barrier for every note written above; a note only
+            // counts as saved once it is on disk
+            store.sync();
+            for (int i = 0; i < written.size(); i++) {
+                if (!refused.contains(written.get(i).getId())) {
+                    written.get(i).markSaved(revisions.get(i));
+                }
+            }
 
             /* FIO02-J & EXP00-J: Detect and handle file-related errors,
-            and do not ignore the boolean return value from delete operations */
-            Files.list(vault).forEach(file -> {
+            and do not ignore the boolean return value from delete operations.
+            Records are only removed after every changed note is durable.
+            A false return means the note was never saved, so there was nothing to remove. */
+            Set<String> handled = new HashSet<>();
+            for (String noteId : removed) {
                 try {
-                    boolean deleted = Files.deleteIfExists(file);
-                    if (!deleted) {
-                        System.err.println("Failed to delete old note (file may not exist): " + file);
+                    if (store.delete(noteId)) {
+                        report.notesDeleted++;
                     }
+                    handled.add(noteId);
                 } catch (IOException e) {
-                    System.err.println("IO error while deleting old note: " + file + " - " + e.getMessage());
+                    System.err.println("IO error while deleting old note: " + noteId + " - " + e.getMessage());
                 }
-            });
+            }
+            if (report.notesDeleted > 0) {
+                store.sync();
+            }
+            user.markRemovalsSaved(handled);
+
+            // Reported before the index is written, so it never lists a note the store lacks
+            if (!refused.isEmpty()) {
+                throw new IOException(refused.size() + " note(s) of " + ChunkedNoteFile.THRESHOLD
+                        + " bytes or more cannot be saved in the " + VAULT_LAYOUT
+                        + " vault layout and are still unsaved; use the files or segments layout"
+                        + " (-Dnotes.vault.layout) or shorten them");
+            }
 
-            // Save all the users notes to files
-            for(Note note : user.getNotes()){
-                Path notePath = vault.resolve(note.getId() + ".ser");
-                NoteSaver.saveNote(user, note, notePath.toString());
+            // Titles and timestamps for the next login; bodies stay in their
+            // records. The index is rewritten whole, so while the vault keeps
+            // changing it is written at most once per INDEX_WRITE_NANOS, and
+            // closeVault writes what is left when the user's session ends.
+            // Until then a login rebuilds it from the notes.
+            Long staleSince = staleIndexes.get(vault);
+            if (staleSince != null ? System.nanoTime() - staleSince >= INDEX_WRITE_NANOS
+                    : !Files.exists(NoteIndex.pathFor(vault))) {
+                report.bytesWritten += NoteIndex.write(vault, user.getKeyRing(), user.getNotes());
+                report.indexWritten = true;
+                staleIndexes.remove(vault);
             }
         } catch (SQLException | IOException | InvalidKeySpecException | NoSuchAlgorithmException e) {
             // If there's a SQL error, throw a user exception saying the save couldn't be completed
             System.err.println(e.getMessage());
             throw new UserException();
         }
+
+        SafeLogger.safeLogInfo(report.toString());
+        return report;
+    }
+
+    /**
+     * Writes the title index of a user's vault if saves left it stale, so the
+     * next login decrypts one file instead of every note, then closes the
+     * vault's store (and so its segment compactor). Call when the user's
+     * last session ends, after their queued saves are flushed and before their
+     * keys are zeroed. A later save opens the store again. Failures are
+     * reported; a missing index is rebuilt on the next login.
+     *
+     * @param user the user whose session is ending
+     */
+    public static void closeVault(User user) {
+        Objects.requireNonNull(user, "User cannot be null");
+        Path vault = Paths.get("data", user.getId());
+        ReentrantLock saveLock = saveLocks.computeIfAbsent(user.getId(), id -> new ReentrantLock());
+        saveLock.lock();
+        try {
+            if (staleIndexes.containsKey(vault)) {
+                NoteIndex.write(vault, user.getKeyRing(), user.getNotes());
+                staleIndexes.remove(vault);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write note index: " + e.getMessage());
+        }
+        try {
+            closeStore(vault);
+        } catch (IOException e) {
+            System.err.println("Failed to close note store: " + e.getMessage());
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    /**
+     * Creates a user's vault directory if needed and checks that it is safe
+     * to write note files into.
+     *
+     * @param userId owner of the vault
+     * @return the vault directory
+     */
+    private static Path prepareVault(String userId) throws IOException {
+        Path vault = Paths.get("data", userId);
+        Files.createDirectories(vault);
+
+        /* FIO00-J: Do not operate on files in shared directories
+        Verify the vault directory is a real directory and not a symbolic link
+        before writing any note files into it
+        */
+        BasicFileAttributes vaultAttrs = Files.readAttributes(vault, BasicFileAttributes.class,
+                                                               LinkOption.NOFOLLOW_LINKS);
+        if (!vaultAttrs.isDirectory() || vaultAttrs.isSymbolicLink()) {
+            throw new IOException("FIO00-J: Note vault is not a secure directory: " + vault);
+        }
+
+        /* FIO01-J: Create files with appropriate access permissions
+        Restrict the vault directory to owner-only access after creation
+        */
+        NoteSaver.makeDirectorySecure(vault.toString());
+        return vault;
+    }
+
+    /**
+     * Receives progress of a {@link #saveUsers} call. Called from worker
+     * threads, so implementations must be thread-safe.
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * @param stage "derive", "insert" or "vaults"
+         * @param done users finished in this stage
+         * @param total users in this stage
+         */
+        void progress(String stage, int done, int total);
+    }
+
+    /**
+     * Outcome of one {@link #saveUsers} call. A user that fails is listed
+     * with the reason and does not stop the others.
+     */
+    public static final class BulkSaveReport {
+        private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        private int requested;
+        private int saved;
+        private long deriveNanos;
+        private long insertNanos;
+        private long vaultNanos;
+
+        public int getRequested() {
+            return requested;
+        }
+
+        /**
+         * @return users whose row is stored and whose vault is ready
+         */
+        public int getSaved() {
+            return saved;
+        }
+
+        /**
+         * @return one "username: reason" line per user that was not saved
+         */
+        public List<String> getFailures() {
+            synchronized (failures) {
+                return new ArrayList<>(failures);
+            }
+        }
+
+        private void fail(User user, String reason) {
+            failures.add((user == null ? "(null user)" : user.getUsername()) + ": " + reason);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Saved %d of %d user(s), %d failed [derive %.1f ms, insert %.1f ms, vaults %.1f ms]",
+                    saved, requested, failures.size(), deriveNanos / 1e6, insertNanos / 1e6, vaultNanos / 1e6);
+        }
+    }
+
+    /** Threads deriving keys and preparing vaults in {@link #saveUsers} (-Dnotes.provision.threads). */
+    static final int PROVISION_THREADS = Integer.getInteger("notes.provision.threads",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Saves many users at once, as when onboarding a department.
+     * @see #saveUsers(Collection, ProgressListener)
+     */
+    public static BulkSaveReport saveUsers(Collection<User> users) {
+        return saveUsers(users, null);
+    }
+
+    /**
+     * Saves many users at once. Password hashes are derived in parallel on
+     * {@link #PROVISION_THREADS} threads, every user row is written in one
+     * transaction, and vault directories and any notes are then prepared in
+     * parallel. A user that cannot be saved is reported in the result and
+     * the rest of the batch continues.
+     *
+     * @param users users to save
+     * @param listener receives progress per stage, or null
+     * @return what was saved and what failed
+     */
+    public static BulkSaveReport saveUsers(Collection<User> users, ProgressListener listener) {
+        /* ERR08-J: Fail fast with a clear message instead of a later NullPointerException */
+        Objects.requireNonNull(users, "Users cannot be null");
+        BulkSaveReport report = new BulkSaveReport();
+        report.requested = users.size();
+
+        // Checks that need no key: the same username twice would fail on
+        // the UNIQUE constraint anyway, but only after its derivation
+        List<User> accepted = new ArrayList<>();
+        Set<String> usernames = new HashSet<>();
+        for (User user : users) {
+            if (user == null) {
+                report.fail(null, "null user");
+            } else if (!isSqlSafe(user.getUsername())) {
+                /* IDS00-J: Validate username before it reaches any SQL operation */
+                report.fail(user, "username rejected");
+            } else if (!usernames.add(user.getUsername())) {
+                report.fail(user, "duplicate username in batch");
+            } else {
+                accepted.add(user);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, PROVISION_THREADS));
+        try {
+            long begin = System.nanoTime();
+            List<ProvisionedRow> rows = deriveRows(pool, accepted, report, listener);
+            report.deriveNanos = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            List<User> inserted = insertRows(rows, report, listener);
+            report.insertNanos = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            report.saved = prepareVaults(pool, inserted, report, listener);
+            report.vaultNanos = System.nanoTime() - begin;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            report.failures.add("batch interrupted; users not listed above may be unsaved");
+        } finally {
+            pool.shutdownNow();
+        }
+
+        SafeLogger.safeLogInfo(report.toString());
+        return report;
+    }
+
+    /* A user row ready to insert, with the revision it was derived for */
+    private static final class ProvisionedRow {
+        final User user;
+        final int credentialsRevision;
+        final String passwordHash;
+        final KdfParams kdfParams;
+        final String wrappedKey;
+        final String previousWrappedKey;
+
+        ProvisionedRow(User user, int credentialsRevision, KeyRing keyRing)
+                throws InvalidKeySpecException, NoSuchAlgorithmException {
+            this.user = user;
+            this.credentialsRevision = credentialsRevision;
+            this.passwordHash = keyRing.passwordHash();
+            this.kdfParams = keyRing.getKdfParams();
+            this.wrappedKey = keyRing.isEnveloped() ? keyRing.wrappedDataKey() : null;
+            this.previousWrappedKey = keyRing.wrappedPreviousDataKey();
+        }
+    }
+
+    private static List<ProvisionedRow> deriveRows(ExecutorService pool, List<User> users, BulkSaveReport report,
+                                                   ProgressListener listener) throws InterruptedException {
+        AtomicInteger done = new AtomicInteger();
+        List<Future<ProvisionedRow>> futures = new ArrayList<>();
+        for (User user : users) {
+            futures.add(pool.submit(() -> {
+                try {
+                    int credentialsRevision = user.getCredentialsRevision();
+                    // The one PBKDF2 derivation of this user
+                    return new ProvisionedRow(user, credentialsRevision, user.getKeyRing());
+                } finally {
+                    progress(listener, "derive", done.incrementAndGet(), users.size());
+                }
+            }));
+        }
+        List<ProvisionedRow> rows = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                rows.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                report.fail(users.get(i), "key derivation failed: " + e.getCause());
+            }
+        }
+        return rows;
+    }
+
+    /* Every row in one transaction; a row the database rejects only rolls back its own statement */
+    private static List<User> insertRows(List<ProvisionedRow> rows, BulkSaveReport report, ProgressListener listener) {
+        List<User> inserted = new ArrayList<>();
+        if (rows.isEmpty()) {
+            return inserted;
+        }
+        String sql = """
+            INSERT INTO users(id, username, passwordHash, kdfIterations, kdfSalt, wrappedKey, prevWrappedKey)
+            VALUES(?, ?, ?, ?, ?, ?, ?)
+            ON CONFLICT(id)
+            DO UPDATE SET username=excluded.username, passwordHash=excluded.passwordHash,
+                kdfIterations=excluded.kdfIterations, kdfSalt=excluded.kdfSalt,
+                wrappedKey=excluded.wrappedKey, prevWrappedKey=excluded.prevWrappedKey;
+        """;
+        List<ProvisionedRow> written = new ArrayList<>();
+        int done = 0;
+        try (ConnectionPool.Lease db = database.acquire()) {
+            Connection connection = db.connection();
+            connection.setAutoCommit(false);
+            PreparedStatement pstmt = db.prepare(sql);
+            for (ProvisionedRow row : rows) {
+                pstmt.setString(1, row.user.getId());
+                pstmt.setString(2, row.user.getUsername());
+                pstmt.setString(3, row.passwordHash);
+                pstmt.setInt(4, row.kdfParams.getIterations());
+                pstmt.setString(5, row.kdfParams.encodedSalt());
+                pstmt.setString(6, row.wrappedKey);
+                pstmt.setString(7, row.previousWrappedKey);
+                try {
+                    pstmt.executeUpdate();
+                    written.add(row);
+                } catch (SQLException e) {
+                    report.fail(row.user, "row rejected: " + e.getMessage());
+                }
+                progress(listener, "insert", ++done, rows.size());
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            // Nothing in the transaction was committed; rows rejected on
+            // their own are already reported
+            written.addAll(rows.subList(done, rows.size()));
+            for (ProvisionedRow row : written) {
+                report.fail(row.user, "batch insert failed: " + e.getMessage());
+            }
+            return inserted;
+        }
+        for (ProvisionedRow row : written) {
+            row.user.markCredentialsSaved(row.credentialsRevision);
+            inserted.add(row.user);
+        }
+        return inserted;
+    }
+
+    /* Vault directories, plus any notes the new users already have */
+    private static int prepareVaults(ExecutorService pool, List<User> users, BulkSaveReport report,
+                                     ProgressListener listener) throws InterruptedException {
+        AtomicInteger done = new AtomicInteger();
+        List<Future<Void>> futures = new ArrayList<>();
+        for (User user : users) {
+            futures.add(pool.submit(() -> {
+                try {
+                    prepareVault(user.getId());
+                    if (!user.getNotes().isEmpty() || !user.getRemovedNoteIds().isEmpty()) {
+                        saveUser(user);
+                    }
+                    return null;
+                } finally {
+                    progress(listener, "vaults", done.incrementAndGet(), users.size());
+                }
+            }));
+        }
+        int saved = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+                saved++;
+            } catch (ExecutionException e) {
+                report.fail(users.get(i), "row saved, vault not ready: " + e.getCause());
+            }
+        }
+        return saved;
+    }
+
+    private static void progress(ProgressListener listener, String stage, int done, int total) {
+        if (listener != null) {
+            listener.progress(stage, done, total);
+        }
     }
 
     /**
@@ -166,9 +955,11 @@ public class UserSaver {
      * @param password
      * @return
      * @throws UserException
+     * @throws KdfBusyException if too many sign-ons are waiting for key derivation; retry later
      * @throws SecurityException if username or password is null (ERR08-J)
      */
-    public static User loadUser(String username, String password) throws UserException, SecurityException {
+    public static User loadUser(String username, String password)
+            throws UserException, KdfBusyException, SecurityException {
         /* ERR08-J: Do not catch NullPointerExceptions - instead, check for null explicitly
         Use Objects.requireNonNull to provide clear error messages instead of allowing
         NullPointerException to be thrown */
@@ -182,70 +973,179 @@ public class UserSaver {
         }
 
         try {
-            // Make sure tables exist, even if just to query something that doesn't exist
-            initTables();
-
             // Retrieve the user fields
             String sql = "SELECT * FROM users WHERE username=?;";
 
-            try (Connection conn = DriverManager.getConnection(DB_ADAPTER); PreparedStatement pstmt = conn.prepareStatement(sql)){
+            String userID;
+            String passwordHashFromDB;
+            KeyRing keyRing;
+            KdfParams previousKdf;
+            StartupProfiler.Phase lookup = StartupProfiler.begin("user lookup");
+            try (ConnectionPool.Lease db = database.acquire()){
+                PreparedStatement pstmt = db.prepare(sql);
                 pstmt.setString(1, username);
 
-                ResultSet rs = pstmt.executeQuery();
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    // Get results and instantiate new user object from it
+                    if(!rs.next())
+                        throw new UserException();
 
-                // Get results and instantiate new user object from it
-                if(!rs.next())
-                    throw new UserException();
+                    userID = rs.getString("id");
+                    passwordHashFromDB = rs.getString("passwordHash");
+                    KdfParams kdfParams = KdfParams.fromColumns(getInteger(rs, "kdfIterations"), rs.getString("kdfSalt"));
+                    String wrappedKey = rs.getString("wrappedKey");
+                    keyRing = wrappedKey == null ? new KeyRing(password, kdfParams)
+                            : KeyRing.open(password, kdfParams, wrappedKey, rs.getString("prevWrappedKey"));
+                    // Only set on rows whose notes were being re-sealed under
+                    // new parameters before accounts had data keys
+                    Integer previousIterations = getInteger(rs, "prevKdfIterations");
+                    previousKdf = previousIterations == null ? null
+                            : KdfParams.fromColumns(previousIterations, rs.getString("prevKdfSalt"));
+                }
+            } finally {
+                lookup.end();
+            }
 
-                String userID = rs.getString("id");
-                String passwordHashFromDB = rs.getString("passwordHash");
+            // Create the user up front so the single derivation below seeds
+            // the key ring that decrypts every note in the vault
+            User user = new User(userID, username, password, keyRing);
 
-                // Compare the password hash to their supplied password
-                String passwordHashFromArgs = new String(Encryption.generateKeyBytes(password));
+            // Compare the password hash to their supplied password. The
+            // derivation runs on the bounded KDF executor, which refuses
+            // sign-ons outright once too many are waiting
+            String passwordHashFromArgs;
+            StartupProfiler.Phase derivation = StartupProfiler.begin("password key derivation");
+            try {
+                passwordHashFromArgs = KdfExecutor.shared().run(user.getKeyRing()::passwordHash);
+            } finally {
+                derivation.end();
+            }
 
-                if(!passwordHashFromArgs.equals(passwordHashFromDB))
-                    throw new SecurityException("Invalid password");
+            if(!passwordHashFromArgs.equals(passwordHashFromDB)) {
+                user.getKeyRing().destroy();
+                throw new SecurityException("Invalid password");
+            }
 
-                // Create the actual user
-                User user = new User(userID, username, password);
-                
-                // Load the notes for this specific user
-                Path vault = Paths.get("data", user.getId());
-                Files.createDirectories(vault);
 
-                /* FIO00-J: Do not operate on files in shared directories
-                Verify the vault directory is a real directory and not a symbolic link
-                before reading any note files from it
-                */
-                BasicFileAttributes vaultAttrs = Files.readAttributes(vault, BasicFileAttributes.class,
-                                                                       LinkOption.NOFOLLOW_LINKS);
-                if (!vaultAttrs.isDirectory() || vaultAttrs.isSymbolicLink()) {
-                    throw new IOException("FIO00-J: Note vault is not a secure directory: " + vault);
-                }
+            // Load the notes for this specific user
+            Path vault = Paths.get("data", user.getId());
+            Files.createDirectories(vault);
+
+            /* FIO00-J: Do not operate on files in shared directories
+            Verify the vault directory is a real directory and not a symbolic link
+            before reading any note files from it
+            */
+            BasicFileAttributes vaultAttrs = Files.readAttributes(vault, BasicFileAttributes.class,
+                                                                   LinkOption.NOFOLLOW_LINKS);
+            if (!vaultAttrs.isDirectory() || vaultAttrs.isSymbolicLink()) {
+                throw new IOException("FIO00-J: Note vault is not a secure directory: " + vault);
+            }
 
-                /* FIO01-J: Create files with appropriate access permissions
-                Ensure the vault directory has owner-only access before loading notes from it
-                */
-                NoteSaver.makeDirectorySecure(vault.toString());
+            /* FIO01-J: Create files with appropriate access permissions
+            Ensure the vault directory has owner-only access before loading notes from it
+            */
+            NoteSaver.makeDirectorySecure(vault.toString());
 
-                Files.list(vault).forEach(file -> {
-                    try {
-                        Note note = NoteSaver.loadNote(user, file.toString());
+            NoteStore store;
+            StartupProfiler.Phase opening = StartupProfiler.begin("vault open");
+            try {
+                store = openStore(vault);
+            } finally {
+                opening.end();
+            }
+
+            // Only the title index is decrypted at login; each body is
+            // decrypted the first time its content is read. During an
+            // unfinished key change the vault holds records under two keys,
+            // so everything is loaded instead.
+            KeyRing previousKeys = previousKdf != null ? new KeyRing(password, previousKdf) : keyRing.previousKeys();
+            StartupProfiler.Phase loading = StartupProfiler.begin("vault load");
+            try {
+                long indexStart = System.nanoTime();
+                List<Note> indexed = previousKeys == null ? NoteIndex.read(vault, store, user.getKeyRing()) : null;
+                if (indexed != null) {
+                    for (Note note : indexed) {
+                        user.addNote(note);
+                    }
+                    SafeLogger.safeLogInfo(String.format("Vault index: %d note title(s) in %.1f ms",
+                            indexed.size(), (System.nanoTime() - indexStart) / 1e6));
+                } else {
+                    // No usable index: reads and decryption overlap in a bounded pipeline,
+                    // and notes come back in a fixed order no matter how the threads interleave
+                    VaultLoader.LoadStats stats = new VaultLoader.LoadStats();
+                    for (Note note : new VaultLoader().load(store, user.getKeyRing(), stats)) {
                         user.addNote(note);
-                    } catch (IOException | SecurityException e) {
-                        System.err.println("Failed to load note: " + file);
                     }
-                });
+                    SafeLogger.safeLogInfo(stats.toString());
 
-                // Return the resulting construction
-                return user;
+                    // Rebuild the index so the next login can skip the bodies
+                    if (previousKeys == null) {
+                        try {
+                            NoteIndex.write(vault, user.getKeyRing(), user.getNotes());
+                        } catch (IOException e) {
+                            System.err.println("Failed to write note index: " + e.getMessage());
+                        }
+                    }
+                }
+            } finally {
+                loading.end();
+            }
+
+            // The row just read matches these credentials
+            user.markCredentialsSaved(user.getCredentialsRevision());
+
+            if (previousKeys != null) {
+                finishInterrupted(user, previousKeys, store);
             }
+            // Bring the account's keys in line with this machine's policy
+            StartupProfiler.Phase upgrade = StartupProfiler.begin("key upgrade");
+            try {
+                upgradeKeys(user);
+            } finally {
+                upgrade.end();
+            }
+
+            // Return the resulting construction
+            return user;
+        } catch (KdfBusyException e) {
+            throw e;
         } catch(SQLException | IOException | InvalidKeySpecException | NoSuchAlgorithmException e){
             e.printStackTrace();
             throw new UserException();
         }
     }
 
+    /**
+     * Checks the password of a user who is already loaded, as when they sign
+     * on again while another session holds their notes. Nothing is read from
+     * disk; the derivation runs on the bounded KDF executor, as in
+     * {@link #loadUser}.
+     *
+     * @param user the resident user
+     * @param password the password given at sign on
+     * @throws UserException if the derivation failed or the user's keys were zeroed meanwhile
+     * @throws KdfBusyException if too many sign-ons are waiting for key derivation; retry later
+     * @throws SecurityException if the password does not match
+     */
+    public static void verifyPassword(User user, String password)
+            throws UserException, KdfBusyException, SecurityException {
+        Objects.requireNonNull(password, "Password cannot be null");
+        boolean matches;
+        StartupProfiler.Phase derivation = StartupProfiler.begin("password key derivation");
+        try {
+            matches = KdfExecutor.shared().run(() -> user.getKeyRing().matchesPassword(password));
+        } catch (KdfBusyException e) {
+            throw e;
+        } catch (IOException | InvalidKeySpecException | NoSuchAlgorithmException | IllegalStateException e) {
+            throw new UserException();
+        } finally {
+            derivation.end();
+        }
+        if (!matches) {
+            throw new SecurityException("Invalid password");
+        }
+    }
+
     /**
      * This function will load every user from the disk and return it as a list. It is a debug function because it will bypass passwords
      * @return
@@ -255,14 +1155,9 @@ public class UserSaver {
         ArrayList<String> usernames = new ArrayList<>();
 
         try {
-            // Make sure there is SOMETHING to query
-            initTables();
-            
             // Query for all the users
 
-            try (Connection conn = DriverManager.getConnection(DB_ADAPTER); Statement stat = conn.createStatement()){
-                ResultSet rs = stat.executeQuery("SELECT username FROM users");
-    
+            try (ConnectionPool.Lease db = database.acquire(); ResultSet rs = db.prepare("SELECT username FROM users").executeQuery()){
                 // Load each user
                 while (rs.next()) {
                     usernames.add(rs.getString("username"));
@@ -0,0 +1,877 @@
+package org.example.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.example.Note;
+import org.example.User;
+
+/**
+ * Micro-benchmarks for the vault persistence path.
+ * Run with {@code java -cp <app classpath> org.example.persistence.VaultBenchmark [scenario]}.
+ * Every scenario warms up before it measures and prints its own result table.
+ *
+ * Scenarios:
+ *  iv   - per-IV cost and tail latency with 16 concurrent saving threads
+ *  read   - note file read path, byte-at-a-time stream vs FileChannel, for 1 KB, 100 KB and 10 MB notes
+ *  format - seal/open throughput of the v1 (CBC + HMAC) and v2 (GCM) formats for 4 KB and 1 MB notes
+ *  codec  - bytes per note and encode/decode ops/sec, NoteCodec vs Java serialization
+ *  commit - time to durably save 200 notes: unsynced writes, per-file fsync, group commit, segments
+ *  login  - time to first prompt for a 10,000 note vault: decrypt every note vs read the title index
+ *  compress - compression ratio and CPU cost per content type, and its effect on durable save time
+ *  chunked - save/open time and bytes allocated for 16 MB and 64 MB notes, one v2 record vs v3 chunks
+ *  writebehind - edit-to-prompt latency for 100 and 5,000 note vaults, synchronous save vs write-behind
+ *  crypto - ns and bytes allocated per 1 KB seal/open, getInstance per call vs the pooled CryptoContext
+ *  logins - user row lookups and full logins per second, connection per query vs the pooled connections
+ */
+public class VaultBenchmark {
+
+    /**
+     * A single measured operation.
+     */
+    @FunctionalInterface
+    interface Op {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "all";
+        boolean all = scenario.equals("all");
+
+        if (all || scenario.equals("iv")) {
+            ivBenchmark();
+        }
+        if (all || scenario.equals("read")) {
+            readBenchmark();
+        }
+        if (all || scenario.equals("format")) {
+            formatBenchmark();
+        }
+        if (all || scenario.equals("codec")) {
+            codecBenchmark();
+        }
+        if (all || scenario.equals("commit")) {
+            commitBenchmark();
+        }
+        if (all || scenario.equals("login")) {
+            loginBenchmark();
+        }
+        if (all || scenario.equals("compress")) {
+            compressBenchmark();
+        }
+        if (all || scenario.equals("chunked")) {
+            chunkedBenchmark();
+        }
+        if (all || scenario.equals("writebehind")) {
+            writeBehindBenchmark();
+        }
+        if (all || scenario.equals("crypto")) {
+            cryptoBenchmark();
+        }
+        if (all || scenario.equals("logins")) {
+            loginsBenchmark();
+        }
+    }
+
+    /**
+     * Compares the old per-note {@code SecureRandom.getInstanceStrong().generateSeed(16)}
+     * with {@link IvGenerator#nextIv(int)} under 16 concurrent threads.
+     */
+    static void ivBenchmark() throws Exception {
+        final int threads = 16;
+        System.out.println("== IV generation, " + threads + " threads ==");
+        printHeader();
+
+        Op legacy = () -> {
+            try {
+                SecureRandom.getInstanceStrong().generateSeed(16);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        Op pooled = () -> IvGenerator.nextIv(16);
+
+        report("getInstanceStrong", runConcurrent(threads, 200, 50, legacy));
+        report("IvGenerator", runConcurrent(threads, 200_000, 20_000, pooled));
+    }
+
+    /**
+     * Compares {@link NoteSaver#readStreamSafely} plus the three array copies
+     * loadNote used to make with {@link NoteFileReader#read(Path)}, and times
+     * a read followed by decryption, which is what loading a note costs.
+     */
+    static void readBenchmark() throws Exception {
+        System.out.println("== Note file read path ==");
+        printHeader();
+        Path dir = Files.createTempDirectory("vault-bench");
+        KeyRing keyRing = new KeyRing("benchmark-password");
+        try {
+            int[] sizes = {1024, 100 * 1024, 10 * 1024 * 1024};
+            for (int size : sizes) {
+                Path file = dir.resolve(size + ".ser");
+                writeSyntheticNoteFile(file, size);
+                int iterations = size >= 1 << 20 ? 3 : (size >= 100 * 1024 ? 50 : 2000);
+
+                Op legacy = () -> {
+                    try (FileInputStream in = new FileInputStream(file.toFile())) {
+                        byte[] data = NoteSaver.readStreamSafely(in);
+                        Arrays.copyOfRange(data, 0, 32);
+                        Arrays.copyOfRange(data, 32, 48);
+                        int len = ByteBuffer.wrap(data, 48, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+                        Arrays.copyOfRange(data, 52, 52 + len);
+                    }
+                };
+                Op channel = () -> NoteFileReader.read(file);
+
+                byte[] plain = new byte[size];
+                new Random(size).nextBytes(plain);
+                Path sealed = dir.resolve(size + "-v2.ser");
+                Files.write(sealed, NoteSaver.sealNote(keyRing, plain));
+                Op open = () -> NoteSaver.openNote(keyRing, NoteFileReader.read(sealed));
+
+                report("stream " + label(size), runSingle(iterations, Math.max(1, iterations / 10), legacy));
+                report("channel " + label(size), runSingle(iterations * 10, iterations, channel));
+                report("read+open " + label(size), runSingle(iterations * 2, iterations, open));
+            }
+        } finally {
+            keyRing.destroy();
+            deleteTree(dir);
+        }
+    }
+
+    /**
+     * Measures encrypt and decrypt throughput of both on-disk formats in memory,
+     * so file system noise does not hide the cost of the extra HMAC pass.
+     */
+    static void formatBenchmark() throws Exception {
+        System.out.println("== Vault format throughput ==");
+        System.out.printf("%-22s %14s %14s%n", "variant", "seal MB/s", "open MB/s");
+        KeyRing keyRing = new KeyRing("benchmark-password");
+        try {
+            for (int size : new int[] {4 * 1024, 1024 * 1024}) {
+                byte[] plain = new byte[size];
+                new Random(size).nextBytes(plain);
+                int iterations = Math.max(20, (64 << 20) / size);
+
+                byte[] v1 = sealV1(keyRing, plain);
+                NoteFileReader.NoteFile v1File = parseImage(v1);
+                double v1Seal = throughput(size, runSingle(iterations, iterations / 4, () -> sealV1(keyRing, plain)));
+                double v1Open = throughput(size, runSingle(iterations, iterations / 4, () -> NoteSaver.openNote(keyRing, v1File)));
+
+                byte[] v2 = NoteSaver.sealNote(keyRing, plain);
+                NoteFileReader.NoteFile v2File = parseImage(v2);
+                double v2Seal = throughput(size, runSingle(iterations, iterations / 4, () -> NoteSaver.sealNote(keyRing, plain)));
+                double v2Open = throughput(size, runSingle(iterations, iterations / 4, () -> NoteSaver.openNote(keyRing, v2File)));
+
+                System.out.printf("%-22s %14.1f %14.1f%n", "v1 CBC+HMAC " + label(size), v1Seal, v1Open);
+                System.out.printf("%-22s %14.1f %14.1f%n", "v2 GCM " + label(size), v2Seal, v2Open);
+            }
+        } finally {
+            keyRing.destroy();
+        }
+    }
+
+    /**
+     * Compares the binary note codec with ObjectOutputStream/ObjectInputStream
+     * for a short note and a typical 4 KB note.
+     */
+    static void codecBenchmark() throws Exception {
+        System.out.println("== Note payload codec ==");
+        System.out.printf("%-22s %10s %14s %14s%n", "variant", "bytes", "encode ops/s", "decode ops/s");
+        for (int contentLength : new int[] {200, 4 * 1024}) {
+            Note note = new Note("Weekly sync " + contentLength, sampleText(contentLength));
+
+            byte[] serialized = serialize(note);
+            double serEncode = opsPerSecond(runSingle(20_000, 5_000, () -> serialize(note)));
+            double serDecode = opsPerSecond(runSingle(20_000, 5_000,
+                    () -> NoteSaver.readLegacyNote(ByteBuffer.wrap(serialized))));
+
+            byte[] encoded = NoteCodec.encode(note);
+            double codecEncode = opsPerSecond(runSingle(20_000, 5_000, () -> NoteCodec.encode(note)));
+            double codecDecode = opsPerSecond(runSingle(20_000, 5_000,
+                    () -> NoteCodec.decode(ByteBuffer.wrap(encoded))));
+
+            System.out.printf("%-22s %10d %14.0f %14.0f%n", "serialization " + label(contentLength),
+                    serialized.length, serEncode, serDecode);
+            System.out.printf("%-22s %10d %14.0f %14.0f%n", "NoteCodec " + label(contentLength),
+                    encoded.length, codecEncode, codecDecode);
+        }
+    }
+
+    /**
+     * Saves 200 sealed 1 KB notes the way each write path would: plain
+     * unsynced writes, temp file + fsync + rename + directory fsync per note,
+     * the same through {@link GroupCommitWriter}, and appends to a
+     * {@link SegmentNoteStore} with one sync.
+     */
+    static void commitBenchmark() throws Exception {
+        System.out.println("== Durable save of 200 x 1 KB notes ==");
+        KeyRing keyRing = new KeyRing("benchmark-password");
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            records.add(NoteSaver.sealRecord(keyRing, new Note("note " + i, sampleText(1024))));
+        }
+        Path dir = Files.createTempDirectory("commit-bench");
+        GroupCommitWriter writer = new GroupCommitWriter(GroupCommitWriter.COMMIT_WINDOW_MICROS,
+                GroupCommitWriter.MAX_BATCH);
+        try {
+            System.out.printf("%-24s %12s %12s%n", "variant", "ms/save", "fsyncs/save");
+            long[] plain = runSingle(10, 2, () -> {
+                for (int i = 0; i < records.size(); i++) {
+                    try (OutputStream out = Files.newOutputStream(dir.resolve("plain-" + i + ".ser"))) {
+                        out.write(records.get(i));
+                    }
+                }
+            });
+            System.out.printf("%-24s %12.1f %12d%n", "unsynced (old)", mean(plain) / 1e6, 0);
+
+            long[] perFile = runSingle(5, 1, () -> {
+                for (int i = 0; i < records.size(); i++) {
+                    Path target = dir.resolve("single-" + i + ".ser");
+                    Path temp = GroupCommitWriter.tempPath(target);
+                    try (FileChannel channel = FileChannel.open(temp,
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                        channel.write(ByteBuffer.wrap(records.get(i)));
+                        channel.force(false);
+                    }
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    GroupCommitWriter.syncDirectory(dir);
+                }
+            });
+            System.out.printf("%-24s %12.1f %12d%n", "fsync per note", mean(perFile) / 1e6, 2 * records.size());
+
+            long[] grouped = runSingle(5, 1, () -> {
+                List<CompletableFuture<Void>> pending = new ArrayList<>();
+                for (int i = 0; i < records.size(); i++) {
+                    pending.add(writer.submit(dir.resolve("group-" + i + ".ser"), records.get(i)));
+                }
+                for (CompletableFuture<Void> done : pending) {
+                    GroupCommitWriter.await(done);
+                }
+            });
+            System.out.printf("%-24s %12.1f %12s%n", "group commit", mean(grouped) / 1e6, "~" + records.size());
+            System.out.println(writer);
+
+            Path segmentDir = Files.createDirectory(dir.resolve("segments"));
+            try (SegmentNoteStore store = SegmentNoteStore.open(segmentDir)) {
+                long[] segmented = runSingle(5, 1, () -> {
+                    for (int i = 0; i < records.size(); i++) {
+                        store.write("note-" + i, records.get(i));
+                    }
+                    store.sync();
+                });
+                System.out.printf("%-24s %12.1f %12d%n", "segment append + sync", mean(segmented) / 1e6, 1);
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /**
+     * Builds a vault of 10,000 sealed 1 KB notes and measures what a login
+     * has to do before the first prompt: decrypt every record through the
+     * {@link VaultLoader} pipeline, or decrypt only the {@link NoteIndex}.
+     */
+    static void loginBenchmark() throws Exception {
+        System.out.println("== Login, 10,000 x 1 KB notes ==");
+        KeyRing keyRing = new KeyRing("benchmark-password");
+        Path dir = Files.createTempDirectory("login-bench");
+        try {
+            FileNoteStore store = new FileNoteStore(dir);
+            List<Note> notes = new ArrayList<>();
+            for (int i = 0; i < 10_000; i++) {
+                Note note = new Note("note " + i, sampleText(1024));
+                store.write(note.getId(), NoteSaver.sealRecord(keyRing, note));
+                notes.add(note);
+            }
+            store.sync();
+            int indexBytes = NoteIndex.write(dir, keyRing, notes);
+
+            System.out.printf("%-24s %12s%n", "variant", "ms/login");
+            long[] full = runSingle(3, 1, () -> new VaultLoader().load(store, keyRing, new VaultLoader.LoadStats()));
+            System.out.printf("%-24s %12.1f%n", "decrypt every note", mean(full) / 1e6);
+            long[] indexed = runSingle(20, 5, () -> NoteIndex.read(dir, store, keyRing));
+            System.out.printf("%-24s %12.1f%n", "title index (" + label(indexBytes) + ")", mean(indexed) / 1e6);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /**
+     * Measures {@link PayloadCompressor} on meeting notes, a pasted stack
+     * trace and incompressible text: ratio, CPU time per payload, and the
+     * time to seal and durably write 200 such notes with and without it.
+     */
+    static void compressBenchmark() throws Exception {
+        System.out.println("== Pre-encryption compression ==");
+        Random random = new Random(42);
+        String[][] samples = {
+            {"meeting log 8 KB", meetingLog(random, 8 * 1024)},
+            {"stack trace 16 KB", stackTrace(random, 16 * 1024)},
+            {"random 8 KB", randomText(random, 8 * 1024)},
+            {"short 300 B", meetingLog(random, 300)},
+        };
+        KeyRing keyRing = new KeyRing("benchmark-password");
+        System.out.printf("%-20s %7s %11s %11s %14s %14s%n", "content", "ratio", "pack us", "unpack us",
+                "save ms (off)", "save ms (on)");
+        for (String[] sample : samples) {
+            byte[] encoded = NoteCodec.encode(new Note("sample", sample[1]));
+            PayloadCompressor.Packed packed = PayloadCompressor.pack(encoded);
+            double ratio = (double) encoded.length / packed.bytes.length;
+            long[] pack = runSingle(2_000, 500, () -> PayloadCompressor.pack(encoded));
+            long[] unpack = runSingle(2_000, 500,
+                    () -> PayloadCompressor.unpack(ByteBuffer.wrap(packed.bytes), packed.flags));
+
+            double saveOff = mean(durableSave(keyRing, encoded, false)) / 1e6;
+            double saveOn = mean(durableSave(keyRing, encoded, true)) / 1e6;
+            System.out.printf("%-20s %6.2fx %11.1f %11.1f %14.1f %14.1f%n", sample[0], ratio,
+                    mean(pack) / 1e3, mean(unpack) / 1e3, saveOff, saveOn);
+        }
+    }
+
+    /**
+     * Saves and opens one very large note as a single v2 record and as a
+     * chunked v3 record, reporting time and the bytes the calling thread
+     * allocated beyond the note itself.
+     */
+    static void chunkedBenchmark() throws Exception {
+        System.out.println("== Very large notes, v2 record vs v3 chunks ==");
+        KeyRing keyRing = new KeyRing("benchmark-password");
+        Path dir = Files.createTempDirectory("chunked-bench");
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+        System.out.printf("%-14s %-8s %10s %14s %10s %14s%n", "note", "format", "save ms", "save alloc",
+                "open ms", "open alloc");
+        try {
+            for (int megabytes : new int[] {16, 64}) {
+                Note note = new Note("large", randomText(new Random(7), megabytes << 20));
+                Path v2 = dir.resolve("v2" + FileNoteStore.EXTENSION);
+                Path v3 = dir.resolve("v3" + FileNoteStore.EXTENSION);
+                for (boolean chunked : new boolean[] {false, true}) {
+                    Path file = chunked ? v3 : v2;
+                    Op save = chunked
+                            ? () -> ChunkedNoteFile.write(keyRing, note, file)
+                            : () -> GroupCommitWriter.shared().write(file, NoteSaver.sealRecord(keyRing, note));
+                    Op open = () -> NoteSaver.openRecord(keyRing, NoteFileReader.read(file));
+                    save.run();
+                    open.run();
+
+                    long allocated = threads.getThreadAllocatedBytes(thread);
+                    long begin = System.nanoTime();
+                    save.run();
+                    long saveNanos = System.nanoTime() - begin;
+                    long saveAlloc = threads.getThreadAllocatedBytes(thread) - allocated;
+
+                    allocated = threads.getThreadAllocatedBytes(thread);
+                    begin = System.nanoTime();
+                    open.run();
+                    long openNanos = System.nanoTime() - begin;
+                    // The decoded note's own String is counted here in both formats
+                    long openAlloc = threads.getThreadAllocatedBytes(thread) - allocated;
+
+                    System.out.printf("%-14s %-8s %10.1f %14s %10.1f %14s%n", megabytes + " MB text",
+                            chunked ? "v3" : "v2", saveNanos / 1e6, label(saveAlloc), openNanos / 1e6,
+                            label(openAlloc));
+                }
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /**
+     * Measures how long an edit keeps the user from the prompt: a full
+     * {@link UserSaver#saveUser(User)} after every edit, or handing the edit
+     * to the {@link WriteBehindSaver}. Vaults are created under {@code data/}
+     * and removed afterwards.
+     */
+    static void writeBehindBenchmark() throws Exception {
+        System.out.println("== Edit-to-prompt latency ==");
+        System.out.printf("%-14s %-14s %10s %10s %10s%n", "vault", "save", "p50 us", "p99 us", "max us");
+        for (int size : new int[] {100, 5_000}) {
+            User user = new User("benchmark", "benchmark-password");
+            // No user row: only the note vault is measured
+            user.markCredentialsSaved(user.getCredentialsRevision());
+            List<Note> notes = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                Note note = new Note("note " + i, sampleText(1024));
+                user.addNote(note);
+                notes.add(note);
+            }
+            try {
+                UserSaver.saveUser(user);
+                Random random = new Random(42);
+                long[] sync = runSingle(50, 5, () -> {
+                    notes.get(random.nextInt(size)).setContent(sampleText(1024));
+                    UserSaver.saveUser(user);
+                });
+                long[] behind = runSingle(500, 50, () -> {
+                    Note note = notes.get(random.nextInt(size));
+                    note.setContent(sampleText(1024));
+                    WriteBehindSaver.shared().noteChanged(user, note.getId());
+                });
+                WriteBehindSaver.shared().flush();
+                System.out.printf("%-14s %-14s %10.1f %10.1f %10.1f%n", size + " notes", "synchronous",
+                        percentile(sync, 50) / 1e3, percentile(sync, 99) / 1e3, sync[sync.length - 1] / 1e3);
+                System.out.printf("%-14s %-14s %10.1f %10.1f %10.1f%n", size + " notes", "write-behind",
+                        percentile(behind, 50) / 1e3, percentile(behind, 99) / 1e3,
+                        behind[behind.length - 1] / 1e3);
+            } finally {
+                deleteTree(Path.of("data", user.getId()));
+            }
+        }
+        System.out.println(WriteBehindSaver.shared());
+    }
+
+    /**
+     * Compares the time and heap allocation of one seal or open when every
+     * call builds its own Cipher and Mac with getInstance, as the vault used
+     * to, against the pooled instances of {@link CryptoContext}.
+     */
+    static void cryptoBenchmark() throws Exception {
+        System.out.println("== Cipher/Mac reuse, 1 KB payload ==");
+        KeyRing keyRing = new KeyRing("benchmark-password");
+        byte[] plain = NoteCodec.encode(new Note("crypto", sampleText(1024)));
+        NoteFileReader.NoteFile v1File = parseImage(sealV1(keyRing, plain));
+        NoteFileReader.NoteFile v2File = parseImage(NoteSaver.sealNote(keyRing, plain));
+        Object[][] variants = {
+            {"seal v2 getInstance", (Op) () -> sealWithGetInstance(keyRing, plain)},
+            {"seal v2 context", (Op) () -> NoteSaver.sealNote(keyRing, plain)},
+            {"open v2 getInstance", (Op) () -> openWithGetInstance(keyRing, v2File)},
+            {"open v2 context", (Op) () -> NoteSaver.openNote(keyRing, v2File)},
+            {"open v1 getInstance", (Op) () -> openWithGetInstance(keyRing, v1File)},
+            {"open v1 context", (Op) () -> NoteSaver.openNote(keyRing, v1File)},
+        };
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+        int iterations = 50_000;
+        System.out.printf("%-22s %10s %12s%n", "variant", "ns/op", "bytes/op");
+        for (Object[] variant : variants) {
+            Op op = (Op) variant[1];
+            runSingle(iterations, iterations / 2, op);
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long begin = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                op.run();
+            }
+            long nanos = System.nanoTime() - begin;
+            allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+            System.out.printf("%-22s %10.0f %12d%n", variant[0], (double) nanos / iterations, allocated / iterations);
+        }
+        System.out.println("CryptoContext: " + CryptoContext.getCreatedCount() + " instance(s) created, "
+                + CryptoContext.getReusedCount() + " reuse(s)");
+    }
+
+    /* The v2 seal as it was before CryptoContext: a new Cipher per call */
+    private static byte[] sealWithGetInstance(KeyRing keyRing, byte[] plain) throws GeneralSecurityException {
+        byte[] iv = IvGenerator.nextIv(VaultFormat.GCM_IV_LENGTH);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, keyRing.encryptionKey(), new GCMParameterSpec(VaultFormat.GCM_TAG_BITS, iv));
+        byte[] out = new byte[VaultFormat.V2_HEADER_LENGTH + cipher.getOutputSize(plain.length)];
+        VaultFormat.writeV2Header(out, VaultFormat.COMPRESSION_NONE, iv, out.length - VaultFormat.V2_HEADER_LENGTH);
+        cipher.updateAAD(out, 0, VaultFormat.V2_HEADER_LENGTH);
+        cipher.doFinal(plain, 0, plain.length, out, VaultFormat.V2_HEADER_LENGTH);
+        return out;
+    }
+
+    /* The v1/v2 open as it was before CryptoContext: a new Cipher and Mac per call */
+    private static ByteBuffer openWithGetInstance(KeyRing keyRing, NoteFileReader.NoteFile noteFile)
+            throws GeneralSecurityException {
+        ByteBuffer notesCipher = noteFile.cipherText.duplicate();
+        Cipher cipher;
+        if (noteFile.version == VaultFormat.VERSION_2) {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, keyRing.encryptionKey(),
+                    new GCMParameterSpec(VaultFormat.GCM_TAG_BITS, noteFile.iv));
+            cipher.updateAAD(noteFile.header);
+        } else {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(keyRing.macKey());
+            mac.update(notesCipher.duplicate());
+            if (!MessageDigest.isEqual(noteFile.mac, mac.doFinal())) {
+                throw new SecurityException("Tampered file");
+            }
+            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, keyRing.encryptionKey(), new IvParameterSpec(noteFile.iv));
+        }
+        ByteBuffer out = ByteBuffer.allocate(cipher.getOutputSize(notesCipher.remaining()));
+        cipher.doFinal(notesCipher, out);
+        out.flip();
+        return out;
+    }
+
+    /* Seals 200 copies of a payload and commits them through a GroupCommitWriter */
+    private static long[] durableSave(KeyRing keyRing, byte[] encoded, boolean compress) throws Exception {
+        Path dir = Files.createTempDirectory("compress-bench");
+        GroupCommitWriter writer = new GroupCommitWriter(GroupCommitWriter.COMMIT_WINDOW_MICROS,
+                GroupCommitWriter.MAX_BATCH);
+        try {
+            return runSingle(5, 1, () -> {
+                List<CompletableFuture<Void>> pending = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    byte[] record = compress ? NoteSaver.sealPayload(keyRing, encoded)
+                            : NoteSaver.sealNote(keyRing, encoded);
+                    pending.add(writer.submit(dir.resolve("note-" + i + ".ser"), record));
+                }
+                for (CompletableFuture<Void> done : pending) {
+                    GroupCommitWriter.await(done);
+                }
+            });
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    static String meetingLog(Random random, int length) {
+        String[] people = {"Garrett", "Nick", "Priya", "Sam", "Lena"};
+        String[] topics = {"vault load timings", "login latency", "release checklist", "segment compaction",
+            "search history", "export format", "key rotation", "test coverage"};
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(String.format("%02d:%02d %s: %s - %s, follow up by %s.%n", 9 + random.nextInt(8),
+                    random.nextInt(60), people[random.nextInt(people.length)], topics[random.nextInt(topics.length)],
+                    random.nextBoolean() ? "agreed to ship" : "needs another review",
+                    people[random.nextInt(people.length)]));
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    static String stackTrace(Random random, int length) {
+        String[] frames = {"org.example.persistence.NoteSaver.openRecord(NoteSaver.java:%d)",
+            "org.example.persistence.VaultLoader.decryptLoop(VaultLoader.java:%d)",
+            "java.base/java.util.concurrent.FutureTask.run(FutureTask.java:%d)",
+            "java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:%d)",
+            "org.example.App.runtime(App.java:%d)"};
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append("java.io.IOException: Invalid note record ").append(random.nextInt(100_000)).append('\n');
+            for (int i = 0; i < 12; i++) {
+                sb.append("\tat ").append(String.format(frames[random.nextInt(frames.length)], 20 + random.nextInt(500)))
+                        .append('\n');
+            }
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    static String randomText(Random random, int length) {
+        byte[] bytes = new byte[length * 3 / 4 + 3];
+        random.nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes).substring(0, length);
+    }
+
+    static byte[] serialize(Note note) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(note);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Builds repetitive meeting-log style text of the given length.
+     */
+    static String sampleText(int length) {
+        String line = "10:42 standup - reviewed vault load timings, action items assigned to the team.\n";
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(line);
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    static double opsPerSecond(long[] sortedNanos) {
+        double mean = mean(sortedNanos);
+        return mean == 0 ? 0 : 1e9 / mean;
+    }
+
+    /**
+     * Produces a legacy version 1 file image (HMAC | IV | length | CBC cipher).
+     * Kept here so the old format can still be benchmarked and used as a read
+     * compatibility fixture now that NoteSaver only writes version 2.
+     */
+    static byte[] sealV1(KeyRing keyRing, byte[] plain) throws GeneralSecurityException {
+        byte[] iv = IvGenerator.nextIv(VaultFormat.V1_IV_LENGTH);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, keyRing.encryptionKey(), new IvParameterSpec(iv));
+        byte[] notesCipher = cipher.doFinal(plain);
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(keyRing.macKey());
+        byte[] macBytes = mac.doFinal(notesCipher);
+
+        ByteBuffer image = ByteBuffer.allocate(VaultFormat.V1_HEADER_LENGTH + notesCipher.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        image.put(macBytes).put(iv).putInt(notesCipher.length).put(notesCipher);
+        return image.array();
+    }
+
+    /**
+     * Parses an in-memory file image the same way {@link NoteFileReader} parses a file.
+     */
+    static NoteFileReader.NoteFile parseImage(byte[] image) throws IOException {
+        Path tmp = Files.createTempFile("vault-image", ".ser");
+        try {
+            Files.write(tmp, image);
+            return NoteFileReader.read(tmp);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    static double throughput(int bytesPerOp, long[] sortedNanos) {
+        double seconds = mean(sortedNanos) / 1e9;
+        return seconds == 0 ? 0 : bytesPerOp / seconds / (1024 * 1024);
+    }
+
+    /**
+     * Writes a file in the v1 note layout with random bytes standing in for the ciphertext.
+     */
+    static void writeSyntheticNoteFile(Path file, int cipherLen) throws IOException {
+        byte[] body = new byte[cipherLen];
+        new Random(cipherLen).nextBytes(body);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(new byte[VaultFormat.V1_MAC_LENGTH]);
+            out.write(new byte[VaultFormat.V1_IV_LENGTH]);
+            NoteSaver.writeLittleEndianInt(cipherLen, out);
+            out.write(body);
+        }
+    }
+
+    static String label(long bytes) {
+        if (bytes >= 1 << 20) {
+            return (bytes >> 20) + " MB";
+        }
+        if (bytes >= 1 << 10) {
+            return (bytes >> 10) + " KB";
+        }
+        return bytes + " B";
+    }
+
+    /**
+     * Logins per second against the user database. The old path opened a new
+     * connection for {@code CREATE TABLE IF NOT EXISTS} and another for the
+     * row lookup on every login; the pool keeps connections and prepared
+     * statements open. Run with a cheap KDF (for example
+     * {@code -Dnotes.kdf.targetMillis=1 -Dnotes.kdf.minIterations=1000}) so
+     * the database rather than PBKDF2 dominates. Needs the SQLite driver.
+     */
+    static void loginsBenchmark() throws Exception {
+        System.out.println("== User database logins ==");
+        final int users = 20;
+        List<User> created = new ArrayList<>();
+        try {
+            for (int i = 0; i < users; i++) {
+                User user = new User("bench-login-" + i, "benchmark-password");
+                UserSaver.saveUser(user);
+                created.add(user);
+            }
+        } catch (UserSaver.UserException e) {
+            System.out.println("Skipped: the user database is not available (is the SQLite driver on the classpath?)");
+            return;
+        }
+
+        String lookup = "SELECT * FROM users WHERE username=?;";
+        String schema = "CREATE TABLE IF NOT EXISTS users (id STRING PRIMARY KEY, username STRING NOT NULL UNIQUE,"
+                + " passwordHash STRING NOT NULL)";
+        ConnectionPool pool = new ConnectionPool(UserSaver.DB_ADAPTER, Path.of("data"), ConnectionPool.SIZE,
+                connection -> { });
+        Random random = new Random(42);
+        try {
+            Op perQuery = () -> {
+                String name = "bench-login-" + random.nextInt(users);
+                try (java.sql.Connection conn = java.sql.DriverManager.getConnection(UserSaver.DB_ADAPTER);
+                        java.sql.Statement stat = conn.createStatement()) {
+                    stat.executeUpdate(schema);
+                }
+                try (java.sql.Connection conn = java.sql.DriverManager.getConnection(UserSaver.DB_ADAPTER);
+                        java.sql.PreparedStatement pstmt = conn.prepareStatement(lookup)) {
+                    pstmt.setString(1, name);
+                    try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                        rs.next();
+                    }
+                }
+            };
+            Op pooled = () -> {
+                String name = "bench-login-" + random.nextInt(users);
+                try (ConnectionPool.Lease db = pool.acquire()) {
+                    java.sql.PreparedStatement pstmt = db.prepare(lookup);
+                    pstmt.setString(1, name);
+                    try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                        rs.next();
+                    }
+                }
+            };
+            Op login = () -> UserSaver.loadUser("bench-login-" + random.nextInt(users), "benchmark-password")
+                    .getKeyRing().destroy();
+
+            System.out.printf("%-28s %10s %10s %10s%n", "variant", "ops/s", "p50 us", "p99 us");
+            loginRow("row lookup, conn per query", runSingle(2_000, 200, perQuery));
+            loginRow("row lookup, pooled", runSingle(2_000, 200, pooled));
+            loginRow("row lookup, pooled, 4 thr", runConcurrent(4, 500, 50, pooled), 4);
+            loginRow("loadUser", runSingle(200, 20, login));
+            System.out.println(pool);
+        } finally {
+            pool.close();
+            try (java.sql.Connection conn = java.sql.DriverManager.getConnection(UserSaver.DB_ADAPTER);
+                    java.sql.PreparedStatement pstmt = conn.prepareStatement("DELETE FROM users WHERE id=?")) {
+                for (User user : created) {
+                    pstmt.setString(1, user.getId());
+                    pstmt.executeUpdate();
+                }
+            }
+            for (User user : created) {
+                deleteTree(Path.of("data", user.getId()));
+            }
+            UserSaver.closeStores();
+        }
+    }
+
+    private static void loginRow(String name, long[] sorted) {
+        loginRow(name, sorted, 1);
+    }
+
+    /* Throughput from the mean latency, times the number of concurrent callers */
+    private static void loginRow(String name, long[] sorted, int threads) {
+        System.out.printf("%-28s %10.0f %10.1f %10.1f%n", name, threads * 1e9 / Math.max(1.0, mean(sorted)),
+                percentile(sorted, 50) / 1e3, percentile(sorted, 99) / 1e3);
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        try (var walk = Files.walk(root)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    /**
+     * Runs {@code op} on {@code threads} threads at once and records the latency
+     * of every measured call.
+     *
+     * @return all per-call latencies in nanoseconds, sorted ascending
+     */
+    static long[] runConcurrent(int threads, int perThread, int warmup, Op op)
+            throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<long[]>> futures = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                Callable<long[]> task = () -> {
+                    for (int i = 0; i < warmup; i++) {
+                        op.run();
+                    }
+                    start.await();
+                    long[] samples = new long[perThread];
+                    for (int i = 0; i < perThread; i++) {
+                        long begin = System.nanoTime();
+                        op.run();
+                        samples[i] = System.nanoTime() - begin;
+                    }
+                    return samples;
+                };
+                futures.add(pool.submit(task));
+            }
+            start.countDown();
+
+            long[] all = new long[threads * perThread];
+            int offset = 0;
+            for (Future<long[]> f : futures) {
+                long[] samples = f.get();
+                System.arraycopy(samples, 0, all, offset, samples.length);
+                offset += samples.length;
+            }
+            Arrays.sort(all);
+            return all;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Measures {@code op} on the calling thread.
+     *
+     * @return per-call latencies in nanoseconds, sorted ascending
+     */
+    static long[] runSingle(int iterations, int warmup, Op op) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            op.run();
+        }
+        long[] samples = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long begin = System.nanoTime();
+            op.run();
+            samples[i] = System.nanoTime() - begin;
+        }
+        Arrays.sort(samples);
+        return samples;
+    }
+
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    static double mean(long[] samples) {
+        if (samples.length == 0) {
+            return 0;
+        }
+        double total = 0;
+        for (long s : samples) {
+            total += s;
+        }
+        return total / samples.length;
+    }
+
+    static void printHeader() {
+        System.out.printf("%-22s %10s %10s %10s %10s %12s%n", "variant", "mean ns", "p50 ns", "p99 ns", "p99.9 ns", "max ns");
+    }
+
+    static void report(String name, long[] sorted) {
+        System.out.printf("%-22s %10.0f %10d %10d %10d %12d%n", name, mean(sorted),
+                percentile(sorted, 50), percentile(sorted, 99), percentile(sorted, 99.9),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1]);
+    }
+}
@@ -0,0 +1,145 @@
+package org.example.persistence;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * On-disk layouts of note files.
+ *
+ * Version 1 (legacy, read only):
+ *   HMAC-SHA256 (32) | IV (16) | CipherLength (4, little-endian) | AES/CBC/PKCS5Padding cipher
+ *
+ * Version 2:
+ *   Magic "NVLT" (4) | Version (1) | Flags (1) | IV (12) | CipherLength (4, little-endian) | AES/GCM cipher + tag
+ *   The whole 22-byte header is passed to GCM as additional authenticated data,
+ *   so the version and flags cannot be altered without failing decryption.
+ *   Flags bits 0-3 name the compression applied before encryption
+ *   (0 none, 1 DEFLATE, see {@link PayloadCompressor}); bits 4-7 are reserved.
+ *
+ * Version 3 (chunked, for very large notes, see {@link ChunkedNoteFile}):
+ *   Magic "NVLT" (4) | Version (1) | Flags (1) | Nonce prefix (8) | Chunk size (4, little-endian)
+ *   | Plain length (8, little-endian) | CipherLength (4, little-endian) | chunks
+ *   Each chunk is at most chunk-size bytes of plaintext sealed with AES/GCM on
+ *   its own, followed by its 16-byte tag. The nonce is the prefix followed by
+ *   the chunk index, and the AAD is the header followed by a last-chunk byte,
+ *   so chunks cannot be reordered, dropped or truncated. Flags must be 0.
+ *
+ * Version 1 files have no magic. A v1 file is only mistaken for v2 if its HMAC
+ * happens to start with the magic and version bytes (a 1 in 2^40 chance), and
+ * such a file then fails authentication rather than decrypting incorrectly.
+ */
+final class VaultFormat {
+
+    static final byte[] MAGIC = "NVLT".getBytes(StandardCharsets.US_ASCII);
+    static final byte VERSION_1 = 1;
+    static final byte VERSION_2 = 2;
+
+    /** Magic, version and flags: enough to tell the formats apart. */
+    static final int PREFIX_LENGTH = MAGIC.length + 2;
+
+    static final int V1_MAC_LENGTH = 32;
+    static final int V1_IV_LENGTH = 16;
+    static final int V1_HEADER_LENGTH = V1_MAC_LENGTH + V1_IV_LENGTH + 4;
+
+    static final int GCM_IV_LENGTH = 12;
+    static final int GCM_TAG_BITS = 128;
+    static final int V2_HEADER_LENGTH = PREFIX_LENGTH + GCM_IV_LENGTH + 4;
+
+    static final byte VERSION_3 = 3;
+    static final int V3_NONCE_PREFIX_LENGTH = 8;
+    static final int V3_HEADER_LENGTH = PREFIX_LENGTH + V3_NONCE_PREFIX_LENGTH + 4 + 8 + 4;
+    static final int GCM_TAG_LENGTH = GCM_TAG_BITS / 8;
+
+    static final int LONGEST_HEADER = Math.max(V1_HEADER_LENGTH, Math.max(V2_HEADER_LENGTH, V3_HEADER_LENGTH));
+
+    static final byte COMPRESSION_MASK = 0x0F;
+    static final byte COMPRESSION_NONE = 0;
+    static final byte COMPRESSION_DEFLATE = 1;
+
+    private VaultFormat() {
+    }
+
+    /**
+     * @param prefix buffer positioned at the first byte of a file, with at least
+     *               {@link #PREFIX_LENGTH} bytes remaining
+     * @return true if the prefix carries the v2 magic and version
+     */
+    static boolean isVersion2(ByteBuffer prefix) {
+        return versionOf(prefix) == VERSION_2;
+    }
+
+    /**
+     * @param prefix buffer positioned at the first byte of a file
+     * @return the format version named by the prefix; files without the magic are version 1
+     */
+    static byte versionOf(ByteBuffer prefix) {
+        if (prefix.remaining() < PREFIX_LENGTH) {
+            return VERSION_1;
+        }
+        int start = prefix.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (prefix.get(start + i) != MAGIC[i]) {
+                return VERSION_1;
+            }
+        }
+        byte version = prefix.get(start + MAGIC.length);
+        return version == VERSION_2 || version == VERSION_3 ? version : VERSION_1;
+    }
+
+    /**
+     * @return header length of a file with the given prefix
+     */
+    static int headerLength(ByteBuffer prefix) {
+        switch (versionOf(prefix)) {
+            case VERSION_2:
+                return V2_HEADER_LENGTH;
+            case VERSION_3:
+                return V3_HEADER_LENGTH;
+            default:
+                return V1_HEADER_LENGTH;
+        }
+    }
+
+    /**
+     * Writes a v2 header into the start of {@code out}.
+     *
+     * FIO12-J: The length is written little-endian like every other integer in the vault.
+     *
+     * @param out destination array, at least {@link #V2_HEADER_LENGTH} bytes long
+     * @param flags format flags, 0 when no optional stage was applied
+     * @param iv 12-byte GCM nonce
+     * @param cipherLen length of ciphertext including the tag
+     */
+    static void writeV2Header(byte[] out, byte flags, byte[] iv, int cipherLen) {
+        ByteBuffer header = ByteBuffer.wrap(out, 0, V2_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.put(VERSION_2);
+        header.put(flags);
+        header.put(iv);
+        header.putInt(cipherLen);
+    }
+
+    /**
+     * Builds a v3 header.
+     *
+     * FIO12-J: Every integer is written little-endian.
+     *
+     * @param noncePrefix 8 random bytes shared by the file's chunk nonces
+     * @param chunkSize plaintext bytes per chunk
+     * @param plainLength total plaintext length
+     * @param cipherLen total length of all chunks including their tags
+     * @return the header bytes
+     */
+    static byte[] v3Header(byte[] noncePrefix, int chunkSize, long plainLength, int cipherLen) {
+        ByteBuffer header = ByteBuffer.allocate(V3_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.put(VERSION_3);
+        header.put((byte) 0);
+        header.put(noncePrefix);
+        header.putInt(chunkSize);
+        header.putLong(plainLength);
+        header.putInt(cipherLen);
+        return header.array();
+    }
+}
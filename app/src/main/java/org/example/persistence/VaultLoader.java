@@ -0,0 +1,291 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.example.Note;
+
+/**
+ * Loads a vault as a bounded two-stage pipeline instead of one note at a time
+ * on the calling thread.
+ *
+ * Stage 1: reader threads fetch records from the {@link NoteStore} and put
+ * them on a bounded queue. When the queue is full readers block, so disk
+ * reads never run far ahead of decryption (backpressure). A store that
+ * {@link NoteStore#prefersScan() prefers scanning} is read by one thread in a
+ * single pass instead.
+ * Stage 2: CPU workers authenticate, decrypt and decode each record.
+ *
+ * Notes are returned sorted by creation time and id, so the result does not
+ * depend on thread scheduling or on the store's on-disk order.
+ */
+final class VaultLoader {
+
+    /** Reader threads for stage 1 (-Dnotes.vault.loadReaders). */
+    static final int READERS = Integer.getInteger("notes.vault.loadReaders", 2);
+
+    /** CPU workers for stage 2 (-Dnotes.vault.loadWorkers). */
+    static final int WORKERS = Integer.getInteger("notes.vault.loadWorkers",
+            Runtime.getRuntime().availableProcessors());
+
+    /** Records allowed in flight between the stages (-Dnotes.vault.loadQueue). */
+    static final int QUEUE_CAPACITY = Integer.getInteger("notes.vault.loadQueue", 64);
+
+    private static final Comparator<Note> LOAD_ORDER =
+            Comparator.comparing(Note::getCreatedAt).thenComparing(Note::getId);
+
+    /** Marks the end of stage 1's output for one worker. */
+    private static final Item END = new Item(null, null);
+
+    private final int readers;
+    private final int workers;
+    private final int queueCapacity;
+
+    private static final class Item {
+        final String noteId;
+        final NoteFileReader.NoteFile record;
+
+        Item(String noteId, NoteFileReader.NoteFile record) {
+            this.noteId = noteId;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Per-stage timings of one load. Stage times are summed across the
+     * threads of that stage, so they can exceed the wall-clock time.
+     */
+    static final class LoadStats {
+        final AtomicInteger loaded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong readNanos = new AtomicLong();
+        final AtomicLong backpressureNanos = new AtomicLong();
+        final AtomicLong queueWaitNanos = new AtomicLong();
+        final AtomicLong decryptNanos = new AtomicLong();
+        final AtomicLong decodeNanos = new AtomicLong();
+        volatile long wallNanos;
+
+        @Override
+        public String toString() {
+            return String.format("Vault load: %d note(s), %d failed, %d bytes in %.1f ms"
+                    + " [read %.1f ms, reader blocked %.1f ms, worker idle %.1f ms, decrypt %.1f ms, decode %.1f ms]",
+                    loaded.get(), failed.get(), bytesRead.get(), wallNanos / 1e6,
+                    readNanos.get() / 1e6, backpressureNanos.get() / 1e6, queueWaitNanos.get() / 1e6,
+                    decryptNanos.get() / 1e6, decodeNanos.get() / 1e6);
+        }
+    }
+
+    VaultLoader() {
+        this(READERS, WORKERS, QUEUE_CAPACITY);
+    }
+
+    VaultLoader(int readers, int workers, int queueCapacity) {
+        if (readers < 1 || workers < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Pipeline sizes must be positive");
+        }
+        this.readers = readers;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Loads every note in the store.
+     *
+     * @param store the vault to read
+     * @param keyRing keys of the vault's owner
+     * @param stats receives the per-stage timings
+     * @return the decrypted notes in deterministic order
+     * @throws IOException if the store cannot be listed or the load is interrupted
+     */
+    List<Note> load(NoteStore store, KeyRing keyRing, LoadStats stats) throws IOException {
+        if (store.prefersScan()) {
+            // One reader streams the whole vault in a single pass
+            return run(1, queue -> scanLoop(store, queue, stats), keyRing, stats);
+        }
+        return load(store, store.noteIds(), keyRing, stats);
+    }
+
+    /**
+     * Loads the given notes from the store. Ids without a record are skipped.
+     *
+     * @param store the vault to read
+     * @param ids notes to load
+     * @param keyRing keys of the vault's owner
+     * @param stats receives the per-stage timings
+     * @return the decrypted notes in deterministic order
+     * @throws IOException if the load is interrupted
+     */
+    List<Note> load(NoteStore store, Collection<String> ids, KeyRing keyRing, LoadStats stats) throws IOException {
+        List<String> noteIds = new ArrayList<>(ids);
+        AtomicInteger cursor = new AtomicInteger();
+        return run(readers, queue -> readLoop(store, noteIds, cursor, queue, stats), keyRing, stats);
+    }
+
+    /**
+     * Stage 1 as run by each reader thread.
+     */
+    @FunctionalInterface
+    private interface Reader {
+        Void read(BlockingQueue<Item> queue) throws InterruptedException, IOException;
+    }
+
+    private List<Note> run(int readerCount, Reader reader, KeyRing keyRing, LoadStats stats) throws IOException {
+        long start = System.nanoTime();
+        BlockingQueue<Item> queue = new ArrayBlockingQueue<>(queueCapacity);
+        List<Note> notes = Collections.synchronizedList(new ArrayList<>());
+
+        ExecutorService readerPool = Executors.newFixedThreadPool(readerCount);
+        ExecutorService workerPool = Executors.newFixedThreadPool(workers);
+        List<Future<?>> readerTasks = new ArrayList<>();
+        List<Future<?>> workerTasks = new ArrayList<>();
+        try {
+            for (int i = 0; i < workers; i++) {
+                workerTasks.add(workerPool.submit(() -> decryptLoop(queue, keyRing, notes, stats)));
+            }
+            for (int i = 0; i < readerCount; i++) {
+                readerTasks.add(readerPool.submit(() -> reader.read(queue)));
+            }
+
+            awaitAll(readerTasks);
+            for (int i = 0; i < workers; i++) {
+                long blocked = System.nanoTime();
+                queue.put(END);
+                stats.backpressureNanos.addAndGet(System.nanoTime() - blocked);
+            }
+            awaitAll(workerTasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Vault load interrupted", e);
+        } finally {
+            readerPool.shutdownNow();
+            workerPool.shutdownNow();
+        }
+
+        List<Note> ordered = new ArrayList<>(notes);
+        ordered.sort(LOAD_ORDER);
+        stats.wallNanos = System.nanoTime() - start;
+        return ordered;
+    }
+
+    private static void awaitAll(List<Future<?>> tasks) throws InterruptedException, IOException {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Vault load stage failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Stage 1: claims note ids in order and hands their records to the workers.
+     */
+    private static Void readLoop(NoteStore store, List<String> noteIds, AtomicInteger cursor,
+                                 BlockingQueue<Item> queue, LoadStats stats) throws InterruptedException {
+        int next;
+        while ((next = cursor.getAndIncrement()) < noteIds.size()) {
+            String noteId = noteIds.get(next);
+            long begin = System.nanoTime();
+            NoteFileReader.NoteFile record;
+            try {
+                record = store.read(noteId);
+            } catch (IOException e) {
+                System.err.println("Failed to load note: " + noteId);
+                stats.failed.incrementAndGet();
+                continue;
+            } finally {
+                stats.readNanos.addAndGet(System.nanoTime() - begin);
+            }
+            if (record == null) {
+                continue;
+            }
+            stats.bytesRead.addAndGet(record.length());
+
+            long blocked = System.nanoTime();
+            queue.put(new Item(noteId, record));
+            stats.backpressureNanos.addAndGet(System.nanoTime() - blocked);
+        }
+        return null;
+    }
+
+    /**
+     * Stage 1 for stores that prefer a scan: hands over every record in the
+     * order the store yields them. Unreadable records are reported and
+     * skipped by the store itself.
+     */
+    private static Void scanLoop(NoteStore store, BlockingQueue<Item> queue, LoadStats stats)
+            throws InterruptedException, IOException {
+        long[] begin = {System.nanoTime()};
+        try {
+            store.forEach((noteId, record) -> {
+                stats.readNanos.addAndGet(System.nanoTime() - begin[0]);
+                stats.bytesRead.addAndGet(record.length());
+                long blocked = System.nanoTime();
+                try {
+                    queue.put(new Item(noteId, record));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Vault scan interrupted");
+                }
+                stats.backpressureNanos.addAndGet(System.nanoTime() - blocked);
+                begin[0] = System.nanoTime();
+            });
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException(e.getMessage());
+        }
+        stats.readNanos.addAndGet(System.nanoTime() - begin[0]);
+        return null;
+    }
+
+    /**
+     * Stage 2: authenticates, decrypts and decodes records until told to stop.
+     */
+    private static Void decryptLoop(BlockingQueue<Item> queue, KeyRing keyRing, List<Note> notes, LoadStats stats)
+            throws InterruptedException {
+        while (true) {
+            long waiting = System.nanoTime();
+            Item item = queue.take();
+            stats.queueWaitNanos.addAndGet(System.nanoTime() - waiting);
+            if (item == END) {
+                return null;
+            }
+            try {
+                long begin = System.nanoTime();
+                if (item.record.version == VaultFormat.VERSION_3) {
+                    // Chunked records are decrypted and decoded in one streaming pass
+                    notes.add(ChunkedNoteFile.open(keyRing, item.record));
+                    stats.decryptNanos.addAndGet(System.nanoTime() - begin);
+                    stats.loaded.incrementAndGet();
+                    continue;
+                }
+                ByteBuffer payload = NoteSaver.openNote(keyRing, item.record);
+                long decrypted = System.nanoTime();
+                stats.decryptNanos.addAndGet(decrypted - begin);
+
+                Note note = NoteSaver.decodePayload(payload, item.record.version);
+                stats.decodeNanos.addAndGet(System.nanoTime() - decrypted);
+
+                notes.add(note);
+                stats.loaded.incrementAndGet();
+            } catch (IOException | SecurityException | IllegalStateException | GeneralSecurityException e) {
+                System.err.println("Failed to load note: " + item.noteId);
+                stats.failed.incrementAndGet();
+            }
+        }
+    }
+}
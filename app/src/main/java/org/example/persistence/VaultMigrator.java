@@ -0,0 +1,72 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves every vault under {@code data/} into the notes table in one run, so
+ * a deployment can switch to {@code -Dnotes.vault.layout=sqlite} without
+ * paying for the move at each user's first login.
+ *
+ * Records are copied sealed; no password is needed. Each vault's files and
+ * segments are removed only after its records are committed, so the tool can
+ * be run again after an interruption.
+ *
+ * Run with {@code java -cp <app classpath> org.example.persistence.VaultMigrator}
+ * while the application is stopped.
+ */
+public final class VaultMigrator {
+
+    private VaultMigrator() {
+    }
+
+    /**
+     * @param root directory holding one vault per user id
+     * @return number of records moved
+     */
+    static int migrateAll(Path root) throws IOException {
+        List<Path> vaults = new ArrayList<>();
+        try (var entries = Files.list(root)) {
+            for (Path entry : entries.sorted().toList()) {
+                /* FIO00-J: Only follow real directories, never links out of the data directory */
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    vaults.add(entry);
+                }
+            }
+        }
+
+        int total = 0;
+        for (Path vault : vaults) {
+            long begin = System.nanoTime();
+            String userId = vault.getFileName().toString();
+            int moved = UserSaver.migrateToDatabase(vault, new SqliteNoteStore(UserSaver.database(), userId));
+            total += moved;
+            if (moved > 0) {
+                System.out.printf("%s: %d note(s) in %.1f ms%n", userId, moved, (System.nanoTime() - begin) / 1e6);
+            }
+        }
+        System.out.printf("Moved %d note(s) from %d vault(s) into the notes table%n", total, vaults.size());
+        return total;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path root = Paths.get("data");
+        if (!Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) {
+            System.out.println("Nothing to migrate: no data directory");
+            return;
+        }
+        try {
+            migrateAll(root);
+        } finally {
+            UserSaver.closeStores();
+        }
+        if (!"sqlite".equalsIgnoreCase(UserSaver.VAULT_LAYOUT)) {
+            System.out.println("Start the application with -Dnotes.vault.layout=sqlite to use the migrated notes");
+        }
+    }
+}
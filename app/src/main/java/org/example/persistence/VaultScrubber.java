@@ -0,0 +1,568 @@
+package org.example.persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+
+import org.example.User;
+
+/**
+ * Walks note vaults and checks every stored record in parallel.
+ *
+ * Without keys, a scrub checks what can be checked from the bytes alone:
+ * headers, lengths against file sizes, chunk geometry, compression flags and
+ * the CRC32C of every segment frame. Truncated and malformed files are found
+ * this way. MACs and GCM tags are derived from the owner's password, so a
+ * vault is only authenticated when its {@link KeyRing} is supplied, as the
+ * "verify" command does for the signed-on user.
+ *
+ * Reads are limited to {@link #DEFAULT_RATE} bytes per second across all
+ * workers so a scrub can run beside normal use. Files are visited in a fixed
+ * order (vault, then file name), and the last position before which every
+ * file is done is checkpointed regularly, so an interrupted scan resumes
+ * where it stopped instead of starting over.
+ */
+public final class VaultScrubber {
+
+    /** Read budget shared by all workers, 0 for unlimited (-Dnotes.scrub.bytesPerSecond). */
+    static final long DEFAULT_RATE = Long.getLong("notes.scrub.bytesPerSecond", 64L << 20);
+
+    /** Verification threads (-Dnotes.scrub.threads). */
+    static final int DEFAULT_THREADS = Integer.getInteger("notes.scrub.threads",
+            Runtime.getRuntime().availableProcessors());
+
+    static final String CHECKPOINT_FILE = "scrub.checkpoint";
+
+    /** How often the checkpoint is rewritten and progress reported. */
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /** Problems kept in the result; the rest are only counted. */
+    private static final int MAX_REPORTED = 1000;
+
+    private final int threads;
+    private final RateLimiter limiter;
+    private final Path checkpoint;
+    private final Map<String, KeyRing> keys;
+    private volatile boolean quiet;
+
+    /**
+     * @param threads verification threads
+     * @param bytesPerSecond read budget, 0 for unlimited
+     * @param checkpoint file to resume from and record progress in, or null to always scan everything
+     * @param keys key rings by user id; vaults without one are checked without authentication
+     */
+    public VaultScrubber(int threads, long bytesPerSecond, Path checkpoint, Map<String, KeyRing> keys) {
+        if (threads < 1 || bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid thread count or rate");
+        }
+        this.threads = threads;
+        this.limiter = new RateLimiter(bytesPerSecond);
+        this.checkpoint = checkpoint;
+        this.keys = keys == null ? Map.of() : Map.copyOf(keys);
+    }
+
+    /**
+     * Outcome of a scrub. Totals include the work of earlier runs resumed from
+     * the checkpoint; the rate covers this run only.
+     */
+    public static final class Result {
+        private long files;
+        private long bytes;
+        private long authenticated;
+        private long problemCount;
+        private long runBytes;
+        private long runNanos;
+        private boolean resumed;
+        private final List<String> problems = new ArrayList<>();
+
+        public long getFiles() {
+            return files;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getAuthenticatedRecords() {
+            return authenticated;
+        }
+
+        public long getProblemCount() {
+            return problemCount;
+        }
+
+        /**
+         * @return the first problems found, each as "path: reason"
+         */
+        public List<String> getProblems() {
+            return Collections.unmodifiableList(problems);
+        }
+
+        /**
+         * @return bytes read per second by this run
+         */
+        public double getBytesPerSecond() {
+            return runNanos == 0 ? 0 : runBytes * 1e9 / runNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Scrub%s: %d file(s), %d bytes, %d record(s) authenticated, %d problem(s);"
+                    + " this run %.1f MB/s in %.1f s",
+                    resumed ? " (resumed)" : "", files, bytes, authenticated, problemCount,
+                    getBytesPerSecond() / (1 << 20), runNanos / 1e9);
+        }
+    }
+
+    /**
+     * Checks every vault under a data directory.
+     *
+     * @param root directory holding one vault directory per user
+     * @return what was checked and every problem found
+     */
+    public Result scrubAll(Path root) throws IOException {
+        List<Path> vaults = new ArrayList<>();
+        try (var entries = Files.list(root)) {
+            for (Path entry : entries.toList()) {
+                /* FIO00-J: Only descend into real directories, never through symbolic links */
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    vaults.add(entry);
+                }
+            }
+        }
+        return scrub(vaults);
+    }
+
+    /**
+     * Authenticates every record in the signed-on user's own vault with the
+     * session's keys. Runs at full speed and keeps no checkpoint.
+     *
+     * @param user the signed-on user
+     * @return what was checked and every problem found
+     */
+    public static Result verifyUserVault(User user) throws IOException {
+        VaultScrubber scrubber = new VaultScrubber(DEFAULT_THREADS, 0, null,
+                Map.of(user.getId(), user.getKeyRing()));
+        scrubber.quiet = true;
+        return scrubber.scrub(List.of(Paths.get("data", user.getId())));
+    }
+
+    /**
+     * A file to check and its place in the scan order.
+     */
+    private static final class Item {
+        final String vault;
+        final String file;
+        final Path path;
+
+        Item(String vault, String file, Path path) {
+            this.vault = vault;
+            this.file = file;
+            this.path = path;
+        }
+
+        int compareTo(String otherVault, String otherFile) {
+            int byVault = vault.compareTo(otherVault);
+            return byVault != 0 ? byVault : file.compareTo(otherFile);
+        }
+    }
+
+    /**
+     * Outcome of checking one file.
+     */
+    private static final class Checked {
+        final long bytes;
+        final int authenticated;
+        final List<String> problems;
+
+        Checked(long bytes, int authenticated, List<String> problems) {
+            this.bytes = bytes;
+            this.authenticated = authenticated;
+            this.problems = problems;
+        }
+    }
+
+    /**
+     * Tracks which files are done. Workers finish out of order, so only the
+     * prefix of the scan order in which every file is done is folded into the
+     * totals and the checkpoint.
+     */
+    private final class Progress {
+        private final Result result;
+        private final TreeMap<Long, Item> items = new TreeMap<>();
+        private final Map<Long, Checked> done = new TreeMap<>();
+        private long next;
+        private Item last;
+
+        Progress(Result result) {
+            this.result = result;
+        }
+
+        synchronized void started(long sequence, Item item) {
+            items.put(sequence, item);
+        }
+
+        synchronized void finished(long sequence, Checked checked) {
+            done.put(sequence, checked);
+            Checked head;
+            while ((head = done.remove(next)) != null) {
+                last = items.remove(next);
+                result.files++;
+                result.bytes += head.bytes;
+                result.authenticated += head.authenticated;
+                for (String problem : head.problems) {
+                    result.problemCount++;
+                    if (result.problems.size() < MAX_REPORTED) {
+                        result.problems.add(problem);
+                    }
+                }
+                next++;
+            }
+        }
+
+        synchronized void save() throws IOException {
+            if (checkpoint == null || last == null) {
+                return;
+            }
+            Properties state = new Properties();
+            state.setProperty("vault", last.vault);
+            state.setProperty("file", last.file);
+            state.setProperty("files", Long.toString(result.files));
+            state.setProperty("bytes", Long.toString(result.bytes));
+            state.setProperty("authenticated", Long.toString(result.authenticated));
+            state.setProperty("problems", Long.toString(result.problemCount));
+            Path temp = GroupCommitWriter.tempPath(checkpoint);
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                state.store(out, "Vault scrub position; delete to rescan from the start");
+            }
+            GroupCommitWriter.moveIntoPlace(temp, checkpoint);
+        }
+    }
+
+    /**
+     * Checks the given vaults, resuming from the checkpoint if there is one.
+     * The checkpoint is removed once the whole scan has finished.
+     *
+     * @param vaults vault directories to check
+     * @return what was checked and every problem found
+     */
+    public Result scrub(List<Path> vaults) throws IOException {
+        Result result = new Result();
+        String resumeVault = null;
+        String resumeFile = null;
+        if (checkpoint != null && Files.exists(checkpoint)) {
+            Properties state = new Properties();
+            try (Reader in = Files.newBufferedReader(checkpoint, StandardCharsets.UTF_8)) {
+                state.load(in);
+            }
+            resumeVault = state.getProperty("vault");
+            resumeFile = state.getProperty("file");
+            try {
+                result.files = Long.parseLong(state.getProperty("files", "0"));
+                result.bytes = Long.parseLong(state.getProperty("bytes", "0"));
+                result.authenticated = Long.parseLong(state.getProperty("authenticated", "0"));
+                result.problemCount = Long.parseLong(state.getProperty("problems", "0"));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid scrub checkpoint: " + checkpoint, e);
+            }
+            result.resumed = resumeVault != null && resumeFile != null;
+        }
+
+        Progress progress = new Progress(result);
+        List<Path> ordered = new ArrayList<>(vaults);
+        ordered.sort(null);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // Bounds the files in flight, so a vault of millions is never queued at once
+        Semaphore inFlight = new Semaphore(threads * 4);
+        AtomicLong runBytes = new AtomicLong();
+        long start = System.nanoTime();
+        long nextCheckpoint = start + CHECKPOINT_INTERVAL_NANOS;
+        long sequence = 0;
+        try {
+            for (Path vault : ordered) {
+                String vaultName = vault.getFileName().toString();
+                if (resumeVault != null && vaultName.compareTo(resumeVault) < 0) {
+                    continue;
+                }
+                KeyRing keyRing = keys.get(vaultName);
+                for (Item item : listRecords(vaultName, vault)) {
+                    if (resumeVault != null && item.compareTo(resumeVault, resumeFile) <= 0) {
+                        continue;
+                    }
+                    long seq = sequence++;
+                    progress.started(seq, item);
+                    inFlight.acquire();
+                    pool.execute(() -> {
+                        try {
+                            Checked checked = check(item, keyRing, runBytes);
+                            for (String problem : checked.problems) {
+                                if (!quiet) {
+                                    System.out.println("PROBLEM " + problem);
+                                }
+                            }
+                            progress.finished(seq, checked);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+
+                    long now = System.nanoTime();
+                    if (now - nextCheckpoint >= 0) {
+                        progress.save();
+                        nextCheckpoint = now + CHECKPOINT_INTERVAL_NANOS;
+                        if (!quiet) {
+                            System.out.printf("Scrubbed %d file(s), %.1f MB/s%n", result.files,
+                                    runBytes.get() * 1e9 / (now - start) / (1 << 20));
+                        }
+                    }
+                }
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+            progress.save();
+            throw new IOException("Scrub interrupted", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        result.runBytes = runBytes.get();
+        result.runNanos = System.nanoTime() - start;
+        /* FIO02-J & EXP00-J: A finished scan needs no resume point; a missing
+        checkpoint (false return) simply means this run kept none */
+        if (checkpoint != null) {
+            Files.deleteIfExists(checkpoint);
+        }
+        return result;
+    }
+
+    /* Every stored record file of one vault, in scan order. Temp files of
+    writes in progress are skipped. */
+    private static List<Item> listRecords(String vaultName, Path vault) throws IOException {
+        List<Item> items = new ArrayList<>();
+        try (var files = Files.list(vault)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(FileNoteStore.EXTENSION) || name.equals(NoteIndex.FILE_NAME)
+                        || (name.startsWith(SegmentNoteStore.SEGMENT_PREFIX)
+                            && name.endsWith(SegmentNoteStore.SEGMENT_SUFFIX))) {
+                    items.add(new Item(vaultName, name, file));
+                }
+            }
+        }
+        items.sort((a, b) -> a.file.compareTo(b.file));
+        return items;
+    }
+
+    private Checked check(Item item, KeyRing keyRing, AtomicLong runBytes) {
+        List<String> problems = new ArrayList<>();
+        long size = 0;
+        int authenticated = 0;
+        try {
+            /* FIO00-J: Never follow a link planted in a vault */
+            if (!NoteSaver.isFileSafe(item.path.toString())) {
+                problems.add(item.path + ": unsafe file path");
+                return new Checked(0, 0, problems);
+            }
+            size = Files.size(item.path);
+            limiter.acquire(size);
+            runBytes.addAndGet(size);
+
+            if (item.file.endsWith(SegmentNoteStore.SEGMENT_SUFFIX)) {
+                int[] records = new int[1];
+                long bad = SegmentNoteStore.verify(item.path, (noteId, image) -> {
+                    String problem = checkImage(image, keyRing);
+                    if (problem != null) {
+                        problems.add(item.path + " [" + noteId + "]: " + problem);
+                    } else if (keyRing != null) {
+                        records[0]++;
+                    }
+                });
+                if (bad >= 0) {
+                    problems.add(item.path + ": frame at offset " + bad + " is truncated or fails its checksum");
+                }
+                authenticated = records[0];
+            } else {
+                NoteFileReader.NoteFile record = NoteFileReader.read(item.path);
+                String problem = size != record.length()
+                        ? (size - record.length()) + " unexpected byte(s) after the record"
+                        : checkRecord(record, keyRing);
+                if (problem != null) {
+                    problems.add(item.path + ": " + problem);
+                } else if (keyRing != null) {
+                    authenticated = 1;
+                }
+            }
+        } catch (EOFException e) {
+            problems.add(item.path + ": truncated (" + e.getMessage() + ")");
+        } catch (IOException | RuntimeException e) {
+            // A malformed file must not stop the worker or stall the checkpoint
+            problems.add(item.path + ": unreadable (" + e.getMessage() + ")");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            problems.add(item.path + ": not checked, scrub interrupted");
+        }
+        return new Checked(size, authenticated, problems);
+    }
+
+    private static String checkImage(ByteBuffer image, KeyRing keyRing) {
+        try {
+            NoteFileReader.NoteFile record = NoteFileReader.parse(image);
+            if (record.length() != image.remaining()) {
+                return (image.remaining() - record.length()) + " unexpected byte(s) after the record";
+            }
+            return checkRecord(record, keyRing);
+        } catch (IOException e) {
+            return "malformed record (" + e.getMessage() + ")";
+        }
+    }
+
+    /**
+     * Checks one parsed record, authenticating it when its key ring is known.
+     *
+     * @return a description of the problem, or null if the record is sound
+     */
+    static String checkRecord(NoteFileReader.NoteFile record, KeyRing keyRing) {
+        int cipherLength = record.cipherText.remaining();
+        try {
+            if (record.version == VaultFormat.VERSION_1) {
+                if (cipherLength == 0 || cipherLength % 16 != 0) {
+                    return "v1 ciphertext is not a whole number of AES blocks";
+                }
+            } else if (record.version == VaultFormat.VERSION_2) {
+                if (cipherLength < VaultFormat.GCM_TAG_LENGTH) {
+                    return "v2 ciphertext is shorter than its GCM tag";
+                }
+                int compression = record.flags & VaultFormat.COMPRESSION_MASK;
+                if ((record.flags & ~VaultFormat.COMPRESSION_MASK) != 0 || compression > VaultFormat.COMPRESSION_DEFLATE) {
+                    return "unknown v2 header flags " + record.flags;
+                }
+            } else if (record.version == VaultFormat.VERSION_3) {
+                ChunkedNoteFile.layout(record);
+            } else {
+                return "unknown format version " + record.version;
+            }
+            if (keyRing != null) {
+                authenticate(record, keyRing);
+            }
+            return null;
+        } catch (SecurityException e) {
+            return "fails authentication";
+        } catch (IOException | GeneralSecurityException | IllegalStateException e) {
+            return "cannot be verified (" + e.getMessage() + ")";
+        }
+    }
+
+    /* Verifies the MAC or every GCM tag; v1 files only need their HMAC checked */
+    private static void authenticate(NoteFileReader.NoteFile record, KeyRing keyRing)
+            throws IOException, GeneralSecurityException {
+        if (record.version == VaultFormat.VERSION_1) {
+            try (CryptoContext.Lease<Mac> mac = CryptoContext.hmac(keyRing.macKey())) {
+                mac.get().update(record.cipherText.duplicate());
+                if (!MessageDigest.isEqual(record.mac, mac.get().doFinal())) {
+                    throw new SecurityException("Tampered file");
+                }
+            }
+        } else if (record.version == VaultFormat.VERSION_3) {
+            try (InputStream plain = ChunkedNoteFile.openStream(keyRing, record)) {
+                plain.transferTo(OutputStream.nullOutputStream());
+            }
+        } else {
+            NoteSaver.openNote(keyRing, record);
+        }
+    }
+
+    /**
+     * Hands out read budget at a fixed byte rate. Each caller reserves the
+     * next free slot, so concurrent workers share the rate instead of each
+     * getting all of it.
+     */
+    static final class RateLimiter {
+        private final long bytesPerSecond;
+        private long nextFree = System.nanoTime();
+
+        RateLimiter(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(long bytes) throws InterruptedException {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long slot = Math.max(now, nextFree);
+                nextFree = slot + (long) (bytes * 1e9 / bytesPerSecond);
+                wait = slot - now;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    /**
+     * Scrubs every vault under a data directory without keys.
+     * Usage: {@code VaultScrubber [dataDir] [--threads N] [--rate BYTES_PER_SEC] [--checkpoint FILE] [--fresh]}
+     * Exits with status 1 if any problem was found.
+     */
+    public static void main(String[] args) throws IOException {
+        Path root = Paths.get("data");
+        int threads = DEFAULT_THREADS;
+        long rate = DEFAULT_RATE;
+        Path checkpoint = null;
+        boolean fresh = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--rate" -> rate = Long.parseLong(args[++i]);
+                    case "--checkpoint" -> checkpoint = Paths.get(args[++i]);
+                    case "--fresh" -> fresh = true;
+                    default -> root = Paths.get(args[i]);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Usage: VaultScrubber [dataDir] [--threads N] [--rate BYTES_PER_SEC]"
+                    + " [--checkpoint FILE] [--fresh]");
+            System.exit(2);
+        }
+        if (checkpoint == null) {
+            checkpoint = root.resolve(CHECKPOINT_FILE);
+        }
+        if (fresh) {
+            Files.deleteIfExists(checkpoint);
+        }
+
+        Result result = new VaultScrubber(threads, rate, checkpoint, null).scrubAll(root);
+        System.out.println(result);
+        System.exit(result.getProblemCount() == 0 ? 0 : 1);
+    }
+}
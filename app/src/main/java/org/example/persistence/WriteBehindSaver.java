@@ -0,0 +1,461 @@
+package org.example.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.example.User;
+
+/**
+ * Persists users in the background so an edit returns to the prompt without
+ * waiting for {@link UserSaver#saveUser(User)}.
+ *
+ * Change events are queued per user. A user is saved once no further event has
+ * arrived for {@link #WINDOW_MILLIS}, so a burst of edits to the same notes
+ * becomes one save that writes each note once. Continuous editing cannot
+ * postpone the save indefinitely: it always starts within
+ * {@link #MAX_LAG_MILLIS} of the oldest unsaved event (bounded lag).
+ *
+ * Saves run one at a time on a single daemon thread, so two saves of the same
+ * user never overlap. {@link #flush()} must be called before the process
+ * exits and {@link #flush(User)} before a session's keys are zeroed (FIO14-J).
+ * A batch that still fails after {@link #MAX_ATTEMPTS} is set aside: its
+ * changes stay dirty in memory, the user's next event or the next flush that
+ * covers the user queues it again, and a flush never returns normally while a
+ * batch it covers is set aside. Callers that report a save to the user must
+ * flush and report the outcome rather than assume success.
+ */
+public final class WriteBehindSaver {
+
+    /** Quiet period after the last event before a user is saved (-Dnotes.vault.writeBehindMillis). */
+    static final long WINDOW_MILLIS = Long.getLong("notes.vault.writeBehindMillis", 250);
+
+    /** Longest an event may wait before its save starts (-Dnotes.vault.writeBehindMaxLagMillis). */
+    static final long MAX_LAG_MILLIS = Long.getLong("notes.vault.writeBehindMaxLagMillis", 2000);
+
+    /** Saves attempted for one batch of events before it is given up (-Dnotes.vault.writeBehindAttempts). */
+    static final int MAX_ATTEMPTS = Integer.getInteger("notes.vault.writeBehindAttempts", 5);
+
+    private static final WriteBehindSaver SHARED = new WriteBehindSaver(WINDOW_MILLIS, MAX_LAG_MILLIS, MAX_ATTEMPTS);
+
+    private final long windowNanos;
+    private final long maxLagNanos;
+    private final int maxAttempts;
+
+    /* LCK00-J: Private lock guarding the queue. LCK08-J: A ReentrantLock
+    rather than synchronized, so a flush waiting on a virtual thread (a server
+    request handler) does not pin its carrier. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /* Signalled when there is work for the writer: an event or a new flush */
+    private final Condition workArrived = lock.newCondition();
+    /* Signalled when a save ends, for the flushes waiting on it */
+    private final Condition saveEnded = lock.newCondition();
+    private final Map<String, Pending> queue = new LinkedHashMap<>();
+    private Pending inFlight;
+    private final List<Waiter> waiters = new ArrayList<>();
+    /* Users whose last batch ran out of attempts, by id */
+    private final Map<String, User> setAside = new LinkedHashMap<>();
+    private Thread writer;
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong peakDepth = new AtomicLong();
+    private final AtomicLong lagNanos = new AtomicLong();
+    private final AtomicLong worstLagNanos = new AtomicLong();
+    private final AtomicLong saveNanos = new AtomicLong();
+
+    /**
+     * Unsaved events of one user.
+     */
+    private static final class Pending {
+        final User user;
+        final long firstNanos;
+        long lastNanos;
+        long retryNanos;
+        int events;
+        int attempts;
+        final Set<String> noteIds = new HashSet<>();
+
+        Pending(User user, long now) {
+            this.user = user;
+            this.firstNanos = now;
+            this.lastNanos = now;
+        }
+
+        void merge(Pending later) {
+            lastNanos = Math.max(lastNanos, later.lastNanos);
+            events += later.events;
+            noteIds.addAll(later.noteIds);
+        }
+    }
+
+    /**
+     * A flush in progress, for every user or for one.
+     */
+    private static final class Waiter {
+        final String userId;
+        IOException failure;
+
+        Waiter(String userId) {
+            this.userId = userId;
+        }
+
+        boolean covers(String id) {
+            return userId == null || userId.equals(id);
+        }
+    }
+
+    WriteBehindSaver(long windowMillis, long maxLagMillis, int maxAttempts) {
+        if (windowMillis < 0 || maxLagMillis < windowMillis || maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid write-behind window, lag bound or attempt count");
+        }
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return the saver shared by every session in the process
+     */
+    public static WriteBehindSaver shared() {
+        return SHARED;
+    }
+
+    /**
+     * Records that a note was created, edited or removed. Returns at once.
+     *
+     * @param user owner of the note
+     * @param noteId id of the note that changed
+     */
+    public void noteChanged(User user, String noteId) {
+        Objects.requireNonNull(noteId, "Note id cannot be null");
+        enqueue(user, noteId);
+    }
+
+    /**
+     * Records a change that is not tied to one note, such as an import or
+     * new credentials. Returns at once.
+     *
+     * @param user the user that changed
+     */
+    public void userChanged(User user) {
+        enqueue(user, null);
+    }
+
+    private void enqueue(User user, String noteId) {
+        /* ERR08-J: Fail fast with a clear message instead of a later NullPointerException on the writer thread */
+        Objects.requireNonNull(user, "User cannot be null");
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            ensureStarted();
+            // The new batch's save writes everything still dirty, set-aside changes included
+            setAside.remove(user.getId());
+            Pending pending = queue.get(user.getId());
+            if (pending == null) {
+                pending = new Pending(user, now);
+                queue.put(user.getId(), pending);
+            }
+            pending.lastNanos = now;
+            pending.events++;
+            if (noteId != null) {
+                pending.noteIds.add(noteId);
+            }
+            events.incrementAndGet();
+            peakDepth.accumulateAndGet(depth(), Math::max);
+            workArrived.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * FIO14-J: Blocks until every event accepted before this call has been
+     * saved, saving due or not. Must run before the process exits.
+     *
+     * @throws IOException if a save failed during the flush or the wait was interrupted
+     */
+    public void flush() throws IOException {
+        await(new Waiter(null));
+    }
+
+    /**
+     * FIO14-J: Like {@link #flush()}, for one user's events only; other users'
+     * saves keep their schedule. Must run before that user's keys are zeroed.
+     *
+     * @param user the user whose changes must be on disk
+     * @throws IOException if the user's save failed or the wait was interrupted
+     */
+    public void flush(User user) throws IOException {
+        Objects.requireNonNull(user, "User cannot be null");
+        await(new Waiter(user.getId()));
+    }
+
+    private void await(Waiter waiter) throws IOException {
+        lock.lock();
+        try {
+            requeueSetAside(waiter);
+            if (!hasUnsaved(waiter)) {
+                return;
+            }
+            waiters.add(waiter);
+            workArrived.signal();
+            try {
+                while (hasUnsaved(waiter)) {
+                    if (waiter.failure != null) {
+                        throw waiter.failure;
+                    }
+                    saveEnded.await();
+                }
+                if (waiter.failure != null) {
+                    throw waiter.failure;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for pending saves", e);
+            } finally {
+                waiters.remove(waiter);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Callers must hold lock. Gives set-aside batches the flush covers a
+    fresh set of attempts; if those fail too the flush is told, so it cannot
+    report success for changes that were never written. */
+    private void requeueSetAside(Waiter waiter) {
+        long now = System.nanoTime();
+        for (var iterator = setAside.values().iterator(); iterator.hasNext(); ) {
+            User user = iterator.next();
+            if (waiter.covers(user.getId())) {
+                iterator.remove();
+                Pending pending = new Pending(user, now);
+                pending.events = 1;
+                queue.put(user.getId(), pending);
+            }
+        }
+    }
+
+    /* Callers must hold lock */
+    private boolean hasUnsaved(Waiter waiter) {
+        if (inFlight != null && waiter.covers(inFlight.user.getId())) {
+            return true;
+        }
+        return waiter.userId == null ? !queue.isEmpty() : queue.containsKey(waiter.userId);
+    }
+
+    /* Callers must hold lock. A flush that was already told of a failure no
+    longer counts, so its batch waits for the backoff instead of being retried
+    until its attempts run out before the flushing thread wakes up. */
+    private boolean isFlushing(String userId) {
+        for (Waiter waiter : waiters) {
+            if (waiter.failure == null && waiter.covers(userId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureStarted() {
+        if (writer == null) {
+            writer = new Thread(this::writeLoop, "note-write-behind");
+            writer.setDaemon(true);
+            writer.start(); // THI00-J: Always use start(), never run()
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Pending due;
+            try {
+                due = takeDue();
+            } catch (InterruptedException e) {
+                // Daemon thread; keep serving the queue
+                Thread.interrupted();
+                continue;
+            }
+            save(due);
+        }
+    }
+
+    /* Waits for the user whose save is due first and claims it */
+    private Pending takeDue() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                Pending next = null;
+                long nextDeadline = Long.MAX_VALUE;
+                for (Pending pending : queue.values()) {
+                    // A user someone is flushing is saved now
+                    long deadline = isFlushing(pending.user.getId()) ? now : deadline(pending);
+                    if (next == null || deadline - nextDeadline < 0) {
+                        next = pending;
+                        nextDeadline = deadline;
+                    }
+                }
+                if (next != null && nextDeadline - now <= 0) {
+                    queue.remove(next.user.getId());
+                    inFlight = next;
+                    return next;
+                }
+                if (next == null) {
+                    workArrived.await();
+                } else {
+                    workArrived.awaitNanos(nextDeadline - now);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Quiet window after the last event, capped by the lag bound from the first;
+    a failed save waits for its retry time instead */
+    private long deadline(Pending pending) {
+        if (pending.attempts > 0) {
+            return pending.retryNanos;
+        }
+        long quiet = pending.lastNanos + windowNanos;
+        long bound = pending.firstNanos + maxLagNanos;
+        return quiet - bound < 0 ? quiet : bound;
+    }
+
+    private void save(Pending due) {
+        long begin = System.nanoTime();
+        IOException failure = null;
+        try {
+            UserSaver.saveUser(due.user);
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            // A destroyed key ring or a broken vault must not kill the writer thread
+            failure = new IOException("Background save failed", e);
+        }
+        long end = System.nanoTime();
+        saveNanos.addAndGet(end - begin);
+
+        lock.lock();
+        try {
+            inFlight = null;
+            if (failure == null) {
+                saves.incrementAndGet();
+                long lag = end - due.firstNanos;
+                lagNanos.addAndGet(lag);
+                worstLagNanos.accumulateAndGet(lag, Math::max);
+            } else {
+                failures.incrementAndGet();
+                SafeLogger.safeLogError("Background save of " + due.events + " change(s) failed (attempt "
+                        + (due.attempts + 1) + " of " + maxAttempts + ")", failure);
+                requeue(due, end);
+                for (Waiter waiter : waiters) {
+                    if (waiter.covers(due.user.getId())) {
+                        waiter.failure = failure;
+                    }
+                }
+            }
+            saveEnded.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Puts a failed batch back, merged with anything queued for the same
+    user meanwhile, and backs off; after the last attempt the user is set
+    aside until their next event or a flush that covers them */
+    private void requeue(Pending failed, long now) {
+        failed.attempts++;
+        if (failed.attempts >= maxAttempts) {
+            dropped.addAndGet(failed.events);
+            if (!queue.containsKey(failed.user.getId())) {
+                setAside.put(failed.user.getId(), failed.user);
+            }
+            return;
+        }
+        failed.retryNanos = now + Math.min(maxLagNanos, windowNanos << failed.attempts);
+        Pending newer = queue.remove(failed.user.getId());
+        if (newer != null) {
+            failed.merge(newer);
+        }
+        queue.put(failed.user.getId(), failed);
+    }
+
+    /* Callers must hold lock */
+    private int depth() {
+        int depth = inFlight == null ? 0 : inFlight.events;
+        for (Pending pending : queue.values()) {
+            depth += pending.events;
+        }
+        return depth;
+    }
+
+    /**
+     * @return change events accepted but not yet saved
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return depth();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return notes with changes that have not been saved yet, across every user
+     */
+    public int getPendingNoteCount() {
+        lock.lock();
+        try {
+            int notes = inFlight == null ? 0 : inFlight.noteIds.size();
+            for (Pending pending : queue.values()) {
+                notes += pending.noteIds.size();
+            }
+            return notes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return users whose changes ran out of save attempts and wait for the next flush
+     */
+    public int getSetAsideUserCount() {
+        lock.lock();
+        try {
+            return setAside.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEventCount() {
+        return events.get();
+    }
+
+    public long getSaveCount() {
+        return saves.get();
+    }
+
+    @Override
+    public String toString() {
+        long n = saves.get();
+        return String.format("Write-behind: %d event(s) in %d save(s), %d failed, %d dropped (%d user(s) set aside), depth %d (peak %d),"
+                + " lag avg %.1f ms max %.1f ms, save avg %.1f ms",
+                events.get(), n, failures.get(), dropped.get(), getSetAsideUserCount(), getQueueDepth(), peakDepth.get(),
+                n == 0 ? 0.0 : lagNanos.get() / 1e6 / n, worstLagNanos.get() / 1e6,
+                n + failures.get() == 0 ? 0.0 : saveNanos.get() / 1e6 / (n + failures.get()));
+    }
+}
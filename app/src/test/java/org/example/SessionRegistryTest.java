@@ -0,0 +1,132 @@
+package org.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.UUID;
+
+import org.example.persistence.KdfParams;
+import org.example.persistence.KeyRing;
+import org.junit.After;
+import org.junit.Test;
+
+public class SessionRegistryTest {
+
+    private final SessionRegistry registry = new SessionRegistry(Long.MAX_VALUE);
+
+    @After
+    public void tearDown() {
+        registry.logoutAll();
+    }
+
+    private static User user(String name, int notes) {
+        KeyRing keyRing = new KeyRing("password", new KdfParams(1000, new byte[] {3, 1, 4}));
+        User user = new User(UUID.randomUUID().toString(), name, "password", keyRing);
+        for (int i = 0; i < notes; i++) {
+            user.addNote(new Note("Note " + i, "Body " + i));
+        }
+        return user;
+    }
+
+    @Test
+    public void anEndedSessionRefusesCommandsAndIsNotLeftBusy() {
+        UserSession session = registry.register(user("ended", 0)).getSession();
+        session.end();
+        try {
+            session.beginCommand();
+            fail("Ended session ran a command");
+        } catch (IllegalStateException expected) {
+            // Refused
+        }
+        assertFalse(session.isBusy());
+    }
+
+    @Test
+    public void sweepLogsOutEndedSessionsAndZeroesTheirKeys() {
+        SessionRegistry.Entry ended = registry.register(user("ended", 1));
+        SessionRegistry.Entry live = registry.register(user("live", 1));
+        ended.getSession().end();
+
+        registry.sweep();
+
+        assertEquals(1, registry.getLiveCount());
+        assertNull(registry.get(ended.getSession().getSessionId()));
+        assertSame(live, registry.get(live.getSession().getSessionId()));
+        assertTrue(ended.getUser().getKeyRing().isDestroyed());
+        assertFalse(live.getUser().getKeyRing().isDestroyed());
+        assertEquals(1, registry.getEvictionCount());
+    }
+
+    @Test
+    public void waitsForARunningCommandBeforeZeroingTheKeys() throws InterruptedException {
+        SessionRegistry.Entry entry = registry.register(user("busy", 1));
+        UserSession session = entry.getSession();
+        session.beginCommand();
+        session.end();
+
+        Thread sweep = new Thread(registry::sweep);
+        sweep.start();
+        Thread.sleep(100);
+        // The command began before the session ended, so its keys are still there
+        assertFalse(entry.getUser().getKeyRing().isDestroyed());
+
+        session.endCommand(0);
+        sweep.join(10_000);
+        assertTrue(entry.getUser().getKeyRing().isDestroyed());
+        assertEquals(0, registry.getLiveCount());
+    }
+
+    @Test(timeout = 10_000)
+    public void evictsTheLeastRecentlyUsedSessionsOverBudget() throws InterruptedException {
+        User first = user("oldest", 5);
+        // Room for one of the two sessions
+        SessionRegistry small = new SessionRegistry(SessionRegistry.estimateBytes(first));
+        try {
+            SessionRegistry.Entry oldest = small.register(first);
+            SessionRegistry.Entry newest = small.register(user("newest", 5));
+
+            // Registering the newest crossed the budget, and the session just used is never a candidate
+            while (small.getLiveCount() > 1) {
+                Thread.sleep(10);
+            }
+            assertTrue(oldest.getUser().getKeyRing().isDestroyed());
+            assertSame(newest, small.get(newest.getSession().getSessionId()));
+            assertEquals(SessionRegistry.estimateBytes(newest.getUser()), small.getPinnedBytes());
+        } finally {
+            small.logoutAll();
+        }
+    }
+
+    @Test
+    public void aSecondSignOnSharesTheResidentUser() throws Exception {
+        User user = user("twice", 2);
+        SessionRegistry.Entry first = registry.register(user);
+        assertSame(user, registry.resident("twice"));
+        assertNull(registry.resident("nobody"));
+        assertTrue(user.getKeyRing().matchesPassword("password"));
+        assertFalse(user.getKeyRing().matchesPassword("not the password"));
+
+        // A copy loaded by a concurrent sign on is dropped in favour of the resident user
+        User copy = new User(user.getId(), "twice", "password",
+                new KeyRing("password", new KdfParams(1000, new byte[] {3, 1, 4})));
+        SessionRegistry.Entry second = registry.register(copy);
+        assertSame(user, second.getUser());
+        assertTrue(copy.getKeyRing().isDestroyed());
+        assertEquals(SessionRegistry.estimateBytes(user), registry.getPinnedBytes());
+
+        // The keys outlive the first session and go with the last
+        assertTrue(registry.logout(first.getSession().getSessionId()));
+        assertFalse(user.getKeyRing().isDestroyed());
+        second.getSession().beginCommand();
+        second.getSession().endCommand(0);
+
+        assertTrue(registry.logout(second.getSession().getSessionId()));
+        assertTrue(user.getKeyRing().isDestroyed());
+        assertNull(registry.resident("twice"));
+        assertEquals(0, registry.getPinnedBytes());
+    }
+}
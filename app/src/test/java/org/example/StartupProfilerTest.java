@@ -0,0 +1,91 @@
+package org.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StartupProfilerTest {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private PrintStream stdout;
+
+    @Before
+    public void setUp() {
+        stdout = System.out;
+        System.setOut(new PrintStream(out, true, StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() {
+        // Leaves the profiler off for any other test
+        StartupProfiler.finish("teardown");
+        System.setOut(stdout);
+    }
+
+    private String printed() {
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String lineOf(String report, String phase) {
+        for (String line : report.split("\\R")) {
+            if (line.endsWith(phase)) {
+                return line;
+            }
+        }
+        throw new AssertionError("No line for " + phase + " in\n" + report);
+    }
+
+    @Test
+    public void recordsNothingUntilEnabled() {
+        StartupProfiler.Phase phase = StartupProfiler.begin("unrecorded");
+        phase.end();
+        StartupProfiler.finish("first prompt");
+
+        assertFalse(StartupProfiler.isEnabled());
+        assertEquals("", printed());
+    }
+
+    @Test
+    public void reportsNestedInputAndBackgroundPhases() throws InterruptedException {
+        StartupProfiler.enable();
+        StartupProfiler.Phase outer = StartupProfiler.begin("outer");
+        try {
+            StartupProfiler.Phase inner = StartupProfiler.begin("inner");
+            inner.end();
+            StartupProfiler.Phase typing = StartupProfiler.input("typing");
+            typing.end();
+        } finally {
+            outer.end();
+        }
+        Thread background = new Thread(() -> StartupProfiler.begin("warm up").end(), "warmer");
+        background.start();
+        background.join();
+        StartupProfiler.Phase after = StartupProfiler.begin("after");
+        after.end();
+
+        StartupProfiler.finish("first prompt");
+        String report = printed();
+
+        assertFalse(StartupProfiler.isEnabled());
+        // Columns end two spaces before the name, and each level of nesting adds two more
+        assertFalse(lineOf(report, "outer").endsWith("   outer"));
+        assertTrue(lineOf(report, "inner").endsWith("    inner"));
+        lineOf(report, "typing (input)");
+        lineOf(report, "warm up [warmer]");
+        // Ending the nested phases restored the depth on this thread
+        assertFalse(lineOf(report, "after").endsWith("   after"));
+        assertTrue(report.contains("Time to first prompt:"));
+
+        // Only the first finish prints
+        StartupProfiler.finish("again");
+        assertEquals(report, printed());
+    }
+}
@@ -0,0 +1,55 @@
+package org.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import org.example.persistence.KdfParams;
+import org.example.persistence.KeyRing;
+import org.junit.Test;
+
+public class UserSessionTest {
+
+    private static User user() {
+        KeyRing keyRing = new KeyRing("password", new KdfParams(1000, new byte[] {2, 7, 1}));
+        return new User(UUID.randomUUID().toString(), "session", "password", keyRing);
+    }
+
+    @Test
+    public void theKeyRingGetsTheSessionTimeout() {
+        assertEquals(UserSession.IDLE_TIMEOUT, UserSession.newSession(user()).getKeyRing().getIdleTimeout());
+
+        // Longer than the ring's own default, which used to expire the keys under a live session
+        Duration longer = KeyRing.DEFAULT_IDLE_TIMEOUT.plusMinutes(45);
+        UserSession session = UserSession.newSession(user(), longer);
+
+        assertEquals(longer, session.getKeyRing().getIdleTimeout());
+        session.beginCommand();
+        session.endCommand(0);
+        assertFalse(session.expireIfIdle());
+        session.logout();
+    }
+
+    @Test
+    public void expiresWithTheSessionAfterItsTimeout() throws InterruptedException {
+        UserSession session = UserSession.newSession(user(), Duration.ofMillis(50));
+        session.beginCommand();
+        session.endCommand(0);
+        assertFalse(session.isIdle());
+
+        Thread.sleep(100);
+
+        assertTrue(session.isIdle());
+        assertTrue(session.expireIfIdle());
+        try {
+            session.beginCommand();
+            fail("Command ran with expired keys");
+        } catch (IllegalStateException expected) {
+            assertFalse(session.isBusy());
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.example.persistence.KdfParams;
+import org.example.persistence.KeyRing;
+import org.junit.Test;
+
+public class UserTest {
+
+    private static User user() {
+        KeyRing keyRing = new KeyRing("password", new KdfParams(1000, new byte[] {3, 1, 4}));
+        return new User(UUID.randomUUID().toString(), "titles", "password", keyRing);
+    }
+
+    @Test
+    public void aNoteCannotBeRenamedOntoAnotherNotesTitle() {
+        User user = user();
+        Note groceries = new Note("Groceries", "eggs");
+        Note chores = new Note("Chores", "dishes");
+        assertTrue(user.addNoteIfTitleFree(groceries));
+        assertTrue(user.addNoteIfTitleFree(chores));
+
+        assertFalse(user.renameNoteIfTitleFree(chores, "groceries"));
+        assertEquals("Chores", chores.getTitle());
+
+        // A note keeps its own title, in any case, and takes a free one
+        assertTrue(user.renameNoteIfTitleFree(chores, "CHORES"));
+        assertTrue(user.renameNoteIfTitleFree(chores, "Errands"));
+        assertEquals("Errands", chores.getTitle());
+        assertFalse(user.addNoteIfTitleFree(new Note("errands", "")));
+    }
+}
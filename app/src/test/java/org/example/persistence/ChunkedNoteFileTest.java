@@ -0,0 +1,98 @@
+package org.example.persistence;
+
+import static org.example.persistence.VaultFixtures.assertSameNote;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+import org.example.Note;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkedNoteFileTest {
+
+    private KeyRing keyRing;
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        keyRing = VaultFixtures.keyRing("correct horse");
+        dir = Files.createTempDirectory("chunked");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        keyRing.destroy();
+        VaultFixtures.deleteTree(dir);
+    }
+
+    private static Note note(int contentLength) {
+        return Note.restore("note-1", "Title", VaultFixtures.text(contentLength),
+                LocalDateTime.of(2020, 1, 2, 3, 4, 5), LocalDateTime.of(2021, 6, 7, 8, 9, 10));
+    }
+
+    private byte[] version3Image(Note note) throws IOException {
+        Path file = dir.resolve("chunked.ser");
+        ChunkedNoteFile.write(keyRing, note, file);
+        return Files.readAllBytes(file);
+    }
+
+    private void assertRejected(byte[] image) throws IOException {
+        try {
+            NoteSaver.openRecord(keyRing, NoteFileReader.parse(ByteBuffer.wrap(image)));
+            fail("Tampered record was opened");
+        } catch (SecurityException expected) {
+            // A chunk failed authentication
+        }
+    }
+
+    @Test
+    public void writesVersion3() throws Exception {
+        ByteBuffer image = ByteBuffer.wrap(version3Image(note(100)));
+
+        assertEquals(VaultFormat.VERSION_3, VaultFormat.versionOf(image));
+        assertEquals(VaultFormat.V3_HEADER_LENGTH, VaultFormat.headerLength(image));
+    }
+
+    @Test
+    public void opensAcrossSeveralChunks() throws Exception {
+        Note note = note(ChunkedNoteFile.CHUNK_SIZE * 3 + 17);
+        NoteFileReader.NoteFile record = NoteFileReader.parse(ByteBuffer.wrap(version3Image(note)));
+
+        assertEquals(4, ChunkedNoteFile.layout(record).chunkCount);
+        Note opened = NoteSaver.openRecord(keyRing, record);
+        assertSameNote(note, opened);
+        assertFalse(opened.isDirty());
+    }
+
+    @Test
+    public void rejectsATamperedChunk() throws Exception {
+        byte[] image = version3Image(note(ChunkedNoteFile.CHUNK_SIZE * 2 + 5));
+        image[VaultFormat.V3_HEADER_LENGTH + ChunkedNoteFile.CHUNK_SIZE + 40] ^= 1;
+        assertRejected(image);
+    }
+
+    @Test
+    public void rejectsARecordWithItsLastChunkDropped() throws Exception {
+        Note note = note(ChunkedNoteFile.CHUNK_SIZE * 2 + 5);
+        byte[] full = version3Image(note);
+
+        // Rewrite the header to claim two full chunks, as if the short last one had never been written
+        ChunkedNoteFile.Layout layout = new ChunkedNoteFile.Layout(ChunkedNoteFile.CHUNK_SIZE,
+                (long) ChunkedNoteFile.CHUNK_SIZE * 2);
+        byte[] header = VaultFormat.v3Header(NoteFileReader.parse(ByteBuffer.wrap(full)).iv,
+                ChunkedNoteFile.CHUNK_SIZE, (long) ChunkedNoteFile.CHUNK_SIZE * 2, (int) layout.cipherLength());
+        byte[] cut = new byte[header.length + (int) layout.cipherLength()];
+        System.arraycopy(header, 0, cut, 0, header.length);
+        System.arraycopy(full, header.length, cut, header.length, cut.length - header.length);
+
+        assertRejected(cut);
+    }
+}
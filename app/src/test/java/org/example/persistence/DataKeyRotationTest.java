@@ -0,0 +1,118 @@
+package org.example.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.example.Note;
+import org.example.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Rotations store their keys in the user database and save through
+ * {@link UserSaver#saveUser}, so these tests write under {@code data/} in the
+ * working directory.
+ */
+public class DataKeyRotationTest {
+
+    private static final int NOTES = 10;
+
+    private User user;
+    private Path vault;
+
+    @Before
+    public void setUp() throws IOException {
+        KeyRing keyRing = KeyRing.create("password", new KdfParams(1000, new byte[] {7, 7, 7}));
+        user = new User(UUID.randomUUID().toString(), "rotator", "password", keyRing);
+        user.markCredentialsSaved(user.getCredentialsRevision());
+        for (int i = 0; i < NOTES; i++) {
+            user.addNote(new Note("Note " + i, "Body " + i));
+        }
+        UserSaver.saveUser(user);
+        vault = Paths.get("data", user.getId());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        user.getKeyRing().destroy();
+        VaultFixtures.deleteTree(vault);
+    }
+
+    @Test(timeout = 30_000)
+    public void resumesACancelledRotationWithTheNotesNotYetResealed() throws Exception {
+        byte[] oldKey = user.getKeyRing().encryptionKey().getEncoded();
+        WriteBehindSaver saver = new WriteBehindSaver(0, 100, 3);
+
+        // One note per batch, four a second, so it can be stopped part way
+        DataKeyRotation first = DataKeyRotation.start(user, saver, 4);
+        while (first.getRotatedNotes() < 2) {
+            Thread.sleep(10);
+        }
+        first.cancel();
+        assertFalse(first.await());
+        int resealed = first.getRotatedNotes();
+        assertTrue(resealed < NOTES);
+        assertTrue(user.getKeyRing().hasPreviousDataKey());
+
+        DataKeyRotation second = DataKeyRotation.start(user, saver, 1000);
+        assertTrue(second.await());
+        assertEquals(NOTES - resealed, second.getTotalNotes());
+        assertEquals(NOTES - resealed, second.getRotatedNotes());
+        assertFalse(user.getKeyRing().hasPreviousDataKey());
+        assertFalse(Arrays.equals(oldKey, user.getKeyRing().encryptionKey().getEncoded()));
+
+        // Every record opens with the new key alone
+        Map<String, String> bodies = new HashMap<>();
+        UserSaver.openStore(vault).forEach((noteId, record) ->
+                bodies.put(noteId, NoteSaver.openRecord(user.getKeyRing(), record).getContent()));
+        assertEquals(NOTES, bodies.size());
+        for (Note note : user.getNotes()) {
+            assertEquals(note.getContent(), bodies.get(note.getId()));
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void aLegacyAccountMovesToARandomDataKeyAtLogin() throws Exception {
+        String username = "legacy" + System.nanoTime();
+        User legacy = new User(UUID.randomUUID().toString(), username, "password",
+                new KeyRing("password", new KdfParams(1000, new byte[] {5, 5, 5})));
+        for (int i = 0; i < 3; i++) {
+            legacy.addNote(new Note("Old " + i, "Old body " + i));
+        }
+        UserSaver.saveUser(legacy);
+        // A legacy ring seals under the password derivation itself
+        byte[] derivation = legacy.getKeyRing().encryptionKey().getEncoded();
+        legacy.getKeyRing().destroy();
+        Path legacyVault = Paths.get("data", legacy.getId());
+
+        User loaded = UserSaver.loadUser(username, "password");
+        try {
+            assertTrue(loaded.getKeyRing().isEnveloped());
+            while (loaded.getKeyRing().hasPreviousDataKey()
+                    || Arrays.equals(derivation, loaded.getKeyRing().encryptionKey().getEncoded())) {
+                Thread.sleep(10);
+            }
+
+            Map<String, String> bodies = new HashMap<>();
+            UserSaver.openStore(legacyVault).forEach((noteId, record) ->
+                    bodies.put(noteId, NoteSaver.openRecord(loaded.getKeyRing(), record).getContent()));
+            assertEquals(3, bodies.size());
+            for (Note note : loaded.getNotes()) {
+                assertEquals(note.getContent(), bodies.get(note.getId()));
+            }
+        } finally {
+            loaded.getKeyRing().destroy();
+            VaultFixtures.deleteTree(legacyVault);
+        }
+    }
+}
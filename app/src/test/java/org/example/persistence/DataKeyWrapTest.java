@@ -0,0 +1,89 @@
+package org.example.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+public class DataKeyWrapTest {
+
+    private static SecretKey kek() {
+        return new SecretKeySpec(IvGenerator.nextIv(32), "AES");
+    }
+
+    private static void assertRejected(SecretKey kek, String wrapped) throws GeneralSecurityException {
+        try {
+            DataKeyWrap.unwrap(kek, wrapped);
+            fail("Altered or foreign data key was unwrapped");
+        } catch (SecurityException expected) {
+            // Refused before any key material is returned
+        }
+    }
+
+    @Test
+    public void unwrapsWhatItWrapped() throws GeneralSecurityException {
+        SecretKey kek = kek();
+        byte[] dataKey = DataKeyWrap.newDataKey();
+        assertEquals(DataKeyWrap.DATA_KEY_LENGTH, dataKey.length);
+
+        String wrapped = DataKeyWrap.wrap(kek, dataKey);
+
+        assertArrayEquals(dataKey, DataKeyWrap.unwrap(kek, wrapped));
+        // A fresh nonce per wrap
+        assertNotEquals(wrapped, DataKeyWrap.wrap(kek, dataKey));
+    }
+
+    @Test
+    public void rejectsTheWrongKeyAndAlteredValues() throws GeneralSecurityException {
+        SecretKey kek = kek();
+        String wrapped = DataKeyWrap.wrap(kek, DataKeyWrap.newDataKey());
+        byte[] bytes = Base64.getDecoder().decode(wrapped);
+
+        assertRejected(kek(), wrapped);
+
+        byte[] flipped = bytes.clone();
+        flipped[flipped.length - 1] ^= 1;
+        assertRejected(kek, Base64.getEncoder().encodeToString(flipped));
+
+        byte[] version = bytes.clone();
+        version[0] = DataKeyWrap.VERSION + 1;
+        assertRejected(kek, Base64.getEncoder().encodeToString(version));
+
+        assertRejected(kek, "not base64!");
+        assertRejected(kek, Base64.getEncoder().encodeToString(new byte[] {DataKeyWrap.VERSION}));
+    }
+
+    @Test
+    public void keyRingReopensFromItsWrappedKey() throws GeneralSecurityException {
+        KdfParams params = new KdfParams(1000, new byte[] {9, 8, 7});
+        KeyRing created = KeyRing.create("secret", params);
+        String wrapped = created.wrappedDataKey();
+        byte[] encryption = created.encryptionKey().getEncoded();
+
+        KeyRing reopened = KeyRing.open("secret", params, wrapped, null);
+        try {
+            assertArrayEquals(encryption, reopened.encryptionKey().getEncoded());
+        } finally {
+            created.destroy();
+            reopened.destroy();
+        }
+
+        KeyRing wrongPassword = KeyRing.open("not the secret", params, wrapped, null);
+        try {
+            wrongPassword.encryptionKey();
+            fail("Data key unwrapped with the wrong password");
+        } catch (SecurityException expected) {
+            // The wrapped key does not authenticate under another password's key
+        } finally {
+            wrongPassword.destroy();
+        }
+    }
+}
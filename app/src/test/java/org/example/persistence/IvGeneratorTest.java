@@ -0,0 +1,55 @@
+package org.example.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class IvGeneratorTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyIv() {
+        IvGenerator.nextIv(0);
+    }
+
+    @Test(timeout = 30_000)
+    public void neverRepeatsAnIvAcrossManyThreads() throws Exception {
+        int threads = 200;
+        int perThread = 500;
+        Set<ByteBuffer> seen = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                tasks.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        byte[] iv = IvGenerator.nextIv(VaultFormat.GCM_IV_LENGTH);
+                        assertEquals(VaultFormat.GCM_IV_LENGTH, iv.length);
+                        assertTrue("Repeated IV", seen.add(ByteBuffer.wrap(iv)));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        }
+
+        assertEquals(threads * perThread, seen.size());
+        // The pool does not grow with the number of threads
+        assertTrue(IvGenerator.getInstantiationCount() <= IvGenerator.STRIPES);
+    }
+}
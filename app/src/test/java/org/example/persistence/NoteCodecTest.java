@@ -0,0 +1,94 @@
+package org.example.persistence;
+
+import static org.example.persistence.VaultFixtures.assertSameNote;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import org.example.Note;
+import org.junit.Test;
+
+public class NoteCodecTest {
+
+    private static Note sample() {
+        return Note.restore("id-1", "Grocery list é中", "eggs\nmilk 🥚\n",
+                LocalDateTime.of(1969, 7, 20, 20, 17, 40, 123_456_789),
+                LocalDateTime.of(2024, 2, 29, 23, 59, 59, 1));
+    }
+
+    @Test
+    public void roundTripsEveryField() throws IOException {
+        Note note = sample();
+        byte[] encoded = NoteCodec.encode(note);
+
+        assertEquals(NoteCodec.MARKER, encoded[0]);
+        assertEquals(encoded.length, NoteCodec.encodedLength(note));
+        assertSameNote(note, NoteCodec.decode(ByteBuffer.wrap(encoded)));
+    }
+
+    @Test
+    public void streamingMatchesTheArrayEncoding() throws IOException {
+        // Longer than the codec's stream buffer, so the content is written in pieces
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 50_000) {
+            content.append("line é中🥚 ").append(content.length()).append('\n');
+        }
+        Note note = Note.restore("id-2", "Long", content.toString(), LocalDateTime.now(), LocalDateTime.now());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NoteCodec.encode(note, out);
+
+        assertArrayEquals(NoteCodec.encode(note), out.toByteArray());
+        assertSameNote(note, NoteCodec.decode(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    public void rejectsMalformedRecords() {
+        byte[] encoded = NoteCodec.encode(sample());
+
+        byte[] badMarker = encoded.clone();
+        badMarker[0] = 0x01;
+        byte[] badSchema = encoded.clone();
+        badSchema[1] = (byte) (NoteCodec.SCHEMA_VERSION + 1);
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length - 3);
+
+        for (byte[] record : new byte[][] {badMarker, badSchema, truncated}) {
+            try {
+                NoteCodec.decode(ByteBuffer.wrap(record));
+                fail("Malformed record was accepted");
+            } catch (IOException expected) {
+                // Rejected as it should be
+            }
+        }
+    }
+
+    @Test
+    public void decodesLegacySerializedNotesAndMarksThemForRewrite() throws Exception {
+        Note note = sample();
+        ByteBuffer legacy = ByteBuffer.wrap(VaultFixtures.serialize(note));
+        assertTrue(NoteCodec.isLegacySerialization(legacy));
+
+        Note decoded = NoteSaver.decodePayload(legacy, VaultFormat.VERSION_2);
+
+        assertSameNote(note, decoded);
+        assertTrue(decoded.isDirty());
+    }
+
+    @Test
+    public void codecPayloadsAreOnlyRewrittenFromVersion1Files() throws IOException {
+        byte[] encoded = NoteCodec.encode(sample());
+        assertFalse(NoteCodec.isLegacySerialization(ByteBuffer.wrap(encoded)));
+
+        assertFalse(NoteSaver.decodePayload(ByteBuffer.wrap(encoded), VaultFormat.VERSION_2).isDirty());
+        assertTrue(NoteSaver.decodePayload(ByteBuffer.wrap(encoded), VaultFormat.VERSION_1).isDirty());
+    }
+}
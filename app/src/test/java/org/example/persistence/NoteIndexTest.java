@@ -0,0 +1,103 @@
+package org.example.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.example.Note;
+import org.example.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Saves go through {@link UserSaver#saveUser}, so these tests write vaults
+ * under {@code data/} in the working directory.
+ */
+public class NoteIndexTest {
+
+    private User user;
+    private Path vault;
+
+    @Before
+    public void setUp() {
+        KeyRing keyRing = KeyRing.create("password", new KdfParams(1000, new byte[] {8, 6, 7}));
+        user = new User(UUID.randomUUID().toString(), "indexer", "password", keyRing);
+        user.markCredentialsSaved(user.getCredentialsRevision());
+        for (int i = 0; i < 3; i++) {
+            user.addNote(new Note("Note " + i, "Body " + i));
+        }
+        vault = Paths.get("data", user.getId());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        UserSaver.closeStore(vault);
+        user.getKeyRing().destroy();
+        VaultFixtures.deleteTree(vault);
+    }
+
+    private List<String> indexedTitles() throws IOException {
+        List<Note> indexed = NoteIndex.read(vault, UserSaver.openStore(vault), user.getKeyRing());
+        if (indexed == null) {
+            return null;
+        }
+        List<String> titles = new ArrayList<>();
+        for (Note note : indexed) {
+            titles.add(note.getTitle());
+        }
+        return titles;
+    }
+
+    @Test
+    public void theFirstSaveWritesTheIndex() throws IOException {
+        assertTrue(UserSaver.saveUser(user).isIndexWritten());
+        assertEquals(List.of("Note 0", "Note 1", "Note 2"), indexedTitles());
+    }
+
+    @Test
+    public void laterSavesDeferTheRewriteUntilTheVaultIsClosed() throws IOException {
+        UserSaver.saveUser(user);
+
+        for (int round = 0; round < 5; round++) {
+            user.getNotes().get(0).setTitle("Renamed " + round);
+            assertFalse(UserSaver.saveUser(user).isIndexWritten());
+        }
+        // Stale indexes are removed before the records change, never left behind
+        assertFalse(Files.exists(NoteIndex.pathFor(vault)));
+        assertNull(indexedTitles());
+
+        UserSaver.closeVault(user);
+        assertEquals(List.of("Renamed 4", "Note 1", "Note 2"), indexedTitles());
+
+        // Nothing changed since, so closing again writes nothing
+        Files.delete(NoteIndex.pathFor(vault));
+        UserSaver.closeVault(user);
+        assertFalse(Files.exists(NoteIndex.pathFor(vault)));
+    }
+
+    @Test
+    public void closingTheVaultClosesItsStore() throws IOException {
+        UserSaver.saveUser(user);
+        NoteStore open = UserSaver.openStore(vault);
+
+        UserSaver.closeVault(user);
+
+        assertFalse(UserSaver.closeStore(vault));
+        // A save after the user signed off opens the store again
+        user.getNotes().get(1).setContent("Changed");
+        UserSaver.saveUser(user);
+        assertNotSame(open, UserSaver.openStore(vault));
+        assertTrue(UserSaver.closeStore(vault));
+    }
+}
@@ -0,0 +1,160 @@
+package org.example.persistence;
+
+import static org.example.persistence.VaultFixtures.assertSameNote;
+import static org.example.persistence.VaultFixtures.record;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.example.Note;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentNoteStoreTest {
+
+    private Path vault;
+
+    @Before
+    public void setUp() throws IOException {
+        vault = Files.createTempDirectory("segments");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        VaultFixtures.deleteTree(vault);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (var files = Files.list(vault)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SegmentNoteStore.SEGMENT_SUFFIX))
+                    .sorted().toList();
+        }
+    }
+
+    @Test
+    public void truncatesATornAppendAndKeepsEarlierRecords() throws IOException {
+        try (SegmentNoteStore store = SegmentNoteStore.open(vault)) {
+            store.write("a", record(100, 1));
+            store.write("b", record(200, 2));
+            store.sync();
+        }
+        Path segment = segmentFiles().get(0);
+        long intact = Files.size(segment);
+
+        // A crash part way through an append leaves an incomplete frame behind
+        Files.write(segment, Arrays.copyOf(record(300, 3), 40), StandardOpenOption.APPEND);
+
+        try (SegmentNoteStore store = SegmentNoteStore.open(vault)) {
+            assertEquals(intact, Files.size(segment));
+            assertEquals(Set.of("a", "b"), new HashSet<>(store.noteIds()));
+            assertArrayEquals(record(200, 2), store.read("b").toBytes());
+
+            // Appends continue from the last good frame
+            store.write("c", record(300, 3));
+            store.sync();
+        }
+        try (SegmentNoteStore store = SegmentNoteStore.open(vault)) {
+            assertEquals(Set.of("a", "b", "c"), new HashSet<>(store.noteIds()));
+            assertArrayEquals(record(300, 3), store.read("c").toBytes());
+        }
+    }
+
+    @Test
+    public void dropsANewestSegmentWithATornHeader() throws IOException {
+        try (SegmentNoteStore store = SegmentNoteStore.open(vault)) {
+            store.write("a", record(100, 1));
+            store.sync();
+        }
+        Path torn = vault.resolve(SegmentNoteStore.SEGMENT_PREFIX + "000000000099" + SegmentNoteStore.SEGMENT_SUFFIX);
+        Files.write(torn, new byte[SegmentNoteStore.SEGMENT_HEADER_LENGTH / 2]);
+
+        try (SegmentNoteStore store = SegmentNoteStore.open(vault)) {
+            assertFalse(Files.exists(torn));
+            assertArrayEquals(record(100, 1), store.read("a").toBytes());
+        }
+    }
+
+    @Test
+    public void compactionKeepsLiveRecordsAndReclaimsGarbage() throws IOException {
+        int size = 1 << 20;
+        // Enough to fill at least two sealed segments
+        int notes = (int) (2 * SegmentNoteStore.MAX_SEGMENT_BYTES / size) + 2;
+        try (SegmentNoteStore store = SegmentNoteStore.open(vault)) {
+            for (int i = 0; i < notes; i++) {
+                store.write("n" + i, record(size, i));
+            }
+            // Supersede most of the first segment and delete one note
+            for (int i = 0; i < notes / 2; i++) {
+                store.write("n" + i, record(size / 2, 100 + i));
+            }
+            assertTrue(store.delete("n" + (notes - 1)));
+            store.sync();
+            int before = store.segmentCount();
+            assertTrue(before >= 3);
+            long garbage = store.garbageBytes();
+
+            long reclaimed = store.compact(true);
+
+            assertTrue(reclaimed > 0);
+            assertTrue(store.garbageBytes() < garbage);
+            assertTrue(store.segmentCount() < before);
+        }
+
+        // Reopening reads the compacted segment, and the old files are gone
+        try (SegmentNoteStore store = SegmentNoteStore.open(vault)) {
+            assertEquals(notes - 1, store.noteIds().size());
+            assertNull(store.read("n" + (notes - 1)));
+            for (int i = 0; i < notes - 1; i++) {
+                byte[] expected = i < notes / 2 ? record(size / 2, 100 + i) : record(size, i);
+                assertArrayEquals("n" + i, expected, store.read("n" + i).toBytes());
+            }
+            assertEquals(store.segmentCount(), segmentFiles().size());
+        }
+    }
+
+    @Test
+    public void streamsALargeNoteIntoAFrame() throws Exception {
+        KeyRing keyRing = VaultFixtures.keyRing("correct horse");
+        Note note = Note.restore("big", "Big", VaultFixtures.text(ChunkedNoteFile.CHUNK_SIZE * 2 + 5),
+                LocalDateTime.of(2020, 1, 2, 3, 4, 5), LocalDateTime.of(2021, 6, 7, 8, 9, 10));
+        try {
+            try (SegmentNoteStore store = SegmentNoteStore.open(vault)) {
+                assertTrue(store.streamsLargeNotes());
+                store.write("a", record(10, 1));
+                long written = store.writeStreaming("big", note, keyRing);
+                store.write("b", record(20, 2));
+                store.sync();
+
+                assertEquals(written, Files.size(segmentFiles().get(0)) - SegmentNoteStore.SEGMENT_HEADER_LENGTH
+                        - frameLength("a", 10 + VaultFormat.V2_HEADER_LENGTH)
+                        - frameLength("b", 20 + VaultFormat.V2_HEADER_LENGTH));
+            }
+
+            // The streamed frame's checksum holds, so reopening keeps it and the frames around it
+            try (SegmentNoteStore store = SegmentNoteStore.open(vault)) {
+                assertEquals(Set.of("a", "big", "b"), new HashSet<>(store.noteIds()));
+                assertArrayEquals(record(20, 2), store.read("b").toBytes());
+                assertSameNote(note, NoteSaver.openRecord(keyRing, store.read("big")));
+            }
+        } finally {
+            keyRing.destroy();
+        }
+    }
+
+    private static int frameLength(String noteId, int recordLength) {
+        return 7 + noteId.length() + recordLength + 4;
+    }
+}
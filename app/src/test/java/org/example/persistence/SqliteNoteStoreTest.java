@@ -0,0 +1,115 @@
+package org.example.persistence;
+
+import static org.example.persistence.VaultFixtures.record;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.example.Note;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SqliteNoteStoreTest {
+
+    private Path dir;
+    private Path vault;
+    private ConnectionPool database;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("sqlite-store");
+        vault = Files.createDirectory(dir.resolve("user-1"));
+        database = new ConnectionPool("jdbc:sqlite:" + dir.resolve("notes.db"), dir, 1, connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate(SqliteNoteStore.CREATE_TABLE);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        database.close();
+        VaultFixtures.deleteTree(dir);
+    }
+
+    @Test
+    public void buffersChangesUntilSync() throws IOException {
+        SqliteNoteStore store = new SqliteNoteStore(database, "user-1");
+        store.write("a", record(10, 1));
+        store.write("b", record(20, 2));
+
+        // Reads see buffered writes; another store of the same user only sees commits
+        assertArrayEquals(record(20, 2), store.read("b").toBytes());
+        assertTrue(new SqliteNoteStore(database, "user-1").noteIds().isEmpty());
+
+        store.sync();
+        assertTrue(store.delete("a"));
+        assertNull(store.read("a"));
+        store.sync();
+
+        SqliteNoteStore reopened = new SqliteNoteStore(database, "user-1");
+        assertEquals(Set.of("b"), new HashSet<>(reopened.noteIds()));
+        assertArrayEquals(record(20, 2), reopened.read("b").toBytes());
+        assertTrue(new SqliteNoteStore(database, "user-2").noteIds().isEmpty());
+    }
+
+    @Test
+    public void migratesNoteFilesAndSegmentsIntoTheTable() throws IOException {
+        FileNoteStore files = new FileNoteStore(vault);
+        files.write("a", record(100, 1));
+        files.write("b", record(200, 2));
+        files.sync();
+        try (SegmentNoteStore segments = SegmentNoteStore.open(vault)) {
+            segments.write("c", record(300, 3));
+            segments.write("d", record(400, 4));
+            segments.write("gone", record(500, 5));
+            segments.delete("gone");
+            segments.sync();
+        }
+
+        SqliteNoteStore store = new SqliteNoteStore(database, "user-1");
+        assertEquals(4, UserSaver.migrateToDatabase(vault, store));
+
+        // Every source is removed once its records are committed
+        assertTrue(files.noteIds().isEmpty());
+        assertFalse(SegmentNoteStore.hasSegments(vault));
+
+        SqliteNoteStore reopened = new SqliteNoteStore(database, "user-1");
+        assertEquals(Set.of("a", "b", "c", "d"), new HashSet<>(reopened.noteIds()));
+        assertArrayEquals(record(200, 2), reopened.read("b").toBytes());
+        assertArrayEquals(record(400, 4), reopened.read("d").toBytes());
+
+        // Running it again finds nothing left to move
+        assertEquals(0, UserSaver.migrateToDatabase(vault, reopened));
+        assertEquals(4, reopened.noteIds().size());
+    }
+
+    @Test
+    public void refusesToStreamALargeNote() throws IOException {
+        SqliteNoteStore store = new SqliteNoteStore(database, "user-1");
+        Note note = Note.restore("big", "Big", "body", LocalDateTime.now(), LocalDateTime.now());
+        KeyRing keyRing = VaultFixtures.keyRing("correct horse");
+        try {
+            assertFalse(store.streamsLargeNotes());
+            store.writeStreaming("big", note, keyRing);
+            fail("The sqlite layout streamed a note");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains(String.valueOf(ChunkedNoteFile.THRESHOLD)));
+        } finally {
+            keyRing.destroy();
+        }
+        assertNull(store.read("big"));
+    }
+}
@@ -0,0 +1,107 @@
+package org.example.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.example.Note;
+
+/**
+ * Builders and checks shared by the persistence tests.
+ */
+final class VaultFixtures {
+
+    private VaultFixtures() {
+    }
+
+    /**
+     * @return a legacy ring with an iteration count low enough to keep derivations out of test time
+     */
+    static KeyRing keyRing(String password) {
+        return new KeyRing(password, new KdfParams(1000, new byte[] {1, 2, 3, 4}));
+    }
+
+    /**
+     * @return text of exactly {@code length} characters
+     */
+    static String text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append("line ").append(text.length()).append(" of a long note\n");
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+
+    /**
+     * @return a version 1 image (HMAC | IV | length | CBC cipher), which the vault only reads
+     */
+    static byte[] sealV1(KeyRing keyRing, byte[] plain) throws GeneralSecurityException {
+        byte[] iv = IvGenerator.nextIv(VaultFormat.V1_IV_LENGTH);
+        Cipher cipher = Cipher.getInstance(CryptoContext.CBC);
+        cipher.init(Cipher.ENCRYPT_MODE, keyRing.encryptionKey(), new IvParameterSpec(iv));
+        byte[] sealed = cipher.doFinal(plain);
+
+        Mac mac = Mac.getInstance(CryptoContext.HMAC);
+        mac.init(keyRing.macKey());
+        byte[] tag = mac.doFinal(sealed);
+
+        return ByteBuffer.allocate(VaultFormat.V1_HEADER_LENGTH + sealed.length).order(ByteOrder.LITTLE_ENDIAN)
+                .put(tag).put(iv).putInt(sealed.length).put(sealed).array();
+    }
+
+    /**
+     * @return a well-formed version 2 image; stores never decrypt, so the ciphertext can be anything
+     */
+    static byte[] record(int cipherLength, int fill) {
+        byte[] record = new byte[VaultFormat.V2_HEADER_LENGTH + cipherLength];
+        VaultFormat.writeV2Header(record, VaultFormat.COMPRESSION_NONE, new byte[VaultFormat.GCM_IV_LENGTH],
+                cipherLength);
+        Arrays.fill(record, VaultFormat.V2_HEADER_LENGTH, record.length, (byte) fill);
+        return record;
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * @return the note as older versions stored it, with Java serialization
+     */
+    static byte[] serialize(Note note) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(note);
+        }
+        return bytes.toByteArray();
+    }
+
+    static void assertSameNote(Note expected, Note actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+        assertEquals(expected.getUpdatedAt(), actual.getUpdatedAt());
+    }
+}
@@ -0,0 +1,109 @@
+package org.example.persistence;
+
+import static org.example.persistence.VaultFixtures.assertSameNote;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+
+import org.example.Note;
+import org.junit.After;
+import org.junit.Test;
+
+public class VaultFormatTest {
+
+    private final KeyRing keyRing = VaultFixtures.keyRing("correct horse");
+
+    @After
+    public void tearDown() {
+        keyRing.destroy();
+    }
+
+    private static Note note(int contentLength) {
+        return Note.restore("note-1", "Title", VaultFixtures.text(contentLength),
+                LocalDateTime.of(2020, 1, 2, 3, 4, 5), LocalDateTime.of(2021, 6, 7, 8, 9, 10));
+    }
+
+    private Note open(byte[] image) throws IOException {
+        return NoteSaver.openRecord(keyRing, NoteFileReader.parse(ByteBuffer.wrap(image)));
+    }
+
+    private void assertRejected(byte[] image) throws IOException {
+        try {
+            open(image);
+            fail("Tampered record was opened");
+        } catch (SecurityException expected) {
+            // Authentication failed before anything was decoded
+        }
+    }
+
+    @Test
+    public void tellsTheVersionsApart() throws Exception {
+        Note note = note(100);
+        byte[] v1 = VaultFixtures.sealV1(keyRing, NoteCodec.encode(note));
+        byte[] v2 = NoteSaver.sealRecord(keyRing, note);
+
+        assertEquals(VaultFormat.VERSION_1, VaultFormat.versionOf(ByteBuffer.wrap(v1)));
+        assertEquals(VaultFormat.VERSION_2, VaultFormat.versionOf(ByteBuffer.wrap(v2)));
+        assertEquals(VaultFormat.V1_HEADER_LENGTH, VaultFormat.headerLength(ByteBuffer.wrap(v1)));
+        assertEquals(VaultFormat.V2_HEADER_LENGTH, VaultFormat.headerLength(ByteBuffer.wrap(v2)));
+        assertEquals(VaultFormat.VERSION_1, VaultFormat.versionOf(ByteBuffer.wrap(new byte[] {'N', 'V'})));
+    }
+
+    @Test
+    public void opensVersion1AndMarksItForRewrite() throws Exception {
+        Note note = note(1000);
+
+        Note opened = open(VaultFixtures.sealV1(keyRing, NoteCodec.encode(note)));
+
+        assertSameNote(note, opened);
+        assertTrue(opened.isDirty());
+    }
+
+    @Test
+    public void opensVersion2() throws Exception {
+        Note note = note(1000);
+
+        Note opened = open(NoteSaver.sealRecord(keyRing, note));
+
+        assertSameNote(note, opened);
+        assertFalse(opened.isDirty());
+    }
+
+    @Test
+    public void rejectsTamperedVersion1() throws Exception {
+        byte[] image = VaultFixtures.sealV1(keyRing, NoteCodec.encode(note(1000)));
+        image[image.length - 1] ^= 1;
+        assertRejected(image);
+    }
+
+    @Test
+    public void rejectsTamperedVersion2() throws Exception {
+        byte[] cipher = NoteSaver.sealRecord(keyRing, note(1000));
+        cipher[cipher.length - 1] ^= 1;
+        assertRejected(cipher);
+
+        // The header is authenticated too, so the flags cannot be changed
+        byte[] flags = NoteSaver.sealRecord(keyRing, note(1000));
+        flags[VaultFormat.MAGIC.length + 1] ^= VaultFormat.COMPRESSION_DEFLATE;
+        assertRejected(flags);
+    }
+
+    @Test
+    public void rejectsTheWrongKey() throws Exception {
+        byte[] image = NoteSaver.sealRecord(keyRing, note(1000));
+        KeyRing other = VaultFixtures.keyRing("wrong horse");
+        try {
+            NoteSaver.openRecord(other, NoteFileReader.parse(ByteBuffer.wrap(image)));
+            fail("Record opened under another password");
+        } catch (SecurityException expected) {
+            // The tag does not verify under another key
+        } finally {
+            other.destroy();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.example.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+import org.example.Note;
+import org.example.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Saves go through {@link UserSaver#saveUser}, so these tests write vaults
+ * under {@code data/} in the working directory.
+ */
+public class WriteBehindSaverTest {
+
+    private User user;
+    private Path vault;
+
+    @Before
+    public void setUp() {
+        KeyRing keyRing = KeyRing.create("password", new KdfParams(1000, new byte[] {4, 5, 6}));
+        user = new User(UUID.randomUUID().toString(), "writer", "password", keyRing);
+        // Only the vault is written; the users table is left alone
+        user.markCredentialsSaved(user.getCredentialsRevision());
+        for (int i = 0; i < 3; i++) {
+            user.addNote(new Note("Note " + i, "Body " + i));
+        }
+        vault = Paths.get("data", user.getId());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        user.getKeyRing().destroy();
+        if (Files.isDirectory(vault)) {
+            VaultFixtures.deleteTree(vault);
+        } else {
+            Files.deleteIfExists(vault);
+        }
+    }
+
+    private boolean anyDirty() {
+        for (Note note : user.getNotes()) {
+            if (note.isDirty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* A regular file where the vault directory belongs makes every save fail */
+    private void blockVault() throws IOException {
+        Files.createDirectories(vault.getParent());
+        Files.write(vault, new byte[] {0});
+    }
+
+    @Test
+    public void coalescesABurstOfEditsIntoOneSave() throws IOException {
+        WriteBehindSaver saver = new WriteBehindSaver(1000, 5000, 3);
+        for (int round = 0; round < 20; round++) {
+            for (Note note : user.getNotes()) {
+                note.setContent("Body revision " + round);
+                saver.noteChanged(user, note.getId());
+            }
+        }
+        assertEquals(60, saver.getQueueDepth());
+        assertEquals(3, saver.getPendingNoteCount());
+
+        saver.flush(user);
+
+        assertEquals(60, saver.getEventCount());
+        assertEquals(1, saver.getSaveCount());
+        assertEquals(0, saver.getQueueDepth());
+        assertFalse(anyDirty());
+    }
+
+    @Test(timeout = 10_000)
+    public void savesOnItsOwnOnceTheWindowCloses() throws InterruptedException {
+        WriteBehindSaver saver = new WriteBehindSaver(50, 500, 3);
+        saver.userChanged(user);
+        while (saver.getSaveCount() == 0) {
+            Thread.sleep(10);
+        }
+        assertFalse(anyDirty());
+    }
+
+    @Test
+    public void retriesAFailedSave() throws IOException {
+        // Long enough that saves and the retry only run when a flush asks for them
+        WriteBehindSaver saver = new WriteBehindSaver(1000, 5000, 3);
+        blockVault();
+        saver.userChanged(user);
+        try {
+            saver.flush(user);
+            fail("Save into a blocked vault succeeded");
+        } catch (IOException expected) {
+            // The batch is queued again for a retry
+        }
+        assertTrue(anyDirty());
+        assertEquals(1, saver.getQueueDepth());
+
+        Files.delete(vault);
+        saver.flush(user);
+
+        assertEquals(1, saver.getSaveCount());
+        assertEquals(0, saver.getQueueDepth());
+        assertFalse(anyDirty());
+    }
+
+    @Test
+    public void setsABatchAsideAfterItsLastAttemptAndKeepsTheNotesDirty() throws IOException {
+        WriteBehindSaver saver = new WriteBehindSaver(1000, 5000, 1);
+        blockVault();
+        saver.userChanged(user);
+        try {
+            saver.flush(user);
+            fail("Save into a blocked vault succeeded");
+        } catch (IOException expected) {
+            // Only one attempt was allowed
+        }
+        assertEquals(0, saver.getQueueDepth());
+        assertEquals(1, saver.getSetAsideUserCount());
+        assertTrue(anyDirty());
+
+        // The next change saves everything that is still dirty
+        Files.delete(vault);
+        saver.userChanged(user);
+        assertEquals(0, saver.getSetAsideUserCount());
+        saver.flush(user);
+
+        assertEquals(1, saver.getSaveCount());
+        assertFalse(anyDirty());
+    }
+
+    @Test
+    public void flushNeverReportsASetAsideBatchAsSaved() throws IOException {
+        WriteBehindSaver saver = new WriteBehindSaver(1000, 5000, 1);
+        blockVault();
+        saver.userChanged(user);
+        try {
+            saver.flush();
+            fail("Save into a blocked vault succeeded");
+        } catch (IOException expected) {
+            // Set aside after its only attempt
+        }
+
+        // Without any new event, a later flush tries again and still fails
+        for (int i = 0; i < 2; i++) {
+            try {
+                saver.flush(user);
+                fail("Flush returned while the user's changes were unsaved");
+            } catch (IOException expected) {
+                assertEquals(1, saver.getSetAsideUserCount());
+            }
+        }
+
+        // Once the vault can be written the flush itself saves the batch
+        Files.delete(vault);
+        saver.flush();
+
+        assertEquals(0, saver.getSetAsideUserCount());
+        assertEquals(1, saver.getSaveCount());
+        assertFalse(anyDirty());
+    }
+}